@@ -0,0 +1,182 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jiaoqsh.rsm.redis.JedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Maps attribute names to short numeric hash fields, so session hashes do not
+ * repeat long names such as SPRING_SECURITY_CONTEXT.
+ * <p>
+ * The mapping of an application is kept once in a Redis hash from name to
+ * number and cached in the JVM. A new name is registered by a script that
+ * returns the number already given to it, or atomically gives it the next
+ * one, so nodes registering the same name concurrently agree. Entries are
+ * never removed, so a number always means the same name.
+ * <p>
+ * Only writes register names. Reads look a name up without registering it,
+ * and a field that is not a number of the dictionary, such as one written
+ * before the dictionary was enabled, is read under its literal name.
+ */
+public class AttributeDictionary {
+
+	private static final Log log = LogFactory.getLog(AttributeDictionary.class);
+
+	private final String key;
+	private final JedisTemplate jedisTemplate;
+	private final ScriptRegistry scriptRegistry;
+
+	private final ConcurrentMap<String, String> fields = new ConcurrentHashMap<String, String>();
+	private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+	/**
+	 * Numeric fields still unknown after a reload. A number is registered
+	 * before any node writes it, so these will not appear later.
+	 */
+	private final ConcurrentMap<String, Boolean> unknown = new ConcurrentHashMap<String, Boolean>();
+
+	private final AtomicLong registrations = new AtomicLong();
+	private final AtomicLong lookups = new AtomicLong();
+	private final AtomicLong reloads = new AtomicLong();
+
+	public AttributeDictionary(String key, JedisTemplate jedisTemplate, ScriptRegistry scriptRegistry) {
+		this.key = key;
+		this.jedisTemplate = jedisTemplate;
+		this.scriptRegistry = scriptRegistry;
+	}
+
+	/**
+	 * The hash field to write an attribute to, registering the name if no
+	 * node has stored it yet.
+	 */
+	public String toField(String name) {
+		String field = fields.get(name);
+		if (field != null) {
+			return field;
+		}
+		Object id = scriptRegistry.eval(ScriptRegistry.REGISTER_NAME,
+				Collections.singletonList(SafeEncoder.encode(key)),
+				Collections.singletonList(SafeEncoder.encode(name)));
+		registrations.incrementAndGet();
+		field = String.valueOf(id);
+		put(name, field);
+		return field;
+	}
+
+	/**
+	 * The hash field an attribute is stored in, without registering the
+	 * name. A name this node does not know is looked up in Redis on every
+	 * call, since another node may register it at any time.
+	 *
+	 * @return the field, or <code>null</code> if no node has registered the name
+	 */
+	public String lookupField(final String name) {
+		String field = fields.get(name);
+		if (field != null) {
+			return field;
+		}
+		field = jedisTemplate.execute(key, new JedisTemplate.JedisAction<String>() {
+			@Override
+			public String action(Jedis jedis) {
+				return jedis.hget(key, name);
+			}
+		});
+		lookups.incrementAndGet();
+		if (field != null) {
+			put(name, field);
+		}
+		return field;
+	}
+
+	/**
+	 * The attribute held in a hash field. The dictionary is read again from
+	 * Redis for a number registered by another node since, once per number.
+	 *
+	 * @return the name, or <code>null</code> if the field is not a number of
+	 *  the dictionary
+	 */
+	public String toName(String field) {
+		String name = names.get(field);
+		if (name != null || !isNumber(field) || unknown.containsKey(field)) {
+			return name;
+		}
+		reload();
+		name = names.get(field);
+		if (name == null && unknown.putIfAbsent(field, Boolean.TRUE) == null) {
+			log.warn("Unknown attribute field " + field + " in dictionary " + key);
+		}
+		return name;
+	}
+
+	private static boolean isNumber(String field) {
+		if (field.isEmpty()) {
+			return false;
+		}
+		for (int i = 0; i < field.length(); i++) {
+			if (!Character.isDigit(field.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Read the whole dictionary from Redis.
+	 */
+	public void reload() {
+		Map<String, String> entries = jedisTemplate.execute(key, new JedisTemplate.JedisAction<Map<String, String>>() {
+			@Override
+			public Map<String, String> action(Jedis jedis) {
+				return jedis.hgetAll(key);
+			}
+		});
+		reloads.incrementAndGet();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			put(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private void put(String name, String field) {
+		names.put(field, name);
+		fields.put(name, field);
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Number of names known to this node.
+	 */
+	public int getSize() {
+		return fields.size();
+	}
+
+	/**
+	 * Number of names this node looked up with the registration script.
+	 */
+	public long getRegistrations() {
+		return registrations.get();
+	}
+
+	/**
+	 * Number of names this node looked up in Redis without registering them.
+	 */
+	public long getLookups() {
+		return lookups.get();
+	}
+
+	public long getReloads() {
+		return reloads.get();
+	}
+}
@@ -0,0 +1,252 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Learns which attributes the requests of each URI pattern read, so that a
+ * session can be loaded together with the attributes the request is about
+ * to ask for.
+ * <p>
+ * For every pattern the probability that a request reads an attribute is
+ * tracked as an exponentially decaying average, so attributes that stop
+ * being read fade out. Attributes read by at least <code>threshold</code>
+ * of the recent requests are predicted. Both the number of patterns and the
+ * number of attributes per pattern are bounded.
+ * <p>
+ * A request is traced on its own thread between {@link #begin(String)} and
+ * {@link #end()}.
+ */
+public class AttributePrefetcher {
+
+	private static final double MIN_SCORE = 0.01;
+
+	private final int maxPatterns;
+	private final int maxAttributes;
+	private final double weight;
+	private final double threshold;
+
+	private final LinkedHashMap<String, Pattern> patterns;
+	private final ThreadLocal<Trace> traces = new ThreadLocal<Trace>();
+
+	private final AtomicLong prefetched = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong wastedBytes = new AtomicLong();
+
+	/**
+	 * @param maxPatterns number of URI patterns remembered
+	 * @param maxAttributes number of attributes remembered per pattern
+	 * @param weight weight of the latest request in the average, between 0 and 1
+	 * @param threshold share of requests that must read an attribute for it
+	 *  to be prefetched
+	 */
+	public AttributePrefetcher(final int maxPatterns, int maxAttributes, double weight, double threshold) {
+		this.maxPatterns = maxPatterns;
+		this.maxAttributes = maxAttributes;
+		this.weight = weight;
+		this.threshold = threshold;
+		this.patterns = new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Pattern> eldest) {
+				return size() > AttributePrefetcher.this.maxPatterns;
+			}
+		};
+	}
+
+	/**
+	 * Reduce a request URI to a pattern: path segments containing a digit,
+	 * such as ids, are replaced by <code>*</code>.
+	 */
+	public static String toPattern(String path) {
+		StringBuilder sb = new StringBuilder(path.length());
+		int start = 0;
+		while (start <= path.length()) {
+			int end = path.indexOf('/', start);
+			if (end < 0) {
+				end = path.length();
+			}
+			String segment = path.substring(start, end);
+			boolean variable = false;
+			for (int i = 0; i < segment.length() && !variable; i++) {
+				variable = Character.isDigit(segment.charAt(i));
+			}
+			sb.append(variable ? "*" : segment);
+			if (end < path.length()) {
+				sb.append('/');
+			}
+			start = end + 1;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Start tracing the request running on this thread.
+	 */
+	public void begin(String pattern) {
+		traces.set(new Trace(pattern));
+	}
+
+	/**
+	 * The attributes the current request is expected to read.
+	 */
+	public List<String> predict() {
+		Trace trace = traces.get();
+		if (trace == null) {
+			return Collections.emptyList();
+		}
+		Pattern pattern;
+		synchronized (patterns) {
+			pattern = patterns.get(trace.pattern);
+		}
+		return pattern == null ? Collections.<String>emptyList() : pattern.predict(threshold);
+	}
+
+	/**
+	 * An attribute of <code>size</code> bytes was loaded ahead of use.
+	 */
+	public void prefetched(String name, int size) {
+		Trace trace = traces.get();
+		if (trace != null) {
+			trace.prefetched.put(name, size);
+		}
+	}
+
+	/**
+	 * The current request read an attribute.
+	 */
+	public void read(String name) {
+		Trace trace = traces.get();
+		if (trace != null) {
+			trace.read.add(name);
+		}
+	}
+
+	/**
+	 * Stop tracing the request on this thread and learn from it. Requests
+	 * that did not touch a session teach nothing.
+	 */
+	public void end() {
+		Trace trace = traces.get();
+		traces.remove();
+		if (trace == null || (trace.read.isEmpty() && trace.prefetched.isEmpty())) {
+			return;
+		}
+
+		for (Map.Entry<String, Integer> entry : trace.prefetched.entrySet()) {
+			prefetched.incrementAndGet();
+			if (trace.read.contains(entry.getKey())) {
+				hits.incrementAndGet();
+			} else {
+				wastedBytes.addAndGet(entry.getValue());
+			}
+		}
+
+		Pattern pattern;
+		synchronized (patterns) {
+			pattern = patterns.get(trace.pattern);
+			if (pattern == null) {
+				pattern = new Pattern();
+				patterns.put(trace.pattern, pattern);
+			}
+		}
+		pattern.record(trace.read, weight, maxAttributes);
+	}
+
+	public int getPatternCount() {
+		synchronized (patterns) {
+			return patterns.size();
+		}
+	}
+
+	/**
+	 * Number of attributes loaded ahead of use.
+	 */
+	public long getPrefetched() {
+		return prefetched.get();
+	}
+
+	/**
+	 * Number of prefetched attributes the request then read.
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	public double getHitRate() {
+		long count = prefetched.get();
+		return count == 0 ? 0 : (double) hits.get() / count;
+	}
+
+	/**
+	 * Bytes of prefetched attributes the request never read.
+	 */
+	public long getWastedBytes() {
+		return wastedBytes.get();
+	}
+
+	private static class Trace {
+		final String pattern;
+		final Set<String> read = new HashSet<String>();
+		final Map<String, Integer> prefetched = new HashMap<String, Integer>();
+
+		Trace(String pattern) {
+			this.pattern = pattern;
+		}
+	}
+
+	private static class Pattern {
+		private final Map<String, Double> scores = new HashMap<String, Double>();
+
+		synchronized void record(Set<String> read, double weight, int maxAttributes) {
+			for (Iterator<Map.Entry<String, Double>> it = scores.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Double> entry = it.next();
+				double score = entry.getValue() * (1 - weight) + (read.contains(entry.getKey()) ? weight : 0);
+				if (score < MIN_SCORE) {
+					it.remove();
+				} else {
+					entry.setValue(score);
+				}
+			}
+			for (String name : read) {
+				if (!scores.containsKey(name)) {
+					scores.put(name, weight);
+				}
+			}
+			while (scores.size() > maxAttributes) {
+				scores.remove(lowest());
+			}
+		}
+
+		synchronized List<String> predict(double threshold) {
+			List<String> names = new ArrayList<String>();
+			for (Map.Entry<String, Double> entry : scores.entrySet()) {
+				if (entry.getValue() >= threshold) {
+					names.add(entry.getKey());
+				}
+			}
+			return names;
+		}
+
+		private String lowest() {
+			String lowest = null;
+			double min = Double.MAX_VALUE;
+			for (Map.Entry<String, Double> entry : scores.entrySet()) {
+				if (entry.getValue() < min) {
+					min = entry.getValue();
+					lowest = entry.getKey();
+				}
+			}
+			return lowest;
+		}
+	}
+}
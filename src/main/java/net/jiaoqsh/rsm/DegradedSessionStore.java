@@ -0,0 +1,113 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sessions this node could not write to Redis, kept in memory until they are
+ * reconciled.
+ * <p>
+ * While Redis is unreachable, a session created or modified on this node is
+ * served from here, and its pending changes wait in its change set. The store
+ * holds at most maxSessions sessions; when full, the least recently used one
+ * is dropped and its changes are lost, which bounds the heap an outage can
+ * take.
+ */
+public class DegradedSessionStore {
+
+	private final int maxSessions;
+	private final Map<String, RedisSession> sessions;
+
+	private final AtomicLong degraded = new AtomicLong();
+	private final AtomicLong evicted = new AtomicLong();
+	private final AtomicLong reconciled = new AtomicLong();
+
+	public DegradedSessionStore(final int maxSessions) {
+		this.maxSessions = maxSessions;
+		this.sessions = new LinkedHashMap<String, RedisSession>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RedisSession> eldest) {
+				if (size() > maxSessions) {
+					evicted.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Keep a session until it is reconciled.
+	 *
+	 * @return true if the session was not kept yet
+	 */
+	public synchronized boolean put(RedisSession session) {
+		if (sessions.put(session.getIdInternal(), session) != null) {
+			return false;
+		}
+		degraded.incrementAndGet();
+		return true;
+	}
+
+	public synchronized RedisSession get(String id) {
+		return sessions.get(id);
+	}
+
+	public synchronized boolean contains(String id) {
+		return sessions.containsKey(id);
+	}
+
+	/**
+	 * Forget a session that was invalidated.
+	 */
+	public synchronized void remove(String id) {
+		sessions.remove(id);
+	}
+
+	/**
+	 * Forget a session whose changes are all in Redis again.
+	 */
+	public synchronized void reconciled(RedisSession session) {
+		if (sessions.remove(session.getIdInternal()) != null) {
+			reconciled.incrementAndGet();
+		}
+	}
+
+	/**
+	 * The sessions waiting to be reconciled, least recently used first.
+	 */
+	public synchronized List<RedisSession> getSessions() {
+		return new ArrayList<RedisSession>(sessions.values());
+	}
+
+	public synchronized int size() {
+		return sessions.size();
+	}
+
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	/**
+	 * Number of sessions kept in the store since start.
+	 */
+	public long getDegraded() {
+		return degraded.get();
+	}
+
+	/**
+	 * Number of sessions dropped with their pending changes because the store was full.
+	 */
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	public long getReconciled() {
+		return reconciled.get();
+	}
+}
@@ -0,0 +1,151 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+/**
+ * Hands the ids of expired sessions to a handler in batches, on a few
+ * background threads of their own.
+ * <p>
+ * Ids wait in a bounded queue. When a mass expiry fills it, further ids are
+ * dropped and counted rather than blocking the thread that receives them;
+ * those sessions still disappear with their Redis TTL, only without
+ * listeners being notified.
+ */
+public class ExpiryDispatcher {
+
+	private static final Log log = LogFactory.getLog(ExpiryDispatcher.class);
+
+	/**
+	 * Processes a batch of expired session ids.
+	 */
+	public interface Handler {
+		void handle(List<String> ids);
+	}
+
+	private final Handler handler;
+	private final int threads;
+	private final int batchSize;
+	private final BlockingQueue<String> queue;
+
+	private volatile boolean running = false;
+	private final List<Thread> workers = new ArrayList<Thread>();
+
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	public ExpiryDispatcher(Handler handler, int threads, int queueSize, int batchSize) {
+		this.handler = handler;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.queue = new ArrayBlockingQueue<String>(queueSize);
+	}
+
+	public synchronized void start() {
+		running = true;
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread("redis-session-expiry-" + i) {
+				@Override
+				public void run() {
+					dispatch();
+				}
+			};
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	/**
+	 * Stop the workers; ids still queued are discarded.
+	 */
+	public synchronized void stop() {
+		running = false;
+		for (Thread worker : workers) {
+			worker.interrupt();
+		}
+		workers.clear();
+		queue.clear();
+	}
+
+	/**
+	 * Queue the id of an expired session, never blocking.
+	 *
+	 * @return false if the queue is full and the id was dropped
+	 */
+	public boolean submit(String id) {
+		received.incrementAndGet();
+		if (queue.offer(id)) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Take the next batch of queued ids, waiting at most timeout
+	 * milliseconds for the first one.
+	 *
+	 * @return the batch, empty if none came in time
+	 */
+	List<String> nextBatch(long timeout) throws InterruptedException {
+		String first = queue.poll(timeout, TimeUnit.MILLISECONDS);
+		if (first == null) {
+			return new ArrayList<String>(0);
+		}
+		List<String> batch = new ArrayList<String>(Math.min(batchSize, queue.size() + 1));
+		batch.add(first);
+		queue.drainTo(batch, batchSize - 1);
+		return batch;
+	}
+
+	private void dispatch() {
+		while (running) {
+			List<String> batch;
+			try {
+				batch = nextBatch(1000);
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (batch.isEmpty()) {
+				continue;
+			}
+			batches.incrementAndGet();
+			try {
+				handler.handle(batch);
+			} catch (Exception e) {
+				log.error("Unable to process " + batch.size() + " expired sessions", e);
+			}
+		}
+	}
+
+	/**
+	 * Number of expired ids received.
+	 */
+	public long getReceived() {
+		return received.get();
+	}
+
+	/**
+	 * Number of expired ids dropped because the queue was full.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public int getQueueSize() {
+		return queue.size();
+	}
+}
@@ -0,0 +1,42 @@
+package net.jiaoqsh.rsm;
+
+import redis.clients.util.Hashing;
+
+/**
+ * Cheap identity of an attribute's serialized form: its length and a 64-bit
+ * MurmurHash. Two equal fingerprints mean, with overwhelming probability,
+ * that the value serialized to the same bytes.
+ */
+public final class Fingerprint {
+
+	private final int length;
+	private final long hash;
+
+	private Fingerprint(int length, long hash) {
+		this.length = length;
+		this.hash = hash;
+	}
+
+	public static Fingerprint of(byte[] data) {
+		return new Fingerprint(data.length, Hashing.MURMUR_HASH.hash(data));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof Fingerprint)) {
+			return false;
+		}
+		Fingerprint other = (Fingerprint) obj;
+		return length == other.length && hash == other.hash;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (hash ^ (hash >>> 32));
+	}
+
+	@Override
+	public String toString() {
+		return length + ":" + Long.toHexString(hash);
+	}
+}
@@ -0,0 +1,134 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, least-recently-used cache of the sessions this node has served
+ * recently, together with the attributes they have decoded.
+ * <p>
+ * An entry is only handed out while the session has been idle for less than
+ * the configured maximum (and never longer than half its maxInactiveInterval),
+ * so a copy that another node kept alive in Redis is never expired locally.
+ * Other nodes' writes are applied through {@link #invalidate(String, Collection)}.
+ */
+public class NearCache {
+
+	private final int maxSize;
+	private final long maxIdle;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	private final LinkedHashMap<String, RedisSession> sessions;
+
+	/**
+	 * @param maxSize maximum number of cached sessions
+	 * @param maxIdle milliseconds an entry may stay unused before it is
+	 *  considered stale
+	 */
+	public NearCache(int maxSize, long maxIdle) {
+		this.maxSize = maxSize;
+		this.maxIdle = maxIdle;
+		this.sessions = new LinkedHashMap<String, RedisSession>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, RedisSession> eldest) {
+				if (size() > NearCache.this.maxSize) {
+					evictions.incrementAndGet();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public RedisSession get(String id) {
+		RedisSession session;
+		synchronized (sessions) {
+			session = sessions.get(id);
+			if (session != null && isStale(session)) {
+				sessions.remove(id);
+				evictions.incrementAndGet();
+				session = null;
+			}
+		}
+		if (session == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return session;
+	}
+
+	public void put(RedisSession session) {
+		synchronized (sessions) {
+			sessions.put(session.getIdInternal(), session);
+		}
+	}
+
+	public void remove(String id) {
+		synchronized (sessions) {
+			sessions.remove(id);
+		}
+	}
+
+	/**
+	 * Apply a change made by another node: drop the given attributes from the
+	 * cached session, or the whole session when no attribute is named.
+	 */
+	public void invalidate(String id, Collection<String> names) {
+		RedisSession session;
+		synchronized (sessions) {
+			session = names.isEmpty() ? sessions.remove(id) : sessions.get(id);
+		}
+		if (session != null) {
+			invalidations.incrementAndGet();
+			if (!names.isEmpty()) {
+				session.evictAttributes(names);
+			}
+		}
+	}
+
+	public void clear() {
+		synchronized (sessions) {
+			sessions.clear();
+		}
+	}
+
+	private boolean isStale(RedisSession session) {
+		long idle = System.currentTimeMillis() - session.getThisAccessedTimeInternal();
+		long limit = maxIdle;
+		if (session.getMaxInactiveInterval() > 0) {
+			limit = Math.min(limit, session.getMaxInactiveInterval() * 1000L / 2);
+		}
+		return idle >= limit;
+	}
+
+	public int getSize() {
+		synchronized (sessions) {
+			return sessions.size();
+		}
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+}
@@ -0,0 +1,675 @@
+package net.jiaoqsh.rsm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jiaoqsh.rsm.serializer.FieldCodec;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Session hashes kept in the memory of this JVM, outside the Java heap, for
+ * deployments with a single Tomcat where running Redis only to hold sessions
+ * is not worth it. Sessions do not survive a restart of the JVM.
+ * <p>
+ * Keys are spread over segments locked independently. Each segment has an
+ * open addressing hash table in a direct buffer, one slot per session with
+ * its expiry time, and stores every session as one record: the key followed
+ * by all its fields. Records live in 1 MB direct pages allocated as needed
+ * and split into chunks of power of two sizes, from 64 bytes to a whole
+ * page, by a buddy allocator: a chunk is cut in halves until it fits a
+ * record and merged back with its free half when released, so pages are
+ * shared by records of all sizes, freed memory is reused without compaction
+ * and millions of sessions only cost the heap a few primitive arrays.
+ * <p>
+ * Expired sessions are dropped when read, by {@link #processExpires()} and
+ * when a segment runs out of pages; if it still has no room, the sessions
+ * closest to expiry are evicted until a chunk large enough is freed.
+ */
+public class OffHeapSessionStore implements SessionStore {
+
+	/**
+	 * Bytes of direct memory allocated at once; also the largest session record.
+	 */
+	public static final int PAGE_SIZE = 1 << 20;
+
+	private static final int MIN_CHUNK = 64;
+	private static final int CLASSES = 15;
+	private static final int SLOT = 24;
+	private static final int INITIAL_SLOTS = 1024;
+	private static final int MAX_SLOTS = 1 << 26;
+	private static final long EMPTY = 0;
+	private static final long DELETED = -1;
+
+	private final Segment[] segments;
+	private final long capacity;
+
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param capacity bytes of direct memory the store may use for records,
+	 *  rounded to whole pages per segment
+	 * @param concurrency number of segments, rounded up to a power of two
+	 */
+	public OffHeapSessionStore(long capacity, int concurrency) {
+		int count = 1;
+		while (count < concurrency && count < 256) {
+			count <<= 1;
+		}
+		int pages = (int) Math.max(1, capacity / PAGE_SIZE / count);
+		this.segments = new Segment[count];
+		for (int i = 0; i < count; i++) {
+			segments[i] = new Segment(pages);
+		}
+		this.capacity = (long) pages * PAGE_SIZE * count;
+	}
+
+	@Override
+	public boolean create(String key, String field, byte[] value, int seconds) {
+		byte[] raw = SafeEncoder.encode(key);
+		int hash = hash(raw);
+		return segment(hash).putIfAbsent(raw, hash, FieldCodec.encode(Collections.singletonMap(field, value)),
+				System.currentTimeMillis(), seconds);
+	}
+
+	@Override
+	public Map<String, byte[]> touchAndRead(String key, int seconds, int minTtl, List<String> fields) {
+		byte[] raw = SafeEncoder.encode(key);
+		int hash = hash(raw);
+		byte[] data = segment(hash).get(raw, hash, System.currentTimeMillis(), seconds, minTtl);
+		if (data == null) {
+			return null;
+		}
+		Map<String, byte[]> all = FieldCodec.decode(data);
+		if (fields == null) {
+			return all;
+		}
+		Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+		for (String field : fields) {
+			byte[] value = all.get(field);
+			if (value != null) {
+				result.put(field, value);
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public byte[] get(String key, String field) {
+		byte[] raw = SafeEncoder.encode(key);
+		int hash = hash(raw);
+		byte[] data = segment(hash).get(raw, hash, System.currentTimeMillis(), 0, 0);
+		return data == null ? null : FieldCodec.field(data, field);
+	}
+
+	@Override
+	public void remove(String key, String field) {
+		write(key, Collections.<String, byte[]>emptyMap(), Collections.singletonList(field), 0, null);
+	}
+
+	/**
+	 * There are no other nodes to notify, so channel and message are ignored.
+	 */
+	@Override
+	public Long update(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds,
+			String versionField, String channel, String message) {
+		return write(key, sets, removes, seconds, versionField);
+	}
+
+	/**
+	 * Change the fields of an existing session; a missing one is left alone.
+	 */
+	private Long write(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds,
+			String versionField) {
+		byte[] raw = SafeEncoder.encode(key);
+		int hash = hash(raw);
+		Segment segment = segment(hash);
+		synchronized (segment) {
+			long now = System.currentTimeMillis();
+			byte[] data = segment.get(raw, hash, now, 0, 0);
+			if (data == null) {
+				return null;
+			}
+			Map<String, byte[]> fields = FieldCodec.decode(data);
+			fields.putAll(sets);
+			for (String field : removes) {
+				fields.remove(field);
+			}
+			long version = 0;
+			if (versionField != null) {
+				byte[] current = fields.get(versionField);
+				version = current == null ? 1 : Long.parseLong(SafeEncoder.encode(current)) + 1;
+				fields.put(versionField, SafeEncoder.encode(String.valueOf(version)));
+			}
+			if (fields.isEmpty()) {
+				segment.delete(raw, hash);
+			} else {
+				segment.put(raw, hash, FieldCodec.encode(fields), now, seconds, seconds <= 0);
+			}
+			return version;
+		}
+	}
+
+	@Override
+	public void expire(String key, int seconds) {
+		byte[] raw = SafeEncoder.encode(key);
+		int hash = hash(raw);
+		segment(hash).touch(raw, hash, System.currentTimeMillis(), seconds);
+	}
+
+	@Override
+	public void invalidate(String key, String channel, String message) {
+		byte[] raw = SafeEncoder.encode(key);
+		int hash = hash(raw);
+		segment(hash).delete(raw, hash);
+	}
+
+	@Override
+	public void processExpires() {
+		processExpires(System.currentTimeMillis());
+	}
+
+	void processExpires(long now) {
+		for (Segment segment : segments) {
+			segment.purge(now);
+		}
+	}
+
+	/**
+	 * Forget all sessions. The direct memory is returned when the buffers
+	 * are garbage collected.
+	 */
+	@Override
+	public void destroy() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	private Segment segment(int hash) {
+		return segments[(hash >>> 24) & (segments.length - 1)];
+	}
+
+	private static int hash(byte[] key) {
+		int h = Arrays.hashCode(key);
+		// murmur3 finalizer: the table uses the low bits, segments the high ones
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private static long expiresAt(long now, int seconds) {
+		return seconds > 0 ? now + seconds * 1000L : Long.MAX_VALUE;
+	}
+
+	private static int sizeClass(int size) {
+		if (size > PAGE_SIZE) {
+			throw new IllegalArgumentException("Session record of " + size + " bytes is larger than a page");
+		}
+		int c = 0;
+		while ((MIN_CHUNK << c) < size) {
+			c++;
+		}
+		return c;
+	}
+
+	private static int chunkSize(int c) {
+		return MIN_CHUNK << c;
+	}
+
+	/**
+	 * Number of sessions held.
+	 */
+	public int getSize() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.used;
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Bytes of direct memory the store may use for records.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Bytes of direct memory allocated for records so far.
+	 */
+	public long getAllocatedBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				bytes += (long) segment.pageCount * PAGE_SIZE;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Bytes of the chunks holding records.
+	 */
+	public long getUsedBytes() {
+		long bytes = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				bytes += segment.usedBytes;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Number of sessions dropped because their time to live had passed.
+	 */
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	/**
+	 * Number of live sessions dropped to make room for others.
+	 */
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * One independently locked part of the store.
+	 */
+	private final class Segment {
+		private ByteBuffer[] pages;
+		private int pageCount;
+		// free chunks of each size are linked through their first 16 bytes
+		private final long[] free = new long[CLASSES];
+		// one bit per free chunk of each size, per page, to find free buddies
+		private long[][] freeBits;
+		private long usedBytes;
+
+		private ByteBuffer index;
+		private int slots;
+		private int used;
+		private int deleted;
+
+		Segment(int maxPages) {
+			pages = new ByteBuffer[maxPages];
+			freeBits = new long[maxPages][];
+			index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT);
+			slots = INITIAL_SLOTS;
+		}
+
+		/**
+		 * @param seconds new time to live, or 0 to leave it as it is
+		 * @param minTtl seconds left to live at or below which the session
+		 *  is left alone, or 0
+		 */
+		synchronized byte[] get(byte[] key, int hash, long now, int seconds, int minTtl) {
+			int slot = find(key, hash);
+			if (slot < 0 || expired(slot, now)) {
+				return null;
+			}
+			if (minTtl > 0 && index.getLong(slot * SLOT + 8) - now <= minTtl * 1000L) {
+				return null;
+			}
+			if (seconds > 0) {
+				index.putLong(slot * SLOT + 8, expiresAt(now, seconds));
+			}
+			return data(address(slot));
+		}
+
+		synchronized boolean touch(byte[] key, int hash, long now, int seconds) {
+			int slot = find(key, hash);
+			if (slot < 0 || expired(slot, now)) {
+				return false;
+			}
+			index.putLong(slot * SLOT + 8, expiresAt(now, seconds));
+			return true;
+		}
+
+		synchronized boolean putIfAbsent(byte[] key, int hash, byte[] data, long now, int seconds) {
+			int slot = find(key, hash);
+			if (slot >= 0 && !expired(slot, now)) {
+				return false;
+			}
+			put(key, hash, data, now, seconds, false);
+			return true;
+		}
+
+		/**
+		 * @param keepTtl keep the expiry time of the record replaced
+		 */
+		synchronized void put(byte[] key, int hash, byte[] data, long now, int seconds, boolean keepTtl) {
+			long expiresAt = expiresAt(now, seconds);
+			if (keepTtl) {
+				int slot = find(key, hash);
+				if (slot >= 0) {
+					expiresAt = index.getLong(slot * SLOT + 8);
+				}
+			}
+			// room is made before looking the key up, as it may purge or evict entries
+			long address = allocate(8 + key.length + data.length, now);
+			ByteBuffer page = page(address);
+			int offset = offset(address);
+			page.putInt(offset, key.length);
+			page.position(offset + 4);
+			page.put(key);
+			page.putInt(offset + 4 + key.length, data.length);
+			page.position(offset + 8 + key.length);
+			page.put(data);
+
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				release(address(slot));
+				setSlot(slot, address, expiresAt, hash);
+				return;
+			}
+			if (used + 1 > MAX_SLOTS / 4 * 3) {
+				release(address);
+				throw new IllegalStateException("Off-heap session store is full");
+			}
+			if ((used + deleted + 1) * 4L > slots * 3L) {
+				rehash(used * 2 >= slots && slots < MAX_SLOTS ? slots * 2 : slots);
+			}
+			slot = hash & (slots - 1);
+			while (address(slot) != EMPTY && address(slot) != DELETED) {
+				slot = (slot + 1) & (slots - 1);
+			}
+			if (address(slot) == DELETED) {
+				deleted--;
+			}
+			setSlot(slot, address, expiresAt, hash);
+			used++;
+		}
+
+		synchronized void delete(byte[] key, int hash) {
+			int slot = find(key, hash);
+			if (slot >= 0) {
+				remove(slot);
+			}
+		}
+
+		synchronized void purge(long now) {
+			for (int slot = 0; slot < slots; slot++) {
+				long address = address(slot);
+				if (address != EMPTY && address != DELETED && index.getLong(slot * SLOT + 8) <= now) {
+					remove(slot);
+					expirations.incrementAndGet();
+				}
+			}
+		}
+
+		synchronized void clear() {
+			pages = new ByteBuffer[pages.length];
+			freeBits = new long[pages.length][];
+			pageCount = 0;
+			Arrays.fill(free, EMPTY);
+			usedBytes = 0;
+			index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT);
+			slots = INITIAL_SLOTS;
+			used = 0;
+			deleted = 0;
+		}
+
+		private int find(byte[] key, int hash) {
+			int mask = slots - 1;
+			for (int slot = hash & mask, probes = 0; probes < slots; slot = (slot + 1) & mask, probes++) {
+				long address = address(slot);
+				if (address == EMPTY) {
+					return -1;
+				}
+				if (address != DELETED && index.getInt(slot * SLOT + 16) == hash && keyEquals(address, key)) {
+					return slot;
+				}
+			}
+			return -1;
+		}
+
+		private boolean expired(int slot, long now) {
+			if (index.getLong(slot * SLOT + 8) > now) {
+				return false;
+			}
+			remove(slot);
+			expirations.incrementAndGet();
+			return true;
+		}
+
+		private void remove(int slot) {
+			release(address(slot));
+			setSlot(slot, DELETED, 0, 0);
+			used--;
+			deleted++;
+		}
+
+		private void rehash(int size) {
+			ByteBuffer old = index;
+			int oldSlots = slots;
+			index = ByteBuffer.allocateDirect(size * SLOT);
+			slots = size;
+			deleted = 0;
+			for (int i = 0; i < oldSlots; i++) {
+				long address = old.getLong(i * SLOT);
+				if (address == EMPTY || address == DELETED) {
+					continue;
+				}
+				int hash = old.getInt(i * SLOT + 16);
+				int slot = hash & (size - 1);
+				while (address(slot) != EMPTY) {
+					slot = (slot + 1) & (size - 1);
+				}
+				setSlot(slot, address, old.getLong(i * SLOT + 8), hash);
+			}
+		}
+
+		private long address(int slot) {
+			return index.getLong(slot * SLOT);
+		}
+
+		private void setSlot(int slot, long address, long expiresAt, int hash) {
+			index.putLong(slot * SLOT, address);
+			index.putLong(slot * SLOT + 8, expiresAt);
+			index.putInt(slot * SLOT + 16, hash);
+		}
+
+		// addresses hold the page number plus one, so that no record is at EMPTY
+
+		private ByteBuffer page(long address) {
+			return pages[(int) (address >>> 32) - 1];
+		}
+
+		private int offset(long address) {
+			return (int) address;
+		}
+
+		private boolean keyEquals(long address, byte[] key) {
+			ByteBuffer page = page(address);
+			int offset = offset(address);
+			if (page.getInt(offset) != key.length) {
+				return false;
+			}
+			for (int i = 0; i < key.length; i++) {
+				if (page.get(offset + 4 + i) != key[i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private byte[] data(long address) {
+			ByteBuffer page = page(address);
+			int offset = offset(address);
+			int keyLength = page.getInt(offset);
+			byte[] data = new byte[page.getInt(offset + 4 + keyLength)];
+			page.position(offset + 8 + keyLength);
+			page.get(data);
+			return data;
+		}
+
+		private int recordSize(long address) {
+			ByteBuffer page = page(address);
+			int offset = offset(address);
+			int keyLength = page.getInt(offset);
+			return 8 + keyLength + page.getInt(offset + 4 + keyLength);
+		}
+
+		private long allocate(int size, long now) {
+			int c = sizeClass(size);
+			long address = take(c);
+			if (address == EMPTY) {
+				purge(now);
+				address = take(c);
+			}
+			while (address == EMPTY && evict()) {
+				address = take(c);
+			}
+			if (address == EMPTY) {
+				throw new IllegalStateException("Off-heap session store is full");
+			}
+			usedBytes += chunkSize(c);
+			return address;
+		}
+
+		/**
+		 * Take a free chunk of class c, splitting the smallest larger one
+		 * found, or a new page, and freeing the halves not used.
+		 */
+		private long take(int c) {
+			int k = c;
+			while (k < CLASSES && free[k] == EMPTY) {
+				k++;
+			}
+			if (k == CLASSES) {
+				if (!addPage()) {
+					return EMPTY;
+				}
+				k = CLASSES - 1;
+			}
+			long address = free[k];
+			unlink(k, address);
+			while (k > c) {
+				k--;
+				push(k, address + chunkSize(k));
+			}
+			return address;
+		}
+
+		private boolean addPage() {
+			if (pageCount == pages.length) {
+				return false;
+			}
+			int page = pageCount++;
+			pages[page] = ByteBuffer.allocateDirect(PAGE_SIZE);
+			freeBits[page] = new long[(PAGE_SIZE / MIN_CHUNK * 2) / 64];
+			push(CLASSES - 1, (long) (page + 1) << 32);
+			return true;
+		}
+
+		/**
+		 * Free the chunk of a record, merged with its buddy as long as that
+		 * one is free too.
+		 */
+		private void release(long address) {
+			int c = sizeClass(recordSize(address));
+			usedBytes -= chunkSize(c);
+			while (c < CLASSES - 1) {
+				long buddy = address ^ chunkSize(c);
+				if (!isFree(c, buddy)) {
+					break;
+				}
+				unlink(c, buddy);
+				address = Math.min(address, buddy);
+				c++;
+			}
+			push(c, address);
+		}
+
+		private void push(int c, long address) {
+			ByteBuffer page = page(address);
+			int offset = offset(address);
+			page.putLong(offset, EMPTY);
+			page.putLong(offset + 8, free[c]);
+			if (free[c] != EMPTY) {
+				page(free[c]).putLong(offset(free[c]), address);
+			}
+			free[c] = address;
+			setFree(c, address, true);
+		}
+
+		private void unlink(int c, long address) {
+			ByteBuffer page = page(address);
+			int offset = offset(address);
+			long previous = page.getLong(offset);
+			long next = page.getLong(offset + 8);
+			if (previous == EMPTY) {
+				free[c] = next;
+			} else {
+				page(previous).putLong(offset(previous) + 8, next);
+			}
+			if (next != EMPTY) {
+				page(next).putLong(offset(next), previous);
+			}
+			setFree(c, address, false);
+		}
+
+		private boolean isFree(int c, long address) {
+			int bit = bit(c, address);
+			return (freeBits[(int) (address >>> 32) - 1][bit >>> 6] & (1L << bit)) != 0;
+		}
+
+		private void setFree(int c, long address, boolean isFree) {
+			int bit = bit(c, address);
+			long[] bits = freeBits[(int) (address >>> 32) - 1];
+			if (isFree) {
+				bits[bit >>> 6] |= 1L << bit;
+			} else {
+				bits[bit >>> 6] &= ~(1L << bit);
+			}
+		}
+
+		/**
+		 * Chunks of class c take the bits after those of the smaller classes:
+		 * PAGE_SIZE / MIN_CHUNK for class 0, half as many for class 1, and so on.
+		 */
+		private int bit(int c, long address) {
+			int chunks = PAGE_SIZE / MIN_CHUNK;
+			return 2 * (chunks - (chunks >>> c)) + offset(address) / chunkSize(c);
+		}
+
+		/**
+		 * Drop the session closest to expiry.
+		 */
+		private boolean evict() {
+			int victim = -1;
+			long earliest = Long.MAX_VALUE;
+			for (int slot = 0; slot < slots; slot++) {
+				long address = address(slot);
+				if (address == EMPTY || address == DELETED) {
+					continue;
+				}
+				long expiresAt = index.getLong(slot * SLOT + 8);
+				if (victim < 0 || expiresAt < earliest) {
+					victim = slot;
+					earliest = expiresAt;
+				}
+			}
+			if (victim < 0) {
+				return false;
+			}
+			remove(victim);
+			evictions.incrementAndGet();
+			return true;
+		}
+	}
+}
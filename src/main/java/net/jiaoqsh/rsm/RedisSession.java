@@ -1,6 +1,15 @@
 package net.jiaoqsh.rsm;
 
-import net.jiaoqsh.rsm.redis.utils.JsonMapper;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.catalina.session.StandardSession;
 import org.apache.juli.logging.Log;
@@ -13,6 +22,81 @@ public class RedisSession extends StandardSession{
 	
 	protected transient RedisSessionManager _manager;
 	
+	/**
+	 * Mutations buffered for the end of the request when the manager runs in
+	 * write-behind mode.
+	 */
+	protected transient SessionChangeSet changes = new SessionChangeSet();
+	
+	/**
+	 * Set when the TTL was already refreshed by the script that created or
+	 * loaded this session, so the following access() need not EXPIRE again.
+	 */
+	protected transient boolean expireRefreshed = false;
+	
+	/**
+	 * Set when every attribute stored in Redis is already held locally, so a
+	 * local miss means the attribute does not exist.
+	 */
+	protected transient boolean fullyLoaded = false;
+	
+	/**
+	 * Version of the session in Redis as last loaded or written by this node;
+	 * only maintained when reads may be served by replicas.
+	 */
+	protected transient volatile long version = 0;
+	
+	/**
+	 * Cleared for a session created lazily until it is first written to Redis.
+	 */
+	protected transient volatile boolean persisted = true;
+	
+	/**
+	 * Fingerprints of the attributes as last read from or written to Redis,
+	 * kept when the manager tracks dirty attributes.
+	 */
+	protected transient Map<String, Fingerprint> fingerprints = new ConcurrentHashMap<String, Fingerprint>();
+	
+	/**
+	 * Mutable attributes handed to the application since the last check; they
+	 * may have been changed in place.
+	 */
+	protected transient Set<String> accessed = Collections.synchronizedSet(new HashSet<String>());
+	
+	/**
+	 * Attributes read from Redis but not decoded yet, in their serialized
+	 * form; they are decoded on first access and never written back.
+	 */
+	protected transient Map<String, byte[]> raw = new ConcurrentHashMap<String, byte[]>();
+	
+	/**
+	 * Encoded size of the attributes whose size is known.
+	 */
+	protected transient Map<String, Integer> sizes = new ConcurrentHashMap<String, Integer>();
+	
+	/**
+	 * Set when the session is stored in Redis as a single serialized blob
+	 * rather than one hash field per attribute.
+	 */
+	protected transient volatile boolean blob = false;
+	
+	/**
+	 * Set when an attribute was set or removed since the session was last
+	 * written as a whole.
+	 */
+	protected transient volatile boolean modified = false;
+	
+	/**
+	 * Set while the session is being invalidated: its key is deleted as a
+	 * whole, so attributes are only removed locally.
+	 */
+	protected transient volatile boolean invalidating = false;
+	
+	/**
+	 * Held while the pending changes of the session are taken and sent.
+	 */
+	protected transient Object writeLock = new Object();
+	
 	public RedisSession(RedisSessionManager manager) {
 		super(manager);
 
@@ -23,6 +107,231 @@ public class RedisSession extends StandardSession{
 		this.id = id;
 	}
 	
+	SessionChangeSet getChanges() {
+		return changes;
+	}
+	
+	Object getWriteLock() {
+		return writeLock;
+	}
+	
+	void setExpireRefreshed(boolean expireRefreshed) {
+		this.expireRefreshed = expireRefreshed;
+	}
+	
+	void setFullyLoaded(boolean fullyLoaded) {
+		this.fullyLoaded = fullyLoaded;
+	}
+	
+	long getVersion() {
+		return version;
+	}
+	
+	void setVersion(long version) {
+		this.version = version;
+	}
+	
+	boolean isPersisted() {
+		return persisted;
+	}
+	
+	void setPersisted(boolean persisted) {
+		this.persisted = persisted;
+	}
+	
+	boolean isFullyLoaded() {
+		return fullyLoaded;
+	}
+	
+	boolean isBlob() {
+		return blob;
+	}
+	
+	void setBlob(boolean blob) {
+		this.blob = blob;
+	}
+	
+	void setModified(boolean modified) {
+		this.modified = modified;
+	}
+	
+	/**
+	 * Was an attribute set or removed since the last call?
+	 */
+	boolean takeModified() {
+		boolean result = modified;
+		modified = false;
+		return result;
+	}
+	
+	void recordSize(String name, int size) {
+		sizes.put(name, size);
+	}
+	
+	/**
+	 * Sum of the known encoded attribute sizes.
+	 */
+	long getEncodedSize() {
+		long size = 0;
+		for (Integer length : sizes.values()) {
+			size += length;
+		}
+		return size;
+	}
+	
+	/**
+	 * Number of attributes, decoded or not.
+	 */
+	int getAttributeCount() {
+		return raw.isEmpty() ? attributes.size() : attributeNames().size();
+	}
+	
+	/**
+	 * Drop attributes changed by another node; they are read again from Redis
+	 * on next access.
+	 */
+	void evictAttributes(Collection<String> names) {
+		fullyLoaded = false;
+		for (String name : names) {
+			attributes.remove(name);
+			raw.remove(name);
+			sizes.remove(name);
+			fingerprints.remove(name);
+			accessed.remove(name);
+		}
+	}
+	
+	/**
+	 * Put an attribute read from Redis without notifying any listener.
+	 */
+	void loadAttribute(String name, Object value, byte[] data) {
+		attributes.put(name, value);
+		recordFingerprint(name, data);
+		sizes.put(name, data.length);
+	}
+	
+	/**
+	 * Keep an attribute read from Redis in its serialized form until it is
+	 * first accessed.
+	 */
+	void loadRaw(String name, byte[] data) {
+		raw.put(name, data);
+		sizes.put(name, data.length);
+	}
+	
+	/**
+	 * The decoded value of an attribute, without loading it or recording
+	 * the access.
+	 */
+	Object getLocalAttribute(String name) {
+		return attributes.get(name);
+	}
+	
+	/**
+	 * Decode every attribute still held in its serialized form.
+	 */
+	void decodeAll() {
+		for (String name : new ArrayList<String>(raw.keySet())) {
+			decodeRaw(name);
+		}
+	}
+	
+	/**
+	 * Decode an attribute still held in its serialized form and bind it
+	 * without notifying any listener.
+	 * 
+	 * @return the decoded value, or <code>null</code> if the attribute was
+	 *  not held undecoded
+	 */
+	private Object decodeRaw(String name) {
+		if (raw.isEmpty()) {
+			return null;
+		}
+		synchronized (raw) {
+			// another thread may have decoded it meanwhile
+			Object value = attributes.get(name);
+			if (value != null) {
+				return value;
+			}
+			byte[] data = raw.remove(name);
+			if (data == null) {
+				return null;
+			}
+			data = _manager.unpackRawAttribute(name, data);
+			value = _manager.decodeAttribute(name, data);
+			if (value != null) {
+				loadAttribute(name, value, data);
+			}
+			return value;
+		}
+	}
+	
+	/**
+	 * Names of the decoded and undecoded attributes.
+	 */
+	private Set<String> attributeNames() {
+		Set<String> names = new HashSet<String>(attributes.keySet());
+		names.addAll(raw.keySet());
+		return names;
+	}
+	
+	/**
+	 * Remember the serialized form of an attribute as it is in Redis.
+	 */
+	void recordFingerprint(String name, byte[] data) {
+		if (_manager.isDirtyTracking()) {
+			fingerprints.put(name, Fingerprint.of(data));
+		}
+	}
+	
+	/**
+	 * Does the serialized form differ from the one in Redis? The new
+	 * fingerprint is only recorded once the value is written.
+	 */
+	boolean isChanged(String name, byte[] data) {
+		return !Fingerprint.of(data).equals(fingerprints.get(name));
+	}
+	
+	/**
+	 * Forget the fingerprints of attributes whose write failed, so they are
+	 * written again.
+	 */
+	void forgetFingerprints(Collection<String> names) {
+		for (String name : names) {
+			fingerprints.remove(name);
+		}
+	}
+	
+	/**
+	 * The attributes accessed since the last call, with their local values.
+	 */
+	List<Map.Entry<String, Object>> drainAccessed() {
+		List<String> names;
+		synchronized (accessed) {
+			if (accessed.isEmpty()) {
+				return Collections.emptyList();
+			}
+			names = new ArrayList<String>(accessed);
+			accessed.clear();
+		}
+		List<Map.Entry<String, Object>> values = new ArrayList<Map.Entry<String, Object>>(names.size());
+		for (String name : names) {
+			Object value = attributes.get(name);
+			if (value != null) {
+				values.add(new AbstractMap.SimpleImmutableEntry<String, Object>(name, value));
+			}
+		}
+		return values;
+	}
+	
+	/**
+	 * Values that cannot change in place need not be checked at request end.
+	 */
+	private static boolean isImmutable(Object value) {
+		return value instanceof String || value instanceof Number || value instanceof Boolean
+				|| value instanceof Character || value instanceof Enum;
+	}
+	
 	/**
      * Update the accessed time information for this session.  This method
      * should be called by the context when a request comes in for a particular
@@ -33,7 +342,11 @@ public class RedisSession extends StandardSession{
 	   log.info("access id=" + this.id);
        super.access();
        
-       _manager.getJedisTemplate().setex(id, this.maxInactiveInterval);
+       if(expireRefreshed){
+    	   expireRefreshed = false;
+    	   return ;
+       }
+       _manager.touchSession(this);
     }
 
 	 // ----------------------------------------------HttpSession Public Methods
@@ -49,18 +362,55 @@ public class RedisSession extends StandardSession{
     @Override
     public Object getAttribute(String name) {
     	Object value = super.getAttribute(name);
+    	if(value==null)
+    		value = decodeRaw(name);
+    	_manager.attributeRead(name);
     	
-    	if(value==null){
-    		String jsonValue = _manager.getJedisTemplate().hget(id, name);
-    		value = JsonMapper.nonEmptyMapper().fromJson(jsonValue, Object.class);
+    	if(value==null && !fullyLoaded && !changes.isRemoved(name)){
+    		value = _manager.readAttribute(this, name);
     		
-    		super.setAttribute(name, value, false);
+    		if(value!=null)
+    			super.setAttribute(name, value, false);
+    	}
+    	
+    	if (value != null && _manager.isDirtyTracking() && !isImmutable(value)) {
+    		accessed.add(name);
     	}
         
     	return value;
 
     }
     
+    /**
+     * Return an <code>Enumeration</code> of <code>String</code> objects
+     * containing the names of the objects bound to this session, including
+     * those not decoded yet.
+     *
+     * @exception IllegalStateException if this method is called on an
+     *  invalidated session
+     */
+    @Override
+    public Enumeration<String> getAttributeNames() {
+    	Enumeration<String> names = super.getAttributeNames();
+    	if (raw.isEmpty()) {
+    		return names;
+    	}
+    	return Collections.enumeration(attributeNames());
+    }
+    
+    /**
+     * Return the names of all currently defined session attributes, including
+     * those not decoded yet.
+     */
+    @Override
+    protected String[] keys() {
+    	if (raw.isEmpty()) {
+    		return super.keys();
+    	}
+    	Set<String> names = attributeNames();
+    	return names.toArray(new String[names.size()]);
+    }
+    
     /**
      * Bind an object to this session, using the specified name.  If an object
      * of the same name is already bound to this session, the object is
@@ -74,19 +424,49 @@ public class RedisSession extends StandardSession{
      * @param value Object to be bound, cannot be null
      *
      * @exception IllegalArgumentException if an attempt is made to add a
-     *  non-serializable object in an environment marked distributable.
+     *  non-serializable object in an environment marked distributable, or
+     *  an object the serializer cannot encode when sessions are stored as
+     *  blobs.
      * @exception IllegalStateException if this method is called on an
      *  invalidated session
      */
     @Override
     public void setAttribute(String name, Object value) {
+        byte[] data = null;
+        if (value != null && _manager.isBlobLayout()) {
+        	// the blob could not be written with it
+        	data = _manager.encodeAttribute(name, value);
+        	if (data == null) {
+        		throw new IllegalArgumentException("Attribute " + name + " cannot be serialized into the session blob");
+        	}
+        }
+        if(value!=null)
+        	decodeRaw(name); // listeners are told about the replaced value
         super.setAttribute(name, value);
         
         if(value==null)
         	return ;
         
-        _manager.getJedisTemplate().hset(id, name, 
-        		JsonMapper.nonEmptyMapper().toJson(value));
+        if (data == null)
+        	data = _manager.encodeAttribute(name, value);
+        if(data==null) {
+        	// a blob holding it cannot be written, it is moved to a hash
+        	if (blob)
+        		modified = true;
+        	return ;
+        }
+        
+        if (_manager.isDirtyTracking()) {
+        	// checked again at request end in case it is changed in place
+        	if (!isImmutable(value)) {
+        		accessed.add(name);
+        	}
+        	if (!isChanged(name, data)) {
+        		_manager.writeSkipped();
+        		return;
+        	}
+        }
+        _manager.writeAttribute(this, name, data);
         
     }
     
@@ -104,9 +484,18 @@ public class RedisSession extends StandardSession{
      *  attribute is being removed?
      */
     protected void removeAttributeInternal(String name, boolean notify) {
+    	if(notify)
+    		decodeRaw(name); // listeners are told about the removed value
+    	else
+    		raw.remove(name);
     	super.removeAttributeInternal(name, notify);
+    	fingerprints.remove(name);
+    	sizes.remove(name);
+    	accessed.remove(name);
     	
-    	_manager.getJedisTemplate().hdel(id, name);
+    	if (!invalidating) {
+    		_manager.removeAttribute(this, name);
+    	}
  
     }
     
@@ -118,7 +507,13 @@ public class RedisSession extends StandardSession{
      *  this session?
      */
     public void expire(boolean notify) {
-    	super.expire(notify);
+    	// the manager deletes the whole key, listeners still see every attribute go
+    	invalidating = true;
+    	try {
+    		super.expire(notify);
+    	} finally {
+    		invalidating = false;
+    	}
     }
     
 }
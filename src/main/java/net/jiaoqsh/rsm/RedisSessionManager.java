@@ -1,9 +1,38 @@
 package net.jiaoqsh.rsm;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
+import net.jiaoqsh.rsm.redis.AsyncJedisExecutor;
+import net.jiaoqsh.rsm.redis.CircuitBreaker;
+import net.jiaoqsh.rsm.redis.ClusterJedisTemplate;
 import net.jiaoqsh.rsm.redis.JedisTemplate;
 import net.jiaoqsh.rsm.redis.JedisUtils;
+import net.jiaoqsh.rsm.redis.RedisSubscriber;
+import net.jiaoqsh.rsm.redis.ReplicatedJedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+import net.jiaoqsh.rsm.redis.ShardedJedisTemplate;
+import net.jiaoqsh.rsm.redis.TtlRefreshScheduler;
+import net.jiaoqsh.rsm.serializer.AttributeCompressor;
+import net.jiaoqsh.rsm.serializer.FieldCodec;
 import net.jiaoqsh.rsm.serializer.Serializer;
 
 import org.apache.catalina.LifecycleException;
@@ -16,14 +45,58 @@ import org.apache.catalina.util.LifecycleSupport;
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 
 public class RedisSessionManager extends ManagerBase{
 	
 	protected final Log logger = LogFactory.getLog( getClass() );
 	
+	/**
+	 * Hash field written when a session is created, so that an empty session
+	 * still exists in Redis.
+	 */
+	public static final String ID_FIELD = "id";
+	
+	/**
+	 * Hash field counting the writes to a session when reads may be served
+	 * by replicas.
+	 */
+	public static final String VERSION_FIELD = "__v";
+	
+	/**
+	 * Hash field holding the whole session serialized in the blob layout;
+	 * its presence marks a session stored that way.
+	 */
+	public static final String BLOB_FIELD = "__blob";
+	
+	/**
+	 * First byte of a blob: the creation time and the attributes, each as
+	 * its hash field would hold it, follow. Blobs written by earlier
+	 * versions are Java serialized sessions.
+	 */
+	private static final byte BLOB_FORMAT = 1;
+	
+	public static final String LAYOUT_HASH = "hash";
+	public static final String LAYOUT_BLOB = "blob";
+	public static final String LAYOUT_AUTO = "auto";
+	
+	public static final String STORE_REDIS = "redis";
+	public static final String STORE_OFFHEAP = "offheap";
+	
+	private static final String EXPIRY_KEY_PREFIX = "rsm:expires:";
+	private static final String EXPIRY_LEASE_PREFIX = "rsm:expires-lease:";
+	private static final int EXPIRY_LEASE_SECONDS = 60;
+	
+	private static final byte[] RAW_ID_FIELD = SafeEncoder.encode(ID_FIELD);
+	private static final byte[] RAW_VERSION_FIELD = SafeEncoder.encode(VERSION_FIELD);
+	
 	// -------------------- configuration properties begin--------------------
 	private String debug = "false"; 
 	protected String host = JedisUtils.DEFAULT_HOST;
@@ -31,21 +104,461 @@ public class RedisSessionManager extends ManagerBase{
 	protected int database = JedisUtils.DEFAULT_DATABASE;
 	protected String password = null;
 	protected int timeout = JedisUtils.DEFAULT_TIMEOUT;
+	/**
+	 * Comma separated host:port list; with more than one node sessions are
+	 * spread over them by consistent hashing of the session id.
+	 */
+	protected String redisNodes = null;
+	/**
+	 * Treat redisNodes as seed nodes of a Redis Cluster: commands go to the
+	 * master owning the slot of the key and session keys are hash tagged.
+	 */
+	protected boolean cluster = false;
+	/**
+	 * Comma separated host:port list of replicas of the master; session reads
+	 * are sent to them unless they lag behind what this node has written.
+	 * Only writes made by this node are fenced: no version travels with the
+	 * request, so a client whose previous request wrote through another node
+	 * may read a replica that has not caught up with that write. Use sticky
+	 * sessions, or leave this unset, when requests of one client must see
+	 * each other's writes across nodes.
+	 */
+	protected String replicaNodes = null;
+	/**
+	 * Number of sessions whose last written version is remembered to fence
+	 * replica reads, and whose last write time is remembered so concurrent
+	 * loads started before it are not shared.
+	 */
+	protected int versionFenceSize = 10000;
+	/**
+	 * Buffer attribute writes, removes and TTL refreshes until the end of the
+	 * request and send them as a single atomic update.
+	 */
+	protected boolean writeBehind = false;
+	/**
+	 * Fetch every attribute with HGETALL when a session is loaded instead of
+	 * one HGET per attribute on first access.
+	 */
+	protected boolean loadAllAttributes = false;
+	/**
+	 * Skip the TTL refresh on access while less than this fraction of
+	 * maxInactiveInterval has passed since the last one, and send due
+	 * refreshes in the background. 0 refreshes synchronously on every access.
+	 */
+	protected double ttlRefreshFraction = 0;
+	/**
+	 * Milliseconds between two batches of background TTL refreshes.
+	 */
+	protected long ttlFlushInterval = 100;
+	/**
+	 * Number of sessions kept in the in-JVM near cache, 0 disables it.
+	 */
+	protected int nearCacheSize = 0;
+	/**
+	 * Seconds a near cache entry may stay unused before it is read from Redis again.
+	 */
+	protected int nearCacheMaxIdle = 60;
+	/**
+	 * Trust the load balancer to pin sessions by jvmRoute: sessions carrying
+	 * this node's route are kept in memory and written to Redis asynchronously.
+	 */
+	protected boolean sticky = false;
+	/**
+	 * Maximum number of pending asynchronous writes in sticky mode; when full
+	 * the request thread waits for room, up to the timeout, then writes itself.
+	 */
+	protected int asyncWriteQueueSize = 10000;
+	/**
+	 * Long-lived connections per Redis node that multiplex fire-and-forget
+	 * commands, such as TTL refreshes, off the request thread. 0 disables them.
+	 * The pool of each node is enlarged by as many connections.
+	 */
+	protected int asyncConnections = 0;
+	/**
+	 * Maximum number of commands sent in one pipeline on an async connection.
+	 */
+	protected int asyncBatchSize = 128;
+	/**
+	 * Maximum number of commands queued per async connection; when full the
+	 * request thread sends the command itself.
+	 */
+	protected int asyncQueueSize = 10000;
+	/**
+	 * Send the single-key commands of concurrent requests (HGET, HSET, HDEL,
+	 * EXPIRE...) together in shared pipelines over the async connections.
+	 */
+	protected boolean groupCommit = false;
+	/**
+	 * Microseconds an async connection under load waits for more commands
+	 * before sending a pipeline that is not full.
+	 */
+	protected long groupCommitMaxWait = 50;
+	/**
+	 * Keep a new session in memory only until it gets its first attribute;
+	 * sessions that never hold state are never written to Redis.
+	 */
+	protected boolean lazyCreate = false;
+	/**
+	 * Learn which attributes the requests of each URI pattern read and load
+	 * them together with the session.
+	 */
+	protected boolean prefetch = false;
+	/**
+	 * Number of URI patterns the prefetcher keeps statistics for.
+	 */
+	protected int prefetchMaxPatterns = 1000;
+	/**
+	 * Share of recent requests of a pattern that must read an attribute for
+	 * it to be prefetched.
+	 */
+	protected double prefetchThreshold = 0.5;
+	/**
+	 * Fingerprint the serialized attributes: unchanged values are not written
+	 * again, and mutable attributes read during a request are re-encoded at
+	 * its end and written if they were changed in place.
+	 */
+	protected boolean dirtyTracking = false;
+	/**
+	 * Keep the attributes loaded with the session in their serialized form
+	 * and decode each one on first access.
+	 */
+	protected boolean lazyDecode = false;
+	/**
+	 * Encoded attributes of at least this many bytes are stored deflated,
+	 * 0 disables compression.
+	 */
+	protected int compressionThreshold = 0;
+	/**
+	 * Deflate level, from 1 (fastest) to 9 (smallest).
+	 */
+	protected int compressionLevel = Deflater.BEST_SPEED;
+	/**
+	 * Store attributes under short numeric fields, mapped to their names by
+	 * a dictionary shared by all nodes of the application.
+	 */
+	protected boolean attributeDictionary = false;
+	/**
+	 * Redis key of the attribute dictionary; by default derived from the
+	 * context name.
+	 */
+	protected String dictionaryKey = null;
+	/**
+	 * How sessions are stored: "hash", one field per attribute; "blob", the
+	 * whole session serialized into one field and rewritten at the end of
+	 * each request that changed it; "auto", chosen per session. Sessions in
+	 * either layout are read whatever the setting, and moved to the
+	 * configured layout when next written.
+	 * <p>
+	 * Attributes in a blob are encoded by the configured serializer, as in
+	 * a hash. In auto layout a session with an attribute the serializer
+	 * cannot encode stays a hash; in blob layout setting such an attribute
+	 * throws an IllegalArgumentException.
+	 * <p>
+	 * A blob is rewritten as a whole: when requests for the same session run
+	 * on different nodes at the same time, the last blob written wins and
+	 * the attributes the others changed are lost, where the hash layout
+	 * would have kept the changes made to different attributes.
+	 */
+	protected String storageLayout = LAYOUT_HASH;
+	/**
+	 * In auto layout, sessions with fewer attributes are stored as a hash.
+	 */
+	protected int blobMinAttributes = 4;
+	/**
+	 * In auto layout, sessions whose attributes take more bytes are stored
+	 * as a hash.
+	 */
+	protected int blobMaxSize = 16384;
+	/**
+	 * Expire timed out sessions through Tomcat, so HttpSessionListener and
+	 * HttpSessionBindingListener are notified, from Redis keyspace events.
+	 */
+	protected boolean expiryEvents = false;
+	/**
+	 * Seconds session data is kept in Redis after the session timed out,
+	 * for its expiry to be handled. Requests do not load a session with no
+	 * more than this left to live, even if its keyspace event was lost.
+	 */
+	protected int expiryGrace = 300;
+	/**
+	 * Threads expiring timed out sessions.
+	 */
+	protected int expiryThreads = 1;
+	/**
+	 * Maximum number of timed out sessions waiting to be expired; beyond it
+	 * they disappear without notification.
+	 */
+	protected int expiryQueueSize = 10000;
+	/**
+	 * Maximum number of timed out sessions handed to a thread at once.
+	 */
+	protected int expiryBatchSize = 100;
+	/**
+	 * Keep a sorted set of the sessions of the application in Redis, scored
+	 * by last access, to count and list them cluster-wide. findSessions()
+	 * still returns the sessions held by this node only, as returning them
+	 * all would load every session from Redis; page through them with
+	 * listSessions() instead.
+	 */
+	protected boolean sessionIndex = false;
+	/**
+	 * Redis key of the session index; by default derived from the context name.
+	 */
+	protected String indexKey = null;
+	/**
+	 * Milliseconds between two updates of the session index.
+	 */
+	protected long indexFlushInterval = 1000;
+	/**
+	 * Maximum number of timed out sessions removed from the index per update.
+	 */
+	protected int indexPruneLimit = 1000;
+	/**
+	 * Where session data is kept: "redis", or "offheap" for the memory of
+	 * this JVM on a single node without Redis.
+	 */
+	protected String storeBackend = STORE_REDIS;
+	/**
+	 * Bytes of direct memory the off-heap store may use.
+	 */
+	protected long offHeapCapacity = 256L * 1024 * 1024;
+	/**
+	 * Number of independently locked segments of the off-heap store.
+	 */
+	protected int offHeapConcurrency = 16;
+	/**
+	 * Fail fast on a Redis node that keeps failing or answering slowly, and
+	 * keep the sessions that cannot be written in memory until it is back.
+	 */
+	protected boolean circuitBreaker = false;
+	/**
+	 * Share of failed calls to a node that opens its circuit breaker.
+	 */
+	protected double breakerFailureRate = 0.5;
+	/**
+	 * Calls taking longer than this many milliseconds count as slow.
+	 */
+	protected long breakerSlowCallTime = 1000;
+	/**
+	 * Share of slow calls to a node that opens its circuit breaker.
+	 */
+	protected double breakerSlowCallRate = 0.8;
+	/**
+	 * Minimum number of calls in a window before the rates are considered.
+	 */
+	protected int breakerMinimumCalls = 20;
+	/**
+	 * Milliseconds over which calls are counted.
+	 */
+	protected long breakerWindow = 10000;
+	/**
+	 * Milliseconds an open circuit breaker rejects calls before letting one
+	 * through to probe the node.
+	 */
+	protected long breakerOpenTime = 5000;
+	/**
+	 * Maximum number of sessions kept in memory while Redis is unavailable.
+	 */
+	protected int degradedMaxSessions = 10000;
+	/**
+	 * Milliseconds between two attempts to write the sessions kept in memory
+	 * back to Redis.
+	 */
+	protected long reconcileInterval = 1000;
 	// -------------------- configuration properties end--------------------
 	protected JedisPool jedisPool;
 	protected JedisTemplate jedisTemplate;
+	protected ReplicatedJedisTemplate replicaTemplate;
+	protected VersionFence versionFence;
+	protected AttributeDictionary dictionary;
+	protected DegradedSessionStore degradedStore;
+	protected SessionStore store;
+	/**
+	 * Whether the store is Redis: the features that need it are only
+	 * enabled then, whatever they are configured to.
+	 */
+	private boolean redisStore;
+	private ScheduledExecutorService reconcileExecutor;
+	private final AtomicLong replicaHits = new AtomicLong();
+	private final AtomicLong replicaFallbacks = new AtomicLong();
+	/**
+	 * Loads in flight, shared by concurrent requests for the same session or attribute.
+	 */
+	private final SingleFlight<LoadedSession> sessionLoads = new SingleFlight<LoadedSession>();
+	private final SingleFlight<byte[]> attributeLoads = new SingleFlight<byte[]>();
+	/**
+	 * {@link SingleFlight#clock()} of the last write of each session by this
+	 * node; a load started before it is not shared.
+	 */
+	private VersionFence writeClock = new VersionFence(versionFenceSize);
+	private final AtomicLong writesSkipped = new AtomicLong();
+	private final AtomicLong mutationsChecked = new AtomicLong();
+	private final AtomicLong mutationsWritten = new AtomicLong();
+	private final AtomicLong lazyCreated = new AtomicLong();
+	private final AtomicLong lazyPersisted = new AtomicLong();
+	private final AtomicLong expiredFromEvents = new AtomicLong();
+	private final AtomicLong breakerTransitions = new AtomicLong();
+	private final AtomicLong blobWrites = new AtomicLong();
+	private final AtomicLong layoutChanges = new AtomicLong();
+	private final AtomicLong rawLoaded = new AtomicLong();
+	private final AtomicLong rawLoadedBytes = new AtomicLong();
+	private final AtomicLong rawDecoded = new AtomicLong();
+	private final AtomicLong rawDecodedBytes = new AtomicLong();
+	protected ScriptRegistry scriptRegistry;
+	protected TtlRefreshScheduler ttlRefreshScheduler;
+	protected NearCache nearCache;
+	protected List<RedisSubscriber> invalidationSubscribers = new ArrayList<RedisSubscriber>();
+	protected List<RedisSubscriber> expirySubscribers = new ArrayList<RedisSubscriber>();
+	protected ExpiryDispatcher expiryDispatcher;
+	protected SessionIndex index;
+	protected ThreadPoolExecutor asyncWriteExecutor;
+	protected AttributePrefetcher prefetcher;
+	
+	/**
+	 * Channel on which nodes announce the sessions and attributes they changed.
+	 */
+	public static final String INVALIDATION_CHANNEL = RedisSessionService.TOMCAT_SESSION_PREFIX + "invalidate";
+	
+	/**
+	 * Identifies this node in invalidation messages so it ignores its own.
+	 */
+	private final String nodeId = UUID.randomUUID().toString();
 	
 	protected Serializer serializer;
-	protected String serializationStrategyClass = "net.jiaoqsh.rsm.serializer.JavaSerializer";
+	protected AttributeCompressor compressor;
+	/**
+	 * Serializer used for attribute values. JsonSerializer keeps the format
+	 * written by earlier versions; BinarySerializer is the compact choice.
+	 */
+	protected String serializationStrategyClass = "net.jiaoqsh.rsm.serializer.JsonSerializer";
 	
 	protected LifecycleSupport lifecycle = new LifecycleSupport(this);
 	
+	protected RedisSessionValve valve;
 	
-	private void initJedis(){
-		logger.info("init redis, host: "+ getHost()); 
+	/**
+	 * The session created or loaded by the request running on this thread.
+	 */
+	private final ThreadLocal<RedisSession> currentSession = new ThreadLocal<RedisSession>();
+	
+	
+	/**
+	 * Keep sessions in this JVM. The features that need Redis are left off,
+	 * without changing their configuration.
+	 */
+	private void initOffHeapStore() {
+		logger.info("keep sessions off-heap, capacity: " + offHeapCapacity + " bytes");
 		
-		jedisPool = new JedisPool(new JedisPoolConfig(), getHost(), getPort(), getTimeout(), getPassword());
-		jedisTemplate = new JedisTemplate(jedisPool);
+		List<String> ignored = new ArrayList<String>();
+		if (nearCacheSize > 0) {
+			ignored.add("nearCacheSize");
+		}
+		if (ttlRefreshFraction > 0) {
+			ignored.add("ttlRefreshFraction");
+		}
+		if (attributeDictionary) {
+			ignored.add("attributeDictionary");
+		}
+		if (expiryEvents) {
+			ignored.add("expiryEvents");
+		}
+		if (sessionIndex) {
+			ignored.add("sessionIndex");
+		}
+		if (circuitBreaker) {
+			ignored.add("circuitBreaker");
+		}
+		if (!ignored.isEmpty()) {
+			logger.warn(ignored + " need Redis and are ignored with the " + STORE_OFFHEAP + " store");
+		}
+		store = new OffHeapSessionStore(offHeapCapacity, offHeapConcurrency);
+	}
+	
+	/**
+	 * Pool configuration of one Redis node. Async connections and
+	 * subscriptions hold their connection for as long as the manager runs,
+	 * so the pool gets that many connections on top of the default ones
+	 * left to request threads.
+	 */
+	private JedisPoolConfig poolConfig() {
+		int dedicated = 0;
+		if (asyncConnections > 0 || groupCommit) {
+			dedicated += asyncConnections > 0 ? asyncConnections : 2;
+		}
+		if (redisStore && nearCacheSize > 0) {
+			dedicated++;
+		}
+		if (expiryEventsEnabled()) {
+			dedicated++;
+		}
+		JedisPoolConfig config = new JedisPoolConfig();
+		config.setMaxTotal(config.getMaxTotal() + dedicated);
+		config.setMaxIdle(config.getMaxIdle() + dedicated);
+		return config;
+	}
+	
+	private void initJedis(){
+		List<HostAndPort> nodes = JedisUtils.parseHostAndPorts(getRedisNodes());
+		if (cluster) {
+			logger.info("init redis cluster, seed nodes: " + getRedisNodes());
+			
+			if (nodes.isEmpty()) {
+				nodes = Collections.singletonList(new HostAndPort(getHost(), getPort()));
+			}
+			jedisTemplate = new ClusterJedisTemplate(nodes, poolConfig(), getTimeout(), getPassword());
+			jedisPool = jedisTemplate.getJedisPool();
+		} else if (nodes.size() > 1) {
+			logger.info("init sharded redis, nodes: " + getRedisNodes());
+			
+			Map<String, JedisPool> shards = new LinkedHashMap<String, JedisPool>();
+			for (HostAndPort node : nodes) {
+				shards.put(node.getHost() + ":" + node.getPort(),
+						new JedisPool(poolConfig(), node.getHost(), node.getPort(), getTimeout(), getPassword()));
+			}
+			jedisTemplate = new ShardedJedisTemplate(shards);
+			jedisPool = jedisTemplate.getJedisPool();
+		} else {
+			if (nodes.size() == 1) {
+				setHost(nodes.get(0).getHost());
+				setPort(nodes.get(0).getPort());
+			}
+			logger.info("init redis, host: "+ getHost()); 
+			
+			jedisPool = new JedisPool(poolConfig(), getHost(), getPort(), getTimeout(), getPassword());
+			List<HostAndPort> replicas = JedisUtils.parseHostAndPorts(getReplicaNodes());
+			if (replicas.isEmpty()) {
+				jedisTemplate = new JedisTemplate(jedisPool);
+			} else {
+				logger.info("read sessions from replicas: " + getReplicaNodes());
+				
+				List<JedisPool> replicaPools = new ArrayList<JedisPool>(replicas.size());
+				for (HostAndPort replica : replicas) {
+					replicaPools.add(new JedisPool(poolConfig(), replica.getHost(), replica.getPort(), getTimeout(), getPassword()));
+				}
+				replicaTemplate = new ReplicatedJedisTemplate(jedisPool, replicaPools);
+				versionFence = new VersionFence(versionFenceSize);
+				jedisTemplate = replicaTemplate;
+			}
+		}
+		if (replicaTemplate == null && getReplicaNodes() != null && getReplicaNodes().trim().length() > 0) {
+			logger.warn("replicaNodes is only supported with a single master, reading from the masters");
+		}
+		if (asyncConnections > 0 || groupCommit) {
+			jedisTemplate.enableAsync(asyncConnections > 0 ? asyncConnections : 2, asyncBatchSize,
+					groupCommit ? groupCommitMaxWait : 0, asyncQueueSize);
+			jedisTemplate.setGroupCommit(groupCommit);
+			jedisTemplate.setTimeout(getTimeout());
+		}
+		if (circuitBreaker) {
+			jedisTemplate.enableCircuitBreaker(breakerFailureRate, breakerSlowCallTime, breakerSlowCallRate,
+					breakerMinimumCalls, breakerWindow, breakerOpenTime, new CircuitBreaker.Listener() {
+				@Override
+				public void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+					breakerStateChanged(breaker, from, to);
+				}
+			});
+		}
+		scriptRegistry = new ScriptRegistry(jedisTemplate);
 	}
 	
 	// ----------------------------------------------------- Instance Variables
@@ -110,7 +623,196 @@ public class RedisSessionManager extends ManagerBase{
         	  logger.fatal("Unable to load serializer", e);
         	  throw new LifecycleException(e);
           }
-        initJedis();
+        writeClock = new VersionFence(versionFenceSize);
+        redisStore = !STORE_OFFHEAP.equals(storeBackend);
+        if (!redisStore) {
+        	initOffHeapStore();
+        } else {
+        	if (!STORE_REDIS.equals(storeBackend)) {
+        		logger.warn("Unknown storeBackend " + storeBackend + ", using " + STORE_REDIS);
+        		storeBackend = STORE_REDIS;
+        	}
+        	initJedis();
+        	try {
+        		scriptRegistry.load();
+        	} catch (JedisException e) {
+        		logger.warn("Unable to load scripts into Redis, they will be loaded on first use", e);
+        	}
+        	store = new RedisSessionStore(jedisTemplate, scriptRegistry);
+        }
+        
+        if (redisStore && ttlRefreshFraction > 0) {
+        	ttlRefreshScheduler = new TtlRefreshScheduler(jedisTemplate, ttlRefreshFraction, ttlFlushInterval);
+        	ttlRefreshScheduler.start();
+        }
+        
+        if (redisStore && nearCacheSize > 0) {
+        	nearCache = new NearCache(nearCacheSize, nearCacheMaxIdle * 1000L);
+        	RedisSubscriber.MessageHandler handler = new RedisSubscriber.MessageHandler() {
+        		@Override
+        		public void onMessage(String channel, String message) {
+        			handleInvalidation(message);
+        		}
+        	};
+        	// invalidations published while a subscription was down are lost,
+        	// so nothing cached before it came back can be trusted
+        	RedisSubscriber.SubscriptionListener listener = new RedisSubscriber.SubscriptionListener() {
+        		@Override
+        		public void onSubscribed(String channel) {
+        			clearNearCache();
+        		}
+        		
+        		@Override
+        		public void onLost(String channel) {
+        			clearNearCache();
+        		}
+        	};
+        	// messages are published on the node that holds the session
+        	for (JedisPool pool : jedisTemplate.getSubscriptionPools()) {
+        		RedisSubscriber subscriber = new RedisSubscriber(pool, INVALIDATION_CHANNEL, handler);
+        		subscriber.setSubscriptionListener(listener);
+        		subscriber.start();
+        		invalidationSubscribers.add(subscriber);
+        	}
+        }
+        
+        if (sticky) {
+        	// one thread keeps the writes of a session in order
+        	asyncWriteExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+        			new ArrayBlockingQueue<Runnable>(asyncWriteQueueSize), new ThreadFactory() {
+        		@Override
+        		public Thread newThread(Runnable r) {
+        			Thread thread = new Thread(r, "redis-session-async-write");
+        			thread.setDaemon(true);
+        			return thread;
+        		}
+        	}, new RejectedExecutionHandler() {
+        		@Override
+        		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        			// wait for room behind the writes already queued
+        			try {
+        				if (!executor.isShutdown() && executor.getQueue().offer(r, getTimeout(), TimeUnit.MILLISECONDS)) {
+        					// stopped meanwhile: the worker may be gone
+        					if (!executor.isShutdown() || !executor.getQueue().remove(r)) {
+        						return;
+        					}
+        				}
+        			} catch (InterruptedException e) {
+        				Thread.currentThread().interrupt();
+        			}
+        			// written by the request thread; the write lock of the session
+        			// keeps a write in progress from overtaking it
+        			r.run();
+        		}
+        	});
+        }
+        
+        if (prefetch) {
+        	prefetcher = new AttributePrefetcher(prefetchMaxPatterns, 64, 0.3, prefetchThreshold);
+        }
+        
+        if (!LAYOUT_HASH.equals(storageLayout) && !LAYOUT_BLOB.equals(storageLayout) && !LAYOUT_AUTO.equals(storageLayout)) {
+        	logger.warn("Unknown storageLayout " + storageLayout + ", using " + LAYOUT_HASH);
+        	storageLayout = LAYOUT_HASH;
+        }
+        
+        if (redisStore && attributeDictionary) {
+        	String key = dictionaryKey != null ? dictionaryKey : "rsm:dict:" + getContainer().getName();
+        	dictionary = new AttributeDictionary(key, jedisTemplate, scriptRegistry);
+        	try {
+        		dictionary.reload();
+        	} catch (JedisException e) {
+        		logger.warn("Unable to read attribute dictionary " + key + ", it will be read on first use", e);
+        	}
+        }
+        
+        if (expiryEventsEnabled()) {
+        	startExpiryEvents();
+        }
+        
+        if (redisStore && circuitBreaker) {
+        	startDegradedMode();
+        }
+        
+        if (redisStore && sessionIndex) {
+        	String key = indexKey != null ? indexKey : "rsm:index:" + getContainer().getName();
+        	index = new SessionIndex(key, jedisTemplate, scriptRegistry, indexFlushInterval, indexPruneLimit,
+        			redisTtl(getMaxInactiveInterval()) * 1000L);
+        	index.start();
+        }
+        
+        valve = new RedisSessionValve(this);
+        getContainer().getPipeline().addValve(valve);
+    }
+    
+    private void startDegradedMode() {
+    	degradedStore = new DegradedSessionStore(degradedMaxSessions);
+    	reconcileExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    		@Override
+    		public Thread newThread(Runnable r) {
+    			Thread thread = new Thread(r, "redis-session-reconcile");
+    			thread.setDaemon(true);
+    			return thread;
+    		}
+    	});
+    	reconcileExecutor.scheduleWithFixedDelay(reconcileTask, reconcileInterval, reconcileInterval,
+    			TimeUnit.MILLISECONDS);
+    }
+    
+    private final Runnable reconcileTask = new Runnable() {
+    	@Override
+    	public void run() {
+    		try {
+    			reconcileDegraded();
+    		} catch (RuntimeException e) {
+    			logger.error("Unable to reconcile degraded sessions", e);
+    		}
+    	}
+    };
+    
+    private void breakerStateChanged(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+    	breakerTransitions.incrementAndGet();
+    	if (to == CircuitBreaker.State.OPEN) {
+    		logger.warn("Circuit breaker of " + breaker.getName() + " opened, sessions are kept in memory");
+    	} else if (to == CircuitBreaker.State.CLOSED) {
+    		logger.info("Circuit breaker of " + breaker.getName() + " closed");
+    		ScheduledExecutorService executor = reconcileExecutor;
+    		if (executor != null && !executor.isShutdown()) {
+    			executor.execute(reconcileTask);
+    		}
+    	}
+    }
+    
+    private void startExpiryEvents() {
+    	enableExpiryNotifications();
+    	expiryDispatcher = new ExpiryDispatcher(new ExpiryDispatcher.Handler() {
+    		@Override
+    		public void handle(List<String> ids) {
+    			handleExpired(ids);
+    		}
+    	}, expiryThreads, expiryQueueSize, expiryBatchSize);
+    	expiryDispatcher.start();
+    	
+    	// keyspace events are only published by the node holding the key
+    	final String prefix = "__keyspace@" + (cluster ? 0 : database) + "__:" + EXPIRY_KEY_PREFIX;
+    	RedisSubscriber.MessageHandler handler = new RedisSubscriber.MessageHandler() {
+    		@Override
+    		public void onMessage(String channel, String message) {
+    			if (!"expired".equals(message) || !channel.startsWith(prefix)) {
+    				return;
+    			}
+    			String id = channel.substring(prefix.length());
+    			if (cluster && id.startsWith("{") && id.endsWith("}")) {
+    				id = id.substring(1, id.length() - 1);
+    			}
+    			expiryDispatcher.submit(id);
+    		}
+    	};
+    	for (JedisPool pool : jedisTemplate.getJedisPools()) {
+    		RedisSubscriber subscriber = new RedisSubscriber(pool, prefix + "*", handler, 1000, true);
+    		subscriber.start();
+    		expirySubscribers.add(subscriber);
+    	}
     }
 
 
@@ -129,7 +831,69 @@ public class RedisSessionManager extends ManagerBase{
 
         setState(LifecycleState.STOPPING);
         
-        jedisPool.destroy();
+        if (valve != null) {
+        	getContainer().getPipeline().removeValve(valve);
+        	valve = null;
+        }
+        if (asyncWriteExecutor != null) {
+        	asyncWriteExecutor.shutdown();
+        	try {
+        		asyncWriteExecutor.awaitTermination(getTimeout() * 2L, TimeUnit.MILLISECONDS);
+        	} catch (InterruptedException e) {
+        		Thread.currentThread().interrupt();
+        	}
+        	asyncWriteExecutor = null;
+        }
+        if (ttlRefreshScheduler != null) {
+        	ttlRefreshScheduler.stop();
+        	ttlRefreshScheduler = null;
+        }
+        if (prefetcher != null) {
+        	logger.info("prefetch hit rate: " + prefetcher.getHitRate() + ", wasted bytes: " + prefetcher.getWastedBytes());
+        	prefetcher = null;
+        }
+        dictionary = null;
+        for (RedisSubscriber subscriber : invalidationSubscribers) {
+        	subscriber.stop();
+        }
+        invalidationSubscribers.clear();
+        for (RedisSubscriber subscriber : expirySubscribers) {
+        	subscriber.stop();
+        }
+        expirySubscribers.clear();
+        if (expiryDispatcher != null) {
+        	expiryDispatcher.stop();
+        	expiryDispatcher = null;
+        }
+        if (index != null) {
+        	index.stop();
+        	index = null;
+        }
+        if (reconcileExecutor != null) {
+        	reconcileExecutor.shutdown();
+        	try {
+        		reconcileExecutor.awaitTermination(getTimeout() * 2L, TimeUnit.MILLISECONDS);
+        	} catch (InterruptedException e) {
+        		Thread.currentThread().interrupt();
+        	}
+        	reconcileExecutor = null;
+        	reconcileDegraded();
+        	if (degradedStore.size() > 0) {
+        		logger.warn(degradedStore.size() + " sessions could not be written to Redis and are lost");
+        	}
+        	degradedStore = null;
+        }
+        if (nearCache != null) {
+        	nearCache.clear();
+        	nearCache = null;
+        }
+        if (jedisTemplate != null && jedisTemplate.isAsyncEnabled()) {
+        	logger.info("async connections: " + getAsyncStats());
+        }
+        store.destroy();
+        store = null;
+        replicaTemplate = null;
+        versionFence = null;
 
         // Require a new random number generator if we are restarted
         super.stopInternal();
@@ -139,8 +903,14 @@ public class RedisSessionManager extends ManagerBase{
 	@Override
     public void processExpires() {
       // We are going to use Redis's ability to expire keys for session expiration.
-
-      // Do nothing.
+      // Only sessions pinned to this node in sticky mode live in memory and
+      // must be expired here as well.
+      if (sticky) {
+    	  super.processExpires();
+      }
+      if (store != null) {
+    	  store.processExpires();
+      }
     }
 	
 	   /**
@@ -168,21 +938,103 @@ public class RedisSessionManager extends ManagerBase{
         session.setCreationTime(System.currentTimeMillis());
         session.setMaxInactiveInterval(this.maxInactiveInterval);
 
+        // A generated id that is already taken is replaced; a requested id
+        // that already exists is loaded, with its attributes and TTL.
         String id = sessionId;
-        do{
-	        if (id == null) {
-	            id = generateSessionId();
-	        }
-        }while(jedisTemplate.hsetnxex(id, "id", id, this.maxInactiveInterval));
+        if (id == null) {
+            id = generateSessionId();
+        }
+        boolean persisted = !lazyCreate;
+        JedisConnectionException unavailable = null;
+        if (lazyCreate) {
+            if (sessionId != null) {
+                // a requested id is only free if no session has it
+                try {
+                    RedisSession existing = loadExistingSession(id);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    if (timedOutTtl() > 0) {
+                        // it may be timed out, waiting for its expiry to be handled
+                        id = generateSessionId();
+                    }
+                } catch (JedisConnectionException e) {
+                    if (degradedStore == null) {
+                        throw e;
+                    }
+                }
+            }
+            // created in Redis by the first write, see persist()
+            lazyCreated.incrementAndGet();
+        } else {
+            try {
+                while(!createSessionInRedis(id)){
+                    if (sessionId == null) {
+                        id = generateSessionId();
+                        continue;
+                    }
+                    RedisSession existing = loadExistingSession(id);
+                    if (existing != null) {
+                        return existing;
+                    }
+                    // timed out in between, create it again; with expiry
+                    // events it may also be left for its expiry to be handled
+                    if (timedOutTtl() > 0) {
+                        sessionId = null;
+                        id = generateSessionId();
+                    }
+                }
+            } catch (JedisConnectionException e) {
+                if (degradedStore == null) {
+                    throw e;
+                }
+                // created in Redis once it is back, see reconcileDegraded()
+                persisted = false;
+                unavailable = e;
+            }
+        }
         logger.info("create session, id :"+ id);
         
         session.setId(id);       
+        session.setPersisted(persisted);
+        if (unavailable != null) {
+            degrade(session, unavailable);
+        }
+        session.setExpireRefreshed(true);
+        if (ttlRefreshScheduler != null) {
+        	ttlRefreshScheduler.markTouched(sessionKey(id), redisTtl(this.maxInactiveInterval));
+        }
+        session.setFullyLoaded(true);
+        // in auto layout the first write decides
+        session.setBlob(!LAYOUT_HASH.equals(storageLayout));
+        if (nearCache != null) {
+        	nearCache.put(session);
+        }
+        currentSession.set(session);
         
         return (session);
 
     }
     
     
+    /**
+     * Load the session a requested id refers to, as findSession() would.
+     *
+     * @return the session, or <code>null</code> if it no longer exists
+     */
+    private RedisSession loadExistingSession(String id) {
+    	RedisSession session;
+    	try {
+    		session = loadSessionFromRedis(id, true);
+    	} catch (IOException e) {
+    		throw new IllegalStateException("Unable to load session " + id, e);
+    	}
+    	if (session != null) {
+    		add(session);
+    	}
+    	return session;
+    }
+    
     /**
      * Get a session from the recycled ones or create a new empty one.
      * The PersistentManager manager does not need to create session data
@@ -209,36 +1061,435 @@ public class RedisSessionManager extends ManagerBase{
      */
     @Override
     public Session findSession(String id) throws IOException {
-/*        Session session = super.findSession(id);
-        if (session != null)
-            return (session);*/
-        // See if the Session is in the Redis
-    	Session session = loadSessionFromRedis(id);
+        if (degradedStore != null) {
+        	RedisSession session = degradedStore.get(id);
+        	if (session != null && session.isValid()) {
+        		currentSession.set(session);
+        		return session;
+        	}
+        	try {
+        		return findStoredSession(id);
+        	} catch (JedisConnectionException e) {
+        		// the client gets a new session, kept in memory
+        		logger.warn("Unable to load session " + id + " from Redis: " + e.getMessage());
+        		return null;
+        	}
+        }
+        return findStoredSession(id);
+    }
+    
+    private Session findStoredSession(String id) throws IOException {
+        if (sticky && isLocalRoute(id)) {
+        	RedisSession session = (RedisSession) super.findSession(id);
+        	if (session == null) {
+        		session = loadSessionFromRedis(id, true);
+        		if (session != null) {
+        			add(session);
+        		}
+        	}
+        	currentSession.set(session);
+        	return session;
+        }
+        if (nearCache != null) {
+        	RedisSession session = nearCache.get(id);
+        	if (session != null) {
+        		currentSession.set(session);
+        		return session;
+        	}
+        }
+        // See if the Session is in the Redis; a session from another route
+        // (failover) is reloaded in full in sticky mode
+    	Session session = loadSessionFromRedis(id, loadAllAttributes || sticky);
         return (session);
     }	
     
-    private Session loadSessionFromRedis(String id) throws IOException{
+    /**
+     * Does the session id carry the jvmRoute of this node?
+     */
+    private boolean isLocalRoute(String id) {
+    	String jvmRoute = getJvmRoute();
+    	return jvmRoute != null && id.endsWith("." + jvmRoute);
+    }
+    
+    /**
+     * Only sessions pinned to this node in sticky mode are kept in the local
+     * session map; otherwise Redis is the only copy.
+     */
+    @Override
+    public void add(Session session) {
+    	if (sticky && isLocalRoute(session.getIdInternal())) {
+    		super.add(session);
+    	}
+    }
+    
+    private RedisSession loadSessionFromRedis(String id, boolean loadAll) throws IOException{
+    	return loadSessionFromRedis(id, loadAll, timedOutTtl());
+    }
+    
+    /**
+     * @param minTtl see {@link SessionStore#touchAndRead(String, int, int, List)}
+     */
+    private RedisSession loadSessionFromRedis(final String id, final boolean loadAll, final int minTtl) throws IOException{
     	logger.info("loadSessionFromRedis id:" + id);
     	
-    	if(!jedisTemplate.exists(id)){
+    	// concurrent requests for the same session share one read if they
+    	// want the same fields and it started after this node last wrote it
+    	final List<String> prefetch = loadAll || prefetcher == null ? Collections.<String>emptyList() : prefetcher.predict();
+    	StringBuilder key = new StringBuilder().append(minTtl).append('\n').append(id).append('\n');
+    	if (loadAll) {
+    		key.append('*');
+    	} else {
+    		for (String name : prefetch) {
+    			key.append(name).append('\n');
+    		}
+    	}
+    	LoadedSession loaded = sessionLoads.execute(key.toString(), writeClock.get(id), new Callable<LoadedSession>() {
+    		@Override
+    		public LoadedSession call() {
+    			return fetchSession(id, loadAll, prefetch, minTtl);
+    		}
+    	});
+    	if(loaded == null){
     		logger.debug("Session " + id + " not found in Redis");
     		return null;
     	}
+    	Map<String, byte[]> fields = loaded.fields;
     	
     	logger.debug("session " + id + " exists in Redis");
     	RedisSession session = (RedisSession)createEmptySession();
-    	session.setCreationTime(System.currentTimeMillis());
+    	byte[] blob = fields.get(BLOB_FIELD);
+    	if (blob != null) {
+    		loadBlob(session, id, blob);
+    	} else {
+    		session.setCreationTime(System.currentTimeMillis());
+    	}
         session.setNew(false);
         session.setMaxInactiveInterval(getMaxInactiveInterval());
         session.setValid(true);
         session.setLoadId(id);
+        session.setVersion(parseVersion(fields.get(VERSION_FIELD)));
+        if (!loaded.fromReplica) {
+        	session.setExpireRefreshed(true);
+        	if (ttlRefreshScheduler != null) {
+        		ttlRefreshScheduler.markTouched(sessionKey(id), redisTtl(getMaxInactiveInterval()));
+        	}
+        }
+        
+        if (blob != null) {
+        	session.setFullyLoaded(true);
+        } else if(loadAll){
+        	for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+        		if (isReservedField(field.getKey())) {
+        			continue;
+        		}
+        		loadField(session, field.getKey(), field.getValue());
+        	}
+        	session.setFullyLoaded(true);
+        } else {
+        	// attributes predicted by the prefetcher
+        	for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+        		if (isReservedField(field.getKey())) {
+        			continue;
+        		}
+        		if (loadField(session, field.getKey(), field.getValue())) {
+        			prefetcher.prefetched(field.getKey(), field.getValue().length);
+        		}
+        	}
+        }
         
         //this.add(session);
         //sessionCounter++;
+        if (index != null) {
+        	index.accessed(id);
+        }
+        if (nearCache != null) {
+        	nearCache.put(session);
+        }
+        currentSession.set(session);
         
         return session;
     }
     
+    /**
+     * Restore a session stored in the blob layout. A blob that cannot be
+     * read leaves the session without attributes.
+     */
+    private void loadBlob(RedisSession session, String id, byte[] blob) {
+    	session.setBlob(true);
+    	byte[] data = unpackAttribute(BLOB_FIELD, blob);
+    	if (data == null || data.length == 0) {
+    		return;
+    	}
+    	if (data[0] == BLOB_FORMAT) {
+    		ByteBuffer buffer = ByteBuffer.wrap(data, 1, data.length - 1);
+    		session.setCreationTime(buffer.getLong());
+    		byte[] record = Arrays.copyOfRange(data, buffer.position(), data.length);
+    		for (Map.Entry<String, byte[]> attribute : FieldCodec.decode(record).entrySet()) {
+    			loadField(session, attribute.getKey(), attribute.getValue());
+    		}
+    		return;
+    	}
+    	try {
+    		serializer.deserializeInto(data, session);
+    	} catch (IOException e) {
+    		logger.warn("Unable to deserialize session " + id, e);
+    	} catch (ClassNotFoundException e) {
+    		logger.warn("Unable to deserialize session " + id, e);
+    	}
+    }
+    
+    /**
+     * Put an attribute loaded with the session, decoded or, in lazyDecode
+     * mode, as it was read.
+     * 
+     * @return false if the value could not be decoded
+     */
+    private boolean loadField(RedisSession session, String name, byte[] data) {
+    	if (lazyDecode) {
+    		session.loadRaw(name, data);
+    		rawLoaded.incrementAndGet();
+    		rawLoadedBytes.addAndGet(data.length);
+    		return true;
+    	}
+    	byte[] encoded = unpackAttribute(name, data);
+    	Object value = decodeAttribute(name, encoded);
+    	if (value == null) {
+    		return false;
+    	}
+    	session.loadAttribute(name, value, encoded);
+    	return true;
+    }
+    
+    /**
+     * Read a session, from a replica when it is up to date, else from the
+     * master. Unless all fields are loaded, the attributes named in prefetch
+     * are read along.
+     *
+     * @return the raw fields, or <code>null</code> if the session does not
+     *  exist or has timed out
+     */
+    private LoadedSession fetchSession(String id, boolean loadAll, List<String> prefetch, int minTtl) {
+    	// an up to date replica spares the master the read; the TTL is then
+    	// refreshed on the master by the following access()
+    	if (replicaTemplate != null) {
+    		Map<String, byte[]> fields = readSessionFromReplica(id, loadAll, prefetch, minTtl);
+    		if (fields != null) {
+    			return new LoadedSession(fields, true);
+    		}
+    	}
+    	Map<String, byte[]> fields = touchAndReadSession(id, loadAll, prefetch, minTtl);
+    	return fields == null ? null : new LoadedSession(fields, false);
+    }
+    
+    /**
+     * The raw fields of a session as read from Redis, shared read-only by the
+     * requests that loaded it concurrently.
+     */
+    private static class LoadedSession {
+    	final Map<String, byte[]> fields;
+    	final boolean fromReplica;
+    	
+    	LoadedSession(Map<String, byte[]> fields, boolean fromReplica) {
+    		this.fields = Collections.unmodifiableMap(fields);
+    		this.fromReplica = fromReplica;
+    	}
+    }
+    
+    /**
+     * Fields kept in the session hash by the manager itself.
+     */
+    static boolean isReservedField(String name) {
+    	return ID_FIELD.equals(name) || VERSION_FIELD.equals(name) || BLOB_FIELD.equals(name);
+    }
+    
+    /**
+     * The hash field to write an attribute to, registering its name in the
+     * dictionary if needed.
+     */
+    private String field(String name) {
+    	return dictionary == null ? name : dictionary.toField(name);
+    }
+    
+    /**
+     * The hash field to read an attribute from: its number if a node has
+     * registered the name, else the name itself.
+     */
+    private String readField(String name) {
+    	if (dictionary == null) {
+    		return name;
+    	}
+    	String field = dictionary.lookupField(name);
+    	return field != null ? field : name;
+    }
+    
+    private Map<String, byte[]> fields(Map<String, byte[]> attributes) {
+    	if (dictionary == null) {
+    		return attributes;
+    	}
+    	Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>(attributes.size() * 2);
+    	for (Map.Entry<String, byte[]> attribute : attributes.entrySet()) {
+    		fields.put(dictionary.toField(attribute.getKey()), attribute.getValue());
+    	}
+    	return fields;
+    }
+    
+    /**
+     * The hash fields to delete to remove attributes: the number of each
+     * registered name, and the name itself in case it was written before
+     * the dictionary was enabled. Names are not registered.
+     */
+    private Collection<String> removedFields(Collection<String> names) {
+    	if (dictionary == null) {
+    		return names;
+    	}
+    	List<String> fields = new ArrayList<String>(names.size() * 2);
+    	for (String name : names) {
+    		String field = dictionary.lookupField(name);
+    		if (field != null) {
+    			fields.add(field);
+    		}
+    		fields.add(name);
+    	}
+    	return fields;
+    }
+    
+    /**
+     * Put a field of an HGETALL reply under its attribute name. A field
+     * that is not a number of the dictionary keeps its literal name, unless
+     * the numbered field of the same attribute, which is newer, is there.
+     */
+    private void putField(Map<String, byte[]> fields, String field, byte[] value) {
+    	if (dictionary == null || isReservedField(field)) {
+    		fields.put(field, value);
+    		return;
+    	}
+    	String name = dictionary.toName(field);
+    	if (name != null) {
+    		fields.put(name, value);
+    	} else if (!fields.containsKey(field)) {
+    		fields.put(field, value);
+    	}
+    }
+    
+    /**
+     * EXPIRE the session on the master and fetch all its fields, or only its
+     * version and the prefetched attributes, in one round trip.
+     *
+     * @return the fetched fields, or <code>null</code> if the session does not
+     *  exist or has timed out
+     */
+    private Map<String, byte[]> touchAndReadSession(String id, boolean loadAll, List<String> prefetch, int minTtl) {
+    	List<String> requested = new ArrayList<String>(prefetch.size() + 2);
+    	if (!loadAll) {
+    		if (replicaTemplate != null) {
+    			requested.add(VERSION_FIELD);
+    		}
+    		requested.add(BLOB_FIELD);
+    		requested.addAll(prefetch);
+    	}
+    	List<String> stored = null;
+    	if (!loadAll) {
+    		stored = new ArrayList<String>(requested.size());
+    		for (String name : requested) {
+    			stored.add(isReservedField(name) ? name : readField(name));
+    		}
+    	}
+    	Map<String, byte[]> values = store.touchAndRead(sessionKey(id), redisTtl(getMaxInactiveInterval()), minTtl, stored);
+    	if (values == null) {
+    		return null;
+    	}
+    	
+    	Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>();
+    	if (loadAll) {
+    		for (Map.Entry<String, byte[]> value : values.entrySet()) {
+    			putField(fields, value.getKey(), value.getValue());
+    		}
+    	} else {
+    		for (int i = 0; i < requested.size(); i++) {
+    			byte[] value = values.get(stored.get(i));
+    			if (value != null) {
+    				fields.put(requested.get(i), value);
+    			}
+    		}
+    	}
+    	return fields;
+    }
+    
+    /**
+     * Read a session from a replica. Only the versions written by this node
+     * are checked, see {@link #replicaNodes}.
+     *
+     * @return the fields read, or <code>null</code> if the replica does not
+     *  have the session or has not caught up with the version this node wrote
+     */
+    private Map<String, byte[]> readSessionFromReplica(String id, final boolean loadAll, List<String> prefetch,
+    		final int minTtl) {
+    	final byte[] key = SafeEncoder.encode(sessionKey(id));
+    	Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>();
+    	if (loadAll) {
+    		Map<byte[], byte[]> hash = replicaTemplate.executeOnReplica(new JedisTemplate.JedisAction<Map<byte[], byte[]>>() {
+    			@Override
+    			public Map<byte[], byte[]> action(Jedis jedis) {
+    				if (isTimedOut(jedis, key, minTtl)) {
+    					return Collections.emptyMap();
+    				}
+    				return jedis.hgetAll(key);
+    			}
+    		});
+    		for (Map.Entry<byte[], byte[]> entry : hash.entrySet()) {
+    			putField(fields, SafeEncoder.encode(entry.getKey()), entry.getValue());
+    		}
+    	} else {
+    		final List<String> requested = new ArrayList<String>(prefetch.size() + 3);
+    		requested.add(ID_FIELD);
+    		requested.add(VERSION_FIELD);
+    		requested.add(BLOB_FIELD);
+    		requested.addAll(prefetch);
+    		final byte[][] rawFields = new byte[requested.size()][];
+    		for (int i = 0; i < rawFields.length; i++) {
+    			String name = requested.get(i);
+    			rawFields[i] = SafeEncoder.encode(isReservedField(name) ? name : readField(name));
+    		}
+    		List<byte[]> values = replicaTemplate.executeOnReplica(new JedisTemplate.JedisAction<List<byte[]>>() {
+    			@Override
+    			public List<byte[]> action(Jedis jedis) {
+    				if (isTimedOut(jedis, key, minTtl)) {
+    					return Collections.emptyList();
+    				}
+    				return jedis.hmget(key, rawFields);
+    			}
+    		});
+    		for (int i = 0; i < values.size() && i < requested.size(); i++) {
+    			if (values.get(i) != null) {
+    				fields.put(requested.get(i), values.get(i));
+    			}
+    		}
+    	}
+    	
+    	if (!fields.containsKey(ID_FIELD) || parseVersion(fields.get(VERSION_FIELD)) < versionFence.get(id)) {
+    		replicaFallbacks.incrementAndGet();
+    		return null;
+    	}
+    	replicaHits.incrementAndGet();
+    	return fields;
+    }
+    
+    /**
+     * Has a session read from a replica timed out? It is then read from the
+     * master, which takes the same decision in the load script.
+     */
+    private static boolean isTimedOut(Jedis jedis, byte[] key, int minTtl) {
+    	if (minTtl <= 0) {
+    		return false;
+    	}
+    	Long ttl = jedis.ttl(key);
+    	return ttl != null && ttl >= 0 && ttl <= minTtl;
+    }
+    
+    private static long parseVersion(byte[] data) {
+    	return data == null ? 0 : Long.parseLong(SafeEncoder.encode(data));
+    }
+    
     
     /**
      * Remove this Session from the active Sessions for this Manager.
@@ -254,81 +1505,1533 @@ public class RedisSessionManager extends ManagerBase{
             sessions.remove(session.getIdInternal());
         }
         
-        jedisTemplate.del(session.getId());
+        if (ttlRefreshScheduler != null) {
+        	ttlRefreshScheduler.forget(sessionKey(session.getId()));
+        }
+        if (versionFence != null) {
+        	versionFence.forget(session.getId());
+        }
+        if (nearCache != null) {
+        	nearCache.remove(session.getId());
+        }
+        if (index != null) {
+        	index.removed(session.getId());
+        }
+        if (degradedStore != null) {
+        	degradedStore.remove(session.getId());
+        }
+        if (!((RedisSession) session).isPersisted()) {
+        	return;
+        }
+        try {
+        	store.invalidate(sessionKey(session.getId()), invalidationChannel(),
+        			invalidationMessage(session.getId(), Collections.<String>emptyList()));
+        	writeClock.record(session.getId(), SingleFlight.clock());
+        } catch (JedisConnectionException e) {
+        	if (degradedStore == null) {
+        		throw e;
+        	}
+        	// the session still times out in Redis
+        	logger.warn("Unable to remove session " + session.getId() + " from Redis: " + e.getMessage());
+        }
         
     }
     
     
     
 	
-    private void initializeSerializer() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
-    	logger.info("Attempting to use serializer :" + serializationStrategyClass);
-        serializer = (Serializer) Class.forName(serializationStrategyClass).newInstance();
-
-        Loader loader = null;
-
-        if (container != null) {
-          loader = container.getLoader();
-        }
-
-        ClassLoader classLoader = null;
-
-        if (loader != null) {
-            classLoader = loader.getClassLoader();
-        }
-        serializer.setClassLoader(classLoader);
-      }
-
-	// -------------------- Override begin--------------------
+    /**
+     * Atomically create the session hash with its TTL unless it already exists.
+     *
+     * @return <code>true</code> if the session was created
+     */
+    private boolean createSessionInRedis(String id) {
+    	boolean created = store.create(sessionKey(id), ID_FIELD, SafeEncoder.encode(id), redisTtl(this.maxInactiveInterval));
+    	if (created && expiryEventsEnabled() && this.maxInactiveInterval > 0) {
+    		jedisTemplate.setex(expiryKey(id), this.maxInactiveInterval, "");
+    	}
+    	if (created && index != null) {
+    		index.created(id);
+    	}
+    	return created;
+    }
     
+    /**
+     * The TTL given to session keys. With expiry events the data outlives
+     * the session by expiryGrace seconds, so it can still be read when the
+     * expiry is handled.
+     */
+    private int redisTtl(int interval) {
+    	return expiryEventsEnabled() && interval > 0 ? interval + expiryGrace : interval;
+    }
     
-	
-	public String getDebug() {
-		return debug;
-	}
-
-	public void setDebug(String debug) {
-		this.debug = debug;
-	}
-
-	public String getHost() {
-		return host;
-	}
-
-	public void setHost(String host) {
-		this.host = host;
-	}
-
-	public int getPort() {
-		return port;
-	}
-
-	public void setPort(int port) {
-		this.port = port;
-	}
-
-	public int getDatabase() {
-		return database;
-	}
-
-	public void setDatabase(int database) {
-		this.database = database;
-	}
-
-	public String getPassword() {
-		return password;
-	}
-
+    /**
+     * Seconds left to live at or below which a loaded session has timed out.
+     * With expiry events its data is only kept for the expiry to be handled:
+     * if the keyspace event was lost, a request must not bring it back.
+     */
+    private int timedOutTtl() {
+    	return expiryEventsEnabled() ? expiryGrace : 0;
+    }
+    
+    /**
+     * Keyspace events are only available with the Redis store.
+     */
+    private boolean expiryEventsEnabled() {
+    	return redisStore && expiryEvents;
+    }
+    
+    /**
+     * The empty key whose expiry signals that a session may have timed out.
+     * Its TTL is not refreshed on access; an expired session whose key was
+     * touched since gets a new one instead.
+     */
+    private String expiryKey(String id) {
+    	return EXPIRY_KEY_PREFIX + sessionKey(id);
+    }
+    
+    /**
+     * Called when expiry keys expire, with the ids of their sessions.
+     */
+    private void handleExpired(List<String> ids) {
+    	for (String id : ids) {
+    		try {
+    			handleExpired(id);
+    		} catch (JedisException e) {
+    			logger.warn("Unable to process expiry of session " + id, e);
+    		} catch (IOException e) {
+    			logger.warn("Unable to process expiry of session " + id, e);
+    		}
+    	}
+    }
+    
+    /**
+     * Expire a timed out session through the regular Tomcat path, so its
+     * listeners are notified, on the one node that gets the lease.
+     */
+    private void handleExpired(String id) throws IOException {
+    	if (sticky && isLocalRoute(id)) {
+    		// expired in memory by processExpires()
+    		return;
+    	}
+    	String lease = EXPIRY_LEASE_PREFIX + sessionKey(id);
+    	if (!Boolean.TRUE.equals(jedisTemplate.setnxex(lease, EXPIRY_LEASE_SECONDS, nodeId))) {
+    		return;
+    	}
+    	Long ttl = jedisTemplate.ttl(sessionKey(id));
+    	if (ttl == null || ttl < 0) {
+    		// already invalidated, or without TTL
+    		return;
+    	}
+    	if (ttl > expiryGrace) {
+    		// accessed since, check again when it may have timed out
+    		jedisTemplate.setex(expiryKey(id), (int) (ttl - expiryGrace), "");
+    		jedisTemplate.del(lease);
+    		return;
+    	}
+    	RedisSession session;
+    	try {
+    		session = loadSessionFromRedis(id, true, 0);
+    	} finally {
+    		currentSession.remove();
+    	}
+    	if (session == null) {
+    		return;
+    	}
+    	Thread thread = Thread.currentThread();
+    	ClassLoader original = thread.getContextClassLoader();
+    	Loader loader = getContainer().getLoader();
+    	if (loader != null) {
+    		thread.setContextClassLoader(loader.getClassLoader());
+    	}
+    	try {
+    		session.expire(true);
+    		expiredFromEvents.incrementAndGet();
+    	} finally {
+    		thread.setContextClassLoader(original);
+    	}
+    }
+    
+    /**
+     * Make sure Redis publishes keyspace events for expired keys; managed
+     * Redis services may forbid CONFIG SET and must be configured beforehand.
+     */
+    private void enableExpiryNotifications() {
+    	try {
+    		jedisTemplate.executeOnAll(new JedisTemplate.JedisActionNoResult() {
+    			@Override
+    			public void action(Jedis jedis) {
+    				List<String> reply = jedis.configGet("notify-keyspace-events");
+    				String flags = reply.size() > 1 ? reply.get(1) : "";
+    				if (flags.indexOf('K') < 0 || (flags.indexOf('x') < 0 && flags.indexOf('A') < 0)) {
+    					jedis.configSet("notify-keyspace-events", flags + "Kx");
+    				}
+    			}
+    		});
+    	} catch (JedisException e) {
+    		logger.warn("Unable to enable keyspace notifications, set notify-keyspace-events to Kx", e);
+    	}
+    }
+    
+    /**
+     * Create a lazily created session in Redis before its first write.
+     *
+     * @return false if its id is already used by another session in Redis;
+     *  the session must then not be written, or the two clients would
+     *  share their data
+     */
+    private boolean persist(RedisSession session) {
+    	if (session.isPersisted()) {
+    		return true;
+    	}
+    	synchronized (session) {
+    		if (session.isPersisted()) {
+    			return true;
+    		}
+    		if (!createSessionInRedis(session.getIdInternal())) {
+    			// the id was handed to the client already, it cannot be changed
+    			logger.error("Session " + session.getIdInternal() + " already exists in Redis, not written");
+    			return false;
+    		}
+    		session.setPersisted(true);
+    		lazyPersisted.incrementAndGet();
+    		return true;
+    	}
+    }
+    
+    /**
+     * The Redis key of a session. In cluster mode the id is wrapped in a hash
+     * tag so that every key derived from it hashes to the same slot.
+     */
+    protected String sessionKey(String id) {
+    	return cluster ? ClusterJedisTemplate.hashTag(id) : id;
+    }
+    
+    /**
+     * Refresh the TTL of an accessed session: through the background
+     * scheduler when enabled, else buffered in write-behind mode, else
+     * through the store.
+     */
+    void touchSession(RedisSession session) {
+    	if (!session.isPersisted()) {
+    		return;
+    	}
+    	if (index != null) {
+    		index.accessed(session.getId());
+    	}
+    	if (isDegraded(session)) {
+    		session.getChanges().touch();
+    	} else if (ttlRefreshScheduler != null) {
+    		ttlRefreshScheduler.touch(sessionKey(session.getId()), redisTtl(session.getMaxInactiveInterval()));
+    	} else if (isBuffered()) {
+    		session.getChanges().touch();
+    	} else {
+    		try {
+    			store.expire(sessionKey(session.getId()), redisTtl(session.getMaxInactiveInterval()));
+    		} catch (JedisConnectionException e) {
+    			if (!degrade(session, e)) {
+    				throw e;
+    			}
+    			session.getChanges().touch();
+    		}
+    	}
+    }
+    
+    /**
+     * Read one attribute of a session from Redis; from a replica when it has
+     * caught up with the version the session was loaded at and with the last
+     * version this node wrote.
+     */
+    Object readAttribute(final RedisSession session, final String name) {
+    	byte[] data;
+    	try {
+    		data = attributeLoads.execute(session.getId() + "\n" + name, writeClock.get(session.getId()), new Callable<byte[]>() {
+    			@Override
+    			public byte[] call() {
+    				return fetchAttribute(session, name);
+    			}
+    		});
+    	} catch (JedisConnectionException e) {
+    		if (degradedStore == null) {
+    			throw e;
+    		}
+    		logger.warn("Unable to read attribute " + name + " of session " + session.getId() + ": " + e.getMessage());
+    		return null;
+    	}
+    	data = unpackAttribute(name, data);
+    	Object value = decodeAttribute(name, data);
+    	if (value != null) {
+    		session.recordFingerprint(name, data);
+    	}
+    	return value;
+    }
+    
+    private byte[] fetchAttribute(RedisSession session, String name) {
+    	final byte[] key = SafeEncoder.encode(sessionKey(session.getId()));
+    	final String field = readField(name);
+    	final byte[] rawField = SafeEncoder.encode(field);
+    	if (replicaTemplate != null) {
+    		List<byte[]> values = replicaTemplate.executeOnReplica(new JedisTemplate.JedisAction<List<byte[]>>() {
+    			@Override
+    			public List<byte[]> action(Jedis jedis) {
+    				return jedis.hmget(key, rawField, RAW_VERSION_FIELD);
+    			}
+    		});
+    		long required = Math.max(session.getVersion(), versionFence.get(session.getId()));
+    		if (parseVersion(values.get(1)) >= required) {
+    			replicaHits.incrementAndGet();
+    			return values.get(0);
+    		}
+    		replicaFallbacks.incrementAndGet();
+    	}
+    	return store.get(sessionKey(session.getId()), field);
+    }
+    
+    /**
+     * Store one encoded attribute of a session, or buffer it in write-behind
+     * mode. Its fingerprint is only recorded once it is written or buffered.
+     */
+    void writeAttribute(RedisSession session, String name, byte[] encoded) {
+    	session.recordSize(name, encoded.length);
+    	session.setModified(true);
+    	if (session.isBlob()) {
+    		// written as a whole at request end
+    		session.recordFingerprint(name, encoded);
+    		return;
+    	}
+    	byte[] data = compressor.compress(encoded);
+    	if (isBuffered() || isDegraded(session)) {
+    		session.getChanges().set(name, data);
+    		session.recordFingerprint(name, encoded);
+    		return;
+    	}
+    	try {
+    		if (!persist(session)) {
+    			throw new IllegalStateException("Session " + session.getId() + " already exists in Redis");
+    		}
+    		// never a plain HSET: a write landing after the session was
+    		// invalidated or expired would bring it back without a TTL
+    		Long version = store.update(sessionKey(session.getId()), Collections.singletonMap(field(name), data),
+    				Collections.<String>emptyList(), 0, versionField(), invalidationChannel(),
+    				invalidationMessage(session.getId(), Collections.singletonList(name)));
+    		recordWrite(session, version);
+    	} catch (JedisConnectionException e) {
+    		if (!degrade(session, e)) {
+    			throw e;
+    		}
+    		session.getChanges().set(name, data);
+    	}
+    	session.recordFingerprint(name, encoded);
+    }
+    
+    /**
+     * Remove one attribute of a session, or buffer the removal in write-behind mode.
+     */
+    void removeAttribute(RedisSession session, String name) {
+    	session.setModified(true);
+    	if (session.isBlob()) {
+    		return;
+    	}
+    	if (isBuffered() || isDegraded(session)) {
+    		session.getChanges().remove(name);
+    		return;
+    	}
+    	if (!session.isPersisted()) {
+    		return;
+    	}
+    	try {
+    		if (nearCache == null && replicaTemplate == null && dictionary == null) {
+    			store.remove(sessionKey(session.getId()), name);
+    			recordWrite(session, null);
+    			return;
+    		}
+    		Long version = store.update(sessionKey(session.getId()), Collections.<String, byte[]>emptyMap(),
+    				removedFields(Collections.singletonList(name)), 0, versionField(), invalidationChannel(),
+    				invalidationMessage(session.getId(), Collections.singletonList(name)));
+    		recordWrite(session, version);
+    	} catch (JedisConnectionException e) {
+    		if (!degrade(session, e)) {
+    			throw e;
+    		}
+    		session.getChanges().remove(name);
+    	}
+    }
+    
+    /**
+     * Is the session kept in memory until it can be written to Redis? Its
+     * changes are then buffered so they reach Redis in order.
+     */
+    private boolean isDegraded(RedisSession session) {
+    	return degradedStore != null && degradedStore.contains(session.getIdInternal());
+    }
+    
+    /**
+     * Keep a session that could not be written in the degraded store.
+     *
+     * @return false if there is no degraded mode and the failure should be thrown
+     */
+    private boolean degrade(RedisSession session, JedisConnectionException e) {
+    	if (degradedStore == null) {
+    		return false;
+    	}
+    	if (degradedStore.put(session)) {
+    		logger.warn("Unable to write session " + session.getIdInternal()
+    				+ " to Redis, keeping it in memory: " + e.getMessage());
+    	}
+    	return true;
+    }
+    
+    /**
+     * Try to write the sessions kept in memory back to Redis.
+     */
+    private void reconcileDegraded() {
+    	for (RedisSession session : degradedStore.getSessions()) {
+    		if (!session.isValid()) {
+    			// expiring removed it from the store
+    			continue;
+    		}
+    		if (!lazyCreate && !session.isPersisted()) {
+    			try {
+    				if (!persist(session)) {
+    					degradedStore.reconciled(session);
+    					continue;
+    				}
+    			} catch (JedisConnectionException e) {
+    				continue;
+    			}
+    		}
+    		writeSession(session);
+    	}
+    }
+    
+    /**
+     * The field bumped by every write, or <code>null</code> when reads are
+     * never served by replicas.
+     */
+    private String versionField() {
+    	return replicaTemplate != null ? VERSION_FIELD : null;
+    }
+    
+    /**
+     * Note a write of the session that reached Redis: loads of the session
+     * started before it are no longer shared, and its version, if any,
+     * fences replica reads.
+     */
+    private void recordWrite(RedisSession session, Long version) {
+    	writeClock.record(session.getId(), SingleFlight.clock());
+    	if (version != null && version > 0) {
+    		session.setVersion(version);
+    		versionFence.record(session.getId(), version);
+    	}
+    }
+    
+    private String invalidationChannel() {
+    	return nearCache != null ? INVALIDATION_CHANNEL : null;
+    }
+    
+    private String invalidationChannel(SessionChangeSet.Snapshot snapshot) {
+    	if (nearCache == null || (snapshot.getSets().isEmpty() && snapshot.getRemoves().isEmpty())) {
+    		return null;
+    	}
+    	return INVALIDATION_CHANNEL;
+    }
+    
+    private String invalidationMessage(String id, SessionChangeSet.Snapshot snapshot) {
+    	if (nearCache == null) {
+    		return null;
+    	}
+    	List<String> names = new ArrayList<String>(snapshot.getSets().keySet());
+    	names.addAll(snapshot.getRemoves());
+    	return invalidationMessage(id, names);
+    }
+    
+    /**
+     * Invalidation messages are newline separated: node id, session id, then
+     * the changed attribute names. No name means the whole session.
+     */
+    private String invalidationMessage(String id, Collection<String> names) {
+    	StringBuilder sb = new StringBuilder(nodeId).append('\n').append(id);
+    	for (String name : names) {
+    		sb.append('\n').append(name);
+    	}
+    	return sb.toString();
+    }
+    
+    private void handleInvalidation(String message) {
+    	String[] parts = message.split("\n", -1);
+    	if (parts.length < 2 || nodeId.equals(parts[0]) || nearCache == null) {
+    		return;
+    	}
+    	List<String> names = new ArrayList<String>(parts.length - 2);
+    	for (int i = 2; i < parts.length; i++) {
+    		names.add(parts[i]);
+    	}
+    	nearCache.invalidate(parts[1], names);
+    }
+    
+    private void clearNearCache() {
+    	NearCache cache = nearCache;
+    	if (cache != null) {
+    		cache.clear();
+    	}
+    }
+    
+    /**
+     * Called by {@link RedisSessionValve} before the request is processed.
+     */
+    void beforeRequest(String requestURI, String contextPath) {
+    	if (prefetcher != null && requestURI != null) {
+    		String path = contextPath != null && requestURI.startsWith(contextPath)
+    				? requestURI.substring(contextPath.length()) : requestURI;
+    		prefetcher.begin(AttributePrefetcher.toPattern(path));
+    	}
+    }
+    
+    /**
+     * Called by the session each time the application reads an attribute.
+     */
+    void attributeRead(String name) {
+    	if (prefetcher != null) {
+    		prefetcher.read(name);
+    	}
+    }
+    
+    /**
+     * Called by {@link RedisSessionValve} once the request has been processed.
+     * Flushes the mutations buffered on the session used by this thread.
+     */
+    void afterRequest() {
+    	final RedisSession session = currentSession.get();
+    	currentSession.remove();
+    	if (prefetcher != null) {
+    		prefetcher.end();
+    	}
+    	
+    	if (session == null || !session.isValid()) {
+    		return;
+    	}
+    	if (dirtyTracking) {
+    		writeMutations(session);
+    	}
+    	if (asyncWriteExecutor != null && isLocalRoute(session.getIdInternal())) {
+    		asyncWriteExecutor.execute(new Runnable() {
+    			@Override
+    			public void run() {
+    				// it may have been invalidated since the request ended
+    				if (session.isValid()) {
+    					writeSession(session);
+    				}
+    			}
+    		});
+    		return;
+    	}
+    	writeSession(session);
+    }
+    
+    /**
+     * Send what the session has pending, and take it out of the degraded
+     * store once all of it is in Redis. Writes of one session are taken and
+     * sent one at a time, so the last one sends the latest values.
+     */
+    private void writeSession(RedisSession session) {
+    	synchronized (session.getWriteLock()) {
+    		boolean flushed = flushChanges(session);
+    		boolean stored = storeLayout(session);
+    		if (flushed && stored && degradedStore != null && session.getChanges().isEmpty()) {
+    			degradedStore.reconciled(session);
+    		}
+    	}
+    }
+    
+    /**
+     * Write a session changed by the request in the layout it should now
+     * have: rewrite the blob, or move the session between layouts. Sessions
+     * that stay hashes have had their attributes written already; buffered
+     * writes are flushed before, so a move to the blob layout drops them.
+     *
+     * @return false if the session could not be written
+     */
+    private boolean storeLayout(RedisSession session) {
+    	if (LAYOUT_HASH.equals(storageLayout) && !session.isBlob()) {
+    		return true;
+    	}
+    	if (!session.takeModified()) {
+    		return true;
+    	}
+    	try {
+    		if (LAYOUT_HASH.equals(storageLayout) || !blobCandidate(session)) {
+    			if (session.isBlob()) {
+    				writeFields(session);
+    			}
+    			return true;
+    		}
+    		byte[] data = serializeBlob(session);
+    		if (data == null) {
+    			if (LAYOUT_BLOB.equals(storageLayout)) {
+    				// changed in place into something the serializer cannot encode
+    				logger.error("Session " + session.getId() + " has an attribute that cannot be serialized, it is not written");
+    				return false;
+    			}
+    			if (session.isBlob()) {
+    				writeFields(session);
+    			}
+    			return true;
+    		}
+    		if (LAYOUT_BLOB.equals(storageLayout) || data.length <= blobMaxSize) {
+    			writeBlob(session, data);
+    		} else if (session.isBlob()) {
+    			writeFields(session);
+    		}
+    		return true;
+    	} catch (JedisConnectionException e) {
+    		if (degrade(session, e)) {
+    			session.setModified(true);
+    		} else {
+    			logger.error("Unable to write session " + session.getId() + " to Redis", e);
+    		}
+    		return false;
+    	} catch (JedisException e) {
+    		logger.error("Unable to write session " + session.getId() + " to Redis", e);
+    		return false;
+    	}
+    }
+    
+    /**
+     * May the session be stored as a blob? In auto layout only sessions with
+     * enough attributes that are known to be small are, and a hash is only
+     * moved when all its attributes are loaded.
+     */
+    private boolean blobCandidate(RedisSession session) {
+    	if (LAYOUT_BLOB.equals(storageLayout)) {
+    		return true;
+    	}
+    	if (!session.isBlob() && !session.isFullyLoaded()) {
+    		return false;
+    	}
+    	return session.getAttributeCount() >= blobMinAttributes && session.getEncodedSize() <= blobMaxSize;
+    }
+    
+    /**
+     * Encode a session as one blob, each attribute as its hash field would
+     * hold it.
+     *
+     * @return the blob, or <code>null</code> if an attribute cannot be encoded
+     */
+    private byte[] serializeBlob(RedisSession session) {
+    	session.decodeAll();
+    	Map<String, byte[]> attributes = new LinkedHashMap<String, byte[]>();
+    	for (String name : session.keys()) {
+    		Object value = session.getLocalAttribute(name);
+    		if (value == null) {
+    			continue;
+    		}
+    		byte[] data = encodeAttribute(name, value);
+    		if (data == null) {
+    			return null;
+    		}
+    		session.recordSize(name, data.length);
+    		attributes.put(name, compressor.compress(data));
+    	}
+    	byte[] record = FieldCodec.encode(attributes);
+    	ByteBuffer buffer = ByteBuffer.allocate(9 + record.length);
+    	buffer.put(BLOB_FORMAT).putLong(session.getCreationTime()).put(record);
+    	return buffer.array();
+    }
+    
+    /**
+     * Store the session as one blob, dropping the attribute fields it had
+     * in the hash layout.
+     */
+    private void writeBlob(RedisSession session, byte[] data) {
+    	if (!persist(session)) {
+    		return;
+    	}
+    	Collection<String> removes = Collections.emptyList();
+    	if (!session.isBlob()) {
+    		removes = removedFields(Arrays.asList(session.keys()));
+    		layoutChanges.incrementAndGet();
+    	}
+    	Long version = store.update(sessionKey(session.getId()),
+    			Collections.singletonMap(BLOB_FIELD, data), removes, 0, versionField(),
+    			invalidationChannel(), invalidationMessage(session.getId(), Collections.<String>emptyList()));
+    	recordWrite(session, version);
+    	session.setBlob(true);
+    	blobWrites.incrementAndGet();
+    }
+    
+    /**
+     * Store a blob session as one field per attribute.
+     */
+    private void writeFields(RedisSession session) {
+    	if (!persist(session)) {
+    		return;
+    	}
+    	session.decodeAll();
+    	Map<String, byte[]> encoded = new LinkedHashMap<String, byte[]>();
+    	Map<String, byte[]> sets = new LinkedHashMap<String, byte[]>();
+    	for (String name : session.keys()) {
+    		Object value = session.getLocalAttribute(name);
+    		byte[] data = value == null ? null : encodeAttribute(name, value);
+    		if (data != null) {
+    			encoded.put(name, data);
+    			session.recordSize(name, data.length);
+    			sets.put(field(name), compressor.compress(data));
+    		}
+    	}
+    	Long version = store.update(sessionKey(session.getId()), sets, Collections.singletonList(BLOB_FIELD),
+    			0, versionField(), invalidationChannel(), invalidationMessage(session.getId(), Collections.<String>emptyList()));
+    	recordWrite(session, version);
+    	for (Map.Entry<String, byte[]> attribute : encoded.entrySet()) {
+    		session.recordFingerprint(attribute.getKey(), attribute.getValue());
+    	}
+    	session.setBlob(false);
+    	layoutChanges.incrementAndGet();
+    }
+    
+    /**
+     * Re-encode the mutable attributes the request read or set and write
+     * those whose serialized form changed since they were loaded or set.
+     */
+    private void writeMutations(RedisSession session) {
+    	for (Map.Entry<String, Object> attribute : session.drainAccessed()) {
+    		mutationsChecked.incrementAndGet();
+    		byte[] data = encodeAttribute(attribute.getKey(), attribute.getValue());
+    		if (data != null && session.isChanged(attribute.getKey(), data)) {
+    			mutationsWritten.incrementAndGet();
+    			writeAttribute(session, attribute.getKey(), data);
+    		}
+    	}
+    }
+    
+    /**
+     * Called by the session when setAttribute did not change the serialized value.
+     */
+    void writeSkipped() {
+    	writesSkipped.incrementAndGet();
+    }
+    
+    /**
+     * Are writes collected per request instead of being sent immediately?
+     */
+    private boolean isBuffered() {
+    	return writeBehind || sticky;
+    }
+    
+    /**
+     * Send the buffered mutations of a session to Redis in one atomic call:
+     * HMSET for the set attributes, HDEL for the removed ones and an EXPIRE
+     * if the session was accessed. Nothing is written if the session no
+     * longer exists. When Redis cannot be reached and the degraded mode is
+     * on, the mutations are put back for a later attempt.
+     *
+     * @return false if the mutations could not be sent
+     */
+    protected boolean flushChanges(RedisSession session) {
+    	SessionChangeSet.Snapshot snapshot = session.getChanges().drain();
+    	if (snapshot.isEmpty()) {
+    		return true;
+    	}
+    	if (!session.isPersisted() && snapshot.getSets().isEmpty()) {
+    		// still empty, nothing to keep in Redis
+    		return true;
+    	}
+    	
+    	try {
+    		if (!persist(session)) {
+    			return true;
+    		}
+    		boolean modified = !snapshot.getSets().isEmpty() || !snapshot.getRemoves().isEmpty();
+    		Long version = store.update(sessionKey(session.getId()), fields(snapshot.getSets()), removedFields(snapshot.getRemoves()),
+    				snapshot.isTouched() ? redisTtl(session.getMaxInactiveInterval()) : 0, modified ? versionField() : null,
+    				invalidationChannel(snapshot), invalidationMessage(session.getId(), snapshot));
+    		if (version == null) {
+    			// invalidated or timed out meanwhile, it must not come back
+    			logger.debug("Session " + session.getId() + " no longer exists in Redis, changes dropped");
+    			return true;
+    		}
+    		recordWrite(session, version);
+    		if (snapshot.isTouched() && ttlRefreshScheduler != null) {
+    			ttlRefreshScheduler.markTouched(sessionKey(session.getId()), redisTtl(session.getMaxInactiveInterval()));
+    		}
+    		return true;
+    	} catch (JedisConnectionException e) {
+    		if (degrade(session, e)) {
+    			session.getChanges().restore(snapshot);
+    		} else {
+    			logger.error("Unable to flush session " + session.getId() + " to Redis", e);
+    			session.forgetFingerprints(snapshot.getSets().keySet());
+    		}
+    		return false;
+    	} catch (JedisException e) {
+    		logger.error("Unable to flush session " + session.getId() + " to Redis", e);
+    		session.forgetFingerprints(snapshot.getSets().keySet());
+    		return false;
+    	}
+    }
+	
+    /**
+     * Encode an attribute value with the configured serializer, or return
+     * <code>null</code> if it cannot be encoded.
+     */
+    byte[] encodeAttribute(String name, Object value) {
+    	try {
+    		return serializer.encode(value);
+    	} catch (IOException e) {
+    		logger.warn("Unable to serialize attribute " + name, e);
+    		return null;
+    	}
+    }
+    
+    /**
+     * Decode an attribute value read from Redis, or return <code>null</code>
+     * if it is missing or cannot be decoded.
+     */
+    Object decodeAttribute(String name, byte[] data) {
+    	if (data == null) {
+    		return null;
+    	}
+    	try {
+    		return serializer.decode(data);
+    	} catch (IOException e) {
+    		logger.warn("Unable to deserialize attribute " + name, e);
+    	} catch (ClassNotFoundException e) {
+    		logger.warn("Unable to deserialize attribute " + name, e);
+    	}
+    	return null;
+    }
+	
+    /**
+     * Turn an attribute as stored in Redis back into its encoded form, or
+     * return <code>null</code> if it is missing or corrupt. Fingerprints are
+     * always taken on the encoded form.
+     */
+    byte[] unpackAttribute(String name, byte[] data) {
+    	if (data == null) {
+    		return null;
+    	}
+    	try {
+    		return compressor.decompress(data);
+    	} catch (IOException e) {
+    		logger.warn("Unable to decompress attribute " + name, e);
+    		return null;
+    	}
+    }
+	
+    /**
+     * Unpack an attribute a session kept as it was stored, before decoding it.
+     */
+    byte[] unpackRawAttribute(String name, byte[] data) {
+    	rawDecoded.incrementAndGet();
+    	rawDecodedBytes.addAndGet(data.length);
+    	return unpackAttribute(name, data);
+    }
+	
+    private void initializeSerializer() throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+    	logger.info("Attempting to use serializer :" + serializationStrategyClass);
+        serializer = (Serializer) Class.forName(serializationStrategyClass).newInstance();
+
+        Loader loader = null;
+
+        if (container != null) {
+          loader = container.getLoader();
+        }
+
+        ClassLoader classLoader = null;
+
+        if (loader != null) {
+            classLoader = loader.getClassLoader();
+        }
+        serializer.setClassLoader(classLoader);
+        compressor = new AttributeCompressor(compressionThreshold, compressionLevel);
+      }
+
+	// -------------------- Override begin--------------------
+    
+    
+	
+	public String getDebug() {
+		return debug;
+	}
+
+	public void setDebug(String debug) {
+		this.debug = debug;
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public void setHost(String host) {
+		this.host = host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public int getDatabase() {
+		return database;
+	}
+
+	public void setDatabase(int database) {
+		this.database = database;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
 	public void setPassword(String password) {
 		this.password = password;
 	}
 
-	public int getTimeout() {
-		return timeout;
+	public int getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public String getSerializationStrategyClass() {
+		return serializationStrategyClass;
+	}
+
+	public void setSerializationStrategyClass(String serializationStrategyClass) {
+		this.serializationStrategyClass = serializationStrategyClass;
+	}
+
+	public String getRedisNodes() {
+		return redisNodes;
+	}
+
+	public void setRedisNodes(String redisNodes) {
+		this.redisNodes = redisNodes;
+	}
+
+	public boolean isCluster() {
+		return cluster;
+	}
+
+	public void setCluster(boolean cluster) {
+		this.cluster = cluster;
+	}
+
+	public String getReplicaNodes() {
+		return replicaNodes;
+	}
+
+	public void setReplicaNodes(String replicaNodes) {
+		this.replicaNodes = replicaNodes;
+	}
+
+	public int getVersionFenceSize() {
+		return versionFenceSize;
+	}
+
+	public void setVersionFenceSize(int versionFenceSize) {
+		this.versionFenceSize = versionFenceSize;
+	}
+
+	public long getReplicaHits() {
+		return replicaHits.get();
+	}
+
+	public long getReplicaFallbacks() {
+		return replicaFallbacks.get();
+	}
+
+	public boolean isWriteBehind() {
+		return writeBehind;
 	}
 
-	public void setTimeout(int timeout) {
-		this.timeout = timeout;
+	public void setWriteBehind(boolean writeBehind) {
+		this.writeBehind = writeBehind;
+	}
+
+	public boolean isLoadAllAttributes() {
+		return loadAllAttributes;
+	}
+
+	public void setLoadAllAttributes(boolean loadAllAttributes) {
+		this.loadAllAttributes = loadAllAttributes;
+	}
+
+	public double getTtlRefreshFraction() {
+		return ttlRefreshFraction;
+	}
+
+	public void setTtlRefreshFraction(double ttlRefreshFraction) {
+		this.ttlRefreshFraction = ttlRefreshFraction;
+	}
+
+	public long getTtlFlushInterval() {
+		return ttlFlushInterval;
+	}
+
+	public void setTtlFlushInterval(long ttlFlushInterval) {
+		this.ttlFlushInterval = ttlFlushInterval;
+	}
+
+	public TtlRefreshScheduler getTtlRefreshScheduler() {
+		return ttlRefreshScheduler;
+	}
+
+	public int getNearCacheSize() {
+		return nearCacheSize;
+	}
+
+	public void setNearCacheSize(int nearCacheSize) {
+		this.nearCacheSize = nearCacheSize;
+	}
+
+	public int getNearCacheMaxIdle() {
+		return nearCacheMaxIdle;
+	}
+
+	public void setNearCacheMaxIdle(int nearCacheMaxIdle) {
+		this.nearCacheMaxIdle = nearCacheMaxIdle;
+	}
+
+	public boolean isSticky() {
+		return sticky;
+	}
+
+	public void setSticky(boolean sticky) {
+		this.sticky = sticky;
+	}
+
+	public int getAsyncWriteQueueSize() {
+		return asyncWriteQueueSize;
+	}
+
+	public void setAsyncWriteQueueSize(int asyncWriteQueueSize) {
+		this.asyncWriteQueueSize = asyncWriteQueueSize;
+	}
+
+	public int getAsyncConnections() {
+		return asyncConnections;
+	}
+
+	public void setAsyncConnections(int asyncConnections) {
+		this.asyncConnections = asyncConnections;
+	}
+
+	public int getAsyncBatchSize() {
+		return asyncBatchSize;
+	}
+
+	public void setAsyncBatchSize(int asyncBatchSize) {
+		this.asyncBatchSize = asyncBatchSize;
+	}
+
+	public int getAsyncQueueSize() {
+		return asyncQueueSize;
+	}
+
+	public void setAsyncQueueSize(int asyncQueueSize) {
+		this.asyncQueueSize = asyncQueueSize;
+	}
+
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	public long getGroupCommitMaxWait() {
+		return groupCommitMaxWait;
+	}
+
+	public void setGroupCommitMaxWait(long groupCommitMaxWait) {
+		this.groupCommitMaxWait = groupCommitMaxWait;
+	}
+
+	/**
+	 * Commands, pipelines, average and largest pipeline and time spent
+	 * waiting to fill pipelines, per Redis node.
+	 */
+	public String getAsyncStats() {
+		StringBuilder sb = new StringBuilder();
+		if (jedisTemplate == null) {
+			return sb.toString();
+		}
+		for (AsyncJedisExecutor executor : jedisTemplate.getAsyncExecutors()) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append("[commands=").append(executor.getCommands())
+				.append(", batches=").append(executor.getBatches())
+				.append(", avgBatch=").append(String.format("%.1f", executor.getAverageBatchSize()))
+				.append(", maxBatch=").append(executor.getMaxBatchSize())
+				.append(", waitMicros=").append(executor.getWaitNanos() / 1000)
+				.append(", callerRuns=").append(executor.getCallerRuns())
+				.append(']');
+		}
+		return sb.toString();
+	}
+
+	public boolean isLazyCreate() {
+		return lazyCreate;
+	}
+
+	public void setLazyCreate(boolean lazyCreate) {
+		this.lazyCreate = lazyCreate;
+	}
+
+	/**
+	 * Number of lazily created sessions that have not been written to Redis.
+	 */
+	public long getCreationsAvoided() {
+		return lazyCreated.get() - lazyPersisted.get();
+	}
+
+	public long getLazyCreated() {
+		return lazyCreated.get();
+	}
+
+	public long getLazyPersisted() {
+		return lazyPersisted.get();
+	}
+
+	/**
+	 * Must every session be stored as a blob?
+	 */
+	boolean isBlobLayout() {
+		return LAYOUT_BLOB.equals(storageLayout);
+	}
+	
+	public boolean isDirtyTracking() {
+		return dirtyTracking;
+	}
+
+	public void setDirtyTracking(boolean dirtyTracking) {
+		this.dirtyTracking = dirtyTracking;
+	}
+
+	/**
+	 * Number of setAttribute calls that left the serialized value unchanged.
+	 */
+	public long getWritesSkipped() {
+		return writesSkipped.get();
+	}
+
+	/**
+	 * Number of attributes re-encoded at request end.
+	 */
+	public long getMutationsChecked() {
+		return mutationsChecked.get();
+	}
+
+	/**
+	 * Number of attributes found changed in place and written.
+	 */
+	public long getMutationsWritten() {
+		return mutationsWritten.get();
+	}
+
+	public boolean isLazyDecode() {
+		return lazyDecode;
+	}
+
+	public void setLazyDecode(boolean lazyDecode) {
+		this.lazyDecode = lazyDecode;
+	}
+
+	/**
+	 * Number of attributes loaded in their serialized form.
+	 */
+	public long getRawLoaded() {
+		return rawLoaded.get();
+	}
+
+	/**
+	 * Number of attributes loaded in their serialized form and then decoded.
+	 */
+	public long getRawDecoded() {
+		return rawDecoded.get();
+	}
+
+	/**
+	 * Number of loaded attributes that were not decoded, so far.
+	 */
+	public long getDecodesSkipped() {
+		return rawLoaded.get() - rawDecoded.get();
+	}
+
+	/**
+	 * Bytes of loaded attributes that were not decoded, so far.
+	 */
+	public long getBytesSkipped() {
+		return rawLoadedBytes.get() - rawDecodedBytes.get();
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
+	/**
+	 * Values compressed, compressed over original size, bytes saved and time
+	 * spent compressing and decompressing.
+	 */
+	public String getCompressionStats() {
+		return "[compressed=" + compressor.getCompressed()
+			+ ", incompressible=" + compressor.getIncompressible()
+			+ ", ratio=" + String.format("%.3f", compressor.getRatio())
+			+ ", bytesSaved=" + compressor.getBytesSaved()
+			+ ", compressMicros=" + compressor.getCompressNanos() / 1000
+			+ ", decompressed=" + compressor.getDecompressed()
+			+ ", decompressMicros=" + compressor.getDecompressNanos() / 1000
+			+ ']';
+	}
+
+	public AttributeCompressor getCompressor() {
+		return compressor;
+	}
+
+	public boolean isAttributeDictionary() {
+		return attributeDictionary;
+	}
+
+	public void setAttributeDictionary(boolean attributeDictionary) {
+		this.attributeDictionary = attributeDictionary;
+	}
+
+	public String getDictionaryKey() {
+		return dictionaryKey;
+	}
+
+	public void setDictionaryKey(String dictionaryKey) {
+		this.dictionaryKey = dictionaryKey;
+	}
+
+	public AttributeDictionary getDictionary() {
+		return dictionary;
+	}
+
+	public String getStorageLayout() {
+		return storageLayout;
+	}
+
+	public void setStorageLayout(String storageLayout) {
+		this.storageLayout = storageLayout;
+	}
+
+	public int getBlobMinAttributes() {
+		return blobMinAttributes;
+	}
+
+	public void setBlobMinAttributes(int blobMinAttributes) {
+		this.blobMinAttributes = blobMinAttributes;
+	}
+
+	public int getBlobMaxSize() {
+		return blobMaxSize;
+	}
+
+	public void setBlobMaxSize(int blobMaxSize) {
+		this.blobMaxSize = blobMaxSize;
+	}
+
+	/**
+	 * Number of sessions written as a blob.
+	 */
+	public long getBlobWrites() {
+		return blobWrites.get();
+	}
+
+	/**
+	 * Number of sessions moved from one layout to the other.
+	 */
+	public long getLayoutChanges() {
+		return layoutChanges.get();
+	}
+
+	public boolean isExpiryEvents() {
+		return expiryEvents;
+	}
+
+	public void setExpiryEvents(boolean expiryEvents) {
+		this.expiryEvents = expiryEvents;
+	}
+
+	public int getExpiryGrace() {
+		return expiryGrace;
+	}
+
+	public void setExpiryGrace(int expiryGrace) {
+		this.expiryGrace = expiryGrace;
+	}
+
+	public int getExpiryThreads() {
+		return expiryThreads;
+	}
+
+	public void setExpiryThreads(int expiryThreads) {
+		this.expiryThreads = expiryThreads;
+	}
+
+	public int getExpiryQueueSize() {
+		return expiryQueueSize;
+	}
+
+	public void setExpiryQueueSize(int expiryQueueSize) {
+		this.expiryQueueSize = expiryQueueSize;
+	}
+
+	public int getExpiryBatchSize() {
+		return expiryBatchSize;
+	}
+
+	public void setExpiryBatchSize(int expiryBatchSize) {
+		this.expiryBatchSize = expiryBatchSize;
+	}
+
+	/**
+	 * Number of timed out sessions expired by this node from keyspace events.
+	 */
+	public long getExpiredFromEvents() {
+		return expiredFromEvents.get();
+	}
+
+	public ExpiryDispatcher getExpiryDispatcher() {
+		return expiryDispatcher;
+	}
+
+	public boolean isSessionIndex() {
+		return sessionIndex;
+	}
+
+	public void setSessionIndex(boolean sessionIndex) {
+		this.sessionIndex = sessionIndex;
+	}
+
+	public String getIndexKey() {
+		return indexKey;
+	}
+
+	public void setIndexKey(String indexKey) {
+		this.indexKey = indexKey;
+	}
+
+	public long getIndexFlushInterval() {
+		return indexFlushInterval;
+	}
+
+	public void setIndexFlushInterval(long indexFlushInterval) {
+		this.indexFlushInterval = indexFlushInterval;
+	}
+
+	public int getIndexPruneLimit() {
+		return indexPruneLimit;
+	}
+
+	public void setIndexPruneLimit(int indexPruneLimit) {
+		this.indexPruneLimit = indexPruneLimit;
+	}
+
+	/**
+	 * Number of sessions cluster-wide when the session index is enabled,
+	 * else the number of sessions held by this node.
+	 */
+	@Override
+	public int getActiveSessions() {
+		if (index == null) {
+			return super.getActiveSessions();
+		}
+		try {
+			return (int) Math.min(index.size(), Integer.MAX_VALUE);
+		} catch (JedisException e) {
+			logger.warn("Unable to count sessions in " + index.getKey(), e);
+			return super.getActiveSessions();
+		}
+	}
+
+	/**
+	 * Sessions created per second cluster-wide, or 0 without session index.
+	 */
+	public double getCreationRate() {
+		return index == null ? 0 : index.getCreationRate();
+	}
+
+	/**
+	 * One page of the ids of the sessions of the application cluster-wide,
+	 * see {@link SessionIndex#list(String, int)}.
+	 */
+	public SessionIndex.Page listSessions(String cursor, int count) {
+		if (index == null) {
+			throw new IllegalStateException("sessionIndex is not enabled");
+		}
+		return index.list(cursor, count);
+	}
+
+	public SessionIndex getIndex() {
+		return index;
+	}
+
+	public boolean isCircuitBreaker() {
+		return circuitBreaker;
+	}
+
+	public void setCircuitBreaker(boolean circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	public double getBreakerFailureRate() {
+		return breakerFailureRate;
+	}
+
+	public void setBreakerFailureRate(double breakerFailureRate) {
+		this.breakerFailureRate = breakerFailureRate;
+	}
+
+	public long getBreakerSlowCallTime() {
+		return breakerSlowCallTime;
+	}
+
+	public void setBreakerSlowCallTime(long breakerSlowCallTime) {
+		this.breakerSlowCallTime = breakerSlowCallTime;
+	}
+
+	public double getBreakerSlowCallRate() {
+		return breakerSlowCallRate;
+	}
+
+	public void setBreakerSlowCallRate(double breakerSlowCallRate) {
+		this.breakerSlowCallRate = breakerSlowCallRate;
+	}
+
+	public int getBreakerMinimumCalls() {
+		return breakerMinimumCalls;
+	}
+
+	public void setBreakerMinimumCalls(int breakerMinimumCalls) {
+		this.breakerMinimumCalls = breakerMinimumCalls;
+	}
+
+	public long getBreakerWindow() {
+		return breakerWindow;
+	}
+
+	public void setBreakerWindow(long breakerWindow) {
+		this.breakerWindow = breakerWindow;
+	}
+
+	public long getBreakerOpenTime() {
+		return breakerOpenTime;
+	}
+
+	public void setBreakerOpenTime(long breakerOpenTime) {
+		this.breakerOpenTime = breakerOpenTime;
+	}
+
+	public int getDegradedMaxSessions() {
+		return degradedMaxSessions;
+	}
+
+	public void setDegradedMaxSessions(int degradedMaxSessions) {
+		this.degradedMaxSessions = degradedMaxSessions;
+	}
+
+	public long getReconcileInterval() {
+		return reconcileInterval;
+	}
+
+	public void setReconcileInterval(long reconcileInterval) {
+		this.reconcileInterval = reconcileInterval;
+	}
+
+	/**
+	 * State and transition counts of the circuit breaker of each Redis node.
+	 */
+	public String getCircuitBreakerStats() {
+		StringBuilder stats = new StringBuilder();
+		if (jedisTemplate == null) {
+			return stats.toString();
+		}
+		for (CircuitBreaker breaker : jedisTemplate.getCircuitBreakers()) {
+			if (stats.length() > 0) {
+				stats.append("; ");
+			}
+			stats.append(breaker);
+		}
+		return stats.toString();
+	}
+
+	/**
+	 * Number of state changes of the circuit breakers.
+	 */
+	public long getBreakerTransitions() {
+		return breakerTransitions.get();
+	}
+
+	/**
+	 * Number of sessions kept in memory until Redis is available again.
+	 */
+	public int getDegradedSessions() {
+		return degradedStore == null ? 0 : degradedStore.size();
+	}
+
+	public DegradedSessionStore getDegradedStore() {
+		return degradedStore;
+	}
+
+	public boolean isPrefetch() {
+		return prefetch;
+	}
+
+	public void setPrefetch(boolean prefetch) {
+		this.prefetch = prefetch;
+	}
+
+	public int getPrefetchMaxPatterns() {
+		return prefetchMaxPatterns;
+	}
+
+	public void setPrefetchMaxPatterns(int prefetchMaxPatterns) {
+		this.prefetchMaxPatterns = prefetchMaxPatterns;
+	}
+
+	public double getPrefetchThreshold() {
+		return prefetchThreshold;
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold) {
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	public AttributePrefetcher getPrefetcher() {
+		return prefetcher;
+	}
+
+	public SingleFlight<?> getSessionLoads() {
+		return sessionLoads;
+	}
+
+	public SingleFlight<?> getAttributeLoads() {
+		return attributeLoads;
+	}
+
+	public NearCache getNearCache() {
+		return nearCache;
 	}
 
 	public JedisPool getJedisPool() {
@@ -339,6 +3042,34 @@ public class RedisSessionManager extends ManagerBase{
 		this.jedisPool = jedisPool;
 	}
 
+	public String getStoreBackend() {
+		return storeBackend;
+	}
+
+	public void setStoreBackend(String storeBackend) {
+		this.storeBackend = storeBackend;
+	}
+
+	public long getOffHeapCapacity() {
+		return offHeapCapacity;
+	}
+
+	public void setOffHeapCapacity(long offHeapCapacity) {
+		this.offHeapCapacity = offHeapCapacity;
+	}
+
+	public int getOffHeapConcurrency() {
+		return offHeapConcurrency;
+	}
+
+	public void setOffHeapConcurrency(int offHeapConcurrency) {
+		this.offHeapConcurrency = offHeapConcurrency;
+	}
+
+	public SessionStore getStore() {
+		return store;
+	}
+
 	public JedisTemplate getJedisTemplate() {
 		return jedisTemplate;
 	}
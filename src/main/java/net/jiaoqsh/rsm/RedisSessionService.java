@@ -13,6 +13,9 @@ public class RedisSessionService {
 	
 	private String debug = "false"; 
 	
+	/**
+	 * Comma separated host:port list, see {@link RedisSessionManager#setRedisNodes(String)}.
+	 */
 	private String redisNodes;
 
 	public String getDebug() {
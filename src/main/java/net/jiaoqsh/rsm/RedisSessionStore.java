@@ -0,0 +1,142 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jiaoqsh.rsm.redis.JedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Session hashes kept in Redis. Creating, loading and invalidating a session
+ * each take one script call, so one round trip.
+ */
+public class RedisSessionStore implements SessionStore {
+
+	private final JedisTemplate jedisTemplate;
+	private final ScriptRegistry scriptRegistry;
+
+	public RedisSessionStore(JedisTemplate jedisTemplate, ScriptRegistry scriptRegistry) {
+		this.jedisTemplate = jedisTemplate;
+		this.scriptRegistry = scriptRegistry;
+	}
+
+	@Override
+	public boolean create(String key, String field, byte[] value, int seconds) {
+		List<byte[]> args = new ArrayList<byte[]>(3);
+		args.add(SafeEncoder.encode(field));
+		args.add(value);
+		args.add(SafeEncoder.encode(String.valueOf(seconds)));
+		Object reply = scriptRegistry.eval(ScriptRegistry.CREATE_SESSION, keys(key), args);
+		return Long.valueOf(1).equals(reply);
+	}
+
+	@Override
+	public Map<String, byte[]> touchAndRead(String key, int seconds, int minTtl, List<String> fields) {
+		List<byte[]> args = new ArrayList<byte[]>(fields == null ? 2 : fields.size() + 2);
+		args.add(SafeEncoder.encode(String.valueOf(seconds)));
+		args.add(SafeEncoder.encode(String.valueOf(minTtl)));
+		if (fields != null) {
+			for (String field : fields) {
+				args.add(SafeEncoder.encode(field));
+			}
+		}
+		Object reply = scriptRegistry.eval(fields == null ? ScriptRegistry.TOUCH_LOAD_ALL : ScriptRegistry.TOUCH_LOAD,
+				keys(key), args);
+		if (reply == null) {
+			return null;
+		}
+
+		List<?> values = (List<?>) reply;
+		Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+		if (fields == null) {
+			for (int i = 0; i + 1 < values.size(); i += 2) {
+				result.put(SafeEncoder.encode((byte[]) values.get(i)), (byte[]) values.get(i + 1));
+			}
+		} else {
+			for (int i = 0; i < values.size() && i < fields.size(); i++) {
+				if (values.get(i) != null) {
+					result.put(fields.get(i), (byte[]) values.get(i));
+				}
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public byte[] get(String key, String field) {
+		return jedisTemplate.hget(SafeEncoder.encode(key), SafeEncoder.encode(field));
+	}
+
+	@Override
+	public void remove(String key, String field) {
+		jedisTemplate.hdel(key, field);
+	}
+
+	@Override
+	public Long update(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds,
+			String versionField, String channel, String message) {
+		List<byte[]> args = new ArrayList<byte[]>(5 + sets.size() * 2 + removes.size());
+		args.add(SafeEncoder.encode(String.valueOf(seconds)));
+		args.add(SafeEncoder.encode(versionField == null ? "" : versionField));
+		args.add(SafeEncoder.encode(channel == null ? "" : channel));
+		args.add(SafeEncoder.encode(message == null ? "" : message));
+		args.add(SafeEncoder.encode(String.valueOf(sets.size())));
+		for (Map.Entry<String, byte[]> entry : sets.entrySet()) {
+			args.add(SafeEncoder.encode(entry.getKey()));
+			args.add(entry.getValue());
+		}
+		for (String field : removes) {
+			args.add(SafeEncoder.encode(field));
+		}
+		return (Long) scriptRegistry.eval(ScriptRegistry.UPDATE_SESSION, keys(key), args);
+	}
+
+	/**
+	 * Sent on an async connection when those are enabled.
+	 */
+	@Override
+	public void expire(String key, int seconds) {
+		if (jedisTemplate.isAsyncEnabled()) {
+			jedisTemplate.expireAsync(key, seconds);
+		} else {
+			jedisTemplate.setex(key, seconds);
+		}
+	}
+
+	@Override
+	public void invalidate(String key, String channel, String message) {
+		List<byte[]> args = Collections.<byte[]>emptyList();
+		if (channel != null) {
+			args = new ArrayList<byte[]>(2);
+			args.add(SafeEncoder.encode(channel));
+			args.add(SafeEncoder.encode(message));
+		}
+		scriptRegistry.eval(ScriptRegistry.INVALIDATE_SESSION, keys(key), args);
+	}
+
+	/**
+	 * Redis expires the session keys by itself.
+	 */
+	@Override
+	public void processExpires() {
+	}
+
+	@Override
+	public void destroy() {
+		jedisTemplate.destroy();
+	}
+
+	private static List<byte[]> keys(String key) {
+		return Collections.singletonList(SafeEncoder.encode(key));
+	}
+
+	public JedisTemplate getJedisTemplate() {
+		return jedisTemplate;
+	}
+}
@@ -0,0 +1,42 @@
+package net.jiaoqsh.rsm;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+
+import org.apache.catalina.connector.Request;
+import org.apache.catalina.connector.Response;
+import org.apache.catalina.valves.ValveBase;
+
+/**
+ * Valve installed by {@link RedisSessionManager} into the context pipeline.
+ * It marks the start of a request, so the manager knows which attributes to
+ * prefetch, and its end, so the manager can send the mutations buffered
+ * during the request to Redis in one go.
+ */
+public class RedisSessionValve extends ValveBase {
+
+	private static final String info = "RedisSessionValve/1.0";
+
+	private final RedisSessionManager manager;
+
+	public RedisSessionValve(RedisSessionManager manager) {
+		super(true);
+		this.manager = manager;
+	}
+
+	@Override
+	public String getInfo() {
+		return info;
+	}
+
+	@Override
+	public void invoke(Request request, Response response) throws IOException, ServletException {
+		manager.beforeRequest(request.getRequestURI(), request.getContextPath());
+		try {
+			getNext().invoke(request, response);
+		} finally {
+			manager.afterRequest();
+		}
+	}
+}
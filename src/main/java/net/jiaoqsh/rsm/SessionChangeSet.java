@@ -0,0 +1,109 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Mutations recorded against one session while a request is being processed.
+ * Repeated sets of the same attribute collapse to the last value, and a set
+ * cancels an earlier remove of the same name (and vice versa), so the change
+ * set always describes the final state the request wants in Redis.
+ */
+public class SessionChangeSet {
+
+	private final Map<String, byte[]> sets = new LinkedHashMap<String, byte[]>();
+	private final Set<String> removes = new LinkedHashSet<String>();
+	private boolean touched = false;
+
+	public synchronized void set(String name, byte[] value) {
+		removes.remove(name);
+		sets.put(name, value);
+	}
+
+	public synchronized void remove(String name) {
+		sets.remove(name);
+		removes.add(name);
+	}
+
+	public synchronized void touch() {
+		touched = true;
+	}
+
+	/**
+	 * Has the attribute been removed by this request but not yet flushed?
+	 */
+	public synchronized boolean isRemoved(String name) {
+		return removes.contains(name);
+	}
+
+	public synchronized boolean isEmpty() {
+		return !touched && sets.isEmpty() && removes.isEmpty();
+	}
+
+	/**
+	 * Hand the recorded mutations over for flushing and start a new, empty
+	 * change set.
+	 */
+	public synchronized Snapshot drain() {
+		Snapshot snapshot = new Snapshot(new LinkedHashMap<String, byte[]>(sets),
+				new ArrayList<String>(removes), touched);
+		sets.clear();
+		removes.clear();
+		touched = false;
+		return snapshot;
+	}
+
+	/**
+	 * Put back mutations that could not be flushed. Mutations recorded since
+	 * the snapshot was drained are newer and win over those of the snapshot.
+	 */
+	public synchronized void restore(Snapshot snapshot) {
+		for (Map.Entry<String, byte[]> entry : snapshot.getSets().entrySet()) {
+			if (!sets.containsKey(entry.getKey()) && !removes.contains(entry.getKey())) {
+				sets.put(entry.getKey(), entry.getValue());
+			}
+		}
+		for (String name : snapshot.getRemoves()) {
+			if (!sets.containsKey(name)) {
+				removes.add(name);
+			}
+		}
+		touched |= snapshot.isTouched();
+	}
+
+	/**
+	 * Immutable view of the mutations taken by {@link SessionChangeSet#drain()}.
+	 */
+	public static class Snapshot {
+		private final Map<String, byte[]> sets;
+		private final List<String> removes;
+		private final boolean touched;
+
+		Snapshot(Map<String, byte[]> sets, List<String> removes, boolean touched) {
+			this.sets = sets;
+			this.removes = removes;
+			this.touched = touched;
+		}
+
+		public Map<String, byte[]> getSets() {
+			return sets;
+		}
+
+		public Collection<String> getRemoves() {
+			return removes;
+		}
+
+		public boolean isTouched() {
+			return touched;
+		}
+
+		public boolean isEmpty() {
+			return !touched && sets.isEmpty() && removes.isEmpty();
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jiaoqsh.rsm.redis.JedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Registry of the sessions of an application, kept in Redis as a sorted set
+ * of session ids scored by last access time, so sessions can be counted and
+ * listed cluster-wide without KEYS.
+ * <p>
+ * Accesses, creations and removals are collected in memory and sent every
+ * flushInterval milliseconds: one ZADD for all the sessions accessed, one
+ * ZREM for those removed and one INCRBY of the creation counter. Each flush
+ * also prunes at most pruneLimit ids not accessed for longer than the
+ * session timeout, so the set never needs a full scan.
+ */
+public class SessionIndex {
+
+	private static final Log log = LogFactory.getLog(SessionIndex.class);
+
+	/**
+	 * Cursor of the first page of {@link #list(String, int)}.
+	 */
+	public static final String FIRST_PAGE = "0";
+
+	private final String key;
+	private final String createdKey;
+	private final JedisTemplate jedisTemplate;
+	private final ScriptRegistry scriptRegistry;
+	private final long flushInterval;
+	private final int pruneLimit;
+	private final long maxIdle;
+
+	private final ConcurrentMap<String, Long> accessed = new ConcurrentHashMap<String, Long>();
+	private final Set<String> removed = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicLong created = new AtomicLong();
+
+	private final AtomicLong pruned = new AtomicLong();
+	private volatile long totalCreated = -1;
+	private volatile long lastCreatedSample = -1;
+	private volatile long lastSampleTime;
+	private volatile double creationRate = 0;
+
+	private ScheduledExecutorService executor;
+
+	/**
+	 * @param key Redis key of the sorted set
+	 * @param maxIdle milliseconds after which an id not accessed is pruned
+	 */
+	public SessionIndex(String key, JedisTemplate jedisTemplate, ScriptRegistry scriptRegistry, long flushInterval,
+			int pruneLimit, long maxIdle) {
+		this.key = key;
+		this.createdKey = key + ":created";
+		this.jedisTemplate = jedisTemplate;
+		this.scriptRegistry = scriptRegistry;
+		this.flushInterval = flushInterval;
+		this.pruneLimit = pruneLimit;
+		this.maxIdle = maxIdle;
+	}
+
+	public synchronized void start() {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "redis-session-index");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					flush();
+				} catch (JedisException e) {
+					log.warn("Unable to update session index " + key, e);
+				}
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop the background thread and send what is still pending.
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(flushInterval * 2, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		try {
+			flush();
+		} catch (JedisException e) {
+			log.warn("Unable to update session index " + key, e);
+		}
+	}
+
+	public void created(String id) {
+		created.incrementAndGet();
+		accessed(id);
+	}
+
+	public void accessed(String id) {
+		accessed.put(id, System.currentTimeMillis());
+	}
+
+	public void removed(String id) {
+		accessed.remove(id);
+		removed.add(id);
+	}
+
+	/**
+	 * Send the pending changes and prune expired ids.
+	 */
+	public void flush() {
+		Map<String, Double> scores = new HashMap<String, Double>();
+		for (Map.Entry<String, Long> entry : accessed.entrySet()) {
+			// a newer access stays pending for the next flush
+			accessed.remove(entry.getKey(), entry.getValue());
+			scores.put(entry.getKey(), entry.getValue().doubleValue());
+		}
+		if (!scores.isEmpty()) {
+			jedisTemplate.zadd(key, scores);
+		}
+
+		List<String> ids = new ArrayList<String>(removed);
+		removed.removeAll(ids);
+		if (!ids.isEmpty()) {
+			jedisTemplate.zrem(key, ids);
+		}
+
+		long count = created.getAndSet(0);
+		long total = count > 0 ? jedisTemplate.incrBy(createdKey, count) : parse(jedisTemplate.get(createdKey));
+		sampleCreations(total, System.currentTimeMillis());
+
+		Object reply = scriptRegistry.eval(ScriptRegistry.PRUNE_INDEX,
+				Collections.singletonList(SafeEncoder.encode(key)),
+				Arrays.asList(SafeEncoder.encode(String.valueOf(System.currentTimeMillis() - maxIdle)),
+						SafeEncoder.encode(String.valueOf(pruneLimit))));
+		if (reply instanceof Long) {
+			pruned.addAndGet((Long) reply);
+		}
+	}
+
+	private static long parse(String value) {
+		return value == null ? 0 : Long.parseLong(value);
+	}
+
+	/**
+	 * Derive the cluster-wide creation rate from two readings of the
+	 * creation counter.
+	 */
+	void sampleCreations(long total, long now) {
+		if (lastCreatedSample >= 0 && now > lastSampleTime) {
+			creationRate = (total - lastCreatedSample) * 1000.0 / (now - lastSampleTime);
+		}
+		lastCreatedSample = total;
+		lastSampleTime = now;
+		totalCreated = total;
+	}
+
+	/**
+	 * Number of sessions in the index, cluster-wide. Sessions that timed out
+	 * since the last prunes are still counted.
+	 */
+	public long size() {
+		Long size = jedisTemplate.zcard(key);
+		return size == null ? 0 : size;
+	}
+
+	/**
+	 * One page of session ids with their last access time. Start with
+	 * {@link #FIRST_PAGE} and pass the cursor of each page to get the next
+	 * one; the last page has cursor {@link #FIRST_PAGE}. Like ZSCAN, a page
+	 * may hold about count ids and a session may show up twice.
+	 */
+	public Page list(String cursor, int count) {
+		ScanResult<Tuple> result = jedisTemplate.zscan(key, cursor, count);
+		Map<String, Long> sessions = new HashMap<String, Long>();
+		for (Tuple tuple : result.getResult()) {
+			sessions.put(tuple.getElement(), (long) tuple.getScore());
+		}
+		return new Page(result.getStringCursor(), sessions);
+	}
+
+	/**
+	 * Session ids mapped to their last access time, and the cursor of the next page.
+	 */
+	public static class Page {
+		private final String cursor;
+		private final Map<String, Long> sessions;
+
+		Page(String cursor, Map<String, Long> sessions) {
+			this.cursor = cursor;
+			this.sessions = sessions;
+		}
+
+		public String getCursor() {
+			return cursor;
+		}
+
+		public boolean isLast() {
+			return FIRST_PAGE.equals(cursor);
+		}
+
+		public Map<String, Long> getSessions() {
+			return sessions;
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	/**
+	 * Sessions created cluster-wide, as of the last flush.
+	 */
+	public long getTotalCreated() {
+		return Math.max(totalCreated, 0);
+	}
+
+	/**
+	 * Sessions created per second cluster-wide, between the last two flushes.
+	 */
+	public double getCreationRate() {
+		return creationRate;
+	}
+
+	/**
+	 * Number of timed out ids removed by this node.
+	 */
+	public long getPruned() {
+		return pruned.get();
+	}
+}
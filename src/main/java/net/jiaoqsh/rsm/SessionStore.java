@@ -0,0 +1,81 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage used by {@link RedisSessionManager} for session data: one hash of
+ * fields per session key, with a time to live refreshed as the session is
+ * accessed.
+ * <p>
+ * {@link RedisSessionStore} keeps the hashes in Redis and is the default;
+ * {@link OffHeapSessionStore} keeps them in the memory of this JVM for
+ * single node deployments. Features that need several nodes to share Redis
+ * (near cache, replicas, keyspace events, session index, attribute
+ * dictionary) are only available with the Redis store.
+ */
+public interface SessionStore {
+
+	/**
+	 * Create the hash of a session with one field and a time to live, unless
+	 * the key already exists.
+	 *
+	 * @return <code>true</code> if the session was created
+	 */
+	boolean create(String key, String field, byte[] value, int seconds);
+
+	/**
+	 * Refresh the time to live of a session and read some of its fields.
+	 *
+	 * @param minTtl a session with no more than this many seconds left to
+	 *  live has timed out and is kept only for its expiry to be handled: it
+	 *  is neither touched nor read. 0 disables the check.
+	 * @param fields the fields to read, or <code>null</code> for all of them
+	 * @return the fields found, or <code>null</code> if the session does not
+	 *  exist or has timed out
+	 */
+	Map<String, byte[]> touchAndRead(String key, int seconds, int minTtl, List<String> fields);
+
+	/**
+	 * @return the value of one field, or <code>null</code> if it does not exist
+	 */
+	byte[] get(String key, String field);
+
+	void remove(String key, String field);
+
+	/**
+	 * Set and remove several fields at once, refresh the time to live if
+	 * seconds is positive and, if versionField is not <code>null</code>,
+	 * increment it. When channel is not <code>null</code>, message is
+	 * published to the other nodes on it. Nothing is written to a session
+	 * that does not exist, so a late write cannot bring back one that was
+	 * invalidated or has expired.
+	 *
+	 * @return the incremented version, 0 without versionField, or
+	 *  <code>null</code> if the session does not exist
+	 */
+	Long update(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds, String versionField,
+			String channel, String message);
+
+	/**
+	 * Refresh the time to live of a session.
+	 */
+	void expire(String key, int seconds);
+
+	/**
+	 * Delete a session, publishing message on channel if it is not <code>null</code>.
+	 */
+	void invalidate(String key, String channel, String message);
+
+	/**
+	 * Drop the sessions whose time to live has passed, if the store does not
+	 * do it by itself. Called from the background processing of the manager.
+	 */
+	void processExpires();
+
+	/**
+	 * Release the resources of the store.
+	 */
+	void destroy();
+}
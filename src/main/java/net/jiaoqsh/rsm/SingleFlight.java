@@ -0,0 +1,137 @@
+package net.jiaoqsh.rsm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs at most one load per key at a time: callers arriving while a load
+ * for the same key is in flight wait for it and share its result.
+ * <p>
+ * Results are not cached; the entry is removed as soon as the load ends, so
+ * the next caller loads again. Coordination is a putIfAbsent on a
+ * ConcurrentHashMap, so loads of different keys never wait on each other.
+ * <p>
+ * A caller that has just written what it loads passes the {@link #clock()}
+ * of its write, and only joins a load that started after it; an older load
+ * may return the data from before the write.
+ */
+public class SingleFlight<V> {
+
+	private static final long ORIGIN = System.nanoTime();
+
+	private final ConcurrentMap<String, Call<V>> calls = new ConcurrentHashMap<String, Call<V>>();
+
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong shared = new AtomicLong();
+
+	/**
+	 * Return the result of the load in flight for the key, or run loader on
+	 * the calling thread if there is none.
+	 *
+	 * @exception RuntimeException thrown by the loader, also to the callers
+	 *  sharing its result
+	 */
+	public V execute(String key, Callable<V> loader) {
+		return execute(key, 0, loader);
+	}
+
+	/**
+	 * Like {@link #execute(String, Callable)}, but a load in flight is only
+	 * shared if it started after notBefore, a value of {@link #clock()};
+	 * otherwise loader runs on the calling thread without being shared.
+	 */
+	public V execute(String key, long notBefore, Callable<V> loader) {
+		Call<V> call = new Call<V>(loader);
+		Call<V> inFlight = calls.putIfAbsent(key, call);
+		if (inFlight != null) {
+			if (inFlight.started <= notBefore) {
+				loads.incrementAndGet();
+				return call(loader);
+			}
+			shared.incrementAndGet();
+			try {
+				return await(inFlight.task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				// stop waiting, but still answer the caller
+				return call(loader);
+			}
+		}
+
+		loads.incrementAndGet();
+		try {
+			call.task.run();
+		} finally {
+			calls.remove(key, call);
+		}
+		return get(call.task);
+	}
+
+	/**
+	 * Monotonic time in nanoseconds, always positive, at which loads start.
+	 */
+	public static long clock() {
+		return System.nanoTime() - ORIGIN + 1;
+	}
+
+	private V call(Callable<V> loader) {
+		try {
+			return loader.call();
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private V get(FutureTask<V> task) {
+		try {
+			return await(task);
+		} catch (InterruptedException e) {
+			// the task has already run
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private V await(FutureTask<V> task) throws InterruptedException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private static class Call<V> {
+		final FutureTask<V> task;
+		final long started = clock();
+
+		Call(Callable<V> loader) {
+			this.task = new FutureTask<V>(loader);
+		}
+	}
+
+	/**
+	 * Number of loads actually run.
+	 */
+	public long getLoads() {
+		return loads.get();
+	}
+
+	/**
+	 * Number of callers that shared the result of another caller's load.
+	 */
+	public long getShared() {
+		return shared.get();
+	}
+}
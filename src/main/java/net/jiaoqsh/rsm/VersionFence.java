@@ -0,0 +1,66 @@
+package net.jiaoqsh.rsm;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the last version of each session written by this node, so a read
+ * from a lagging replica can be recognised and sent to the master instead.
+ * <p>
+ * Only the most recently written sessions are remembered; a fence is only
+ * needed for as long as replication lags behind, which is far shorter than
+ * the time it takes to write to maxSize other sessions.
+ * <p>
+ * Versions written by other nodes are not known here, so a read that follows
+ * a write made through another node is not fenced.
+ */
+public class VersionFence {
+
+	private final LinkedHashMap<String, Long> versions;
+
+	public VersionFence(final int maxSize) {
+		this.versions = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Record a version written to the master; older versions never replace
+	 * newer ones.
+	 */
+	public void record(String id, long version) {
+		synchronized (versions) {
+			Long current = versions.get(id);
+			if (current == null || current < version) {
+				versions.put(id, version);
+			}
+		}
+	}
+
+	/**
+	 * The last version written by this node, or 0 if none is remembered.
+	 */
+	public long get(String id) {
+		synchronized (versions) {
+			Long version = versions.get(id);
+			return version == null ? 0 : version;
+		}
+	}
+
+	public void forget(String id) {
+		synchronized (versions) {
+			versions.remove(id);
+		}
+	}
+
+	public int getSize() {
+		synchronized (versions) {
+			return versions.size();
+		}
+	}
+}
@@ -0,0 +1,360 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * 在少量长连接上复用多个线程的命令。
+ *
+ * 每个连接由一个后台线程独占, 命令按key放入对应连接的队列, 同一key的命令保持顺序。
+ * 线程每次取出队列中已积累的命令(最多maxBatch个)以一个pipeline发送, 上一批在途期间到达的命令自动合并到下一批。
+ * maxWait大于0时按组提交(group commit): 上一批多于一个命令(说明有并发)时, 最多再等待maxWait纳秒凑满一批;
+ * 空闲时不等待, 单个命令不增加延迟。队列满时在调用线程上借用pool的连接同步执行。
+ * 设置了熔断器时, 每个命令提交前经过熔断检查, 完成时记录结果和从提交起的耗时。
+ */
+public class AsyncJedisExecutor {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	/**
+	 * 在pipeline中加入命令的回调接口定义。
+	 */
+	public interface PipelineAction<T> {
+		Response<T> action(Pipeline pipeline);
+	}
+
+	private final JedisPool pool;
+	private final int maxBatch;
+	private final long maxWait;
+	private final Worker[] workers;
+
+	private final AtomicLong commands = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong callerRuns = new AtomicLong();
+	private final AtomicLong redirects = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong maxBatchSeen = new AtomicLong();
+
+	private volatile boolean running = true;
+	private volatile CircuitBreaker breaker;
+
+	public AsyncJedisExecutor(JedisPool pool, String name, int connections, int maxBatch, int queueSize) {
+		this(pool, name, connections, maxBatch, 0, queueSize);
+	}
+
+	/**
+	 * @param maxWait 凑批的最长等待时间, 纳秒, 0表示不等待
+	 */
+	public AsyncJedisExecutor(JedisPool pool, String name, int connections, int maxBatch, long maxWait, int queueSize) {
+		this.pool = pool;
+		this.maxBatch = maxBatch;
+		this.maxWait = maxWait;
+		this.workers = new Worker[connections];
+		for (int i = 0; i < connections; i++) {
+			workers[i] = new Worker(queueSize);
+			Thread thread = new Thread(workers[i], "redis-async-" + name + "-" + i);
+			thread.setDaemon(true);
+			workers[i].thread = thread;
+			thread.start();
+		}
+	}
+
+	/**
+	 * 提交命令。
+	 *
+	 * @param hash 决定命令使用哪一个连接, 通常为key的hash
+	 * @param action 在pipeline中加入命令
+	 * @param fallback 回复为集群重定向时, 在后台线程上同步重新执行, 可以为null
+	 */
+	public <T> RedisFuture<T> submit(int hash, PipelineAction<T> action, Callable<T> fallback) {
+		CircuitBreaker breaker = this.breaker;
+		boolean probe;
+		try {
+			probe = breaker != null && breaker.acquire();
+		} catch (CircuitOpenException e) {
+			return RedisFuture.failed(e);
+		}
+		Command<T> command = new Command<T>(action, fallback, breaker, probe);
+		commands.incrementAndGet();
+		BlockingQueue<Command<?>> queue = workers[(hash & Integer.MAX_VALUE) % workers.length].queue;
+		// 入队后才发现已停止时, 后台线程可能已经退出: 能从队列中取回的命令由调用线程执行
+		if (!running || !queue.offer(command) || (!running && queue.remove(command))) {
+			callerRuns.incrementAndGet();
+			runInline(command);
+		}
+		return command.future;
+	}
+
+	/**
+	 * 停止后台线程, 队列中剩余的命令发送完毕后归还连接。timeout毫秒内未发送的命令以失败结束。
+	 */
+	public void stop(long timeout) {
+		running = false;
+		for (Worker worker : workers) {
+			try {
+				worker.thread.join(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		List<Command<?>> left = new ArrayList<Command<?>>();
+		for (Worker worker : workers) {
+			worker.queue.drainTo(left);
+		}
+		for (Command<?> command : left) {
+			command.fail(new JedisConnectionException("Async executor stopped before the command was sent"));
+		}
+	}
+
+	private void runInline(Command<?> command) {
+		Jedis jedis = null;
+		boolean broken = false;
+		try {
+			jedis = pool.getResource();
+			List<Command<?>> batch = new ArrayList<Command<?>>(1);
+			batch.add(command);
+			send(jedis, batch);
+		} catch (JedisConnectionException e) {
+			broken = true;
+			command.fail(e);
+		} catch (RuntimeException e) {
+			command.fail(e);
+		} finally {
+			if (jedis != null) {
+				if (broken) {
+					pool.returnBrokenResource(jedis);
+				} else {
+					pool.returnResource(jedis);
+				}
+			}
+		}
+	}
+
+	private void send(Jedis jedis, List<Command<?>> batch) {
+		Pipeline pipeline = jedis.pipelined();
+		for (Command<?> command : batch) {
+			command.enqueue(pipeline);
+		}
+		pipeline.sync();
+		for (Command<?> command : batch) {
+			command.complete();
+		}
+	}
+
+	private void recordBatchSize(long size) {
+		long max = maxBatchSeen.get();
+		while (size > max && !maxBatchSeen.compareAndSet(max, size)) {
+			max = maxBatchSeen.get();
+		}
+	}
+
+	private class Worker implements Runnable {
+		final BlockingQueue<Command<?>> queue;
+		Thread thread;
+		private Jedis jedis;
+		private int lastBatchSize = 0;
+
+		Worker(int queueSize) {
+			this.queue = new ArrayBlockingQueue<Command<?>>(queueSize);
+		}
+
+		@Override
+		public void run() {
+			List<Command<?>> batch = new ArrayList<Command<?>>(maxBatch);
+			try {
+				while (running || !queue.isEmpty()) {
+					Command<?> first;
+					try {
+						first = queue.poll(100, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						break;
+					}
+					if (first == null) {
+						continue;
+					}
+					batch.add(first);
+					queue.drainTo(batch, maxBatch - 1);
+					if (maxWait > 0 && lastBatchSize > 1 && batch.size() < maxBatch) {
+						gather(batch);
+					}
+					lastBatchSize = batch.size();
+					process(batch);
+					batch.clear();
+				}
+			} finally {
+				if (jedis != null) {
+					pool.returnResource(jedis);
+					jedis = null;
+				}
+			}
+		}
+
+		/**
+		 * 在maxWait内继续收集命令, 直到凑满一批。
+		 */
+		private void gather(List<Command<?>> batch) {
+			long start = System.nanoTime();
+			long remaining = maxWait;
+			while (remaining > 0 && batch.size() < maxBatch) {
+				Command<?> next;
+				try {
+					next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				if (next == null) {
+					break;
+				}
+				batch.add(next);
+				queue.drainTo(batch, maxBatch - batch.size());
+				remaining = maxWait - (System.nanoTime() - start);
+			}
+			waitNanos.addAndGet(System.nanoTime() - start);
+		}
+
+		private void process(List<Command<?>> batch) {
+			batches.incrementAndGet();
+			recordBatchSize(batch.size());
+			try {
+				if (jedis == null) {
+					jedis = pool.getResource();
+				}
+				send(jedis, batch);
+			} catch (RuntimeException e) {
+				if (e instanceof JedisConnectionException && jedis != null) {
+					pool.returnBrokenResource(jedis);
+					jedis = null;
+				}
+				logger.warn("Unable to send " + batch.size() + " pipelined commands", e);
+				for (Command<?> command : batch) {
+					command.fail(e);
+				}
+			}
+		}
+	}
+
+	private class Command<T> {
+		final PipelineAction<T> action;
+		final Callable<T> fallback;
+		final RedisFuture<T> future = new RedisFuture<T>();
+		private final CircuitBreaker breaker;
+		private final boolean probe;
+		private final long start = System.nanoTime();
+		private Response<T> response;
+
+		Command(PipelineAction<T> action, Callable<T> fallback, CircuitBreaker breaker, boolean probe) {
+			this.action = action;
+			this.fallback = fallback;
+			this.breaker = breaker;
+			this.probe = probe;
+		}
+
+		void enqueue(Pipeline pipeline) {
+			response = action.action(pipeline);
+		}
+
+		void complete() {
+			T value;
+			try {
+				value = response.get();
+			} catch (JedisDataException e) {
+				// 服务端的回复, 节点可用
+				record(true);
+				if (fallback == null || !ClusterJedisTemplate.isRedirection(e)) {
+					future.fail(e);
+					return;
+				}
+				redirects.incrementAndGet();
+				try {
+					future.complete(fallback.call());
+				} catch (Exception retryFailed) {
+					future.fail(retryFailed);
+				}
+				return;
+			}
+			record(true);
+			future.complete(value);
+		}
+
+		void fail(Throwable cause) {
+			record(!(cause instanceof JedisConnectionException));
+			future.fail(cause);
+		}
+
+		private void record(boolean success) {
+			if (breaker != null) {
+				breaker.record(probe, success, System.nanoTime() - start);
+			}
+		}
+	}
+
+	/**
+	 * 设置节点的熔断器, 可以为null。
+	 */
+	public void setCircuitBreaker(CircuitBreaker breaker) {
+		this.breaker = breaker;
+	}
+
+	public long getCommands() {
+		return commands.get();
+	}
+
+	/**
+	 * 后台线程发送的pipeline数。
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	public long getCallerRuns() {
+		return callerRuns.get();
+	}
+
+	public long getRedirects() {
+		return redirects.get();
+	}
+
+	/**
+	 * 平均每个pipeline中的命令数, 不含调用线程同步执行的命令。
+	 */
+	public double getAverageBatchSize() {
+		long count = batches.get();
+		return count == 0 ? 0 : (double) (commands.get() - callerRuns.get()) / count;
+	}
+
+	public long getMaxBatchSize() {
+		return maxBatchSeen.get();
+	}
+
+	/**
+	 * 为凑批累计等待的纳秒数。
+	 */
+	public long getWaitNanos() {
+		return waitNanos.get();
+	}
+
+	public int getMaxBatch() {
+		return maxBatch;
+	}
+
+	public long getMaxWait() {
+		return maxWait;
+	}
+}
@@ -0,0 +1,197 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个Redis节点的熔断器。
+ *
+ * 按windowMillis毫秒的时间窗统计调用次数、失败次数和慢调用次数, 窗口内调用不少于minimumCalls次且失败率
+ * 或慢调用率达到阈值时打开熔断, 之后openMillis毫秒内的调用直接抛出{@link CircuitOpenException}而不再借连接。
+ * 到期后进入半开状态, 只放行一个探测调用: 成功则关闭熔断, 失败则重新打开。打开前已放行、在半开期间才结束的调用
+ * 不影响探测的结果。
+ */
+public class CircuitBreaker {
+
+	public enum State {
+		CLOSED, OPEN, HALF_OPEN
+	}
+
+	/**
+	 * 状态变化时的回调接口定义, 在触发变化的调用线程上执行。
+	 */
+	public interface Listener {
+		void onStateChange(CircuitBreaker breaker, State from, State to);
+	}
+
+	private final String name;
+	private final double failureRateThreshold;
+	private final long slowCallNanos;
+	private final double slowCallRateThreshold;
+	private final int minimumCalls;
+	private final long windowMillis;
+	private final long openMillis;
+	private final Listener listener;
+
+	private volatile State state = State.CLOSED;
+	private long openedAt;
+	private boolean probing;
+	private long windowStart;
+	private int calls;
+	private int failures;
+	private int slowCalls;
+
+	private final AtomicLong opened = new AtomicLong();
+	private final AtomicLong closed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * @param failureRateThreshold 打开熔断的失败率, 0到1之间
+	 * @param slowCallMillis 超过该毫秒数的调用记为慢调用
+	 * @param slowCallRateThreshold 打开熔断的慢调用率, 0到1之间, 大于1表示不按慢调用熔断
+	 * @param listener 可以为null
+	 */
+	public CircuitBreaker(String name, double failureRateThreshold, long slowCallMillis,
+			double slowCallRateThreshold, int minimumCalls, long windowMillis, long openMillis, Listener listener) {
+		this.name = name;
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallNanos = slowCallMillis * 1000000L;
+		this.slowCallRateThreshold = slowCallRateThreshold;
+		this.minimumCalls = minimumCalls;
+		this.windowMillis = windowMillis;
+		this.openMillis = openMillis;
+		this.listener = listener;
+	}
+
+	/**
+	 * 调用前检查, 熔断打开时抛出CircuitOpenException。放行的调用必须以{@link #record(boolean, boolean, long)}结束,
+	 * 并传回本方法的返回值。
+	 *
+	 * @return 是否为探测调用
+	 */
+	public boolean acquire() throws CircuitOpenException {
+		if (state == State.CLOSED) {
+			return false;
+		}
+		return acquire(System.currentTimeMillis());
+	}
+
+	boolean acquire(long now) throws CircuitOpenException {
+		State from;
+		synchronized (this) {
+			if (state == State.CLOSED) {
+				return false;
+			}
+			if (state == State.HALF_OPEN || now - openedAt < openMillis || probing) {
+				rejected.incrementAndGet();
+				throw new CircuitOpenException("Circuit breaker " + name + " is " + state);
+			}
+			from = state;
+			state = State.HALF_OPEN;
+			probing = true;
+		}
+		fire(from, State.HALF_OPEN);
+		return true;
+	}
+
+	/**
+	 * 记录一次放行的调用的结果和耗时。
+	 *
+	 * @param probe 该调用的acquire的返回值
+	 */
+	public void record(boolean probe, boolean success, long nanos) {
+		record(probe, success, nanos, System.currentTimeMillis());
+	}
+
+	void record(boolean probe, boolean success, long nanos, long now) {
+		State from;
+		State to;
+		synchronized (this) {
+			from = state;
+			if (state == State.HALF_OPEN) {
+				if (!probe) {
+					// 打开熔断前已放行的调用
+					return;
+				}
+				probing = false;
+				if (success) {
+					to = State.CLOSED;
+					reset(now);
+					closed.incrementAndGet();
+				} else {
+					to = State.OPEN;
+					openedAt = now;
+					opened.incrementAndGet();
+				}
+				state = to;
+			} else if (state == State.CLOSED) {
+				if (now - windowStart >= windowMillis) {
+					reset(now);
+				}
+				calls++;
+				if (!success) {
+					failures++;
+				}
+				if (nanos >= slowCallNanos) {
+					slowCalls++;
+				}
+				if (calls < minimumCalls || (failures < calls * failureRateThreshold
+						&& slowCalls < calls * slowCallRateThreshold)) {
+					return;
+				}
+				to = State.OPEN;
+				state = to;
+				openedAt = now;
+				opened.incrementAndGet();
+			} else {
+				// 打开熔断前已放行的调用
+				return;
+			}
+		}
+		fire(from, to);
+	}
+
+	private void reset(long now) {
+		windowStart = now;
+		calls = 0;
+		failures = 0;
+		slowCalls = 0;
+	}
+
+	private void fire(State from, State to) {
+		if (listener != null) {
+			listener.onStateChange(this, from, to);
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * 熔断打开的次数, 包括半开探测失败后重新打开。
+	 */
+	public long getOpened() {
+		return opened.get();
+	}
+
+	public long getClosed() {
+		return closed.get();
+	}
+
+	/**
+	 * 熔断期间被直接拒绝的调用次数。
+	 */
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + ": " + state + ", opened " + opened.get() + ", closed " + closed.get() + ", rejected "
+				+ rejected.get();
+	}
+}
@@ -0,0 +1,15 @@
+package net.jiaoqsh.rsm.redis;
+
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * 节点的熔断器打开时, 调用不借连接直接失败。继承JedisConnectionException, 调用方按连接中断处理即可。
+ */
+public class CircuitOpenException extends JedisConnectionException {
+
+	private static final long serialVersionUID = 1L;
+
+	public CircuitOpenException(String message) {
+		super(message);
+	}
+}
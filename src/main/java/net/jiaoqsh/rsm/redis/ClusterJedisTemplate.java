@@ -0,0 +1,449 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisAskDataException;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * 访问Redis Cluster的JedisTemplate。
+ *
+ * 启动时从种子节点读取CLUSTER NODES, 缓存16384个slot各自所属的master, 命令直接发往key所在slot的master。
+ * 收到MOVED时更新该slot的归属后重试; 收到ASK时先向目标节点发送ASKING再重试, 不更新缓存;
+ * 事务因slot迁移被整体放弃(EXECABORT)或连接中断时重新读取slot分布后重试。最多重定向maxRedirects次。
+ *
+ * 启用熔断时每个节点有各自的熔断器, 熔断打开的节点上的调用直接失败, 不再重新读取slot分布重试。
+ *
+ * key中含有{...}时只对花括号内的部分计算slot, 因此以{sessionId}为key的脚本、事务和pipeline总落在同一slot上。
+ */
+public class ClusterJedisTemplate extends JedisTemplate {
+
+	public static final int SLOT_COUNT = 16384;
+	public static final int DEFAULT_MAX_REDIRECTS = 5;
+
+	private final GenericObjectPoolConfig poolConfig;
+	private final int timeout;
+	private final String password;
+	private final int maxRedirects;
+
+	private final ConcurrentMap<String, JedisPool> nodes = new ConcurrentHashMap<String, JedisPool>();
+	private final JedisPool[] slots = new JedisPool[SLOT_COUNT];
+	private volatile List<JedisPool> masters;
+
+	private final AtomicLong moved = new AtomicLong();
+	private final AtomicLong asked = new AtomicLong();
+	private final AtomicLong refreshes = new AtomicLong();
+
+	public ClusterJedisTemplate(List<HostAndPort> seeds, GenericObjectPoolConfig poolConfig, int timeout,
+			String password) {
+		this(seeds, poolConfig, timeout, password, DEFAULT_MAX_REDIRECTS);
+	}
+
+	public ClusterJedisTemplate(List<HostAndPort> seeds, GenericObjectPoolConfig poolConfig, int timeout,
+			String password, int maxRedirects) {
+		super(new JedisPool(poolConfig, seeds.get(0).getHost(), seeds.get(0).getPort(), timeout, password));
+		this.poolConfig = poolConfig;
+		this.timeout = timeout;
+		this.password = password;
+		this.maxRedirects = maxRedirects;
+
+		nodes.put(nodeName(seeds.get(0).getHost(), seeds.get(0).getPort()), getJedisPool());
+		for (HostAndPort seed : seeds) {
+			getNodePool(seed.getHost(), seed.getPort());
+		}
+		this.masters = Collections.singletonList(getJedisPool());
+		try {
+			refreshSlots();
+		} catch (JedisException e) {
+			logger.warn("Unable to read the cluster slots, they will be read on first use", e);
+		}
+	}
+
+	// ////////////// 路由 ///////////////////////////
+
+	@Override
+	public JedisPool getJedisPool(String key) {
+		return getSlotPool(getSlot(SafeEncoder.encode(key)));
+	}
+
+	@Override
+	public JedisPool getJedisPool(byte[] key) {
+		return getSlotPool(getSlot(key));
+	}
+
+	/**
+	 * 所有master的pool。
+	 */
+	@Override
+	public List<JedisPool> getJedisPools() {
+		return masters;
+	}
+
+	/**
+	 * 集群中的PUBLISH会广播到所有节点, 订阅任意一个节点即可。
+	 */
+	@Override
+	public List<JedisPool> getSubscriptionPools() {
+		return Collections.singletonList(masters.get(0));
+	}
+
+	@Override
+	public void destroy() {
+		stopAsync();
+		for (JedisPool pool : nodes.values()) {
+			pool.destroy();
+		}
+		nodes.clear();
+	}
+
+	private JedisPool getSlotPool(int slot) {
+		JedisPool pool = slots[slot];
+		return pool != null ? pool : getJedisPool();
+	}
+
+	private JedisPool getNodePool(String host, int port) {
+		String name = nodeName(host, port);
+		JedisPool pool = nodes.get(name);
+		if (pool == null) {
+			JedisPool created = new JedisPool(poolConfig, host, port, timeout, password);
+			pool = nodes.putIfAbsent(name, created);
+			if (pool == null) {
+				pool = created;
+			} else {
+				created.destroy();
+			}
+		}
+		return pool;
+	}
+
+	private static String nodeName(String host, int port) {
+		return host + ":" + port;
+	}
+
+	/**
+	 * 依次向已知节点读取CLUSTER NODES, 用第一个成功的回复重建slot缓存。
+	 */
+	public synchronized void refreshSlots() {
+		JedisException last = null;
+		for (final Map.Entry<String, JedisPool> node : new ArrayList<Map.Entry<String, JedisPool>>(nodes.entrySet())) {
+			String reply;
+			try {
+				reply = execute(node.getValue(), new JedisAction<String>() {
+
+					@Override
+					public String action(Jedis jedis) {
+						return jedis.clusterNodes();
+					}
+				});
+			} catch (JedisException e) {
+				last = e;
+				continue;
+			}
+
+			String defaultHost = node.getKey().substring(0, node.getKey().lastIndexOf(':'));
+			Map<HostAndPort, List<int[]>> ranges = parseClusterNodes(reply, defaultHost);
+			if (ranges.isEmpty()) {
+				continue;
+			}
+			JedisPool[] owners = new JedisPool[SLOT_COUNT];
+			LinkedHashSet<JedisPool> pools = new LinkedHashSet<JedisPool>();
+			for (Map.Entry<HostAndPort, List<int[]>> master : ranges.entrySet()) {
+				JedisPool pool = getNodePool(master.getKey().getHost(), master.getKey().getPort());
+				pools.add(pool);
+				for (int[] range : master.getValue()) {
+					for (int slot = range[0]; slot <= range[1]; slot++) {
+						owners[slot] = pool;
+					}
+				}
+			}
+			System.arraycopy(owners, 0, slots, 0, SLOT_COUNT);
+			masters = Collections.unmodifiableList(new ArrayList<JedisPool>(pools));
+			refreshes.incrementAndGet();
+			return;
+		}
+		if (last != null) {
+			throw last;
+		}
+	}
+
+	/**
+	 * 解析CLUSTER NODES的回复, 返回每个可用master负责的slot区间。
+	 * 地址为空(单节点集群)时使用defaultHost, 迁移中的slot([slot-&gt;-node]等)被忽略。
+	 */
+	static Map<HostAndPort, List<int[]>> parseClusterNodes(String reply, String defaultHost) {
+		// HostAndPort没有实现hashCode, 每个节点在回复中只出现一次, 按出现顺序保存即可
+		Map<HostAndPort, List<int[]>> result = new LinkedHashMap<HostAndPort, List<int[]>>();
+		for (String line : reply.split("\n")) {
+			String[] fields = line.trim().split(" ");
+			if (fields.length < 8) {
+				continue;
+			}
+			String flags = fields[2];
+			if (!flags.contains("master") || flags.contains("fail") || flags.contains("noaddr")) {
+				continue;
+			}
+			String address = fields[1];
+			int at = address.indexOf('@');
+			if (at >= 0) {
+				address = address.substring(0, at);
+			}
+			int colon = address.lastIndexOf(':');
+			String host = colon > 0 ? address.substring(0, colon) : defaultHost;
+			int port = Integer.parseInt(address.substring(colon + 1));
+
+			List<int[]> ranges = new ArrayList<int[]>();
+			for (int i = 8; i < fields.length; i++) {
+				String range = fields[i];
+				if (range.startsWith("[")) {
+					continue;
+				}
+				int dash = range.indexOf('-');
+				if (dash > 0) {
+					ranges.add(new int[] { Integer.parseInt(range.substring(0, dash)),
+							Integer.parseInt(range.substring(dash + 1)) });
+				} else {
+					int slot = Integer.parseInt(range);
+					ranges.add(new int[] { slot, slot });
+				}
+			}
+			if (!ranges.isEmpty()) {
+				result.put(new HostAndPort(host, port), ranges);
+			}
+		}
+		return result;
+	}
+
+	// ////////////// 重定向 ///////////////////////////
+
+	@Override
+	public <T> T execute(String key, JedisAction<T> jedisAction) throws JedisException {
+		return execute(getSlot(SafeEncoder.encode(key)), jedisAction);
+	}
+
+	@Override
+	public <T> T execute(byte[] key, JedisAction<T> jedisAction) throws JedisException {
+		return execute(getSlot(key), jedisAction);
+	}
+
+	@Override
+	public void execute(String key, JedisActionNoResult jedisAction) throws JedisException {
+		execute(getSlot(SafeEncoder.encode(key)), withResult(jedisAction));
+	}
+
+	@Override
+	public void execute(byte[] key, JedisActionNoResult jedisAction) throws JedisException {
+		execute(getSlot(key), withResult(jedisAction));
+	}
+
+	/**
+	 * 在slot所属的master上执行action, 按重定向的指示换节点重试。
+	 */
+	protected <T> T execute(int slot, final JedisAction<T> jedisAction) throws JedisException {
+		JedisPool pool = getSlotPool(slot);
+		boolean asking = false;
+		for (int redirects = 0;; redirects++) {
+			try {
+				if (!asking) {
+					return execute(pool, jedisAction);
+				}
+				return execute(pool, new JedisAction<T>() {
+
+					@Override
+					public T action(Jedis jedis) {
+						jedis.asking();
+						return jedisAction.action(jedis);
+					}
+				});
+			} catch (JedisMovedDataException e) {
+				if (redirects >= maxRedirects) {
+					throw e;
+				}
+				moved.incrementAndGet();
+				pool = getTargetPool(e);
+				slots[e.getSlot()] = pool;
+				asking = false;
+			} catch (JedisAskDataException e) {
+				if (redirects >= maxRedirects) {
+					throw e;
+				}
+				asked.incrementAndGet();
+				pool = getTargetPool(e);
+				asking = true;
+			} catch (JedisDataException e) {
+				// 事务中的命令被重定向时, 服务端只回复EXECABORT
+				if (redirects >= maxRedirects || e.getMessage() == null || !e.getMessage().startsWith("EXECABORT")) {
+					throw e;
+				}
+				pool = refreshSlotPool(slot);
+				asking = false;
+			} catch (CircuitOpenException e) {
+				throw e;
+			} catch (JedisConnectionException e) {
+				if (redirects >= maxRedirects) {
+					throw e;
+				}
+				pool = refreshSlotPool(slot);
+				asking = false;
+			}
+		}
+	}
+
+	private JedisPool getTargetPool(JedisRedirectionException e) {
+		HostAndPort target = e.getTargetNode();
+		return getNodePool(target.getHost(), target.getPort());
+	}
+
+	private JedisPool refreshSlotPool(int slot) {
+		try {
+			refreshSlots();
+		} catch (JedisException e) {
+			logger.warn("Unable to refresh the cluster slots", e);
+		}
+		return getSlotPool(slot);
+	}
+
+	private static JedisAction<Void> withResult(final JedisActionNoResult jedisAction) {
+		return new JedisAction<Void>() {
+
+			@Override
+			public Void action(Jedis jedis) {
+				jedisAction.action(jedis);
+				return null;
+			}
+		};
+	}
+
+	// ////////////// 多key命令 ///////////////////////////
+
+	/**
+	 * 各key可能位于不同slot, 逐个删除, 有key被删除时返回true。
+	 */
+	@Override
+	public Boolean del(final String... keys) {
+		boolean deleted = false;
+		for (final String key : keys) {
+			deleted |= execute(key, new JedisAction<Boolean>() {
+
+				@Override
+				public Boolean action(Jedis jedis) {
+					return jedis.del(key) == 1;
+				}
+			});
+		}
+		return deleted;
+	}
+
+	/**
+	 * pipeline中被重定向的key再逐个经由重定向处理设置生存时间。
+	 */
+	@Override
+	protected void expire(JedisPool pool, final Map<String, Integer> secondsByKey) {
+		final List<String> keys = new ArrayList<String>(secondsByKey.keySet());
+		List<Object> replies = execute(pool, new JedisAction<List<Object>>() {
+
+			@Override
+			public List<Object> action(Jedis jedis) {
+				Pipeline pipeline = jedis.pipelined();
+				for (String key : keys) {
+					pipeline.expire(key, secondsByKey.get(key));
+				}
+				return pipeline.syncAndReturnAll();
+			}
+		});
+		for (int i = 0; i < replies.size(); i++) {
+			if (replies.get(i) instanceof JedisDataException && isRedirection((JedisDataException) replies.get(i))) {
+				setex(keys.get(i), secondsByKey.get(keys.get(i)));
+			}
+		}
+	}
+
+	/**
+	 * 是否为MOVED/ASK, 供异步执行器判断是否改走同步的重定向路径。
+	 */
+	static boolean isRedirection(JedisDataException e) {
+		return e instanceof JedisRedirectionException || e.getCause() instanceof JedisRedirectionException;
+	}
+
+	// ////////////// slot ///////////////////////////
+
+	/**
+	 * 计算key所在的slot: CRC16(XMODEM) mod 16384, key中第一个非空的{...}决定slot。
+	 */
+	public static int getSlot(byte[] key) {
+		int start = 0;
+		int end = key.length;
+		for (int i = 0; i < key.length; i++) {
+			if (key[i] == '{') {
+				for (int j = i + 1; j < key.length; j++) {
+					if (key[j] == '}') {
+						if (j > i + 1) {
+							start = i + 1;
+							end = j;
+						}
+						break;
+					}
+				}
+				break;
+			}
+		}
+		return crc16(key, start, end) & (SLOT_COUNT - 1);
+	}
+
+	public static int getSlot(String key) {
+		return getSlot(SafeEncoder.encode(key));
+	}
+
+	private static int crc16(byte[] bytes, int start, int end) {
+		int crc = 0;
+		for (int i = start; i < end; i++) {
+			crc ^= (bytes[i] & 0xFF) << 8;
+			for (int bit = 0; bit < 8; bit++) {
+				crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+			}
+		}
+		return crc & 0xFFFF;
+	}
+
+	/**
+	 * 用于为session构造hash tag, 使同一session的所有key落在同一slot。
+	 */
+	public static String hashTag(String id) {
+		return "{" + id + "}";
+	}
+
+	public Collection<String> getNodeNames() {
+		return Collections.unmodifiableSet(nodes.keySet());
+	}
+
+	public long getMoved() {
+		return moved.get();
+	}
+
+	public long getAsked() {
+		return asked.get();
+	}
+
+	public long getRefreshes() {
+		return refreshes.get();
+	}
+}
@@ -1,13 +1,33 @@
 
 package net.jiaoqsh.rsm.redis;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.SafeEncoder;
 
 
 public class JedisTemplate {
@@ -15,6 +35,24 @@ public class JedisTemplate {
 
 	private JedisPool jedisPool;
 
+	private final ConcurrentMap<JedisPool, AsyncJedisExecutor> asyncExecutors = new ConcurrentHashMap<JedisPool, AsyncJedisExecutor>();
+	private volatile int asyncConnections = 0;
+	private int asyncMaxBatch;
+	private long asyncMaxWait;
+	private int asyncQueueSize;
+	private volatile boolean groupCommit = false;
+	private volatile int timeout = JedisUtils.DEFAULT_TIMEOUT;
+
+	private final ConcurrentMap<JedisPool, CircuitBreaker> breakers = new ConcurrentHashMap<JedisPool, CircuitBreaker>();
+	private volatile boolean circuitBreaker = false;
+	private double breakerFailureRate;
+	private long breakerSlowCallMillis;
+	private double breakerSlowCallRate;
+	private int breakerMinimumCalls;
+	private long breakerWindowMillis;
+	private long breakerOpenMillis;
+	private CircuitBreaker.Listener breakerListener;
+
 	public JedisTemplate(JedisPool jedisPool) {
 		this.jedisPool = jedisPool;
 	}
@@ -23,35 +61,296 @@ public class JedisTemplate {
 	 * 执行有返回结果的action。
 	 */
 	public <T> T execute(JedisAction<T> jedisAction) throws JedisException {
+		return execute(jedisPool, jedisAction);
+	}
+
+	/**
+	 * 执行无返回结果的action。
+	 */
+	public void execute(JedisActionNoResult jedisAction) throws JedisException {
+		execute(jedisPool, jedisAction);
+	}
+
+	/**
+	 * 在key所在的节点上执行有返回结果的action。
+	 */
+	public <T> T execute(String key, JedisAction<T> jedisAction) throws JedisException {
+		return execute(getJedisPool(key), jedisAction);
+	}
+
+	public <T> T execute(byte[] key, JedisAction<T> jedisAction) throws JedisException {
+		return execute(getJedisPool(key), jedisAction);
+	}
+
+	/**
+	 * 在key所在的节点上执行无返回结果的action。
+	 */
+	public void execute(String key, JedisActionNoResult jedisAction) throws JedisException {
+		execute(getJedisPool(key), jedisAction);
+	}
+
+	public void execute(byte[] key, JedisActionNoResult jedisAction) throws JedisException {
+		execute(getJedisPool(key), jedisAction);
+	}
+
+	/**
+	 * 在每一个节点上执行无返回结果的action。
+	 */
+	public void executeOnAll(JedisActionNoResult jedisAction) throws JedisException {
+		for (JedisPool pool : getJedisPools()) {
+			execute(pool, jedisAction);
+		}
+	}
+
+	/**
+	 * 启用异步执行: 每个节点connections个长连接, 每批pipeline最多maxBatch个命令, 每个连接最多排队queueSize个命令。
+	 */
+	public synchronized void enableAsync(int connections, int maxBatch, int queueSize) {
+		enableAsync(connections, maxBatch, 0, queueSize);
+	}
+
+	/**
+	 * 同enableAsync, 有并发时每批最多再等待maxWaitMicros微秒凑批。
+	 */
+	public synchronized void enableAsync(int connections, int maxBatch, long maxWaitMicros, int queueSize) {
+		this.asyncMaxBatch = maxBatch;
+		this.asyncMaxWait = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+		this.asyncQueueSize = queueSize;
+		this.asyncConnections = connections;
+	}
+
+	/**
+	 * 启用熔断: 每个节点一个{@link CircuitBreaker}, 在第一次访问该节点时创建。只有连接错误和超时计为失败,
+	 * 命令错误等服务端回复不计入。
+	 */
+	public synchronized void enableCircuitBreaker(double failureRate, long slowCallMillis, double slowCallRate,
+			int minimumCalls, long windowMillis, long openMillis, CircuitBreaker.Listener listener) {
+		this.breakerFailureRate = failureRate;
+		this.breakerSlowCallMillis = slowCallMillis;
+		this.breakerSlowCallRate = slowCallRate;
+		this.breakerMinimumCalls = minimumCalls;
+		this.breakerWindowMillis = windowMillis;
+		this.breakerOpenMillis = openMillis;
+		this.breakerListener = listener;
+		this.circuitBreaker = true;
+		for (Map.Entry<JedisPool, AsyncJedisExecutor> entry : asyncExecutors.entrySet()) {
+			entry.getValue().setCircuitBreaker(getCircuitBreaker(entry.getKey()));
+		}
+	}
+
+	public boolean isCircuitBreakerEnabled() {
+		return circuitBreaker;
+	}
+
+	/**
+	 * 获取pool的熔断器, 未启用熔断时返回null。
+	 */
+	protected CircuitBreaker getCircuitBreaker(JedisPool pool) {
+		if (!circuitBreaker) {
+			return null;
+		}
+		CircuitBreaker breaker = breakers.get(pool);
+		if (breaker == null) {
+			CircuitBreaker created = new CircuitBreaker("redis-" + breakers.size(), breakerFailureRate,
+					breakerSlowCallMillis, breakerSlowCallRate, breakerMinimumCalls, breakerWindowMillis,
+					breakerOpenMillis, breakerListener);
+			breaker = breakers.putIfAbsent(pool, created);
+			if (breaker == null) {
+				breaker = created;
+			}
+		}
+		return breaker;
+	}
+
+	/**
+	 * 已创建的所有熔断器。
+	 */
+	public Collection<CircuitBreaker> getCircuitBreakers() {
+		return Collections.unmodifiableCollection(breakers.values());
+	}
+
+	public boolean isAsyncEnabled() {
+		return asyncConnections > 0;
+	}
+
+	/**
+	 * 开启后, hget/hset/hdel/expire等单key命令经由异步执行器与其他线程的命令合并到同一个pipeline发送,
+	 * 调用线程等待各自的结果, 方法签名不变。需要先enableAsync。
+	 */
+	public void setGroupCommit(boolean groupCommit) {
+		this.groupCommit = groupCommit;
+	}
+
+	public boolean isGroupCommit() {
+		return groupCommit;
+	}
+
+	/**
+	 * 组提交时等待结果的最长毫秒数, 应与连接的socket超时相同。
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+	}
+
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * 组提交开启时把命令交给异步执行器并等待结果, 否则直接执行jedisAction。
+	 */
+	protected <T> T executeGrouped(String key, AsyncJedisExecutor.PipelineAction<T> pipelineAction,
+			JedisAction<T> jedisAction) throws JedisException {
+		if (!groupCommit || !isAsyncEnabled()) {
+			return execute(key, jedisAction);
+		}
+		return await(executeAsync(key, pipelineAction, jedisAction));
+	}
+
+	protected <T> T executeGrouped(byte[] key, AsyncJedisExecutor.PipelineAction<T> pipelineAction,
+			JedisAction<T> jedisAction) throws JedisException {
+		if (!groupCommit || !isAsyncEnabled()) {
+			return execute(key, jedisAction);
+		}
+		return await(executeAsync(key, pipelineAction, jedisAction));
+	}
+
+	private <T> T await(RedisFuture<T> future) throws JedisException {
+		try {
+			return future.get(timeout, TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new JedisConnectionException("No reply within " + timeout + " ms", e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JedisException(e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new JedisException(e.getCause());
+		}
+	}
+
+	/**
+	 * 在key所在节点的长连接上异步执行pipelineAction; 未启用异步时在当前线程上同步执行jedisAction。
+	 * jedisAction须与pipelineAction等价, 集群重定向时也用它重新执行。
+	 */
+	public <T> RedisFuture<T> executeAsync(final String key, AsyncJedisExecutor.PipelineAction<T> pipelineAction,
+			final JedisAction<T> jedisAction) {
+		if (!isAsyncEnabled()) {
+			try {
+				return RedisFuture.completed(execute(key, jedisAction));
+			} catch (JedisException e) {
+				return RedisFuture.failed(e);
+			}
+		}
+		return getAsyncExecutor(getJedisPool(key)).submit(key.hashCode(), pipelineAction, new Callable<T>() {
+			@Override
+			public T call() {
+				return execute(key, jedisAction);
+			}
+		});
+	}
+
+	public <T> RedisFuture<T> executeAsync(final byte[] key, AsyncJedisExecutor.PipelineAction<T> pipelineAction,
+			final JedisAction<T> jedisAction) {
+		if (!isAsyncEnabled()) {
+			try {
+				return RedisFuture.completed(execute(key, jedisAction));
+			} catch (JedisException e) {
+				return RedisFuture.failed(e);
+			}
+		}
+		return getAsyncExecutor(getJedisPool(key)).submit(Arrays.hashCode(key), pipelineAction, new Callable<T>() {
+			@Override
+			public T call() {
+				return execute(key, jedisAction);
+			}
+		});
+	}
+
+	/**
+	 * 获取pool对应的异步执行器, 第一次使用时创建。
+	 */
+	protected AsyncJedisExecutor getAsyncExecutor(JedisPool pool) {
+		AsyncJedisExecutor executor = asyncExecutors.get(pool);
+		if (executor == null) {
+			synchronized (this) {
+				executor = asyncExecutors.get(pool);
+				if (executor == null) {
+					executor = new AsyncJedisExecutor(pool, String.valueOf(asyncExecutors.size()), asyncConnections,
+							asyncMaxBatch, asyncMaxWait, asyncQueueSize);
+					executor.setCircuitBreaker(getCircuitBreaker(pool));
+					asyncExecutors.put(pool, executor);
+				}
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * 所有节点的异步执行器。
+	 */
+	public Collection<AsyncJedisExecutor> getAsyncExecutors() {
+		return asyncExecutors.values();
+	}
+
+	/**
+	 * 停止异步执行器, 已排队的命令发送完毕后返回。
+	 */
+	protected synchronized void stopAsync() {
+		asyncConnections = 0;
+		for (AsyncJedisExecutor executor : asyncExecutors.values()) {
+			executor.stop(5000);
+		}
+		asyncExecutors.clear();
+	}
+
+	/**
+	 * 从指定的pool借出连接执行有返回结果的action。
+	 */
+	protected <T> T execute(JedisPool pool, JedisAction<T> jedisAction) throws JedisException {
+		CircuitBreaker breaker = getCircuitBreaker(pool);
+		boolean probe = breaker != null && breaker.acquire();
 		Jedis jedis = null;
 		boolean broken = false;
+		long start = System.nanoTime();
 		try {
-			jedis = jedisPool.getResource();
+			jedis = pool.getResource();
 			return jedisAction.action(jedis);
 		} catch (JedisConnectionException e) {
 			logger.error("Redis connection lost.", e);
 			broken = true;
 			throw e;
 		} finally {
-			closeResource(jedis, broken);
+			closeResource(pool, jedis, broken);
+			if (breaker != null) {
+				breaker.record(probe, !broken, System.nanoTime() - start);
+			}
 		}
 	}
 
 	/**
-	 * 执行无返回结果的action。
+	 * 从指定的pool借出连接执行无返回结果的action。
 	 */
-	public void execute(JedisActionNoResult jedisAction) throws JedisException {
+	protected void execute(JedisPool pool, JedisActionNoResult jedisAction) throws JedisException {
+		CircuitBreaker breaker = getCircuitBreaker(pool);
+		boolean probe = breaker != null && breaker.acquire();
 		Jedis jedis = null;
 		boolean broken = false;
+		long start = System.nanoTime();
 		try {
-			jedis = jedisPool.getResource();
+			jedis = pool.getResource();
 			jedisAction.action(jedis);
 		} catch (JedisConnectionException e) {
 			logger.error("Redis connection lost.", e);
 			broken = true;
 			throw e;
 		} finally {
-			closeResource(jedis, broken);
+			closeResource(pool, jedis, broken);
+			if (breaker != null) {
+				breaker.record(probe, !broken, System.nanoTime() - start);
+			}
 		}
 	}
 
@@ -59,12 +358,16 @@ public class JedisTemplate {
 	 * 根据连接是否已中断的标志，分别调用returnBrokenResource或returnResource。
 	 */
 	protected void closeResource(Jedis jedis, boolean connectionBroken) {
+		closeResource(jedisPool, jedis, connectionBroken);
+	}
+
+	protected void closeResource(JedisPool pool, Jedis jedis, boolean connectionBroken) {
 		if (jedis != null) {
 			try {
 				if (connectionBroken) {
-					jedisPool.returnBrokenResource(jedis);
+					pool.returnBrokenResource(jedis);
 				} else {
-					jedisPool.returnResource(jedis);
+					pool.returnResource(jedis);
 				}
 			} catch (Exception e) {
 				logger.error("Error happen when return jedis to pool, try to close it directly.", e);
@@ -80,6 +383,41 @@ public class JedisTemplate {
 		return jedisPool;
 	}
 
+	/**
+	 * 获取key所在节点的pool, 单节点时即内部的pool。
+	 */
+	public JedisPool getJedisPool(String key) {
+		return jedisPool;
+	}
+
+	public JedisPool getJedisPool(byte[] key) {
+		return jedisPool;
+	}
+
+	/**
+	 * 获取所有节点的pool。
+	 */
+	public List<JedisPool> getJedisPools() {
+		return Collections.singletonList(jedisPool);
+	}
+
+	/**
+	 * 订阅频道时需要连接的pool。消息只投递给发布它的节点上的订阅者, 因此默认订阅所有节点。
+	 */
+	public List<JedisPool> getSubscriptionPools() {
+		return getJedisPools();
+	}
+
+	/**
+	 * 销毁所有节点的pool。
+	 */
+	public void destroy() {
+		stopAsync();
+		for (JedisPool pool : getJedisPools()) {
+			pool.destroy();
+		}
+	}
+
 	/**
 	 * 有返回结果的回调接口定义。
 	 */
@@ -110,8 +448,27 @@ public class JedisTemplate {
 		});
 	}
 
+	/**
+	 * 异步删除key, 结果为被删除的key的数量。
+	 */
+	public RedisFuture<Long> delAsync(final String key) {
+		return executeAsync(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.del(key);
+			}
+		}, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.del(key);
+			}
+		});
+	}
+
 	public void flushDB() {
-		execute(new JedisActionNoResult() {
+		executeOnAll(new JedisActionNoResult() {
 
 			@Override
 			public void action(Jedis jedis) {
@@ -129,7 +486,13 @@ public class JedisTemplate {
 	 * 否则，以秒为单位，返回 key 的剩余生存时间。
 	 */
 	public Long ttl(final String key) {
-		return execute(new JedisAction<Long>() {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.ttl(key);
+			}
+		}, new JedisAction<Long>() {
 
 			@Override
 			public Long action(Jedis jedis) {
@@ -144,7 +507,13 @@ public class JedisTemplate {
 	 * @return
 	 */
 	public Boolean exists(final String key) {
-		return execute(new JedisAction<Boolean>() {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<Boolean>() {
+
+			@Override
+			public Response<Boolean> action(Pipeline pipeline) {
+				return pipeline.exists(key);
+			}
+		}, new JedisAction<Boolean>() {
 
 			@Override
 			public Boolean action(Jedis jedis) {
@@ -160,7 +529,13 @@ public class JedisTemplate {
 	 * 如果key不存在, 返回null.
 	 */
 	public String get(final String key) {
-		return execute(new JedisAction<String>() {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<String>() {
+
+			@Override
+			public Response<String> action(Pipeline pipeline) {
+				return pipeline.get(key);
+			}
+		}, new JedisAction<String>() {
 
 			@Override
 			public String action(Jedis jedis) {
@@ -170,7 +545,13 @@ public class JedisTemplate {
 	}
 	
 	public byte[] get(final byte[] key) {
-		return execute(new JedisAction<byte[]>() {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<byte[]>() {
+
+			@Override
+			public Response<byte[]> action(Pipeline pipeline) {
+				return pipeline.get(key);
+			}
+		}, new JedisAction<byte[]>() {
 			@Override
 			public byte[] action(Jedis jedis) {
 				return jedis.get(key);
@@ -195,7 +576,7 @@ public class JedisTemplate {
 	}
 
 	public void set(final String key, final String value) {
-		execute(new JedisActionNoResult() {
+		execute(key, new JedisActionNoResult() {
 
 			@Override
 			public void action(Jedis jedis) {
@@ -204,18 +585,79 @@ public class JedisTemplate {
 		});
 	}
 
+	/**
+	 * 异步设置key的生存时间, key存在时结果为1, 否则为0。
+	 */
+	public RedisFuture<Long> expireAsync(final String key, final int seconds) {
+		return executeAsync(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.expire(key, seconds);
+			}
+		}, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.expire(key, seconds);
+			}
+		});
+	}
+
 	public void setex(final String key, final int seconds) {
-		execute(new JedisActionNoResult() {
+		executeGrouped(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.expire(key, seconds);
+			}
+		}, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.expire(key, seconds);
+			}
+		});
+	}
+	
+	/**
+	 * 以pipeline批量设置多个key的生存时间, key为键, value为秒数。多节点时按节点分组, 每个节点一个pipeline。
+	 */
+	public void expire(Map<String, Integer> secondsByKey) {
+		Map<JedisPool, Map<String, Integer>> byPool = new HashMap<JedisPool, Map<String, Integer>>();
+		for (Map.Entry<String, Integer> entry : secondsByKey.entrySet()) {
+			JedisPool pool = getJedisPool(entry.getKey());
+			Map<String, Integer> batch = byPool.get(pool);
+			if (batch == null) {
+				batch = new HashMap<String, Integer>();
+				byPool.put(pool, batch);
+			}
+			batch.put(entry.getKey(), entry.getValue());
+		}
+		for (Map.Entry<JedisPool, Map<String, Integer>> group : byPool.entrySet()) {
+			expire(group.getKey(), group.getValue());
+		}
+	}
+
+	/**
+	 * 在指定节点上以pipeline批量设置生存时间。
+	 */
+	protected void expire(JedisPool pool, final Map<String, Integer> secondsByKey) {
+		execute(pool, new JedisActionNoResult() {
 
 			@Override
 			public void action(Jedis jedis) {
-				jedis.expire(key, seconds);
+				Pipeline pipeline = jedis.pipelined();
+				for (Map.Entry<String, Integer> entry : secondsByKey.entrySet()) {
+					pipeline.expire(entry.getKey(), entry.getValue());
+				}
+				pipeline.sync();
 			}
 		});
 	}
 	
 	public void setex(final String key, final int seconds,  final String value) {
-		execute(new JedisActionNoResult() {
+		execute(key, new JedisActionNoResult() {
 
 			@Override
 			public void action(Jedis jedis) {
@@ -225,7 +667,7 @@ public class JedisTemplate {
 	}
 	
 	public void setex(final byte[] key, final int seconds,  final byte[] value) {
-		execute(new JedisActionNoResult() {
+		execute(key, new JedisActionNoResult() {
 
 			@Override
 			public void action(Jedis jedis) {
@@ -238,7 +680,7 @@ public class JedisTemplate {
 	 * 如果key还不存在则进行设置，返回true，否则返回false.
 	 */
 	public Boolean setnx(final String key, final String value) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 
 			@Override
 			public Boolean action(Jedis jedis) {
@@ -251,7 +693,7 @@ public class JedisTemplate {
 	 * 综合setNX与setEx的效果。
 	 */
 	public Boolean setnxex(final byte[] key, final int seconds, final byte[] value) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 			@Override
 			public Boolean action(Jedis jedis) {
 				String result = jedis.set(key, value, "NX".getBytes(), "EX".getBytes(), seconds);
@@ -261,7 +703,7 @@ public class JedisTemplate {
 	}
 	
 	public Boolean setnxex(final String key, final int seconds, final String value) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 
 			@Override
 			public Boolean action(Jedis jedis) {
@@ -272,7 +714,7 @@ public class JedisTemplate {
 	}
 
 	public Long incr(final String key) {
-		return execute(new JedisAction<Long>() {
+		return execute(key, new JedisAction<Long>() {
 			@Override
 			public Long action(Jedis jedis) {
 				return jedis.incr(key);
@@ -280,8 +722,17 @@ public class JedisTemplate {
 		});
 	}
 
+	public Long incrBy(final String key, final long increment) {
+		return execute(key, new JedisAction<Long>() {
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.incrBy(key, increment);
+			}
+		});
+	}
+
 	public Long decr(final String key) {
-		return execute(new JedisAction<Long>() {
+		return execute(key, new JedisAction<Long>() {
 			@Override
 			public Long action(Jedis jedis) {
 				return jedis.decr(key);
@@ -291,7 +742,7 @@ public class JedisTemplate {
 
 	// ////////////// 关于List ///////////////////////////
 	public void lpush(final String key, final String... values) {
-		execute(new JedisActionNoResult() {
+		execute(key, new JedisActionNoResult() {
 			@Override
 			public void action(Jedis jedis) {
 				jedis.lpush(key, values);
@@ -300,7 +751,7 @@ public class JedisTemplate {
 	}
 
 	public String rpop(final String key) {
-		return execute(new JedisAction<String>() {
+		return execute(key, new JedisAction<String>() {
 
 			@Override
 			public String action(Jedis jedis) {
@@ -313,7 +764,7 @@ public class JedisTemplate {
 	 * 返回List长度, key不存在时返回0，key类型不是list时抛出异常.
 	 */
 	public Long llen(final String key) {
-		return execute(new JedisAction<Long>() {
+		return execute(key, new JedisAction<Long>() {
 
 			@Override
 			public Long action(Jedis jedis) {
@@ -326,7 +777,7 @@ public class JedisTemplate {
 	 * 删除List中的第一个等于value的元素，value不存在或key不存在时返回false.
 	 */
 	public Boolean lremOne(final String key, final String value) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 			@Override
 			public Boolean action(Jedis jedis) {
 				Long count = jedis.lrem(key, 1, value);
@@ -339,7 +790,7 @@ public class JedisTemplate {
 	 * 删除List中的所有等于value的元素，value不存在或key不存在时返回false.
 	 */
 	public Boolean lremAll(final String key, final String value) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 			@Override
 			public Boolean action(Jedis jedis) {
 				Long count = jedis.lrem(key, 0, value);
@@ -354,7 +805,13 @@ public class JedisTemplate {
 	 * 如果key或field不存在, 返回null.
 	 */
 	public String hget(final String key, final String field) {
-		return execute(new JedisAction<String>() {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<String>() {
+
+			@Override
+			public Response<String> action(Pipeline pipeline) {
+				return pipeline.hget(key, field);
+			}
+		}, new JedisAction<String>() {
 
 			@Override
 			public String action(Jedis jedis) {
@@ -362,6 +819,41 @@ public class JedisTemplate {
 			}
 		});
 	}
+	public byte[] hget(final byte[] key, final byte[] field) {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<byte[]>() {
+
+			@Override
+			public Response<byte[]> action(Pipeline pipeline) {
+				return pipeline.hget(key, field);
+			}
+		}, new JedisAction<byte[]>() {
+
+			@Override
+			public byte[] action(Jedis jedis) {
+				return jedis.hget(key, field);
+			}
+		});
+	}
+	
+	/**
+	 * 异步读取哈希表 key 中给定域 field 的值。
+	 */
+	public RedisFuture<byte[]> hgetAsync(final byte[] key, final byte[] field) {
+		return executeAsync(key, new AsyncJedisExecutor.PipelineAction<byte[]>() {
+
+			@Override
+			public Response<byte[]> action(Pipeline pipeline) {
+				return pipeline.hget(key, field);
+			}
+		}, new JedisAction<byte[]>() {
+
+			@Override
+			public byte[] action(Jedis jedis) {
+				return jedis.hget(key, field);
+			}
+		});
+	}
+	
 	/**
 	 * 将哈希表 key 中的域 field 的值设为 value 。
 	 * 如果 key 不存在，一个新的哈希表被创建并进行 HSET 操作。
@@ -371,17 +863,58 @@ public class JedisTemplate {
 	 * @param value
 	 */
 	public void hset(final String key, final String field, final String value) {
-		execute(new JedisActionNoResult() {
+		executeGrouped(key, new AsyncJedisExecutor.PipelineAction<Long>() {
 
 			@Override
-			public void action(Jedis jedis) {
-				jedis.hset(key, field, value);
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.hset(key, field, value);
+			}
+		}, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.hset(key, field, value);
+			}
+		});
+	}
+	
+	public void hset(final byte[] key, final byte[] field, final byte[] value) {
+		executeGrouped(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.hset(key, field, value);
+			}
+		}, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.hset(key, field, value);
+			}
+		});
+	}
+	
+	/**
+	 * 异步设置哈希表 key 中的域 field, 新建域时结果为1, 覆盖旧值时为0。
+	 */
+	public RedisFuture<Long> hsetAsync(final byte[] key, final byte[] field, final byte[] value) {
+		return executeAsync(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.hset(key, field, value);
+			}
+		}, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.hset(key, field, value);
 			}
 		});
 	}
 	
 	public void hsetex(final String key, final String field, final String value, final int seconds) {
-		execute(new JedisActionNoResult() {
+		execute(key, new JedisActionNoResult() {
 
 			@Override
 			public void action(Jedis jedis) {
@@ -392,7 +925,7 @@ public class JedisTemplate {
 	}
 	
 	public Boolean hsetnxex(final String key, final String field, final String value, final int seconds) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 
 			@Override
 			public Boolean action(Jedis jedis) {
@@ -406,11 +939,65 @@ public class JedisTemplate {
 		});
 	}
 	
+	/**
+	 * 在一个MULTI/EXEC事务中完成对hash的批量修改：HMSET sets, HDEL removes, 并在seconds>0时EXPIRE。
+	 * 只占用一次连接和一次网络往返。
+	 */
+	public void hupdate(final String key, final Map<String, byte[]> sets, final Collection<String> removes,
+			final int seconds) {
+		hupdate(key, sets, removes, seconds, null, null);
+	}
+	
+	/**
+	 * 同hupdate, channel不为null时在同一事务中向channel发布message。
+	 */
+	public void hupdate(final String key, final Map<String, byte[]> sets, final Collection<String> removes,
+			final int seconds, final String channel, final String message) {
+		hupdate(key, sets, removes, seconds, null, channel, message);
+	}
+	
+	/**
+	 * 同hupdate, versionField不为null时在同一事务中把该域加1, 返回加1后的值, 否则返回null。
+	 */
+	public Long hupdate(final String key, final Map<String, byte[]> sets, final Collection<String> removes,
+			final int seconds, final String versionField, final String channel, final String message) {
+		return execute(key, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				byte[] rawKey = SafeEncoder.encode(key);
+				Transaction tx = jedis.multi();
+				if (!sets.isEmpty()) {
+					Map<byte[], byte[]> hash = new HashMap<byte[], byte[]>(sets.size() * 2);
+					for (Map.Entry<String, byte[]> entry : sets.entrySet()) {
+						hash.put(SafeEncoder.encode(entry.getKey()), entry.getValue());
+					}
+					tx.hmset(rawKey, hash);
+				}
+				if (!removes.isEmpty()) {
+					tx.hdel(key, removes.toArray(new String[removes.size()]));
+				}
+				Response<Long> version = null;
+				if (versionField != null) {
+					version = tx.hincrBy(key, versionField, 1);
+				}
+				if (seconds > 0) {
+					tx.expire(key, seconds);
+				}
+				if (channel != null) {
+					tx.publish(channel, message);
+				}
+				tx.exec();
+				return version == null ? null : version.get();
+			}
+		});
+	}
+	
 	/**
 	 * 返回hash中域的数量, key不存在时返回0，key类型不是hash时抛出异常.
 	 */
 	public Long hlen(final String key) {
-		return execute(new JedisAction<Long>() {
+		return execute(key, new JedisAction<Long>() {
 
 			@Override
 			public Long action(Jedis jedis) {
@@ -420,7 +1007,13 @@ public class JedisTemplate {
 	}
 	
 	public Long hdel(final String key, final String... fields) {
-		return execute(new JedisAction<Long>() {
+		return executeGrouped(key, new AsyncJedisExecutor.PipelineAction<Long>() {
+
+			@Override
+			public Response<Long> action(Pipeline pipeline) {
+				return pipeline.hdel(key, fields);
+			}
+		}, new JedisAction<Long>() {
 
 			@Override
 			public Long action(Jedis jedis) {
@@ -434,7 +1027,7 @@ public class JedisTemplate {
 	 * 加入Sorted set, 如果member在Set里已存在, 只更新score并返回false, 否则返回true.
 	 */
 	public Boolean zadd(final String key, final double score, final String member) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 
 			@Override
 			public Boolean action(Jedis jedis) {
@@ -443,11 +1036,24 @@ public class JedisTemplate {
 		});
 	}
 
+	/**
+	 * 以一条ZADD加入或更新多个member, 返回新加入的个数.
+	 */
+	public Long zadd(final String key, final Map<String, Double> scoreMembers) {
+		return execute(key, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.zadd(key, scoreMembers);
+			}
+		});
+	}
+
 	/**
 	 * 删除sorted set中的元素，成功删除返回true，key或member不存在返回false。
 	 */
 	public Boolean zrem(final String key, final String member) {
-		return execute(new JedisAction<Boolean>() {
+		return execute(key, new JedisAction<Boolean>() {
 
 			@Override
 			public Boolean action(Jedis jedis) {
@@ -456,11 +1062,24 @@ public class JedisTemplate {
 		});
 	}
 
+	/**
+	 * 以一条ZREM删除多个member, 返回删除的个数.
+	 */
+	public Long zrem(final String key, final Collection<String> members) {
+		return execute(key, new JedisAction<Long>() {
+
+			@Override
+			public Long action(Jedis jedis) {
+				return jedis.zrem(key, members.toArray(new String[members.size()]));
+			}
+		});
+	}
+
 	/**
 	 * 当key不存在时返回null.
 	 */
 	public Double zscore(final String key, final String member) {
-		return execute(new JedisAction<Double>() {
+		return execute(key, new JedisAction<Double>() {
 
 			@Override
 			public Double action(Jedis jedis) {
@@ -473,7 +1092,7 @@ public class JedisTemplate {
 	 * 返回sorted set长度, key不存在时返回0.
 	 */
 	public Long zcard(final String key) {
-		return execute(new JedisAction<Long>() {
+		return execute(key, new JedisAction<Long>() {
 
 			@Override
 			public Long action(Jedis jedis) {
@@ -481,4 +1100,19 @@ public class JedisTemplate {
 			}
 		});
 	}
+
+	/**
+	 * 以ZSCAN从cursor处遍历sorted set, 每次约返回count个元素; 返回的cursor为"0"时遍历结束.
+	 */
+	public ScanResult<Tuple> zscan(final String key, final String cursor, final int count) {
+		return execute(key, new JedisAction<ScanResult<Tuple>>() {
+
+			@Override
+			public ScanResult<Tuple> action(Jedis jedis) {
+				ScanParams params = new ScanParams();
+				params.count(count);
+				return jedis.zscan(key, cursor, params);
+			}
+		});
+	}
 }
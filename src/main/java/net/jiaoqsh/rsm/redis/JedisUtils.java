@@ -1,6 +1,10 @@
 
 package net.jiaoqsh.rsm.redis;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import redis.clients.jedis.HostAndPort;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.Protocol;
@@ -45,6 +49,29 @@ public class JedisUtils {
 		return poolConfig;
 	}
 
+	/**
+	 * 解析以逗号分隔的"host:port"列表, 省略端口时使用默认端口。
+	 */
+	public static List<HostAndPort> parseHostAndPorts(String nodes) {
+		List<HostAndPort> result = new ArrayList<HostAndPort>();
+		if (nodes == null) {
+			return result;
+		}
+		for (String node : nodes.split(",")) {
+			node = node.trim();
+			if (node.length() == 0) {
+				continue;
+			}
+			int colon = node.lastIndexOf(':');
+			if (colon < 0) {
+				result.add(new HostAndPort(node, DEFAULT_PORT));
+			} else {
+				result.add(new HostAndPort(node.substring(0, colon), Integer.parseInt(node.substring(colon + 1).trim())));
+			}
+		}
+		return result;
+	}
+
 	/**
 	 * 退出然后关闭Jedis连接。
 	 */
@@ -0,0 +1,96 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 异步命令的结果, 由AsyncJedisExecutor在回复到达后完成。
+ *
+ * 内部的FutureTask只在完成时运行一次, 返回回复或抛出错误, 等待、取消等均由它实现。
+ */
+public class RedisFuture<T> implements Future<T> {
+
+	private volatile T value;
+	private volatile Throwable cause;
+
+	private final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+		@Override
+		public T call() throws Exception {
+			Throwable failure = cause;
+			if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			if (failure instanceof Exception) {
+				throw (Exception) failure;
+			}
+			if (failure != null) {
+				throw new ExecutionException(failure);
+			}
+			return value;
+		}
+	});
+
+	RedisFuture() {
+	}
+
+	/**
+	 * 已经完成的结果, 用于同步执行的命令。
+	 */
+	static <T> RedisFuture<T> completed(T value) {
+		RedisFuture<T> future = new RedisFuture<T>();
+		future.complete(value);
+		return future;
+	}
+
+	static <T> RedisFuture<T> failed(Throwable cause) {
+		RedisFuture<T> future = new RedisFuture<T>();
+		future.fail(cause);
+		return future;
+	}
+
+	/**
+	 * 只有第一次完成有效。
+	 */
+	synchronized void complete(T value) {
+		if (!task.isDone()) {
+			this.value = value;
+			task.run();
+		}
+	}
+
+	synchronized void fail(Throwable cause) {
+		if (!task.isDone()) {
+			this.cause = cause;
+			task.run();
+		}
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return task.cancel(mayInterruptIfRunning);
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return task.isCancelled();
+	}
+
+	@Override
+	public boolean isDone() {
+		return task.isDone();
+	}
+
+	@Override
+	public T get() throws InterruptedException, ExecutionException {
+		return task.get();
+	}
+
+	@Override
+	public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+		return task.get(timeout, unit);
+	}
+}
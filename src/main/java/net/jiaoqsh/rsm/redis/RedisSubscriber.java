@@ -0,0 +1,207 @@
+package net.jiaoqsh.rsm.redis;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * 在后台线程上订阅一个频道, 或以PSUBSCRIBE订阅一个频道模式。订阅会独占一个连接, 该连接从pool中借出并在停止时归还;
+ * 连接中断后间隔retryInterval毫秒重新订阅, 中断期间发布的消息会丢失, 可通过SubscriptionListener得知。
+ */
+public class RedisSubscriber implements Runnable {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	/**
+	 * 收到消息时的回调接口定义。
+	 */
+	public interface MessageHandler {
+		void onMessage(String channel, String message);
+	}
+
+	/**
+	 * 订阅状态变化的回调接口定义。
+	 */
+	public interface SubscriptionListener {
+		/**
+		 * 订阅建立或重新建立后调用, 此前中断期间的消息已丢失。
+		 */
+		void onSubscribed(String channel);
+
+		/**
+		 * 订阅连接中断时调用。
+		 */
+		void onLost(String channel);
+	}
+
+	private final JedisPool jedisPool;
+	private final String channel;
+	private final MessageHandler handler;
+	private final long retryInterval;
+	private final boolean pattern;
+
+	private volatile SubscriptionListener subscriptionListener;
+
+	private volatile boolean running = false;
+	private volatile JedisPubSub pubSub;
+	private Thread thread;
+
+	public RedisSubscriber(JedisPool jedisPool, String channel, MessageHandler handler) {
+		this(jedisPool, channel, handler, 1000);
+	}
+
+	public RedisSubscriber(JedisPool jedisPool, String channel, MessageHandler handler, long retryInterval) {
+		this(jedisPool, channel, handler, retryInterval, false);
+	}
+
+	/**
+	 * @param pattern channel为频道模式(如__keyspace@0__:prefix*)时为true, 回调收到的是实际频道
+	 */
+	public RedisSubscriber(JedisPool jedisPool, String channel, MessageHandler handler, long retryInterval,
+			boolean pattern) {
+		this.jedisPool = jedisPool;
+		this.channel = channel;
+		this.handler = handler;
+		this.retryInterval = retryInterval;
+		this.pattern = pattern;
+	}
+
+	public void setSubscriptionListener(SubscriptionListener subscriptionListener) {
+		this.subscriptionListener = subscriptionListener;
+	}
+
+	public synchronized void start() {
+		running = true;
+		thread = new Thread(this, "redis-session-subscriber-" + channel);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	public synchronized void stop() {
+		running = false;
+		JedisPubSub current = pubSub;
+		if (current != null && current.isSubscribed()) {
+			try {
+				if (pattern) {
+					current.punsubscribe();
+				} else {
+					current.unsubscribe();
+				}
+			} catch (Exception e) {
+				logger.debug("Error happen when unsubscribe from " + channel, e);
+			}
+		}
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	@Override
+	public void run() {
+		while (running) {
+			Jedis jedis = null;
+			boolean broken = false;
+			try {
+				jedis = jedisPool.getResource();
+				pubSub = new Listener();
+				if (pattern) {
+					jedis.psubscribe(pubSub, channel);
+				} else {
+					jedis.subscribe(pubSub, channel);
+				}
+			} catch (JedisConnectionException e) {
+				broken = true;
+				if (running) {
+					logger.warn("Subscription to " + channel + " lost, retry in " + retryInterval + "ms", e);
+				}
+			} catch (Exception e) {
+				broken = true;
+				logger.error("Subscription to " + channel + " failed", e);
+			} finally {
+				pubSub = null;
+				if (jedis != null) {
+					if (broken) {
+						jedisPool.returnBrokenResource(jedis);
+					} else {
+						jedisPool.returnResource(jedis);
+					}
+				}
+			}
+			if (broken && running) {
+				notifyLost();
+			}
+
+			if (running) {
+				try {
+					Thread.sleep(retryInterval);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	private void notifySubscribed() {
+		SubscriptionListener listener = subscriptionListener;
+		if (listener != null) {
+			try {
+				listener.onSubscribed(channel);
+			} catch (Exception e) {
+				logger.error("Error happen when handle subscription to " + channel, e);
+			}
+		}
+	}
+
+	private void notifyLost() {
+		SubscriptionListener listener = subscriptionListener;
+		if (listener != null) {
+			try {
+				listener.onLost(channel);
+			} catch (Exception e) {
+				logger.error("Error happen when handle loss of " + channel, e);
+			}
+		}
+	}
+
+	private class Listener extends JedisPubSub {
+
+		@Override
+		public void onMessage(String channel, String message) {
+			try {
+				handler.onMessage(channel, message);
+			} catch (Exception e) {
+				logger.error("Error happen when handle message from " + channel, e);
+			}
+		}
+
+		@Override
+		public void onPMessage(String pattern, String channel, String message) {
+			onMessage(channel, message);
+		}
+
+		@Override
+		public void onSubscribe(String channel, int subscribedChannels) {
+			logger.info("Subscribed to " + channel);
+			notifySubscribed();
+		}
+
+		@Override
+		public void onUnsubscribe(String channel, int subscribedChannels) {
+		}
+
+		@Override
+		public void onPUnsubscribe(String pattern, int subscribedChannels) {
+		}
+
+		@Override
+		public void onPSubscribe(String pattern, int subscribedChannels) {
+			logger.info("Subscribed to " + pattern);
+			notifySubscribed();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 一主多从的JedisTemplate。
+ *
+ * 所有命令默认发往master; 只有通过executeOnReplica执行的只读action轮流发往各replica,
+ * replica连接失败时改在master上执行。replica的数据可能落后于master, 调用方需自行判断结果是否足够新;
+ * 本类不携带任何版本信息, 不能保证读到其他客户端或其他应用节点刚写入的数据。
+ */
+public class ReplicatedJedisTemplate extends JedisTemplate {
+
+	private final List<JedisPool> replicas;
+	private final AtomicInteger next = new AtomicInteger();
+
+	private final AtomicLong replicaReads = new AtomicLong();
+	private final AtomicLong replicaErrors = new AtomicLong();
+
+	public ReplicatedJedisTemplate(JedisPool master, List<JedisPool> replicas) {
+		super(master);
+		this.replicas = Collections.unmodifiableList(new ArrayList<JedisPool>(replicas));
+	}
+
+	/**
+	 * 在下一个replica上执行只读action, 没有replica或replica连接失败时在master上执行。
+	 */
+	public <T> T executeOnReplica(JedisAction<T> jedisAction) throws JedisException {
+		if (replicas.isEmpty()) {
+			return execute(jedisAction);
+		}
+		JedisPool replica = replicas.get((next.getAndIncrement() & Integer.MAX_VALUE) % replicas.size());
+		try {
+			T result = execute(replica, jedisAction);
+			replicaReads.incrementAndGet();
+			return result;
+		} catch (JedisConnectionException e) {
+			replicaErrors.incrementAndGet();
+			return execute(jedisAction);
+		}
+	}
+
+	public List<JedisPool> getReplicaPools() {
+		return replicas;
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		for (JedisPool pool : replicas) {
+			pool.destroy();
+		}
+	}
+
+	public long getReplicaReads() {
+		return replicaReads.get();
+	}
+
+	public long getReplicaErrors() {
+		return replicaErrors.get();
+	}
+}
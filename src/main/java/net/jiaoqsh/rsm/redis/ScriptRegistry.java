@@ -0,0 +1,227 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Lua脚本注册表。脚本在启动时通过SCRIPT LOAD加载一次, 之后以EVALSHA执行;
+ * 服务端返回NOSCRIPT(重启或SCRIPT FLUSH后)时改用EVAL执行, 同时让服务端重新缓存脚本。
+ *
+ * 内置session生命周期脚本, 每一步只需一次网络往返:
+ * <ul>
+ * <li>{@link #CREATE_SESSION}: KEYS[1]=session, ARGV=[field, value, seconds], 不存在时HSETNX并EXPIRE, 返回1/0。</li>
+ * <li>{@link #TOUCH_LOAD}: KEYS[1]=session, ARGV=[seconds, minTtl, field...], EXPIRE后HMGET指定的域, session不存在时返回null;
+ * minTtl大于0时, 剩余TTL不超过minTtl秒的session视为已超时, 不刷新TTL, 返回null。</li>
+ * <li>{@link #TOUCH_LOAD_ALL}: KEYS[1]=session, ARGV=[seconds, minTtl], EXPIRE后HGETALL, 返回null的条件同上。</li>
+ * <li>{@link #UPDATE_SESSION}: KEYS[1]=session, ARGV=[seconds, versionField, channel, message, n, n对field/value, 要删除的field...],
+ * session存在时在一次调用中HMSET/HDEL, versionField非空时HINCRBY, seconds大于0时EXPIRE, channel非空时PUBLISH,
+ * 返回加1后的版本(无versionField时为0); session不存在时不写入任何数据, 返回null。</li>
+ * <li>{@link #INVALIDATE_SESSION}: KEYS[1]=session, ARGV=[channel, message](可选), 以UNLINK删除session(Redis 4.0以下用DEL), 有ARGV时同时PUBLISH。</li>
+ * <li>{@link #PRUNE_INDEX}: KEYS[1]=sorted set, ARGV=[maxScore, limit], 删除最多limit个score不大于maxScore的member, 返回删除的个数。</li>
+ * <li>{@link #REGISTER_NAME}: KEYS[1]=字典, ARGV=[name], 返回name的编号, 未登记时分配下一个编号(字典只增不删, 编号即HLEN+1)。</li>
+ * </ul>
+ */
+public class ScriptRegistry {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	public static final String CREATE_SESSION = "createSession";
+	public static final String TOUCH_LOAD = "touchLoad";
+	public static final String TOUCH_LOAD_ALL = "touchLoadAll";
+	public static final String UPDATE_SESSION = "updateSession";
+	public static final String INVALIDATE_SESSION = "invalidateSession";
+	public static final String REGISTER_NAME = "registerName";
+	public static final String PRUNE_INDEX = "pruneIndex";
+
+	private static final String CREATE_SESSION_LUA =
+			"if redis.call('HSETNX', KEYS[1], ARGV[1], ARGV[2]) == 1 then\n"
+			+ "  redis.call('EXPIRE', KEYS[1], ARGV[3])\n"
+			+ "  return 1\n"
+			+ "end\n"
+			+ "return 0";
+
+	// 超时后数据只为处理过期事件而保留, 丢失了keyspace事件时也不能被请求复活
+	private static final String TIMED_OUT_LUA =
+			"if tonumber(ARGV[2]) > 0 then\n"
+			+ "  local ttl = redis.call('TTL', KEYS[1])\n"
+			+ "  if ttl >= 0 and ttl <= tonumber(ARGV[2]) then\n"
+			+ "    return false\n"
+			+ "  end\n"
+			+ "end\n";
+
+	private static final String TOUCH_LOAD_LUA =
+			TIMED_OUT_LUA
+			+ "if redis.call('EXPIRE', KEYS[1], ARGV[1]) == 0 then\n"
+			+ "  return false\n"
+			+ "end\n"
+			+ "if #ARGV > 2 then\n"
+			+ "  return redis.call('HMGET', KEYS[1], unpack(ARGV, 3))\n"
+			+ "end\n"
+			+ "return {}";
+
+	private static final String TOUCH_LOAD_ALL_LUA =
+			TIMED_OUT_LUA
+			+ "if redis.call('EXPIRE', KEYS[1], ARGV[1]) == 0 then\n"
+			+ "  return false\n"
+			+ "end\n"
+			+ "return redis.call('HGETALL', KEYS[1])";
+
+	private static final String UPDATE_SESSION_LUA =
+			// 已删除或已过期的session不能被写回
+			"if redis.call('EXISTS', KEYS[1]) == 0 then\n"
+			+ "  return false\n"
+			+ "end\n"
+			+ "local sets = tonumber(ARGV[5])\n"
+			+ "if sets > 0 then\n"
+			+ "  redis.call('HMSET', KEYS[1], unpack(ARGV, 6, 5 + sets * 2))\n"
+			+ "end\n"
+			+ "if #ARGV > 5 + sets * 2 then\n"
+			+ "  redis.call('HDEL', KEYS[1], unpack(ARGV, 6 + sets * 2))\n"
+			+ "end\n"
+			+ "local version = 0\n"
+			+ "if ARGV[2] ~= '' then\n"
+			+ "  version = redis.call('HINCRBY', KEYS[1], ARGV[2], 1)\n"
+			+ "end\n"
+			+ "if tonumber(ARGV[1]) > 0 then\n"
+			+ "  redis.call('EXPIRE', KEYS[1], ARGV[1])\n"
+			+ "end\n"
+			+ "if ARGV[3] ~= '' then\n"
+			+ "  redis.call('PUBLISH', ARGV[3], ARGV[4])\n"
+			+ "end\n"
+			+ "return version";
+
+	private static final String INVALIDATE_SESSION_LUA =
+			// UNLINK只在值较大时才在后台释放内存, 小session与DEL相同
+			"local deleted = redis.pcall('UNLINK', KEYS[1])\n"
+			+ "if type(deleted) ~= 'number' then\n"
+			+ "  deleted = redis.call('DEL', KEYS[1])\n"
+			+ "end\n"
+			+ "if #ARGV > 1 then\n"
+			+ "  redis.call('PUBLISH', ARGV[1], ARGV[2])\n"
+			+ "end\n"
+			+ "return deleted";
+
+	private static final String REGISTER_NAME_LUA =
+			"local id = redis.call('HGET', KEYS[1], ARGV[1])\n"
+			+ "if id then\n"
+			+ "  return tonumber(id)\n"
+			+ "end\n"
+			+ "id = redis.call('HLEN', KEYS[1]) + 1\n"
+			+ "redis.call('HSET', KEYS[1], ARGV[1], id)\n"
+			+ "return id";
+
+	private static final String PRUNE_INDEX_LUA =
+			"local stale = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'LIMIT', 0, ARGV[2])\n"
+			+ "if #stale > 0 then\n"
+			+ "  redis.call('ZREM', KEYS[1], unpack(stale))\n"
+			+ "end\n"
+			+ "return #stale";
+
+	private final JedisTemplate jedisTemplate;
+	private final Map<String, Script> scripts = new ConcurrentHashMap<String, Script>();
+
+	public ScriptRegistry(JedisTemplate jedisTemplate) {
+		this.jedisTemplate = jedisTemplate;
+
+		register(CREATE_SESSION, CREATE_SESSION_LUA);
+		register(TOUCH_LOAD, TOUCH_LOAD_LUA);
+		register(TOUCH_LOAD_ALL, TOUCH_LOAD_ALL_LUA);
+		register(UPDATE_SESSION, UPDATE_SESSION_LUA);
+		register(INVALIDATE_SESSION, INVALIDATE_SESSION_LUA);
+		register(REGISTER_NAME, REGISTER_NAME_LUA);
+		register(PRUNE_INDEX, PRUNE_INDEX_LUA);
+	}
+
+	/**
+	 * 注册脚本, 同名脚本会被替换。
+	 */
+	public void register(String name, String source) {
+		scripts.put(name, new Script(source));
+	}
+
+	/**
+	 * 通过SCRIPT LOAD把所有脚本加载到每一个Redis节点。
+	 */
+	public void load() {
+		jedisTemplate.executeOnAll(new JedisTemplate.JedisActionNoResult() {
+
+			@Override
+			public void action(Jedis jedis) {
+				for (Map.Entry<String, Script> entry : scripts.entrySet()) {
+					jedis.scriptLoad(entry.getValue().source);
+					logger.debug("Loaded script " + entry.getKey() + ", sha1: " + entry.getValue().sha1);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 以EVALSHA执行脚本, 返回值为Redis的原始回复(byte[], Long, List或null)。
+	 */
+	public Object eval(final String name, final List<byte[]> keys, final List<byte[]> args) {
+		final Script script = scripts.get(name);
+		if (script == null) {
+			throw new IllegalArgumentException("Unknown script: " + name);
+		}
+
+		JedisTemplate.JedisAction<Object> action = new JedisTemplate.JedisAction<Object>() {
+
+			@Override
+			public Object action(Jedis jedis) {
+				try {
+					return jedis.evalsha(script.rawSha1, keys, args);
+				} catch (JedisDataException e) {
+					if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+						throw e;
+					}
+					logger.info("Script " + name + " is not cached by Redis, reloading it");
+					// EVAL 同时会让服务端重新缓存该脚本
+					return jedis.eval(script.rawSource, keys, args);
+				} finally {
+					// Jedis执行脚本时会把socket超时设为无限, 归还连接前恢复
+					jedis.getClient().rollbackTimeout();
+				}
+			}
+		};
+		// 脚本在第一个key所在的节点上执行
+		return keys.isEmpty() ? jedisTemplate.execute(action) : jedisTemplate.execute(keys.get(0), action);
+	}
+
+	private static class Script {
+		final String source;
+		final String sha1;
+		final byte[] rawSource;
+		final byte[] rawSha1;
+
+		Script(String source) {
+			this.source = source;
+			this.sha1 = sha1Hex(source);
+			this.rawSource = SafeEncoder.encode(source);
+			this.rawSha1 = SafeEncoder.encode(sha1);
+		}
+	}
+
+	private static String sha1Hex(String source) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(SafeEncoder.encode(source));
+			StringBuilder sb = new StringBuilder(digest.length * 2);
+			for (byte b : digest) {
+				sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+				sb.append(Character.forDigit(b & 0xF, 16));
+			}
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
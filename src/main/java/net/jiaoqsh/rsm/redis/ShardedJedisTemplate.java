@@ -0,0 +1,172 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Hashing;
+
+/**
+ * 按一致性哈希把key分布到多个Redis节点的JedisTemplate。
+ *
+ * 每个节点按名称(host:port)在哈希环上放置virtualNodes个虚拟节点, key顺时针归属于第一个虚拟节点,
+ * 增删一个节点只会迁移约1/N的key。同一个session的所有命令都以session id为key, 因此总是落在同一节点上。
+ */
+public class ShardedJedisTemplate extends JedisTemplate {
+
+	public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+	private final List<JedisPool> pools;
+	private final Map<JedisPool, ShardStats> stats = new LinkedHashMap<JedisPool, ShardStats>();
+	private final TreeMap<Long, JedisPool> ring = new TreeMap<Long, JedisPool>();
+	private final Hashing hashing = Hashing.MURMUR_HASH;
+
+	/**
+	 * @param shards 节点名称(host:port)到pool的映射, 名称决定虚拟节点在环上的位置
+	 */
+	public ShardedJedisTemplate(Map<String, JedisPool> shards) {
+		this(shards, DEFAULT_VIRTUAL_NODES);
+	}
+
+	public ShardedJedisTemplate(Map<String, JedisPool> shards, int virtualNodes) {
+		super(shards.values().iterator().next());
+		this.pools = Collections.unmodifiableList(new ArrayList<JedisPool>(shards.values()));
+		for (Map.Entry<String, JedisPool> shard : shards.entrySet()) {
+			stats.put(shard.getValue(), new ShardStats(shard.getKey()));
+			for (int i = 0; i < virtualNodes; i++) {
+				ring.put(hashing.hash(shard.getKey() + "*" + i), shard.getValue());
+			}
+		}
+	}
+
+	@Override
+	public JedisPool getJedisPool(String key) {
+		return getShard(hashing.hash(key));
+	}
+
+	@Override
+	public JedisPool getJedisPool(byte[] key) {
+		return getShard(hashing.hash(key));
+	}
+
+	private JedisPool getShard(long hash) {
+		SortedMap<Long, JedisPool> tail = ring.tailMap(hash);
+		return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+	}
+
+	@Override
+	public List<JedisPool> getJedisPools() {
+		return pools;
+	}
+
+	@Override
+	protected <T> T execute(JedisPool pool, JedisAction<T> jedisAction) throws JedisException {
+		ShardStats shard = stats.get(pool);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			T result = super.execute(pool, jedisAction);
+			failed = false;
+			return result;
+		} finally {
+			shard.record(System.nanoTime() - start, failed);
+		}
+	}
+
+	@Override
+	protected void execute(JedisPool pool, JedisActionNoResult jedisAction) throws JedisException {
+		ShardStats shard = stats.get(pool);
+		long start = System.nanoTime();
+		boolean failed = true;
+		try {
+			super.execute(pool, jedisAction);
+			failed = false;
+		} finally {
+			shard.record(System.nanoTime() - start, failed);
+		}
+	}
+
+	/**
+	 * 各key可能位于不同节点, 逐个删除, 有key被删除时返回true。
+	 */
+	@Override
+	public Boolean del(final String... keys) {
+		boolean deleted = false;
+		for (final String key : keys) {
+			deleted |= execute(key, new JedisAction<Boolean>() {
+
+				@Override
+				public Boolean action(Jedis jedis) {
+					return jedis.del(key) == 1;
+				}
+			});
+		}
+		return deleted;
+	}
+
+	/**
+	 * 各节点的统计, 按配置顺序排列。
+	 */
+	public List<ShardStats> getShardStats() {
+		return new ArrayList<ShardStats>(stats.values());
+	}
+
+	/**
+	 * 返回key所在节点的名称。
+	 */
+	public String getShardName(String key) {
+		return stats.get(getJedisPool(key)).getName();
+	}
+
+	/**
+	 * 单个节点的命令数、失败数和累计耗时, 用于发现热点节点。
+	 */
+	public static class ShardStats {
+		private final String name;
+		private final AtomicLong commands = new AtomicLong();
+		private final AtomicLong errors = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		ShardStats(String name) {
+			this.name = name;
+		}
+
+		void record(long nanos, boolean failed) {
+			commands.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+			if (failed) {
+				errors.incrementAndGet();
+			}
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCommands() {
+			return commands.get();
+		}
+
+		public long getErrors() {
+			return errors.get();
+		}
+
+		public long getTotalNanos() {
+			return totalNanos.get();
+		}
+
+		@Override
+		public String toString() {
+			return name + "[commands=" + commands + ", errors=" + errors + ", totalMillis="
+					+ totalNanos.get() / 1000000 + "]";
+		}
+	}
+}
@@ -0,0 +1,182 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.juli.logging.Log;
+import org.apache.juli.logging.LogFactory;
+
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * 合并TTL刷新(EXPIRE)。
+ *
+ * 距离上次刷新不足 refreshFraction * seconds 时直接跳过; 需要刷新的key放入按key去重的队列,
+ * 由后台线程每隔 flushInterval 毫秒以pipeline批量发送EXPIRE。
+ */
+public class TtlRefreshScheduler {
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private final JedisTemplate jedisTemplate;
+	private final double refreshFraction;
+	private final long flushInterval;
+
+	private final ConcurrentMap<String, Touch> lastTouched = new ConcurrentHashMap<String, Touch>();
+	private final ConcurrentMap<String, Integer> pending = new ConcurrentHashMap<String, Integer>();
+
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong flushed = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	private ScheduledExecutorService executor;
+	private long lastPrune = System.currentTimeMillis();
+
+	public TtlRefreshScheduler(JedisTemplate jedisTemplate, double refreshFraction, long flushInterval) {
+		this.jedisTemplate = jedisTemplate;
+		this.refreshFraction = refreshFraction;
+		this.flushInterval = flushInterval;
+	}
+
+	public synchronized void start() {
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "redis-session-ttl-refresh");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 停止后台线程, 并把队列中剩余的刷新发送出去。
+	 */
+	public synchronized void stop() {
+		if (executor != null) {
+			executor.shutdown();
+			try {
+				executor.awaitTermination(flushInterval * 2, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			executor = null;
+		}
+		flush();
+	}
+
+	/**
+	 * 请求刷新key的TTL, 最近已刷新过时跳过, 否则放入队列异步刷新。
+	 */
+	public void touch(String key, int seconds) {
+		long now = System.currentTimeMillis();
+		Touch last = lastTouched.get(key);
+		if (last != null && now - last.time < refreshFraction * seconds * 1000) {
+			skipped.incrementAndGet();
+			return;
+		}
+		lastTouched.put(key, new Touch(now, seconds));
+		if (pending.put(key, seconds) == null) {
+			queued.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 记录key的TTL已经被其他命令(如加载脚本)刷新过。
+	 */
+	public void markTouched(String key, int seconds) {
+		lastTouched.put(key, new Touch(System.currentTimeMillis(), seconds));
+	}
+
+	/**
+	 * key已被删除, 不再需要刷新。
+	 */
+	public void forget(String key) {
+		lastTouched.remove(key);
+		pending.remove(key);
+	}
+
+	/**
+	 * 以pipeline批量发送队列中的EXPIRE。
+	 */
+	public void flush() {
+		if (!pending.isEmpty()) {
+			Map<String, Integer> batch = new HashMap<String, Integer>();
+			for (Iterator<Map.Entry<String, Integer>> it = pending.entrySet().iterator(); it.hasNext();) {
+				Map.Entry<String, Integer> entry = it.next();
+				batch.put(entry.getKey(), entry.getValue());
+				it.remove();
+			}
+			try {
+				jedisTemplate.expire(batch);
+				flushed.addAndGet(batch.size());
+				batches.incrementAndGet();
+			} catch (JedisException e) {
+				logger.error("Unable to refresh TTL of " + batch.size() + " sessions", e);
+				// 下次touch时重新排队
+				for (String key : batch.keySet()) {
+					lastTouched.remove(key);
+				}
+			}
+		}
+		prune();
+	}
+
+	/**
+	 * 清理早已过期的刷新记录, 使lastTouched不会无限增长。
+	 */
+	private void prune() {
+		long now = System.currentTimeMillis();
+		if (now - lastPrune < 60 * 1000) {
+			return;
+		}
+		lastPrune = now;
+		for (Iterator<Touch> it = lastTouched.values().iterator(); it.hasNext();) {
+			Touch touch = it.next();
+			if (now - touch.time > touch.seconds * 1000L) {
+				it.remove();
+			}
+		}
+	}
+
+	public long getSkipped() {
+		return skipped.get();
+	}
+
+	public long getQueued() {
+		return queued.get();
+	}
+
+	public long getFlushed() {
+		return flushed.get();
+	}
+
+	public long getBatches() {
+		return batches.get();
+	}
+
+	private static class Touch {
+		final long time;
+		final int seconds;
+
+		Touch(long time, int seconds) {
+			this.time = time;
+			this.seconds = seconds;
+		}
+	}
+}
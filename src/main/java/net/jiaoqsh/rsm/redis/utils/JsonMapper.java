@@ -10,6 +10,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.juli.logging.Log;
 import org.apache.juli.logging.LogFactory;
@@ -19,6 +21,8 @@ import com.fasterxml.jackson.annotation.JsonInclude.Include;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.util.JSONPObject;
 
@@ -27,14 +31,23 @@ import com.fasterxml.jackson.databind.util.JSONPObject;
  * 
  * 封装不同的输出风格, 使用不同的builder函数创建实例.
  * 
+ * nonEmptyMapper()/nonDefaultMapper()返回进程内共享的线程安全实例, 并按类型缓存ObjectReader/ObjectWriter,
+ * 避免每次调用都重新创建ObjectMapper并重建其内省缓存.
+ * 
  * @author 
  */
 public class JsonMapper {
 
 	protected final Log logger = LogFactory.getLog( getClass() );
 
+	private static final JsonMapper NON_EMPTY_MAPPER = new JsonMapper(Include.NON_EMPTY);
+	private static final JsonMapper NON_DEFAULT_MAPPER = new JsonMapper(Include.NON_DEFAULT);
+
 	private ObjectMapper mapper;
 
+	private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<Class<?>, ObjectReader>();
+	private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<Class<?>, ObjectWriter>();
+
 	public JsonMapper() {
 		this(null);
 	}
@@ -50,17 +63,47 @@ public class JsonMapper {
 	}
 
 	/**
-	 * 创建只输出非Null且非Empty(如List.isEmpty)的属性到Json字符串的Mapper,建议在外部接口中使用.
+	 * 返回共享的只输出非Null且非Empty(如List.isEmpty)的属性到Json字符串的Mapper,建议在外部接口中使用.
 	 */
 	public static JsonMapper nonEmptyMapper() {
-		return new JsonMapper(Include.NON_EMPTY);
+		return NON_EMPTY_MAPPER;
 	}
 
 	/**
-	 * 创建只输出初始值被改变的属性到Json字符串的Mapper, 最节约的存储方式，建议在内部接口中使用。
+	 * 返回共享的只输出初始值被改变的属性到Json字符串的Mapper, 最节约的存储方式，建议在内部接口中使用。
 	 */
 	public static JsonMapper nonDefaultMapper() {
-		return new JsonMapper(Include.NON_DEFAULT);
+		return NON_DEFAULT_MAPPER;
+	}
+
+	/**
+	 * 取得按类型缓存的ObjectReader.
+	 */
+	public ObjectReader reader(Class<?> clazz) {
+		ObjectReader reader = readers.get(clazz);
+		if (reader == null) {
+			reader = mapper.reader(clazz);
+			ObjectReader existing = readers.putIfAbsent(clazz, reader);
+			if (existing != null) {
+				reader = existing;
+			}
+		}
+		return reader;
+	}
+
+	/**
+	 * 取得按类型缓存的ObjectWriter, 根序列化器只在第一次使用时查找.
+	 */
+	public ObjectWriter writer(Class<?> clazz) {
+		ObjectWriter writer = writers.get(clazz);
+		if (writer == null) {
+			writer = mapper.writerWithType(clazz);
+			ObjectWriter existing = writers.putIfAbsent(clazz, writer);
+			if (existing != null) {
+				writer = existing;
+			}
+		}
+		return writer;
 	}
 
 	/**
@@ -76,6 +119,37 @@ public class JsonMapper {
 		}
 	}
 
+	/**
+	 * 直接输出UTF-8编码的byte[], 省去中间的String. 如果对象为Null, 返回"null"的字节.
+	 */
+	public byte[] toJsonBytes(Object object) {
+
+		try {
+			if (object == null) {
+				return mapper.writeValueAsBytes(null);
+			}
+			return writer(object.getClass()).writeValueAsBytes(object);
+		} catch (IOException e) {
+			logger.warn("write to json bytes error:" + object, e);
+			return null;
+		}
+	}
+
+	/**
+	 * 从UTF-8编码的byte[]反序列化, 如果为Null或空数组, 返回Null.
+	 */
+	public <T> T fromJson(byte[] jsonBytes, Class<T> clazz) {
+		if (jsonBytes == null || jsonBytes.length == 0) {
+			return null;
+		}
+		try {
+			return reader(clazz).readValue(jsonBytes);
+		} catch (IOException e) {
+			logger.warn("parse json bytes error:" + StringUtils.newStringUtf8(jsonBytes), e);
+			return null;
+		}
+	}
+
 	/**
 	 * 反序列化POJO或简单Collection如List<String>.
 	 * 
@@ -167,11 +241,13 @@ public class JsonMapper {
 
 	/**
 	 * 設定是否使用Enum的toString函數來讀寫Enum, 為False時時使用Enum的name()函數來讀寫Enum, 默認為False.
-	 * 注意本函數一定要在Mapper創建後, 所有的讀寫動作之前調用.
+	 * 注意本函數一定要在Mapper創建後, 所有的讀寫動作之前調用. 共享实例上调用会影响所有使用者.
 	 */
 	public void enableEnumUseToString() {
 		mapper.enable(SerializationFeature.WRITE_ENUMS_USING_TO_STRING);
 		mapper.enable(DeserializationFeature.READ_ENUMS_USING_TO_STRING);
+		readers.clear();
+		writers.clear();
 	}
 
 	/**
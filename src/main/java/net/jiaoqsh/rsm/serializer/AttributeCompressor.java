@@ -0,0 +1,201 @@
+package net.jiaoqsh.rsm.serializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates encoded attribute values above a size threshold before they are
+ * stored, and inflates them again when they are read.
+ * <p>
+ * A compressed value starts with the {@link #COMPRESSED} header byte,
+ * followed by the original length as four bytes and the raw Deflate stream.
+ * No serializer produces values starting with {@link #COMPRESSED} or
+ * {@link #ESCAPED}, so values written before compression was enabled are read
+ * unchanged; a small value that happens to start with one of them anyway is
+ * stored behind an {@link #ESCAPED} byte. Values below the threshold cost a
+ * length and a first byte check; compressed values that do not shrink are
+ * stored as they are.
+ */
+public class AttributeCompressor {
+
+  public static final int COMPRESSED = 0xFE;
+  public static final int ESCAPED = 0xFD;
+
+  private static final int HEADER_LENGTH = 5;
+
+  private final int threshold;
+  private final int level;
+
+  private final AtomicLong compressed = new AtomicLong();
+  private final AtomicLong incompressible = new AtomicLong();
+  private final AtomicLong bytesIn = new AtomicLong();
+  private final AtomicLong bytesOut = new AtomicLong();
+  private final AtomicLong compressNanos = new AtomicLong();
+  private final AtomicLong decompressed = new AtomicLong();
+  private final AtomicLong decompressNanos = new AtomicLong();
+
+  /**
+   * @param threshold size in bytes from which values are compressed, 0
+   *  disables compression
+   * @param level Deflate level, from {@link Deflater#BEST_SPEED} to
+   *  {@link Deflater#BEST_COMPRESSION}
+   */
+  public AttributeCompressor(int threshold, int level) {
+    this.threshold = threshold;
+    this.level = level;
+  }
+
+  /**
+   * The form to store for an encoded value.
+   */
+  public byte[] compress(byte[] data) {
+    if (threshold > 0 && data.length >= threshold) {
+      byte[] packed = deflate(data);
+      if (packed != null) {
+        return packed;
+      }
+    }
+    if (data.length > 0 && isMarker(data[0])) {
+      byte[] escaped = new byte[data.length + 1];
+      escaped[0] = (byte) ESCAPED;
+      System.arraycopy(data, 0, escaped, 1, data.length);
+      return escaped;
+    }
+    return data;
+  }
+
+  /**
+   * The encoded value of a stored form.
+   *
+   * @exception IOException if a compressed value is corrupt
+   */
+  public byte[] decompress(byte[] data) throws IOException {
+    if (data.length == 0 || !isMarker(data[0])) {
+      return data;
+    }
+    if ((data[0] & 0xFF) == ESCAPED) {
+      return Arrays.copyOfRange(data, 1, data.length);
+    }
+    return inflate(data);
+  }
+
+  private static boolean isMarker(byte first) {
+    int b = first & 0xFF;
+    return b == COMPRESSED || b == ESCAPED;
+  }
+
+  private byte[] deflate(byte[] data) {
+    long start = System.nanoTime();
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      // not worth storing unless it saves at least the header
+      byte[] out = new byte[data.length];
+      int length = HEADER_LENGTH;
+      while (!deflater.finished() && length < out.length) {
+        length += deflater.deflate(out, length, out.length - length);
+      }
+      if (!deflater.finished()) {
+        incompressible.incrementAndGet();
+        return null;
+      }
+      out[0] = (byte) COMPRESSED;
+      out[1] = (byte) (data.length >>> 24);
+      out[2] = (byte) (data.length >>> 16);
+      out[3] = (byte) (data.length >>> 8);
+      out[4] = (byte) data.length;
+      compressed.incrementAndGet();
+      bytesIn.addAndGet(data.length);
+      bytesOut.addAndGet(length);
+      return Arrays.copyOf(out, length);
+    } finally {
+      deflater.end();
+      compressNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  private byte[] inflate(byte[] data) throws IOException {
+    if (data.length < HEADER_LENGTH) {
+      throw new IOException("Truncated compressed value");
+    }
+    long start = System.nanoTime();
+    int length = ((data[1] & 0xFF) << 24) | ((data[2] & 0xFF) << 16) | ((data[3] & 0xFF) << 8) | (data[4] & 0xFF);
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+      byte[] out = new byte[length];
+      int read = 0;
+      while (read < length) {
+        int n = inflater.inflate(out, read, length - read);
+        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        read += n;
+      }
+      if (read != length) {
+        throw new IOException("Compressed value inflates to " + read + " bytes instead of " + length);
+      }
+      decompressed.incrementAndGet();
+      return out;
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt compressed value", e);
+    } finally {
+      inflater.end();
+      decompressNanos.addAndGet(System.nanoTime() - start);
+    }
+  }
+
+  public int getThreshold() {
+    return threshold;
+  }
+
+  /**
+   * Number of values stored compressed.
+   */
+  public long getCompressed() {
+    return compressed.get();
+  }
+
+  /**
+   * Number of values above the threshold stored uncompressed because
+   * compression did not make them smaller.
+   */
+  public long getIncompressible() {
+    return incompressible.get();
+  }
+
+  /**
+   * Compressed size over original size of the values stored compressed.
+   */
+  public double getRatio() {
+    long in = bytesIn.get();
+    return in == 0 ? 1 : (double) bytesOut.get() / in;
+  }
+
+  /**
+   * Bytes saved by compression.
+   */
+  public long getBytesSaved() {
+    return bytesIn.get() - bytesOut.get();
+  }
+
+  /**
+   * Time spent compressing, including attempts that did not pay off.
+   */
+  public long getCompressNanos() {
+    return compressNanos.get();
+  }
+
+  public long getDecompressed() {
+    return decompressed.get();
+  }
+
+  public long getDecompressNanos() {
+    return decompressNanos.get();
+  }
+}
@@ -0,0 +1,315 @@
+package net.jiaoqsh.rsm.serializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Compact tagged binary codec for attribute values.
+ * <p>
+ * Every value starts with a one byte tag. Booleans, boxed numbers, characters,
+ * Strings, byte arrays, Dates and the common JDK List/Map/Set implementations
+ * are written directly without reflection; integers and lengths use zig-zag
+ * varints. Any other value is written with Java serialization behind the
+ * {@link #TAG_SERIALIZED} tag, so collections may freely mix both kinds.
+ * Collections keep their concrete class on the way back, so a value decodes
+ * to the same type the application stored. A value holding a collection that
+ * contains itself is written whole with Java serialization, which keeps the
+ * references.
+ */
+public class BinarySerializer extends JavaSerializer {
+
+  static final int TAG_NULL = 0x01;
+  static final int TAG_TRUE = 0x02;
+  static final int TAG_FALSE = 0x03;
+  static final int TAG_BYTE = 0x04;
+  static final int TAG_SHORT = 0x05;
+  static final int TAG_CHAR = 0x06;
+  static final int TAG_INT = 0x07;
+  static final int TAG_LONG = 0x08;
+  static final int TAG_FLOAT = 0x09;
+  static final int TAG_DOUBLE = 0x0A;
+  static final int TAG_STRING = 0x0B;
+  static final int TAG_BYTES = 0x0C;
+  static final int TAG_DATE = 0x0D;
+  static final int TAG_BIG_INTEGER = 0x0E;
+  static final int TAG_BIG_DECIMAL = 0x0F;
+  static final int TAG_ARRAY_LIST = 0x10;
+  static final int TAG_LINKED_LIST = 0x11;
+  static final int TAG_HASH_SET = 0x12;
+  static final int TAG_LINKED_HASH_SET = 0x13;
+  static final int TAG_TREE_SET = 0x14;
+  static final int TAG_HASH_MAP = 0x15;
+  static final int TAG_LINKED_HASH_MAP = 0x16;
+  static final int TAG_TREE_MAP = 0x17;
+  static final int TAG_SERIALIZED = 0x7F;
+
+  @Override
+  public byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream(64);
+    DataOutputStream out = new DataOutputStream(bos);
+    try {
+      write(out, value, new IdentityHashMap<Object, Boolean>());
+    } catch (CycleException e) {
+      bos.reset();
+      out.writeByte(TAG_SERIALIZED);
+      writeBytes(out, super.encode(value));
+    }
+    out.flush();
+
+    return bos.toByteArray();
+  }
+
+  @Override
+  public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+    if (data == null || data.length == 0) {
+      return null;
+    }
+    return read(new DataInputStream(new ByteArrayInputStream(data)));
+  }
+
+  /**
+   * @param open the collections being written, enclosing this value
+   */
+  private void write(DataOutputStream out, Object value, Map<Object, Boolean> open) throws IOException {
+    if (value == null) {
+      out.writeByte(TAG_NULL);
+    } else if (value instanceof String) {
+      out.writeByte(TAG_STRING);
+      writeBytes(out, ((String) value).getBytes("UTF-8"));
+    } else if (value instanceof Integer) {
+      out.writeByte(TAG_INT);
+      writeVarLong(out, (Integer) value);
+    } else if (value instanceof Long) {
+      out.writeByte(TAG_LONG);
+      writeVarLong(out, (Long) value);
+    } else if (value instanceof Boolean) {
+      out.writeByte(((Boolean) value) ? TAG_TRUE : TAG_FALSE);
+    } else if (value instanceof Double) {
+      out.writeByte(TAG_DOUBLE);
+      out.writeDouble((Double) value);
+    } else if (value instanceof Float) {
+      out.writeByte(TAG_FLOAT);
+      out.writeFloat((Float) value);
+    } else if (value instanceof Short) {
+      out.writeByte(TAG_SHORT);
+      writeVarLong(out, (Short) value);
+    } else if (value instanceof Byte) {
+      out.writeByte(TAG_BYTE);
+      out.writeByte((Byte) value);
+    } else if (value instanceof Character) {
+      out.writeByte(TAG_CHAR);
+      out.writeChar((Character) value);
+    } else if (value instanceof byte[]) {
+      out.writeByte(TAG_BYTES);
+      writeBytes(out, (byte[]) value);
+    } else if (value.getClass() == Date.class) {
+      out.writeByte(TAG_DATE);
+      writeVarLong(out, ((Date) value).getTime());
+    } else if (value.getClass() == BigInteger.class) {
+      out.writeByte(TAG_BIG_INTEGER);
+      writeBytes(out, ((BigInteger) value).toByteArray());
+    } else if (value.getClass() == BigDecimal.class) {
+      out.writeByte(TAG_BIG_DECIMAL);
+      writeVarLong(out, ((BigDecimal) value).scale());
+      writeBytes(out, ((BigDecimal) value).unscaledValue().toByteArray());
+    } else {
+      int tag = collectionTag(value);
+      if (tag == TAG_SERIALIZED) {
+        out.writeByte(TAG_SERIALIZED);
+        writeBytes(out, super.encode(value));
+      } else {
+        if (open.put(value, Boolean.TRUE) != null) {
+          throw new CycleException();
+        }
+        out.writeByte(tag);
+        if (value instanceof Map) {
+          Map<?, ?> map = (Map<?, ?>) value;
+          writeVarLong(out, map.size());
+          for (Map.Entry<?, ?> entry : map.entrySet()) {
+            write(out, entry.getKey(), open);
+            write(out, entry.getValue(), open);
+          }
+        } else {
+          Collection<?> collection = (Collection<?>) value;
+          writeVarLong(out, collection.size());
+          for (Object element : collection) {
+            write(out, element, open);
+          }
+        }
+        open.remove(value);
+      }
+    }
+  }
+
+  /**
+   * Collections are only written natively when decoding can rebuild exactly
+   * the same class; sorted ones must use natural ordering.
+   */
+  private static int collectionTag(Object value) {
+    Class<?> type = value.getClass();
+    if (type == ArrayList.class) {
+      return TAG_ARRAY_LIST;
+    } else if (type == LinkedList.class) {
+      return TAG_LINKED_LIST;
+    } else if (type == HashMap.class) {
+      return TAG_HASH_MAP;
+    } else if (type == LinkedHashMap.class) {
+      return TAG_LINKED_HASH_MAP;
+    } else if (type == HashSet.class) {
+      return TAG_HASH_SET;
+    } else if (type == LinkedHashSet.class) {
+      return TAG_LINKED_HASH_SET;
+    } else if (type == TreeMap.class && ((TreeMap<?, ?>) value).comparator() == null) {
+      return TAG_TREE_MAP;
+    } else if (type == TreeSet.class && ((TreeSet<?>) value).comparator() == null) {
+      return TAG_TREE_SET;
+    }
+    return TAG_SERIALIZED;
+  }
+
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private Object read(DataInputStream in) throws IOException, ClassNotFoundException {
+    int tag = in.readUnsignedByte();
+    switch (tag) {
+    case TAG_NULL:
+      return null;
+    case TAG_TRUE:
+      return Boolean.TRUE;
+    case TAG_FALSE:
+      return Boolean.FALSE;
+    case TAG_BYTE:
+      return in.readByte();
+    case TAG_SHORT:
+      return (short) readVarLong(in);
+    case TAG_CHAR:
+      return in.readChar();
+    case TAG_INT:
+      return (int) readVarLong(in);
+    case TAG_LONG:
+      return readVarLong(in);
+    case TAG_FLOAT:
+      return in.readFloat();
+    case TAG_DOUBLE:
+      return in.readDouble();
+    case TAG_STRING:
+      return new String(readBytes(in), "UTF-8");
+    case TAG_BYTES:
+      return readBytes(in);
+    case TAG_DATE:
+      return new Date(readVarLong(in));
+    case TAG_BIG_INTEGER:
+      return new BigInteger(readBytes(in));
+    case TAG_BIG_DECIMAL: {
+      int scale = (int) readVarLong(in);
+      return new BigDecimal(new BigInteger(readBytes(in)), scale);
+    }
+    case TAG_ARRAY_LIST:
+      return readElements(in, new ArrayList());
+    case TAG_LINKED_LIST:
+      return readElements(in, new LinkedList());
+    case TAG_HASH_SET:
+      return readElements(in, new HashSet());
+    case TAG_LINKED_HASH_SET:
+      return readElements(in, new LinkedHashSet());
+    case TAG_TREE_SET:
+      return readElements(in, new TreeSet());
+    case TAG_HASH_MAP:
+      return readEntries(in, new HashMap());
+    case TAG_LINKED_HASH_MAP:
+      return readEntries(in, new LinkedHashMap());
+    case TAG_TREE_MAP:
+      return readEntries(in, new TreeMap());
+    case TAG_SERIALIZED:
+      return super.decode(readBytes(in));
+    default:
+      throw new IOException("Unknown attribute tag: " + tag);
+    }
+  }
+
+  private Collection<Object> readElements(DataInputStream in, Collection<Object> target)
+      throws IOException, ClassNotFoundException {
+    int size = (int) readVarLong(in);
+    for (int i = 0; i < size; i++) {
+      target.add(read(in));
+    }
+    return target;
+  }
+
+  private Map<Object, Object> readEntries(DataInputStream in, Map<Object, Object> target)
+      throws IOException, ClassNotFoundException {
+    int size = (int) readVarLong(in);
+    for (int i = 0; i < size; i++) {
+      Object key = read(in);
+      target.put(key, read(in));
+    }
+    return target;
+  }
+
+  private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    writeVarLong(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    long length = readVarLong(in);
+    // checked before allocating, so a corrupt length cannot exhaust the heap
+    if (length < 0 || length > in.available()) {
+      throw new IOException("Invalid length: " + length);
+    }
+    byte[] bytes = new byte[(int) length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * A collection contains itself.
+   */
+  private static class CycleException extends IOException {
+    private static final long serialVersionUID = 1L;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+    long zigzag = (value << 1) ^ (value >> 63);
+    while ((zigzag & ~0x7FL) != 0) {
+      out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+      zigzag >>>= 7;
+    }
+    out.writeByte((int) zigzag);
+  }
+
+  private static long readVarLong(DataInputStream in) throws IOException {
+    long zigzag = 0;
+    int shift = 0;
+    while (true) {
+      int b = in.readUnsignedByte();
+      zigzag |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+      shift += 7;
+      if (shift > 63) {
+        throw new IOException("Malformed varint");
+      }
+    }
+    return (zigzag >>> 1) ^ -(zigzag & 1);
+  }
+}
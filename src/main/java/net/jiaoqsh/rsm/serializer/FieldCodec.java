@@ -0,0 +1,84 @@
+package net.jiaoqsh.rsm.serializer;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Encodes the fields of a session as one record, the layout shared by
+ * sessions written to Redis as a single blob and by the off-heap store.
+ * The record starts with the number of fields, then holds the length and
+ * bytes of each name and value.
+ */
+public final class FieldCodec {
+
+  private FieldCodec() {
+  }
+
+  /**
+   * Encode fields as one record, in their iteration order.
+   */
+  public static byte[] encode(Map<String, byte[]> fields) {
+    int size = 4;
+    byte[][] names = new byte[fields.size()][];
+    int i = 0;
+    for (Map.Entry<String, byte[]> field : fields.entrySet()) {
+      names[i] = SafeEncoder.encode(field.getKey());
+      size += 8 + names[i].length + field.getValue().length;
+      i++;
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(size);
+    buffer.putInt(fields.size());
+    i = 0;
+    for (byte[] value : fields.values()) {
+      buffer.putInt(names[i].length).put(names[i]);
+      buffer.putInt(value.length).put(value);
+      i++;
+    }
+    return buffer.array();
+  }
+
+  /**
+   * Decode all the fields of a record, in order.
+   */
+  public static Map<String, byte[]> decode(byte[] data) {
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    int count = buffer.getInt();
+    Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>(count * 2);
+    for (int i = 0; i < count; i++) {
+      byte[] name = new byte[buffer.getInt()];
+      buffer.get(name);
+      byte[] value = new byte[buffer.getInt()];
+      buffer.get(value);
+      fields.put(SafeEncoder.encode(name), value);
+    }
+    return fields;
+  }
+
+  /**
+   * Read one field of an encoded record without decoding the others.
+   */
+  public static byte[] field(byte[] data, String name) {
+    byte[] target = SafeEncoder.encode(name);
+    ByteBuffer buffer = ByteBuffer.wrap(data);
+    int count = buffer.getInt();
+    for (int i = 0; i < count; i++) {
+      int nameLength = buffer.getInt();
+      boolean match = nameLength == target.length;
+      for (int j = 0; match && j < nameLength; j++) {
+        match = data[buffer.position() + j] == target[j];
+      }
+      buffer.position(buffer.position() + nameLength);
+      int valueLength = buffer.getInt();
+      if (match) {
+        byte[] value = new byte[valueLength];
+        buffer.get(value);
+        return value;
+      }
+      buffer.position(buffer.position() + valueLength);
+    }
+    return null;
+  }
+}
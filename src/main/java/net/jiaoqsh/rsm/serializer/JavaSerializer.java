@@ -10,7 +10,7 @@ import java.io.*;
 
 
 public class JavaSerializer implements Serializer {
-  private ClassLoader loader;
+  protected ClassLoader loader;
 
   @Override
   public void setClassLoader(ClassLoader loader) {
@@ -44,4 +44,24 @@ public class JavaSerializer implements Serializer {
 
     return session;
   }
+
+  @Override
+  public byte[] encode(Object value) throws IOException {
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(bos);
+    oos.writeObject(value);
+    oos.close();
+
+    return bos.toByteArray();
+  }
+
+  @Override
+  public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+    ObjectInputStream ois = new CustomObjectInputStream(new ByteArrayInputStream(data), loader);
+    try {
+      return ois.readObject();
+    } finally {
+      ois.close();
+    }
+  }
 }
@@ -0,0 +1,27 @@
+package net.jiaoqsh.rsm.serializer;
+
+import net.jiaoqsh.rsm.redis.utils.JsonMapper;
+
+import java.io.IOException;
+
+/**
+ * Stores attribute values as JSON, the format used by the manager before
+ * attribute serializers became pluggable. Values are read back as the generic
+ * Jackson types (Map, List, String, Number, Boolean).
+ */
+public class JsonSerializer extends JavaSerializer {
+
+  @Override
+  public byte[] encode(Object value) throws IOException {
+    byte[] data = JsonMapper.nonEmptyMapper().toJsonBytes(value);
+    if (data == null) {
+      throw new IOException("Unable to write attribute as JSON: " + value);
+    }
+    return data;
+  }
+
+  @Override
+  public Object decode(byte[] data) throws IOException, ClassNotFoundException {
+    return JsonMapper.nonEmptyMapper().fromJson(data, Object.class);
+  }
+}
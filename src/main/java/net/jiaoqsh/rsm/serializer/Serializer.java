@@ -9,4 +9,14 @@ public interface Serializer {
   byte[] serializeFrom(HttpSession session) throws IOException;
 
   HttpSession deserializeInto(byte[] data, HttpSession session) throws IOException, ClassNotFoundException;
+
+  /**
+   * Encode a single session attribute value into the bytes stored in its hash field.
+   */
+  byte[] encode(Object value) throws IOException;
+
+  /**
+   * Decode a session attribute value previously produced by {@link #encode(Object)}.
+   */
+  Object decode(byte[] data) throws IOException, ClassNotFoundException;
 }
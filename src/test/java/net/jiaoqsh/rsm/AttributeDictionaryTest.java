@@ -0,0 +1,133 @@
+package net.jiaoqsh.rsm;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import net.jiaoqsh.rsm.redis.FakeRedisServer;
+import net.jiaoqsh.rsm.redis.JedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Attribute names shared by two nodes through a fake Redis dictionary.
+ */
+public class AttributeDictionaryTest extends TestCase {
+
+	private static final String KEY = "rsm:dict:/app";
+
+	private final Map<String, String> entries = new LinkedHashMap<String, String>();
+	private FakeRedisServer server;
+	private JedisTemplate template1;
+	private JedisTemplate template2;
+	private AttributeDictionary node1;
+	private AttributeDictionary node2;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				synchronized (entries) {
+					return dictionary(command);
+				}
+			}
+		});
+		template1 = template();
+		template2 = template();
+		node1 = new AttributeDictionary(KEY, template1, new ScriptRegistry(template1));
+		node2 = new AttributeDictionary(KEY, template2, new ScriptRegistry(template2));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		template1.destroy();
+		template2.destroy();
+		server.close();
+	}
+
+	private JedisTemplate template() {
+		return new JedisTemplate(new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort(), 2000));
+	}
+
+	/**
+	 * REGISTER_NAME, HGET and HGETALL on the dictionary hash.
+	 */
+	private String dictionary(List<String> command) {
+		String name = command.get(0);
+		if ("EVALSHA".equals(name)) {
+			String attribute = command.get(4);
+			String id = entries.get(attribute);
+			if (id == null) {
+				id = String.valueOf(entries.size() + 1);
+				entries.put(attribute, id);
+			}
+			return ":" + id + "\r\n";
+		}
+		if ("HGET".equals(name)) {
+			return FakeRedisServer.bulk(entries.get(command.get(2)));
+		}
+		if ("HGETALL".equals(name)) {
+			StringBuilder reply = new StringBuilder("*" + entries.size() * 2 + "\r\n");
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				reply.append(FakeRedisServer.bulk(entry.getKey())).append(FakeRedisServer.bulk(entry.getValue()));
+			}
+			return reply.toString();
+		}
+		return FakeRedisServer.error("ERR unknown command " + name);
+	}
+
+	public void testNodesAgreeOnRegisteredNames() {
+		assertEquals("1", node1.toField("SPRING_SECURITY_CONTEXT"));
+		assertEquals("1", node2.toField("SPRING_SECURITY_CONTEXT"));
+		assertEquals("2", node2.toField("cart"));
+		assertEquals("2", node2.toField("cart"));
+		assertEquals(1, node1.getRegistrations());
+		assertEquals(2, node2.getRegistrations());
+
+		// registered by the other node since the last reload
+		assertEquals("cart", node1.toName("2"));
+		assertEquals(1, node1.getReloads());
+		assertEquals("SPRING_SECURITY_CONTEXT", node1.toName("1"));
+		assertEquals(1, node1.getReloads());
+	}
+
+	public void testReadsDoNotRegister() {
+		assertNull(node1.lookupField("user"));
+		assertNull(node1.lookupField("user"));
+		assertEquals(0, server.count("EVALSHA"));
+		assertEquals(2, node1.getLookups());
+		assertTrue(entries.isEmpty());
+
+		node2.toField("user");
+		assertEquals("1", node1.lookupField("user"));
+		// known from now on
+		assertEquals("1", node1.lookupField("user"));
+		assertEquals(3, node1.getLookups());
+		assertEquals(0, node1.getRegistrations());
+	}
+
+	public void testReload() {
+		node2.toField("user");
+		node2.toField("cart");
+		node1.reload();
+		assertEquals(2, node1.getSize());
+		assertEquals("2", node1.lookupField("cart"));
+		assertEquals("user", node1.toName("1"));
+		assertEquals(0, node1.getLookups());
+	}
+
+	public void testUnknownFieldsAreLookedUpOnce() {
+		assertNull(node1.toName("7"));
+		assertNull(node1.toName("7"));
+		assertEquals(1, node1.getReloads());
+		// a field that is not a number is not read from the dictionary
+		assertNull(node1.toName("user"));
+		assertEquals(1, node1.getReloads());
+		assertEquals(1, server.count("HGETALL"));
+	}
+}
@@ -0,0 +1,80 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Learning and decay of the attributes read per URI pattern.
+ */
+public class AttributePrefetcherTest extends TestCase {
+
+	private void request(AttributePrefetcher prefetcher, String pattern, String... reads) {
+		prefetcher.begin(pattern);
+		for (String name : reads) {
+			prefetcher.read(name);
+		}
+		prefetcher.end();
+	}
+
+	private List<String> predict(AttributePrefetcher prefetcher, String pattern) {
+		prefetcher.begin(pattern);
+		try {
+			return prefetcher.predict();
+		} finally {
+			prefetcher.end();
+		}
+	}
+
+	public void testToPattern() {
+		assertEquals("/order/*/items", AttributePrefetcher.toPattern("/order/1042/items"));
+		assertEquals("/user/*", AttributePrefetcher.toPattern("/user/9f3c2a"));
+		assertEquals("/", AttributePrefetcher.toPattern("/"));
+		assertEquals("/cart/view.do", AttributePrefetcher.toPattern("/cart/view.do"));
+	}
+
+	public void testFrequentAttributesArePredicted() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(10, 64, 0.3, 0.5);
+		for (int i = 0; i < 5; i++) {
+			request(prefetcher, "/cart", "user", "cart", i == 0 ? "promo" : "locale");
+		}
+		assertEquals(new HashSet<String>(Arrays.asList("user", "cart", "locale")),
+				new HashSet<String>(predict(prefetcher, "/cart")));
+		assertTrue(predict(prefetcher, "/other").isEmpty());
+	}
+
+	public void testUnusedAttributesDecay() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(10, 64, 0.3, 0.5);
+		for (int i = 0; i < 5; i++) {
+			request(prefetcher, "/cart", "user", "cart");
+		}
+		for (int i = 0; i < 3; i++) {
+			request(prefetcher, "/cart", "user");
+		}
+		assertEquals(Arrays.asList("user"), predict(prefetcher, "/cart"));
+	}
+
+	public void testHitRateAndWastedBytes() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(10, 64, 0.3, 0.5);
+		prefetcher.begin("/cart");
+		prefetcher.prefetched("user", 100);
+		prefetcher.prefetched("cart", 40);
+		prefetcher.read("user");
+		prefetcher.end();
+
+		assertEquals(2, prefetcher.getPrefetched());
+		assertEquals(1, prefetcher.getHits());
+		assertEquals(0.5, prefetcher.getHitRate(), 0.0001);
+		assertEquals(40, prefetcher.getWastedBytes());
+	}
+
+	public void testPatternsAreBounded() {
+		AttributePrefetcher prefetcher = new AttributePrefetcher(2, 64, 0.3, 0.5);
+		request(prefetcher, "/a", "x");
+		request(prefetcher, "/b", "x");
+		request(prefetcher, "/c", "x");
+		assertEquals(2, prefetcher.getPatternCount());
+	}
+}
@@ -0,0 +1,61 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Batching and load shedding of expired session ids.
+ */
+public class ExpiryDispatcherTest extends TestCase {
+
+	private final List<String> handled = Collections.synchronizedList(new ArrayList<String>());
+
+	private final ExpiryDispatcher.Handler handler = new ExpiryDispatcher.Handler() {
+		@Override
+		public void handle(List<String> ids) {
+			handled.addAll(ids);
+		}
+	};
+
+	public void testIdsAreTakenInBatches() throws Exception {
+		ExpiryDispatcher dispatcher = new ExpiryDispatcher(handler, 1, 100, 3);
+		for (int i = 0; i < 5; i++) {
+			assertTrue(dispatcher.submit("s" + i));
+		}
+		assertEquals(Arrays.asList("s0", "s1", "s2"), dispatcher.nextBatch(0));
+		assertEquals(Arrays.asList("s3", "s4"), dispatcher.nextBatch(0));
+		assertTrue(dispatcher.nextBatch(0).isEmpty());
+	}
+
+	public void testIdsAreDroppedWhenTheQueueIsFull() {
+		ExpiryDispatcher dispatcher = new ExpiryDispatcher(handler, 1, 2, 10);
+		assertTrue(dispatcher.submit("a"));
+		assertTrue(dispatcher.submit("b"));
+		assertFalse(dispatcher.submit("c"));
+		assertEquals(3, dispatcher.getReceived());
+		assertEquals(1, dispatcher.getDropped());
+		assertEquals(2, dispatcher.getQueueSize());
+	}
+
+	public void testWorkersHandleSubmittedIds() throws Exception {
+		ExpiryDispatcher dispatcher = new ExpiryDispatcher(handler, 2, 100, 10);
+		dispatcher.start();
+		try {
+			for (int i = 0; i < 50; i++) {
+				dispatcher.submit("s" + i);
+			}
+			long deadline = System.currentTimeMillis() + 5000;
+			while (handled.size() < 50 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(5);
+			}
+		} finally {
+			dispatcher.stop();
+		}
+		assertEquals(50, handled.size());
+		assertTrue(dispatcher.getBatches() <= 50);
+	}
+}
@@ -0,0 +1,93 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Least-recently-used eviction, staleness and invalidation of cached sessions.
+ */
+public class NearCacheTest extends TestCase {
+
+	private final RedisSessionManager manager = new RedisSessionManager();
+
+	private RedisSession session(String id, long idleMillis) {
+		RedisSession session = new RedisSession(manager);
+		session.setLoadId(id);
+		session.setValid(true);
+		session.setMaxInactiveInterval(1800);
+		session.setCreationTime(System.currentTimeMillis() - idleMillis);
+		return session;
+	}
+
+	public void testLeastRecentlyUsedIsEvicted() {
+		NearCache cache = new NearCache(2, 60000);
+		cache.put(session("a", 0));
+		cache.put(session("b", 0));
+		assertNotNull(cache.get("a"));
+		cache.put(session("c", 0));
+		assertEquals(2, cache.getSize());
+		assertNull(cache.get("b"));
+		assertNotNull(cache.get("a"));
+		assertNotNull(cache.get("c"));
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	public void testStaleEntriesAreDropped() {
+		NearCache cache = new NearCache(10, 60000);
+		cache.put(session("idle", 60000));
+		cache.put(session("fresh", 1000));
+		assertNull(cache.get("idle"));
+		assertNotNull(cache.get("fresh"));
+		assertEquals(1, cache.getSize());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	public void testStalenessIsBoundByHalfTheInactiveInterval() {
+		NearCache cache = new NearCache(10, 60000);
+		RedisSession session = session("short", 6000);
+		session.setMaxInactiveInterval(10);
+		cache.put(session);
+		assertNull(cache.get("short"));
+	}
+
+	public void testInvalidateWholeSession() {
+		NearCache cache = new NearCache(10, 60000);
+		cache.put(session("a", 0));
+		cache.invalidate("a", Collections.<String>emptyList());
+		assertNull(cache.get("a"));
+		assertEquals(1, cache.getInvalidations());
+		// unknown sessions are ignored
+		cache.invalidate("b", Collections.<String>emptyList());
+		assertEquals(1, cache.getInvalidations());
+	}
+
+	public void testInvalidateAttributes() {
+		NearCache cache = new NearCache(10, 60000);
+		RedisSession session = session("a", 0);
+		session.loadAttribute("user", "alice", SafeEncoder.encode("\"alice\""));
+		session.loadAttribute("cart", "3 items", SafeEncoder.encode("\"3 items\""));
+		session.setFullyLoaded(true);
+		cache.put(session);
+
+		cache.invalidate("a", Arrays.asList("cart"));
+		RedisSession cached = cache.get("a");
+		assertSame(session, cached);
+		assertFalse(cached.isFullyLoaded());
+		assertEquals(Collections.singletonList("user"), Collections.list(cached.getAttributeNames()));
+		assertEquals(1, cache.getInvalidations());
+	}
+
+	public void testClear() {
+		NearCache cache = new NearCache(10, 60000);
+		cache.put(session("a", 0));
+		cache.put(session("b", 0));
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertNull(cache.get("a"));
+	}
+}
@@ -0,0 +1,177 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Session hashes kept in direct memory.
+ */
+public class OffHeapSessionStoreTest extends TestCase {
+
+	private final OffHeapSessionStore store = new OffHeapSessionStore(4 * OffHeapSessionStore.PAGE_SIZE, 4);
+
+	private static byte[] bytes(String value) {
+		return SafeEncoder.encode(value);
+	}
+
+	private static void set(OffHeapSessionStore store, String key, String field, byte[] value) {
+		assertNotNull(store.update(key, Collections.singletonMap(field, value), Collections.<String>emptyList(), 0,
+				null, null, null));
+	}
+
+	public void testCreateOnlyOnce() {
+		assertTrue(store.create("s1", "id", bytes("s1"), 1800));
+		assertFalse(store.create("s1", "id", bytes("other"), 1800));
+		assertEquals("s1", SafeEncoder.encode(store.get("s1", "id")));
+		assertEquals(1, store.getSize());
+	}
+
+	public void testUpdateAndRead() {
+		store.create("s1", "id", bytes("s1"), 1800);
+		Map<String, byte[]> sets = new LinkedHashMap<String, byte[]>();
+		sets.put("user", bytes("alice"));
+		sets.put("cart", bytes("3 items"));
+		assertEquals(Long.valueOf(0), store.update("s1", sets, Collections.<String>emptyList(), 0, null, null, null));
+		assertEquals(Long.valueOf(1), store.update("s1", Collections.<String, byte[]>emptyMap(),
+				Collections.singletonList("cart"), 1800, "__v", null, null));
+		assertEquals(Long.valueOf(2), store.update("s1", Collections.<String, byte[]>emptyMap(),
+				Collections.<String>emptyList(), 0, "__v", null, null));
+
+		Map<String, byte[]> all = store.touchAndRead("s1", 1800, 0, null);
+		assertEquals(Arrays.asList("id", "user", "__v"), Arrays.asList(all.keySet().toArray()));
+		Map<String, byte[]> some = store.touchAndRead("s1", 1800, 0, Arrays.asList("user", "cart"));
+		assertEquals(Collections.singleton("user"), some.keySet());
+		assertEquals("alice", SafeEncoder.encode(some.get("user")));
+		assertNull(store.get("s1", "cart"));
+	}
+
+	public void testUpdateDoesNotRecreateASession() {
+		store.create("s1", "id", bytes("s1"), 1800);
+		store.invalidate("s1", null, null);
+		assertNull(store.update("s1", Collections.singletonMap("user", bytes("alice")),
+				Collections.<String>emptyList(), 1800, "__v", null, null));
+		assertNull(store.get("s1", "user"));
+		assertEquals(0, store.getSize());
+	}
+
+	public void testInvalidate() {
+		store.create("s1", "id", bytes("s1"), 1800);
+		set(store, "s1", "user", bytes("alice"));
+		store.invalidate("s1", null, null);
+		assertNull(store.touchAndRead("s1", 1800, 0, null));
+		assertEquals(0, store.getSize());
+		assertEquals(0, store.getUsedBytes());
+	}
+
+	public void testTimedOutSessionIsNotTouched() {
+		store.create("s1", "id", bytes("s1"), 10);
+		assertNull(store.touchAndRead("s1", 1800, 30, null));
+		// left with its time to live, for its expiry to be handled
+		assertNull(store.touchAndRead("s1", 1800, 30, null));
+		assertNotNull(store.get("s1", "id"));
+		assertNotNull(store.touchAndRead("s1", 1800, 5, null));
+		assertNotNull(store.touchAndRead("s1", 1800, 30, null));
+	}
+
+	public void testExpiredSessionsAreDropped() {
+		store.create("s1", "id", bytes("s1"), 1);
+		store.create("s2", "id", bytes("s2"), 1800);
+		store.processExpires(System.currentTimeMillis() + 2000);
+		assertNull(store.get("s1", "id"));
+		assertNotNull(store.get("s2", "id"));
+		assertEquals(1, store.getExpirations());
+	}
+
+	public void testManySessions() {
+		for (int i = 0; i < 10000; i++) {
+			store.create("session-" + i, "id", bytes(String.valueOf(i)), 1800);
+		}
+		assertEquals(10000, store.getSize());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(String.valueOf(i), SafeEncoder.encode(store.get("session-" + i, "id")));
+		}
+	}
+
+	public void testSessionsAreEvictedWhenFull() {
+		OffHeapSessionStore small = new OffHeapSessionStore(OffHeapSessionStore.PAGE_SIZE, 1);
+		byte[] value = new byte[900];
+		for (int i = 0; i < 2000; i++) {
+			small.create("session-" + i, "data", value, 1800 + i);
+		}
+		// 1 KB chunks, 1024 in the page
+		assertEquals(1024, small.getSize());
+		assertEquals(2000 - 1024, small.getEvictions());
+		assertNull(small.get("session-0", "data"));
+		assertNotNull(small.get("session-1999", "data"));
+		assertEquals(OffHeapSessionStore.PAGE_SIZE, small.getAllocatedBytes());
+	}
+
+	public void testSessionsOfAllSizesSharePages() {
+		OffHeapSessionStore small = new OffHeapSessionStore(2 * OffHeapSessionStore.PAGE_SIZE, 2);
+		small.create("a", "id", bytes("a"), 1800);
+		small.create("b", "id", bytes("b"), 1800);
+		set(small, "a", "cart", new byte[3000]);
+		set(small, "b", "cart", new byte[100]);
+		assertEquals(3000, small.get("a", "cart").length);
+		assertEquals(2, small.getSize());
+		assertEquals(0, small.getEvictions());
+	}
+
+	public void testRecordsGrowAcrossSizes() {
+		OffHeapSessionStore small = new OffHeapSessionStore(OffHeapSessionStore.PAGE_SIZE, 1);
+		for (int i = 0; i < 100; i++) {
+			small.create("session-" + i, "id", bytes(String.valueOf(i)), 1800);
+		}
+		// from 64 byte chunks to a quarter of a page, each size freeing the previous one
+		for (int size = 16; size <= 128 * 1024; size *= 2) {
+			set(small, "session-0", "cart", new byte[size]);
+			assertEquals(size, small.get("session-0", "cart").length);
+		}
+		assertEquals(100, small.getSize());
+		assertEquals(0, small.getEvictions());
+		assertEquals(OffHeapSessionStore.PAGE_SIZE, small.getAllocatedBytes());
+	}
+
+	public void testFreedChunksAreMerged() {
+		OffHeapSessionStore small = new OffHeapSessionStore(OffHeapSessionStore.PAGE_SIZE, 1);
+		for (int i = 0; i < 10000; i++) {
+			small.create("session-" + i, "id", bytes(String.valueOf(i)), 1800);
+		}
+		for (int i = 0; i < 10000; i++) {
+			small.invalidate("session-" + i, null, null);
+		}
+		assertEquals(0, small.getUsedBytes());
+		small.create("s1", "data", new byte[OffHeapSessionStore.PAGE_SIZE - 100], 1800);
+		assertEquals(OffHeapSessionStore.PAGE_SIZE, small.getUsedBytes());
+		assertEquals(0, small.getEvictions());
+	}
+
+	public void testLargeRecordEvictsSmallerOnes() {
+		OffHeapSessionStore small = new OffHeapSessionStore(OffHeapSessionStore.PAGE_SIZE, 1);
+		for (int i = 0; i < 1000; i++) {
+			small.create("session-" + i, "data", new byte[900], 1800 + i);
+		}
+		small.create("s1", "id", bytes("s1"), 3600);
+		assertEquals(0, small.getEvictions());
+		// needs a free half page, made of 1 KB chunks freed in order of expiry
+		set(small, "s1", "data", new byte[400 * 1024]);
+		assertNotNull(small.get("s1", "data"));
+		assertNull(small.get("session-0", "data"));
+		assertNotNull(small.get("session-999", "data"));
+		assertTrue(small.getEvictions() >= 400);
+		assertTrue(small.getEvictions() < 1000);
+	}
+
+	public void testRecordLargerThanAPage() {
+		try {
+			store.create("s1", "data", new byte[OffHeapSessionStore.PAGE_SIZE], 1800);
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,592 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.servlet.http.HttpSessionAttributeListener;
+import javax.servlet.http.HttpSessionBindingEvent;
+
+import junit.framework.TestCase;
+import net.jiaoqsh.rsm.redis.FakeRedisServer;
+
+import org.apache.catalina.core.StandardContext;
+import org.apache.catalina.core.StandardEngine;
+import org.apache.catalina.core.StandardHost;
+
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Manager paths run against the off-heap store, without Redis.
+ */
+public class RedisSessionManagerTest extends TestCase {
+
+	private RedisSessionManager manager;
+	private StandardContext context;
+	private String jvmRoute;
+	private FakeRedisServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		manager = new RedisSessionManager();
+		manager.setStoreBackend(RedisSessionManager.STORE_OFFHEAP);
+		manager.setOffHeapCapacity(4 * OffHeapSessionStore.PAGE_SIZE);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		manager.stop();
+		if (server != null) {
+			server.close();
+		}
+	}
+
+	private void start() throws Exception {
+		StandardHost host = new StandardHost();
+		host.setName("localhost");
+		if (jvmRoute != null) {
+			StandardEngine engine = new StandardEngine();
+			engine.setJvmRoute(jvmRoute);
+			host.setParent(engine);
+		}
+		context = new StandardContext();
+		context.setName("/test");
+		context.setParent(host);
+		manager.setContainer(context);
+		manager.start();
+	}
+
+	/**
+	 * Start on a fake Redis that runs the session scripts, the commands they
+	 * issue answered by the handler.
+	 */
+	private void startOnRedis(FakeRedisServer.Handler handler) throws Exception {
+		server = new FakeRedisServer(handler);
+		server.enableScripting();
+		manager.setStoreBackend(RedisSessionManager.STORE_REDIS);
+		manager.setHost("127.0.0.1");
+		manager.setPort(server.getPort());
+		start();
+	}
+
+	/**
+	 * Redis holding the data of one session that has timed out, kept until
+	 * its expiry event is handled.
+	 */
+	private static FakeRedisServer.Handler timedOut(final String id) {
+		return new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				String name = command.get(0);
+				String key = command.size() > 1 ? command.get(1) : "";
+				if (name.equals("CONFIG")) {
+					return "*2\r\n" + FakeRedisServer.bulk("notify-keyspace-events") + FakeRedisServer.bulk("Kx");
+				}
+				if (name.equals("PSUBSCRIBE")) {
+					return "*3\r\n" + FakeRedisServer.bulk("psubscribe") + FakeRedisServer.bulk(key) + ":1\r\n";
+				}
+				if (name.equals("HSETNX")) {
+					return key.equals(id) ? ":0\r\n" : ":1\r\n";
+				}
+				if (name.equals("TTL")) {
+					return key.equals(id) ? ":30\r\n" : ":-2\r\n";
+				}
+				if (name.equals("SETEX")) {
+					return "+OK\r\n";
+				}
+				return ":1\r\n";
+			}
+		};
+	}
+
+	/**
+	 * Start a request on a session: it is loaded again from the store.
+	 */
+	private RedisSession request(String id) throws Exception {
+		return (RedisSession) manager.findSession(id);
+	}
+
+	private String newSession() throws Exception {
+		String id = manager.createSession(null).getId();
+		manager.afterRequest();
+		return id;
+	}
+
+	public void testUnchangedValueIsNotWrittenAgain() throws Exception {
+		manager.setDirtyTracking(true);
+		start();
+		String id = newSession();
+		request(id).setAttribute("user", "alice");
+		manager.afterRequest();
+		RedisSession session = request(id);
+		assertEquals("alice", session.getAttribute("user"));
+		session.setAttribute("user", "alice");
+		manager.afterRequest();
+		assertEquals(1, manager.getWritesSkipped());
+		request(id).setAttribute("user", "bob");
+		manager.afterRequest();
+		assertEquals(1, manager.getWritesSkipped());
+		assertEquals("bob", request(id).getAttribute("user"));
+		manager.afterRequest();
+	}
+
+	public void testInPlaceMutationIsPersisted() throws Exception {
+		manager.setDirtyTracking(true);
+		start();
+		String id = newSession();
+		List<String> cart = new ArrayList<String>();
+		cart.add("book");
+		request(id).setAttribute("cart", cart);
+		manager.afterRequest();
+
+		@SuppressWarnings("unchecked")
+		List<String> loaded = (List<String>) request(id).getAttribute("cart");
+		loaded.add("pen");
+		manager.afterRequest();
+		assertEquals(1, manager.getMutationsWritten());
+
+		assertEquals(2, ((List<?>) request(id).getAttribute("cart")).size());
+		manager.afterRequest();
+		// read and not changed: checked but not written
+		assertEquals(1, manager.getMutationsWritten());
+		assertTrue(manager.getMutationsChecked() >= 3);
+	}
+
+	public void testWriteDoesNotRecreateAnInvalidatedSession() throws Exception {
+		start();
+		String id = newSession();
+		RedisSession session = request(id);
+		session.setAttribute("user", "alice");
+		// invalidated by another node while this request runs
+		manager.getStore().invalidate(id, null, null);
+		session.setAttribute("user", "bob");
+		manager.afterRequest();
+		assertNull(manager.getStore().get(id, RedisSessionManager.ID_FIELD));
+		assertEquals(0, ((OffHeapSessionStore) manager.getStore()).getSize());
+	}
+
+	public void testStickyWritesStayInOrderWhenTheQueueIsFull() throws Exception {
+		manager.setSticky(true);
+		manager.setAsyncWriteQueueSize(1);
+		jvmRoute = "node1";
+		start();
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final List<Object> written = Collections.synchronizedList(new ArrayList<Object>());
+		manager.store = new FailingStore(manager.store) {
+			@Override
+			public Long update(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds,
+					String versionField, String channel, String message) {
+				if (sets.containsKey("cart") && sending.getCount() > 0) {
+					// the first write is slow
+					sending.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				synchronized (written) {
+					Long version = super.update(key, sets, removes, seconds, versionField, channel, message);
+					if (sets.containsKey("cart")) {
+						written.add(manager.decodeAttribute("cart", manager.unpackAttribute("cart", sets.get("cart"))));
+					}
+					return version;
+				}
+			}
+		};
+		String id = newSession();
+		assertTrue(id.endsWith(".node1"));
+		request(id).setAttribute("cart", "1");
+		manager.afterRequest();
+		sending.await();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				release.countDown();
+			}
+		}.start();
+		// the second write fills the queue, the third finds it full
+		request(id).setAttribute("cart", "2");
+		manager.afterRequest();
+		request(id).setAttribute("cart", "3");
+		manager.afterRequest();
+		manager.stop();
+		// in the order they reached the store
+		assertEquals("1", written.get(0));
+		assertEquals("3", written.get(written.size() - 1));
+	}
+
+	public void testLazySessionKeepsAFreeRequestedId() throws Exception {
+		manager.setLazyCreate(true);
+		start();
+		assertEquals("requested", manager.createSession("requested").getId());
+		manager.afterRequest();
+	}
+
+	public void testLazySessionDoesNotReuseATimedOutId() throws Exception {
+		manager.setLazyCreate(true);
+		manager.setExpiryEvents(true);
+		startOnRedis(timedOut("requested"));
+		String id = manager.createSession("requested").getId();
+		manager.afterRequest();
+		assertFalse("requested".equals(id));
+		// the timed out data is left for its expiry to be handled
+		assertEquals(0, server.count("HSETNX"));
+		assertEquals(0, server.count("EXPIRE"));
+	}
+
+	public void testSessionDoesNotReuseATimedOutId() throws Exception {
+		manager.setExpiryEvents(true);
+		startOnRedis(timedOut("requested"));
+		String id = manager.createSession("requested").getId();
+		manager.afterRequest();
+		assertFalse("requested".equals(id));
+		List<String> created = new ArrayList<String>();
+		for (List<String> command : server.getCommands()) {
+			if (command.get(0).equals("HSETNX")) {
+				created.add(command.get(1));
+			}
+		}
+		assertEquals(Arrays.asList("requested", id), created);
+	}
+
+	public void testFailedWriteIsWrittenAgain() throws Exception {
+		manager.setDirtyTracking(true);
+		start();
+		FailingStore failing = new FailingStore(manager.store);
+		manager.store = failing;
+		String id = newSession();
+		List<String> cart = new ArrayList<String>();
+		cart.add("book");
+		RedisSession session = request(id);
+		failing.failures = 1;
+		try {
+			session.setAttribute("cart", cart);
+			fail();
+		} catch (JedisDataException expected) {
+		}
+		// the failed value is not taken as the one in the store
+		manager.afterRequest();
+		assertEquals(1, manager.getMutationsWritten());
+		assertEquals(cart, request(id).getAttribute("cart"));
+		manager.afterRequest();
+	}
+
+	public void testFailedFlushIsWrittenAgain() throws Exception {
+		manager.setDirtyTracking(true);
+		manager.setWriteBehind(true);
+		start();
+		FailingStore failing = new FailingStore(manager.store);
+		manager.store = failing;
+		String id = manager.createSession(null).getId();
+		manager.afterRequest();
+
+		request(id).setAttribute("user", "alice");
+		failing.failures = 1;
+		manager.afterRequest();
+		assertNull(request(id).getAttribute("user"));
+		manager.afterRequest();
+
+		request(id).setAttribute("user", "alice");
+		manager.afterRequest();
+		assertEquals(0, manager.getWritesSkipped());
+		assertEquals("alice", request(id).getAttribute("user"));
+		manager.afterRequest();
+	}
+
+	public void testAttributesAreDecodedOnFirstAccess() throws Exception {
+		manager.setLazyDecode(true);
+		manager.setLoadAllAttributes(true);
+		start();
+		String id = newSession();
+		RedisSession session = request(id);
+		session.setAttribute("user", "alice");
+		session.setAttribute("cart", "3 items");
+		manager.afterRequest();
+
+		session = request(id);
+		assertEquals(2, manager.getRawLoaded());
+		assertEquals(0, manager.getRawDecoded());
+		assertNull(session.getLocalAttribute("user"));
+		assertEquals(new HashSet<String>(Arrays.asList("user", "cart")),
+				new HashSet<String>(Collections.list(session.getAttributeNames())));
+		assertEquals("alice", session.getAttribute("user"));
+		assertEquals("alice", session.getLocalAttribute("user"));
+		assertEquals(1, manager.getRawDecoded());
+		manager.afterRequest();
+		assertEquals(1, manager.getDecodesSkipped());
+		assertTrue(manager.getBytesSkipped() > 0);
+	}
+
+	public void testListenersSeeTheDecodedValue() throws Exception {
+		manager.setLazyDecode(true);
+		manager.setLoadAllAttributes(true);
+		start();
+		RecordingListener listener = new RecordingListener();
+		context.setApplicationEventListeners(new Object[] { listener });
+		String id = newSession();
+		RedisSession session = request(id);
+		session.setAttribute("user", "alice");
+		session.setAttribute("cart", "3 items");
+		manager.afterRequest();
+		listener.events.clear();
+
+		session = request(id);
+		session.setAttribute("user", "bob");
+		session.removeAttribute("cart");
+		manager.afterRequest();
+		assertEquals(Arrays.asList("replaced user=alice", "removed cart=3 items"), listener.events);
+		assertEquals(2, manager.getRawDecoded());
+
+		session = request(id);
+		assertEquals("bob", session.getAttribute("user"));
+		assertNull(session.getAttribute("cart"));
+		manager.afterRequest();
+	}
+
+	public void testInvalidationRemovesAttributesOnlyLocally() throws Exception {
+		manager.setLoadAllAttributes(true);
+		start();
+		RecordingListener listener = new RecordingListener();
+		context.setApplicationEventListeners(new Object[] { listener });
+		String id = newSession();
+		RedisSession session = request(id);
+		session.setAttribute("user", "alice");
+		session.setAttribute("cart", "3 items");
+		manager.afterRequest();
+		listener.events.clear();
+
+		final List<String> writes = new ArrayList<String>();
+		manager.store = new FailingStore(manager.store) {
+			@Override
+			public void remove(String key, String field) {
+				writes.add("remove " + field);
+				super.remove(key, field);
+			}
+
+			@Override
+			public Long update(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds,
+					String versionField, String channel, String message) {
+				writes.add("update " + removes);
+				return super.update(key, sets, removes, seconds, versionField, channel, message);
+			}
+		};
+		session = request(id);
+		session.invalidate();
+		manager.afterRequest();
+		// listeners still see every attribute go, the key is deleted as a whole
+		assertEquals(new HashSet<String>(Arrays.asList("removed user=alice", "removed cart=3 items")),
+				new HashSet<String>(listener.events));
+		assertEquals(Collections.emptyList(), writes);
+		assertNull(manager.getStore().get(id, RedisSessionManager.ID_FIELD));
+
+		// not left invalidating
+		session = (RedisSession) manager.createSession(null);
+		session.setAttribute("user", "carol");
+		session.removeAttribute("user");
+		manager.afterRequest();
+		assertTrue(writes.contains("remove user"));
+	}
+
+	public void testBlobsUseTheConfiguredSerializer() throws Exception {
+		manager.setStorageLayout(RedisSessionManager.LAYOUT_BLOB);
+		start();
+		String id = newSession();
+		RedisSession session = request(id);
+		long created = session.getCreationTime();
+		session.setAttribute("user", "alice");
+		session.setAttribute("cart", Collections.singletonMap("book", 2));
+		manager.afterRequest();
+		assertEquals(1, manager.getBlobWrites());
+		assertNotNull(manager.getStore().get(id, RedisSessionManager.BLOB_FIELD));
+		assertNull(manager.getStore().get(id, "user"));
+
+		session = request(id);
+		assertEquals("alice", session.getAttribute("user"));
+		assertEquals(Collections.singletonMap("book", 2), session.getAttribute("cart"));
+		assertEquals(created, session.getCreationTime());
+		manager.afterRequest();
+	}
+
+	public void testBlobLayoutRejectsWhatCannotBeSerialized() throws Exception {
+		manager.setSerializationStrategyClass("net.jiaoqsh.rsm.serializer.JavaSerializer");
+		manager.setStorageLayout(RedisSessionManager.LAYOUT_BLOB);
+		start();
+		String id = newSession();
+		RedisSession session = request(id);
+		session.setAttribute("user", "alice");
+		try {
+			session.setAttribute("user", new Object());
+			fail();
+		} catch (IllegalArgumentException expected) {
+		}
+		assertEquals("alice", session.getAttribute("user"));
+		manager.afterRequest();
+		assertEquals("alice", request(id).getAttribute("user"));
+		manager.afterRequest();
+	}
+
+	public void testAutoLayoutKeepsWhatCannotBeSerializedInAHash() throws Exception {
+		manager.setSerializationStrategyClass("net.jiaoqsh.rsm.serializer.JavaSerializer");
+		manager.setStorageLayout(RedisSessionManager.LAYOUT_AUTO);
+		manager.setBlobMinAttributes(1);
+		start();
+		RedisSession session = (RedisSession) manager.createSession(null);
+		String id = session.getId();
+		session.setAttribute("user", "alice");
+		manager.afterRequest();
+		assertNotNull(manager.getStore().get(id, RedisSessionManager.BLOB_FIELD));
+
+		session = request(id);
+		session.setAttribute("helper", new Object());
+		manager.afterRequest();
+		assertNull(manager.getStore().get(id, RedisSessionManager.BLOB_FIELD));
+		assertEquals("alice", request(id).getAttribute("user"));
+		manager.afterRequest();
+		assertEquals(1, manager.getLayoutChanges());
+	}
+
+	public void testRedisFeaturesAreLeftOffWithoutChangingTheirConfiguration() throws Exception {
+		manager.setNearCacheSize(100);
+		manager.setTtlRefreshFraction(0.5);
+		manager.setAttributeDictionary(true);
+		manager.setExpiryEvents(true);
+		manager.setSessionIndex(true);
+		manager.setCircuitBreaker(true);
+		start();
+		String id = newSession();
+		request(id).setAttribute("user", "alice");
+		manager.afterRequest();
+		// a new session is not taken for one kept only for its expiry
+		assertEquals(id, request(id).getId());
+		assertEquals("alice", request(id).getAttribute("user"));
+		manager.afterRequest();
+		// the time to live has no expiry grace
+		OffHeapSessionStore store = (OffHeapSessionStore) manager.getStore();
+		assertNull(store.touchAndRead(id, 0, manager.getMaxInactiveInterval(), null));
+		assertNotNull(store.touchAndRead(id, 0, manager.getMaxInactiveInterval() - 10, null));
+
+		assertEquals(100, manager.getNearCacheSize());
+		assertEquals(0.5, manager.getTtlRefreshFraction(), 0.0);
+		assertTrue(manager.isAttributeDictionary());
+		assertTrue(manager.isExpiryEvents());
+		assertTrue(manager.isSessionIndex());
+		assertTrue(manager.isCircuitBreaker());
+	}
+
+	public void testSessionsGrowInASmallStore() throws Exception {
+		start();
+		String first = newSession();
+		String second = newSession();
+		char[] items = new char[3000];
+		Arrays.fill(items, 'x');
+		request(first).setAttribute("cart", new String(items));
+		manager.afterRequest();
+		request(second).setAttribute("cart", "3 items");
+		manager.afterRequest();
+		assertEquals(new String(items), request(first).getAttribute("cart"));
+		manager.afterRequest();
+		assertEquals(0, ((OffHeapSessionStore) manager.getStore()).getEvictions());
+	}
+
+	/**
+	 * Records the attribute events of the context.
+	 */
+	static class RecordingListener implements HttpSessionAttributeListener {
+
+		final List<String> events = new ArrayList<String>();
+
+		@Override
+		public void attributeAdded(HttpSessionBindingEvent event) {
+			events.add("added " + event.getName() + "=" + event.getValue());
+		}
+
+		@Override
+		public void attributeRemoved(HttpSessionBindingEvent event) {
+			events.add("removed " + event.getName() + "=" + event.getValue());
+		}
+
+		@Override
+		public void attributeReplaced(HttpSessionBindingEvent event) {
+			events.add("replaced " + event.getName() + "=" + event.getValue());
+		}
+	}
+
+	/**
+	 * Fails the next writes.
+	 */
+	static class FailingStore implements SessionStore {
+
+		private final SessionStore store;
+		volatile int failures;
+
+		FailingStore(SessionStore store) {
+			this.store = store;
+		}
+
+		private void maybeFail() {
+			if (failures > 0) {
+				failures--;
+				throw new JedisDataException("ERR injected");
+			}
+		}
+
+		@Override
+		public boolean create(String key, String field, byte[] value, int seconds) {
+			return store.create(key, field, value, seconds);
+		}
+
+		@Override
+		public Map<String, byte[]> touchAndRead(String key, int seconds, int minTtl, List<String> fields) {
+			return store.touchAndRead(key, seconds, minTtl, fields);
+		}
+
+		@Override
+		public byte[] get(String key, String field) {
+			return store.get(key, field);
+		}
+
+		@Override
+		public void remove(String key, String field) {
+			maybeFail();
+			store.remove(key, field);
+		}
+
+		@Override
+		public Long update(String key, Map<String, byte[]> sets, Collection<String> removes, int seconds,
+				String versionField, String channel, String message) {
+			maybeFail();
+			return store.update(key, sets, removes, seconds, versionField, channel, message);
+		}
+
+		@Override
+		public void expire(String key, int seconds) {
+			store.expire(key, seconds);
+		}
+
+		@Override
+		public void invalidate(String key, String channel, String message) {
+			store.invalidate(key, channel, message);
+		}
+
+		@Override
+		public void processExpires() {
+			store.processExpires();
+		}
+
+		@Override
+		public void destroy() {
+			store.destroy();
+		}
+	}
+}
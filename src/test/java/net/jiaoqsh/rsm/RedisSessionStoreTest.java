@@ -0,0 +1,53 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jiaoqsh.rsm.redis.FakeRedisServer;
+import net.jiaoqsh.rsm.redis.JedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Script arguments sent by the Redis store, against a fake Redis.
+ */
+public class RedisSessionStoreTest extends TestCase {
+
+	private FakeRedisServer server;
+	private JedisTemplate template;
+	private RedisSessionStore store;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				// the script found the session timed out
+				return FakeRedisServer.bulk(null);
+			}
+		});
+		template = new JedisTemplate(new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort(), 2000));
+		store = new RedisSessionStore(template, new ScriptRegistry(template));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		template.destroy();
+		server.close();
+	}
+
+	public void testTouchAndReadSendsTheTimedOutTtl() {
+		assertNull(store.touchAndRead("s1", 2100, 300, Arrays.asList("user", "cart")));
+		assertNull(store.touchAndRead("s1", 2100, 300, null));
+
+		List<List<String>> commands = server.getCommands();
+		assertEquals(2, commands.size());
+		assertEquals(Arrays.asList("1", "s1", "2100", "300", "user", "cart"), commands.get(0).subList(2, 8));
+		assertEquals(Arrays.asList("1", "s1", "2100", "300"), commands.get(1).subList(2, 6));
+		assertFalse(commands.get(0).get(1).equals(commands.get(1).get(1)));
+	}
+}
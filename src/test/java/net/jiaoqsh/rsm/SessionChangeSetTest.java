@@ -0,0 +1,86 @@
+package net.jiaoqsh.rsm;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import junit.framework.TestCase;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Collapsing of the mutations a request makes to one session.
+ */
+public class SessionChangeSetTest extends TestCase {
+
+	private final SessionChangeSet changes = new SessionChangeSet();
+
+	private static byte[] bytes(String value) {
+		return SafeEncoder.encode(value);
+	}
+
+	public void testEmpty() {
+		assertTrue(changes.isEmpty());
+		assertTrue(changes.drain().isEmpty());
+	}
+
+	public void testRepeatedSetsKeepTheLastValue() {
+		changes.set("cart", bytes("1"));
+		changes.set("user", bytes("alice"));
+		changes.set("cart", bytes("2"));
+		SessionChangeSet.Snapshot snapshot = changes.drain();
+		assertEquals(Arrays.asList("cart", "user"), Arrays.asList(snapshot.getSets().keySet().toArray()));
+		assertEquals("2", SafeEncoder.encode(snapshot.getSets().get("cart")));
+		assertTrue(snapshot.getRemoves().isEmpty());
+		assertFalse(snapshot.isTouched());
+	}
+
+	public void testSetCancelsRemoveAndRemoveCancelsSet() {
+		changes.set("cart", bytes("1"));
+		changes.remove("cart");
+		assertTrue(changes.isRemoved("cart"));
+		changes.remove("user");
+		changes.set("user", bytes("bob"));
+		assertFalse(changes.isRemoved("user"));
+		SessionChangeSet.Snapshot snapshot = changes.drain();
+		assertEquals(Collections.singleton("user"), snapshot.getSets().keySet());
+		assertEquals(Collections.singletonList("cart"), snapshot.getRemoves());
+	}
+
+	public void testDrainStartsANewChangeSet() {
+		changes.set("cart", bytes("1"));
+		changes.touch();
+		SessionChangeSet.Snapshot snapshot = changes.drain();
+		assertTrue(snapshot.isTouched());
+		assertFalse(snapshot.isEmpty());
+		assertTrue(changes.isEmpty());
+		// the snapshot is not affected by later mutations
+		changes.set("cart", bytes("2"));
+		assertEquals("1", SafeEncoder.encode(snapshot.getSets().get("cart")));
+	}
+
+	public void testTouchOnly() {
+		changes.touch();
+		assertFalse(changes.isEmpty());
+		SessionChangeSet.Snapshot snapshot = changes.drain();
+		assertTrue(snapshot.isTouched());
+		assertTrue(snapshot.getSets().isEmpty());
+	}
+
+	public void testRestoreKeepsNewerMutations() {
+		changes.set("cart", bytes("1"));
+		changes.set("user", bytes("alice"));
+		changes.remove("coupon");
+		changes.touch();
+		SessionChangeSet.Snapshot failed = changes.drain();
+
+		changes.set("cart", bytes("2"));
+		changes.remove("user");
+		changes.restore(failed);
+
+		SessionChangeSet.Snapshot snapshot = changes.drain();
+		assertEquals("2", SafeEncoder.encode(snapshot.getSets().get("cart")));
+		assertFalse(snapshot.getSets().containsKey("user"));
+		assertTrue(snapshot.getRemoves().contains("user"));
+		assertTrue(snapshot.getRemoves().contains("coupon"));
+		assertTrue(snapshot.isTouched());
+	}
+}
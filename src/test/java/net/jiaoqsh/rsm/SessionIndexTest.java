@@ -0,0 +1,156 @@
+package net.jiaoqsh.rsm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+import net.jiaoqsh.rsm.redis.FakeRedisServer;
+import net.jiaoqsh.rsm.redis.JedisTemplate;
+import net.jiaoqsh.rsm.redis.ScriptRegistry;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * Gauges derived from the cluster-wide session counters, and the commands
+ * sent to a fake Redis.
+ */
+public class SessionIndexTest extends TestCase {
+
+	private final SessionIndex index = new SessionIndex("rsm:index:/app", null, null, 1000, 1000, 1800000);
+
+	private FakeRedisServer server;
+	private JedisTemplate template;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				String name = command.get(0);
+				if ("INCRBY".equals(name)) {
+					return ":" + (40 + Long.parseLong(command.get(2))) + "\r\n";
+				}
+				if ("GET".equals(name)) {
+					return FakeRedisServer.bulk("42");
+				}
+				if ("EVALSHA".equals(name)) {
+					// ids pruned
+					return ":3\r\n";
+				}
+				if ("ZCARD".equals(name)) {
+					return ":17\r\n";
+				}
+				if ("ZSCAN".equals(name)) {
+					return "*2\r\n" + FakeRedisServer.bulk("0") + "*4\r\n" + FakeRedisServer.bulk("s1")
+							+ FakeRedisServer.bulk("1000") + FakeRedisServer.bulk("s2") + FakeRedisServer.bulk("2000");
+				}
+				return ":1\r\n";
+			}
+		});
+		template = new JedisTemplate(new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort(), 2000));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		template.destroy();
+		server.close();
+	}
+
+	private SessionIndex index(int pruneLimit) {
+		return new SessionIndex("rsm:index:/app", template, new ScriptRegistry(template), 1000, pruneLimit, 1800000);
+	}
+
+	private List<List<String>> commands(String name) {
+		List<List<String>> commands = new ArrayList<List<String>>();
+		for (List<String> command : server.getCommands()) {
+			if (command.get(0).equals(name)) {
+				commands.add(command);
+			}
+		}
+		return commands;
+	}
+
+	public void testCreationRateNeedsTwoSamples() {
+		index.sampleCreations(100, 10000);
+		assertEquals(0.0, index.getCreationRate(), 0.0001);
+		assertEquals(100, index.getTotalCreated());
+
+		index.sampleCreations(150, 12000);
+		assertEquals(25.0, index.getCreationRate(), 0.0001);
+		assertEquals(150, index.getTotalCreated());
+	}
+
+	public void testCreationRateIgnoresSamplesAtTheSameTime() {
+		index.sampleCreations(100, 10000);
+		index.sampleCreations(120, 10000);
+		assertEquals(0.0, index.getCreationRate(), 0.0001);
+	}
+
+	public void testFirstPage() {
+		assertTrue(new SessionIndex.Page(SessionIndex.FIRST_PAGE, null).isLast());
+		assertFalse(new SessionIndex.Page("17", null).isLast());
+	}
+
+	public void testFlushMergesAccessesAndRemovals() {
+		SessionIndex index = index(100);
+		index.created("s1");
+		index.created("s2");
+		index.accessed("s1");
+		index.accessed("s3");
+		index.removed("s2");
+		index.removed("s4");
+		index.flush();
+
+		List<List<String>> zadds = commands("ZADD");
+		assertEquals(1, zadds.size());
+		List<String> zadd = zadds.get(0);
+		assertEquals("rsm:index:/app", zadd.get(1));
+		// one score and member pair per session
+		assertEquals(6, zadd.size());
+		assertTrue(zadd.contains("s1"));
+		assertTrue(zadd.contains("s3"));
+		assertFalse(zadd.contains("s2"));
+
+		List<List<String>> zrems = commands("ZREM");
+		assertEquals(1, zrems.size());
+		assertEquals(4, zrems.get(0).size());
+		assertTrue(zrems.get(0).containsAll(Arrays.asList("s2", "s4")));
+		assertEquals(Arrays.asList("INCRBY", "rsm:index:/app:created", "2"), commands("INCRBY").get(0));
+		assertEquals(42, index.getTotalCreated());
+
+		// nothing pending: the counter is only read
+		index.flush();
+		assertEquals(1, commands("ZADD").size());
+		assertEquals(1, commands("ZREM").size());
+		assertEquals(1, commands("INCRBY").size());
+		assertEquals(1, commands("GET").size());
+	}
+
+	public void testFlushPrunesAtMostTheLimit() {
+		SessionIndex index = index(25);
+		long before = System.currentTimeMillis();
+		index.flush();
+		long after = System.currentTimeMillis();
+
+		List<String> prune = commands("EVALSHA").get(0);
+		assertEquals(Arrays.asList("1", "rsm:index:/app"), prune.subList(2, 4));
+		long maxScore = Long.parseLong(prune.get(4));
+		assertTrue(maxScore >= before - 1800000 && maxScore <= after - 1800000);
+		assertEquals("25", prune.get(5));
+		assertEquals(3, index.getPruned());
+	}
+
+	public void testSizeAndList() {
+		SessionIndex index = index(100);
+		assertEquals(17, index.size());
+
+		SessionIndex.Page page = index.list(SessionIndex.FIRST_PAGE, 10);
+		assertTrue(page.isLast());
+		assertEquals(Long.valueOf(1000), page.getSessions().get("s1"));
+		assertEquals(Long.valueOf(2000), page.getSessions().get("s2"));
+		assertEquals(Arrays.asList("ZSCAN", "rsm:index:/app", "0", "count", "10"), commands("ZSCAN").get(0));
+	}
+}
@@ -0,0 +1,153 @@
+package net.jiaoqsh.rsm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Sharing of concurrent loads by key.
+ */
+public class SingleFlightTest extends TestCase {
+
+	private static final int THREADS = 8;
+
+	public void testConcurrentCallersShareOneLoad() throws Exception {
+		final SingleFlight<String> flight = new SingleFlight<String>();
+		final AtomicInteger calls = new AtomicInteger();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final String[] results = new String[THREADS];
+
+		Thread[] threads = new Thread[THREADS];
+		for (int i = 0; i < THREADS; i++) {
+			final int n = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					results[n] = flight.execute("A", new Callable<String>() {
+						@Override
+						public String call() throws InterruptedException {
+							calls.incrementAndGet();
+							started.countDown();
+							release.await();
+							return "loaded";
+						}
+					});
+				}
+			};
+			threads[i].start();
+			if (i == 0) {
+				started.await();
+			}
+		}
+		while (flight.getShared() < THREADS - 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+
+		assertEquals(1, calls.get());
+		assertEquals(1, flight.getLoads());
+		for (String result : results) {
+			assertEquals("loaded", result);
+		}
+	}
+
+	public void testLoadStartedBeforeAWriteIsNotShared() throws Exception {
+		final SingleFlight<String> flight = new SingleFlight<String>();
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final String[] first = new String[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				first[0] = flight.execute("A", new Callable<String>() {
+					@Override
+					public String call() throws InterruptedException {
+						started.countDown();
+						release.await();
+						return "before write";
+					}
+				});
+			}
+		};
+		thread.start();
+		started.await();
+
+		long written = SingleFlight.clock();
+		String second = flight.execute("A", written, new Callable<String>() {
+			@Override
+			public String call() {
+				return "after write";
+			}
+		});
+		assertEquals("after write", second);
+		// a caller that has not written still shares
+		final String[] third = new String[1];
+		Thread sharing = new Thread() {
+			@Override
+			public void run() {
+				third[0] = flight.execute("A", 0, new Callable<String>() {
+					@Override
+					public String call() {
+						return "own load";
+					}
+				});
+			}
+		};
+		sharing.start();
+		while (flight.getShared() < 1) {
+			Thread.sleep(1);
+		}
+		release.countDown();
+		thread.join();
+		sharing.join();
+		assertEquals("before write", first[0]);
+		assertEquals("before write", third[0]);
+		assertEquals(2, flight.getLoads());
+	}
+
+	public void testClockIsMonotonicAndPositive() {
+		long previous = SingleFlight.clock();
+		assertTrue(previous > 0);
+		for (int i = 0; i < 1000; i++) {
+			long now = SingleFlight.clock();
+			assertTrue(now >= previous);
+			previous = now;
+		}
+	}
+
+	public void testLoadsAreNotCached() {
+		SingleFlight<Integer> flight = new SingleFlight<Integer>();
+		final AtomicInteger calls = new AtomicInteger();
+		Callable<Integer> loader = new Callable<Integer>() {
+			@Override
+			public Integer call() {
+				return calls.incrementAndGet();
+			}
+		};
+		assertEquals(Integer.valueOf(1), flight.execute("A", loader));
+		assertEquals(Integer.valueOf(2), flight.execute("A", loader));
+		assertEquals(Integer.valueOf(3), flight.execute("B", loader));
+		assertEquals(0, flight.getShared());
+	}
+
+	public void testFailureIsRethrown() {
+		SingleFlight<String> flight = new SingleFlight<String>();
+		try {
+			flight.execute("A", new Callable<String>() {
+				@Override
+				public String call() {
+					throw new IllegalArgumentException("boom");
+				}
+			});
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals("boom", e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package net.jiaoqsh.rsm;
+
+import junit.framework.TestCase;
+
+/**
+ * Versions remembered to fence replica reads.
+ */
+public class VersionFenceTest extends TestCase {
+
+	public void testUnknownSessionIsNotFenced() {
+		assertEquals(0, new VersionFence(10).get("s1"));
+	}
+
+	public void testOlderVersionsDoNotReplaceNewerOnes() {
+		VersionFence fence = new VersionFence(10);
+		fence.record("s1", 3);
+		fence.record("s1", 2);
+		assertEquals(3, fence.get("s1"));
+		fence.record("s1", 4);
+		assertEquals(4, fence.get("s1"));
+	}
+
+	public void testForget() {
+		VersionFence fence = new VersionFence(10);
+		fence.record("s1", 3);
+		fence.forget("s1");
+		assertEquals(0, fence.get("s1"));
+		assertEquals(0, fence.getSize());
+	}
+
+	public void testLeastRecentlyUsedSessionsAreDropped() {
+		VersionFence fence = new VersionFence(2);
+		fence.record("s1", 1);
+		fence.record("s2", 1);
+		fence.get("s1");
+		fence.record("s3", 1);
+		assertEquals(2, fence.getSize());
+		assertEquals(1, fence.get("s1"));
+		assertEquals(0, fence.get("s2"));
+		assertEquals(1, fence.get("s3"));
+	}
+}
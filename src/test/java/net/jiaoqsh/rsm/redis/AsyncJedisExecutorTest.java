@@ -0,0 +1,315 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+/**
+ * Commands multiplexed over long-lived connections, against a fake Redis node.
+ */
+public class AsyncJedisExecutorTest extends TestCase {
+
+	private FakeRedisServer server;
+	private JedisPool pool;
+	private AsyncJedisExecutor executor;
+	private volatile long replyDelay;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				if (replyDelay > 0) {
+					try {
+						Thread.sleep(replyDelay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				String key = command.size() > 1 ? command.get(1) : "";
+				if (key.startsWith("moved")) {
+					return FakeRedisServer.error("MOVED 1 127.0.0.1:1");
+				}
+				if (key.startsWith("error")) {
+					return FakeRedisServer.error("ERR wrong kind of value");
+				}
+				return FakeRedisServer.bulk("value-" + key);
+			}
+		});
+		pool = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort(), 2000);
+		executor = new AsyncJedisExecutor(pool, "test", 2, 16, 1000);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		executor.stop(5000);
+		pool.destroy();
+		server.close();
+	}
+
+	private static AsyncJedisExecutor.PipelineAction<String> get(final String key) {
+		return new AsyncJedisExecutor.PipelineAction<String>() {
+			@Override
+			public Response<String> action(Pipeline pipeline) {
+				return pipeline.get(key);
+			}
+		};
+	}
+
+	public void testRepliesReachTheirCallers() throws Exception {
+		List<RedisFuture<String>> futures = new ArrayList<RedisFuture<String>>();
+		for (int i = 0; i < 100; i++) {
+			futures.add(executor.submit(i, get("key" + i), null));
+		}
+		for (int i = 0; i < 100; i++) {
+			assertEquals("value-key" + i, futures.get(i).get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(100, executor.getCommands());
+		assertEquals(100, server.count("GET"));
+		assertTrue(executor.getBatches() <= 100);
+	}
+
+	public void testErrorReplyFailsOnlyItsCommand() throws Exception {
+		RedisFuture<String> failed = executor.submit(0, get("error"), null);
+		RedisFuture<String> ok = executor.submit(0, get("key"), null);
+		try {
+			failed.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof JedisDataException);
+		}
+		assertEquals("value-key", ok.get(5, TimeUnit.SECONDS));
+	}
+
+	public void testRedirectionRunsTheFallback() throws Exception {
+		RedisFuture<String> future = executor.submit(0, get("moved"), new Callable<String>() {
+			@Override
+			public String call() {
+				return "redirected";
+			}
+		});
+		assertEquals("redirected", future.get(5, TimeUnit.SECONDS));
+		assertEquals(1, executor.getRedirects());
+	}
+
+	public void testWorkersHoldOneConnectionEach() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			executor.submit(i, get("key" + i), null).get(5, TimeUnit.SECONDS);
+		}
+		// one connection per worker, kept between batches
+		assertEquals(2, server.getConnections());
+	}
+
+	private static AsyncJedisExecutor.PipelineAction<String> set(final String key, final String value) {
+		return new AsyncJedisExecutor.PipelineAction<String>() {
+			@Override
+			public Response<String> action(Pipeline pipeline) {
+				return pipeline.set(key, value);
+			}
+		};
+	}
+
+	/**
+	 * Run threads that each submit count commands, waiting for every reply.
+	 */
+	private void submitConcurrently(AsyncJedisExecutor executor, int threads, final int count) throws Exception {
+		final AsyncJedisExecutor target = executor;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < count; i++) {
+							String key = "key" + thread + "-" + i;
+							assertEquals("value-" + key, target.submit(key.hashCode(), get(key), null).get(5, TimeUnit.SECONDS));
+						}
+					} catch (Throwable e) {
+						errors.add(e);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(Collections.emptyList(), errors);
+	}
+
+	public void testConcurrentCommandsAreGroupedIntoOnePipeline() throws Exception {
+		replyDelay = 1;
+		AsyncJedisExecutor grouped = new AsyncJedisExecutor(pool, "grouped", 1, 16, TimeUnit.MILLISECONDS.toNanos(2), 1000);
+		try {
+			submitConcurrently(grouped, 8, 25);
+			assertEquals(200, grouped.getCommands());
+			assertEquals(0, grouped.getCallerRuns());
+			assertTrue(grouped.getMaxBatchSize() > 1);
+			assertTrue(grouped.getBatches() < 200);
+			assertEquals(200.0 / grouped.getBatches(), grouped.getAverageBatchSize(), 0.001);
+			assertTrue(grouped.getWaitNanos() > 0);
+		} finally {
+			grouped.stop(5000);
+		}
+	}
+
+	public void testCommandsOfOneKeyKeepTheirOrder() throws Exception {
+		List<RedisFuture<String>> futures = new ArrayList<RedisFuture<String>>();
+		for (int i = 0; i < 50; i++) {
+			for (int k = 0; k < 4; k++) {
+				String key = "key" + k;
+				futures.add(executor.submit(key.hashCode(), set(key, String.valueOf(i)), null));
+			}
+		}
+		for (RedisFuture<String> future : futures) {
+			future.get(5, TimeUnit.SECONDS);
+		}
+		Map<String, Integer> last = new HashMap<String, Integer>();
+		for (List<String> command : server.getCommands()) {
+			Integer previous = last.put(command.get(1), Integer.valueOf(command.get(2)));
+			assertEquals(previous == null ? 0 : previous + 1, Integer.parseInt(command.get(2)));
+		}
+		assertEquals(4, last.size());
+	}
+
+	public void testStopUnderLoadLeavesNoCommandWaiting() throws Exception {
+		replyDelay = 1;
+		final List<RedisFuture<String>> futures = Collections.synchronizedList(new ArrayList<RedisFuture<String>>());
+		final CountDownLatch started = new CountDownLatch(4);
+		final CountDownLatch stopped = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(4);
+		for (int t = 0; t < 4; t++) {
+			final int thread = t;
+			new Thread() {
+				@Override
+				public void run() {
+					started.countDown();
+					// submitting before, while and after the executor stops
+					int after = 0;
+					for (int i = 0; after < 50; i++) {
+						futures.add(executor.submit(thread, get("key" + i), null));
+						if (stopped.getCount() == 0) {
+							after++;
+						}
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		started.await();
+		Thread.sleep(20);
+		executor.stop(5000);
+		stopped.countDown();
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		for (RedisFuture<String> future : futures) {
+			try {
+				future.get(5, TimeUnit.SECONDS);
+			} catch (ExecutionException e) {
+				// failed, not lost
+			} catch (TimeoutException e) {
+				fail("command never completed");
+			}
+		}
+		assertTrue(executor.getCallerRuns() >= 200);
+	}
+
+	public void testLeftoverCommandsFailWhenStopTimesOut() throws Exception {
+		replyDelay = 500;
+		RedisFuture<String> sending = executor.submit(0, get("key0"), null);
+		while (server.count("GET") == 0) {
+			Thread.sleep(10);
+		}
+		RedisFuture<String> queued = executor.submit(0, get("key1"), null);
+		executor.stop(100);
+		try {
+			queued.get(5, TimeUnit.SECONDS);
+			fail();
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof JedisConnectionException);
+		}
+		assertEquals("value-key0", sending.get(5, TimeUnit.SECONDS));
+	}
+
+	public void testGroupedCallWaitsNoLongerThanTheTimeout() throws Exception {
+		replyDelay = 1000;
+		JedisTemplate template = new JedisTemplate(pool);
+		template.enableAsync(1, 16, 1000);
+		template.setGroupCommit(true);
+		template.setTimeout(100);
+		try {
+			long start = System.nanoTime();
+			try {
+				template.hget("key", "field");
+				fail();
+			} catch (JedisConnectionException expected) {
+			}
+			assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(1000));
+		} finally {
+			template.stopAsync();
+		}
+	}
+
+	public void testGroupedCallsOpenTheCircuitBreaker() throws Exception {
+		JedisPool down = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort(), 2000) {
+			@Override
+			public Jedis getResource() {
+				throw new JedisConnectionException("Could not get a resource from the pool");
+			}
+		};
+		JedisTemplate template = new JedisTemplate(down);
+		template.enableAsync(1, 16, 1000);
+		template.setGroupCommit(true);
+		template.enableCircuitBreaker(0.5, 1000, 2, 5, 60000, 60000, null);
+		try {
+			for (int i = 0; i < 5; i++) {
+				try {
+					template.hget("key", "field");
+					fail();
+				} catch (CircuitOpenException e) {
+					fail();
+				} catch (JedisConnectionException expected) {
+				}
+			}
+			CircuitBreaker breaker = template.getCircuitBreakers().iterator().next();
+			assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+			try {
+				template.hget("key", "field");
+				fail();
+			} catch (CircuitOpenException expected) {
+			}
+			assertEquals(1, breaker.getRejected());
+			// rejected before reaching the executor
+			assertEquals(5, template.getAsyncExecutors().iterator().next().getCommands());
+		} finally {
+			template.stopAsync();
+			down.destroy();
+		}
+	}
+
+	public void testCallerRunsAfterStop() throws Exception {
+		executor.stop(5000);
+		assertEquals("value-key", executor.submit(0, get("key"), null).get(5, TimeUnit.SECONDS));
+		assertEquals(1, executor.getCallerRuns());
+		// sent by the caller, not as a pipeline of the workers
+		assertEquals(0, executor.getBatches());
+	}
+}
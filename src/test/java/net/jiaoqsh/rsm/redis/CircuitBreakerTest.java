@@ -0,0 +1,106 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * State changes of the per node circuit breaker.
+ */
+public class CircuitBreakerTest extends TestCase {
+
+	private static final long FAST = 1000000L;
+	private static final long SLOW = 200000000L;
+
+	private final List<String> transitions = new ArrayList<String>();
+
+	private final CircuitBreaker breaker = new CircuitBreaker("test", 0.5, 100, 0.8, 10, 10000, 5000,
+			new CircuitBreaker.Listener() {
+				@Override
+				public void onStateChange(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+					transitions.add(from + "->" + to);
+				}
+			});
+
+	private void calls(int count, boolean success, long nanos, long now) {
+		for (int i = 0; i < count; i++) {
+			boolean probe = breaker.acquire(now);
+			breaker.record(probe, success, nanos, now);
+		}
+	}
+
+	public void testStaysClosedBelowMinimumCalls() {
+		calls(9, false, FAST, 0);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testOpensOnFailureRate() {
+		calls(5, true, FAST, 0);
+		calls(5, false, FAST, 0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(1, breaker.getOpened());
+		try {
+			breaker.acquire(4999);
+			fail();
+		} catch (CircuitOpenException expected) {
+		}
+		assertEquals(1, breaker.getRejected());
+	}
+
+	public void testOpensOnSlowCallRate() {
+		calls(2, true, FAST, 0);
+		calls(8, true, SLOW, 0);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+	}
+
+	public void testWindowIsReset() {
+		calls(6, true, FAST, 0);
+		calls(4, false, FAST, 0);
+		calls(9, false, FAST, 10000);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+	}
+
+	public void testProbeClosesTheBreaker() {
+		calls(10, false, FAST, 0);
+		assertTrue(breaker.acquire(5000));
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		try {
+			// one probe at a time
+			breaker.acquire(5001);
+			fail();
+		} catch (CircuitOpenException expected) {
+		}
+		breaker.record(true, true, FAST, 5002);
+		assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+		assertEquals(1, breaker.getClosed());
+		assertEquals("[CLOSED->OPEN, OPEN->HALF_OPEN, HALF_OPEN->CLOSED]", transitions.toString());
+	}
+
+	public void testFailedProbeOpensTheBreakerAgain() {
+		calls(10, false, FAST, 0);
+		breaker.record(breaker.acquire(5000), false, FAST, 5000);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(2, breaker.getOpened());
+		try {
+			breaker.acquire(9999);
+			fail();
+		} catch (CircuitOpenException expected) {
+		}
+		breaker.acquire(10000);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+	}
+
+	public void testOnlyTheProbeDecides() {
+		// let through before the breaker opens, slow to finish
+		assertFalse(breaker.acquire(0));
+		calls(10, false, FAST, 0);
+		boolean probe = breaker.acquire(5000);
+		assertTrue(probe);
+		breaker.record(false, true, FAST, 5001);
+		assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+		breaker.record(probe, false, FAST, 5002);
+		assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+		assertEquals(0, breaker.getClosed());
+	}
+}
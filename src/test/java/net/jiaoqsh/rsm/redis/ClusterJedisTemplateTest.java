@@ -0,0 +1,273 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.HostAndPort;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.util.JedisClusterCRC16;
+
+/**
+ * Slot calculation, parsing of CLUSTER NODES replies, and redirections
+ * followed against fake cluster nodes.
+ */
+public class ClusterJedisTemplateTest extends TestCase {
+
+	private static final int FOO_SLOT = 12182;
+
+	private FakeRedisServer a;
+	private FakeRedisServer b;
+	private ClusterJedisTemplate template;
+
+	/**
+	 * Port of the node that CLUSTER NODES reports as owner of all slots.
+	 */
+	private volatile int owner;
+
+	@Override
+	protected void setUp() throws Exception {
+		a = new FakeRedisServer(null);
+		b = new FakeRedisServer(null);
+		owner = a.getPort();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (template != null) {
+			template.destroy();
+		}
+		a.close();
+		b.close();
+	}
+
+	private void start() {
+		template = new ClusterJedisTemplate(Collections.singletonList(new HostAndPort("127.0.0.1", a.getPort())),
+				new GenericObjectPoolConfig(), 2000, null);
+	}
+
+	private String clusterNodes() {
+		return FakeRedisServer.bulk("e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca 127.0.0.1:" + owner
+				+ " myself,master - 0 0 1 connected 0-16383\n");
+	}
+
+	private String redirect(String type, FakeRedisServer target) {
+		return FakeRedisServer.error(type + " " + FOO_SLOT + " 127.0.0.1:" + target.getPort());
+	}
+
+	private String get(String key) {
+		return template.execute(key, new JedisTemplate.JedisAction<String>() {
+			@Override
+			public String action(Jedis jedis) {
+				return jedis.get("foo");
+			}
+		});
+	}
+
+	public void testMovedUpdatesTheSlot() {
+		a.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				if (command.get(0).equals("CLUSTER")) {
+					return clusterNodes();
+				}
+				return redirect("MOVED", b);
+			}
+		});
+		b.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				return FakeRedisServer.bulk("bar");
+			}
+		});
+		start();
+
+		assertEquals("bar", get("foo"));
+		assertEquals("bar", get("foo"));
+		assertEquals(1, a.count("GET"));
+		assertEquals(2, b.count("GET"));
+		assertEquals(1, template.getMoved());
+	}
+
+	public void testAskIsFollowedOnce() {
+		a.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				if (command.get(0).equals("CLUSTER")) {
+					return clusterNodes();
+				}
+				return redirect("ASK", b);
+			}
+		});
+		b.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				if (command.get(0).equals("ASKING")) {
+					return "+OK\r\n";
+				}
+				return FakeRedisServer.bulk("bar");
+			}
+		});
+		start();
+
+		assertEquals("bar", get("foo"));
+		assertEquals("bar", get("foo"));
+		// the slot still belongs to a
+		assertEquals(2, a.count("GET"));
+		assertEquals(2, template.getAsked());
+		List<List<String>> commands = b.getCommands();
+		assertEquals(4, commands.size());
+		assertEquals("ASKING", commands.get(0).get(0));
+		assertEquals("GET", commands.get(1).get(0));
+		assertEquals("ASKING", commands.get(2).get(0));
+	}
+
+	public void testExecAbortRefreshesTheSlots() {
+		a.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				String name = command.get(0);
+				if (name.equals("CLUSTER")) {
+					return clusterNodes();
+				}
+				if (name.equals("MULTI")) {
+					return "+OK\r\n";
+				}
+				if (name.equals("EXEC")) {
+					return FakeRedisServer.error("EXECABORT Transaction discarded because of previous errors.");
+				}
+				return redirect("MOVED", b);
+			}
+		});
+		b.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				String name = command.get(0);
+				if (name.equals("MULTI")) {
+					return "+OK\r\n";
+				}
+				if (name.equals("EXEC")) {
+					return "*1\r\n+OK\r\n";
+				}
+				return "+QUEUED\r\n";
+			}
+		});
+		start();
+		// the slot moved to b, as CLUSTER NODES now says
+		owner = b.getPort();
+
+		List<Object> replies = template.execute("foo", new JedisTemplate.JedisAction<List<Object>>() {
+			@Override
+			public List<Object> action(Jedis jedis) {
+				Transaction tx = jedis.multi();
+				tx.set("foo", "bar");
+				return tx.exec();
+			}
+		});
+		assertEquals(1, replies.size());
+		assertEquals(1, a.count("EXEC"));
+		assertEquals(1, b.count("EXEC"));
+		assertEquals(2, template.getRefreshes());
+	}
+
+	public void testPipelinedExpireIsRedirected() {
+		a.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				if (command.get(0).equals("CLUSTER")) {
+					return clusterNodes();
+				}
+				return redirect("MOVED", b);
+			}
+		});
+		b.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				return ":1\r\n";
+			}
+		});
+		start();
+
+		template.expire(template.getJedisPools().get(0), Collections.singletonMap("foo", 60));
+		assertEquals(1, b.count("EXPIRE"));
+		assertEquals(Collections.singletonList(Arrays.asList("EXPIRE", "foo", "60")), b.getCommands());
+	}
+
+	public void testRedirectsAreBounded() {
+		a.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				if (command.get(0).equals("CLUSTER")) {
+					return clusterNodes();
+				}
+				return redirect("MOVED", b);
+			}
+		});
+		b.setHandler(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				return redirect("MOVED", a);
+			}
+		});
+		start();
+
+		try {
+			get("foo");
+			fail();
+		} catch (JedisMovedDataException expected) {
+		}
+		assertEquals(ClusterJedisTemplate.DEFAULT_MAX_REDIRECTS + 1, a.count("GET") + b.count("GET"));
+	}
+
+	public void testSlotMatchesRedis() {
+		assertEquals(12182, ClusterJedisTemplate.getSlot("foo"));
+		assertEquals(12739, ClusterJedisTemplate.getSlot("123456789"));
+		for (int i = 0; i < 1000; i++) {
+			String key = "session-" + i;
+			assertEquals(JedisClusterCRC16.getSlot(key), ClusterJedisTemplate.getSlot(key));
+		}
+	}
+
+	public void testHashTagSelectsSlot() {
+		String key = ClusterJedisTemplate.hashTag("6A2F9C.node1");
+		assertEquals(ClusterJedisTemplate.getSlot("6A2F9C.node1"), ClusterJedisTemplate.getSlot(key));
+		assertEquals(ClusterJedisTemplate.getSlot(key), ClusterJedisTemplate.getSlot("expires:" + key));
+		// an empty tag hashes the whole key
+		assertEquals(JedisClusterCRC16.getSlot("a{}b"), ClusterJedisTemplate.getSlot("a{}b"));
+	}
+
+	public void testParseClusterNodes() {
+		String reply = "07c37dfeb235213a872192d90877d0cd55635b91 127.0.0.1:30004@31004 slave e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca 0 1426238317239 4 connected\n"
+				+ "67ed2db8d677e59ec4a4cefb06858cf2a1a89fa1 127.0.0.1:30002@31002 master - 0 1426238316232 2 connected 5461-10922 [5500->-e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca]\n"
+				+ "292f8b365bb7edb5e285caf0b7e6ddc7265d2f4f 127.0.0.1:30003 master - 0 1426238318243 3 connected 10923-16383\n"
+				+ "6ec23923021cf3ffec47632106199cb7f496ce01 127.0.0.1:30005 master,fail - 0 1426238316232 5 disconnected 100\n"
+				+ "e7d1eecce10fd6bb5eb35b9f99a514335d9ba9ca :30001 myself,master - 0 0 1 connected 0-5460 7000\n";
+		Map<HostAndPort, List<int[]>> nodes = ClusterJedisTemplate.parseClusterNodes(reply, "10.0.0.1");
+		assertEquals(3, nodes.size());
+
+		Iterator<Map.Entry<HostAndPort, List<int[]>>> it = nodes.entrySet().iterator();
+		Map.Entry<HostAndPort, List<int[]>> node = it.next();
+		assertEquals(30002, node.getKey().getPort());
+		assertEquals(1, node.getValue().size());
+		assertEquals(5461, node.getValue().get(0)[0]);
+		assertEquals(10922, node.getValue().get(0)[1]);
+
+		node = it.next();
+		assertEquals(30003, node.getKey().getPort());
+
+		node = it.next();
+		assertEquals("10.0.0.1", node.getKey().getHost());
+		assertEquals(30001, node.getKey().getPort());
+		assertEquals(2, node.getValue().size());
+		assertEquals(7000, node.getValue().get(1)[0]);
+		assertEquals(7000, node.getValue().get(1)[1]);
+	}
+}
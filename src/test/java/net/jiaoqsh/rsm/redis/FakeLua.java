@@ -0,0 +1,587 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interpreter for the small subset of Lua the scripts of {@link ScriptRegistry}
+ * use, so that {@link FakeRedisServer} can run them: local variables,
+ * assignments, if/elseif/else, return, and/or/not, comparisons, integer
+ * arithmetic, #, KEYS/ARGV indexing, {} and the functions redis.call,
+ * redis.pcall, tonumber, type and unpack.
+ * <p>
+ * Values are null (nil), Boolean, Long, String and List (tables, 1-based);
+ * status and error replies are Maps with an "ok" or "err" entry, as in Redis.
+ */
+class FakeLua {
+
+	/**
+	 * Runs one command issued by a script.
+	 */
+	interface Redis {
+		/**
+		 * @return the reply: Long, String, Boolean.FALSE for a nil bulk, List,
+		 *  or a Map with "ok" or "err"
+		 */
+		Object call(List<String> command);
+	}
+
+	/**
+	 * An error raised by the script, such as one from redis.call.
+	 */
+	static class LuaError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		LuaError(String message) {
+			super(message);
+		}
+	}
+
+	private interface Function {
+		List<Object> call(List<Object> args);
+	}
+
+	private interface Expr {
+		List<Object> eval(Map<String, Object> scope);
+	}
+
+	private interface Stat {
+		/**
+		 * @return the values returned, or null if the statement did not return
+		 */
+		List<Object> exec(Map<String, Object> scope);
+	}
+
+	private final List<String> tokens = new ArrayList<String>();
+	private int position;
+
+	private FakeLua(String source) {
+		tokenize(source);
+	}
+
+	/**
+	 * @return the first value returned by the script, or null
+	 */
+	static Object run(String source, List<String> keys, List<String> argv, final Redis redis) {
+		FakeLua parser = new FakeLua(source);
+		List<Stat> block = parser.block();
+		if (parser.position < parser.tokens.size()) {
+			throw new IllegalArgumentException("Unexpected " + parser.tokens.get(parser.position));
+		}
+
+		Map<String, Object> globals = new HashMap<String, Object>();
+		globals.put("KEYS", new ArrayList<Object>(keys));
+		globals.put("ARGV", new ArrayList<Object>(argv));
+		Map<String, Object> redisTable = new HashMap<String, Object>();
+		redisTable.put("call", new Function() {
+			@Override
+			public List<Object> call(List<Object> args) {
+				Object reply = redis.call(command(args));
+				if (reply instanceof Map && ((Map<?, ?>) reply).containsKey("err")) {
+					throw new LuaError((String) ((Map<?, ?>) reply).get("err"));
+				}
+				return one(reply);
+			}
+		});
+		redisTable.put("pcall", new Function() {
+			@Override
+			public List<Object> call(List<Object> args) {
+				return one(redis.call(command(args)));
+			}
+		});
+		globals.put("redis", redisTable);
+		globals.put("tonumber", new Function() {
+			@Override
+			public List<Object> call(List<Object> args) {
+				Object value = args.isEmpty() ? null : args.get(0);
+				if (value instanceof Long) {
+					return one(value);
+				}
+				try {
+					return one(value instanceof String ? Long.valueOf(((String) value).trim()) : null);
+				} catch (NumberFormatException e) {
+					return one(null);
+				}
+			}
+		});
+		globals.put("type", new Function() {
+			@Override
+			public List<Object> call(List<Object> args) {
+				Object value = args.isEmpty() ? null : args.get(0);
+				if (value == null) {
+					return one("nil");
+				}
+				if (value instanceof Boolean) {
+					return one("boolean");
+				}
+				if (value instanceof Long) {
+					return one("number");
+				}
+				if (value instanceof String) {
+					return one("string");
+				}
+				return one(value instanceof Function ? "function" : "table");
+			}
+		});
+		globals.put("unpack", new Function() {
+			@Override
+			public List<Object> call(List<Object> args) {
+				List<?> table = (List<?>) args.get(0);
+				int from = args.size() > 1 ? (int) number(args.get(1)) : 1;
+				int to = args.size() > 2 ? (int) number(args.get(2)) : table.size();
+				List<Object> values = new ArrayList<Object>();
+				for (int i = from; i <= to; i++) {
+					values.add(i >= 1 && i <= table.size() ? table.get(i - 1) : null);
+				}
+				return values;
+			}
+		});
+
+		List<Object> result = execute(block, globals);
+		return result == null || result.isEmpty() ? null : result.get(0);
+	}
+
+	private static List<String> command(List<Object> args) {
+		List<String> command = new ArrayList<String>(args.size());
+		for (Object arg : args) {
+			if (!(arg instanceof String) && !(arg instanceof Long)) {
+				throw new LuaError("Lua redis() command arguments must be strings or integers");
+			}
+			command.add(String.valueOf(arg));
+		}
+		return command;
+	}
+
+	private static List<Object> execute(List<Stat> block, Map<String, Object> scope) {
+		for (Stat stat : block) {
+			List<Object> result = stat.exec(scope);
+			if (result != null) {
+				return result;
+			}
+		}
+		return null;
+	}
+
+	// ////////////// parser ///////////////////////////
+
+	private List<Stat> block() {
+		List<Stat> block = new ArrayList<Stat>();
+		while (position < tokens.size() && !peek("end") && !peek("else") && !peek("elseif")) {
+			block.add(statement());
+		}
+		return block;
+	}
+
+	private Stat statement() {
+		if (accept("local")) {
+			final String name = next();
+			expect("=");
+			final Expr value = expression();
+			return new Stat() {
+				@Override
+				public List<Object> exec(Map<String, Object> scope) {
+					scope.put(name, first(value.eval(scope)));
+					return null;
+				}
+			};
+		}
+		if (accept("if")) {
+			final List<Expr> conditions = new ArrayList<Expr>();
+			final List<List<Stat>> blocks = new ArrayList<List<Stat>>();
+			do {
+				conditions.add(expression());
+				expect("then");
+				blocks.add(block());
+			} while (accept("elseif"));
+			final List<Stat> otherwise = accept("else") ? block() : Collections.<Stat>emptyList();
+			expect("end");
+			return new Stat() {
+				@Override
+				public List<Object> exec(Map<String, Object> scope) {
+					for (int i = 0; i < conditions.size(); i++) {
+						if (truthy(first(conditions.get(i).eval(scope)))) {
+							return execute(blocks.get(i), scope);
+						}
+					}
+					return execute(otherwise, scope);
+				}
+			};
+		}
+		if (accept("return")) {
+			final Expr value = position < tokens.size() && !peek("end") && !peek("else") && !peek("elseif")
+					? expression() : null;
+			return new Stat() {
+				@Override
+				public List<Object> exec(Map<String, Object> scope) {
+					return value == null ? new ArrayList<Object>() : value.eval(scope);
+				}
+			};
+		}
+		if (position + 1 < tokens.size() && isName(tokens.get(position)) && tokens.get(position + 1).equals("=")) {
+			final String name = next();
+			expect("=");
+			final Expr value = expression();
+			return new Stat() {
+				@Override
+				public List<Object> exec(Map<String, Object> scope) {
+					scope.put(name, first(value.eval(scope)));
+					return null;
+				}
+			};
+		}
+		final Expr call = expression();
+		return new Stat() {
+			@Override
+			public List<Object> exec(Map<String, Object> scope) {
+				call.eval(scope);
+				return null;
+			}
+		};
+	}
+
+	private Expr expression() {
+		Expr left = and();
+		while (accept("or")) {
+			final Expr l = left;
+			final Expr r = and();
+			left = new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					Object value = first(l.eval(scope));
+					return truthy(value) ? one(value) : one(first(r.eval(scope)));
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr and() {
+		Expr left = comparison();
+		while (accept("and")) {
+			final Expr l = left;
+			final Expr r = comparison();
+			left = new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					Object value = first(l.eval(scope));
+					return !truthy(value) ? one(value) : one(first(r.eval(scope)));
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr comparison() {
+		Expr left = additive();
+		while (peek("==") || peek("~=") || peek("<") || peek("<=") || peek(">") || peek(">=")) {
+			final String operator = next();
+			final Expr l = left;
+			final Expr r = additive();
+			left = new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					Object a = first(l.eval(scope));
+					Object b = first(r.eval(scope));
+					if (operator.equals("==")) {
+						return one(a == null ? b == null : a.equals(b));
+					}
+					if (operator.equals("~=")) {
+						return one(!(a == null ? b == null : a.equals(b)));
+					}
+					long x = number(a);
+					long y = number(b);
+					if (operator.equals("<")) {
+						return one(x < y);
+					}
+					if (operator.equals("<=")) {
+						return one(x <= y);
+					}
+					if (operator.equals(">")) {
+						return one(x > y);
+					}
+					return one(x >= y);
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr additive() {
+		Expr left = multiplicative();
+		while (peek("+") || peek("-")) {
+			final boolean plus = next().equals("+");
+			final Expr l = left;
+			final Expr r = multiplicative();
+			left = new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					long x = number(first(l.eval(scope)));
+					long y = number(first(r.eval(scope)));
+					return one(plus ? x + y : x - y);
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr multiplicative() {
+		Expr left = unary();
+		while (peek("*")) {
+			next();
+			final Expr l = left;
+			final Expr r = unary();
+			left = new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					return one(number(first(l.eval(scope))) * number(first(r.eval(scope))));
+				}
+			};
+		}
+		return left;
+	}
+
+	private Expr unary() {
+		if (accept("not")) {
+			final Expr operand = unary();
+			return new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					return one(!truthy(first(operand.eval(scope))));
+				}
+			};
+		}
+		if (accept("#")) {
+			final Expr operand = unary();
+			return new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					Object value = first(operand.eval(scope));
+					return one((long) (value instanceof String ? ((String) value).length() : ((List<?>) value).size()));
+				}
+			};
+		}
+		if (accept("-")) {
+			final Expr operand = unary();
+			return new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					return one(-number(first(operand.eval(scope))));
+				}
+			};
+		}
+		return suffixed();
+	}
+
+	private Expr suffixed() {
+		Expr expr = primary();
+		while (true) {
+			if (accept(".")) {
+				expr = index(expr, constant(next()));
+			} else if (accept("[")) {
+				Expr key = expression();
+				expect("]");
+				expr = index(expr, key);
+			} else if (accept("(")) {
+				final List<Expr> args = new ArrayList<Expr>();
+				if (!accept(")")) {
+					do {
+						args.add(expression());
+					} while (accept(","));
+					expect(")");
+				}
+				final Expr function = expr;
+				expr = new Expr() {
+					@Override
+					public List<Object> eval(Map<String, Object> scope) {
+						List<Object> values = new ArrayList<Object>();
+						for (int i = 0; i < args.size(); i++) {
+							List<Object> arg = args.get(i).eval(scope);
+							// only the last argument is expanded to all its values
+							if (i == args.size() - 1) {
+								values.addAll(arg);
+							} else {
+								values.add(first(arg));
+							}
+						}
+						Object target = first(function.eval(scope));
+						if (!(target instanceof Function)) {
+							throw new LuaError("attempt to call a non-function value");
+						}
+						return ((Function) target).call(values);
+					}
+				};
+			} else {
+				return expr;
+			}
+		}
+	}
+
+	private Expr primary() {
+		String token = next();
+		if (token.equals("(")) {
+			final Expr inner = expression();
+			expect(")");
+			return new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					return one(first(inner.eval(scope)));
+				}
+			};
+		}
+		if (token.equals("{")) {
+			expect("}");
+			return new Expr() {
+				@Override
+				public List<Object> eval(Map<String, Object> scope) {
+					return one(new ArrayList<Object>());
+				}
+			};
+		}
+		if (token.equals("nil")) {
+			return constant(null);
+		}
+		if (token.equals("true") || token.equals("false")) {
+			return constant(Boolean.valueOf(token));
+		}
+		if (token.startsWith("'") || token.startsWith("\"")) {
+			return constant(token.substring(1));
+		}
+		if (Character.isDigit(token.charAt(0))) {
+			return constant(Long.valueOf(token));
+		}
+		if (!isName(token)) {
+			throw new IllegalArgumentException("Unexpected " + token);
+		}
+		final String name = token;
+		return new Expr() {
+			@Override
+			public List<Object> eval(Map<String, Object> scope) {
+				return one(scope.get(name));
+			}
+		};
+	}
+
+	private static Expr constant(final Object value) {
+		return new Expr() {
+			@Override
+			public List<Object> eval(Map<String, Object> scope) {
+				return one(value);
+			}
+		};
+	}
+
+	private static Expr index(final Expr table, final Expr key) {
+		return new Expr() {
+			@Override
+			public List<Object> eval(Map<String, Object> scope) {
+				Object target = first(table.eval(scope));
+				Object k = first(key.eval(scope));
+				if (target instanceof List) {
+					List<?> list = (List<?>) target;
+					long i = number(k);
+					return one(i >= 1 && i <= list.size() ? list.get((int) i - 1) : null);
+				}
+				if (target instanceof Map) {
+					return one(((Map<?, ?>) target).get(k));
+				}
+				throw new LuaError("attempt to index a non-table value");
+			}
+		};
+	}
+
+	// ////////////// values ///////////////////////////
+
+	private static List<Object> one(Object value) {
+		List<Object> values = new ArrayList<Object>(1);
+		values.add(value);
+		return values;
+	}
+
+	private static Object first(List<Object> values) {
+		return values.isEmpty() ? null : values.get(0);
+	}
+
+	private static boolean truthy(Object value) {
+		return value != null && !Boolean.FALSE.equals(value);
+	}
+
+	private static long number(Object value) {
+		if (value instanceof Long) {
+			return (Long) value;
+		}
+		if (value instanceof String) {
+			try {
+				return Long.parseLong(((String) value).trim());
+			} catch (NumberFormatException e) {
+				// falls through
+			}
+		}
+		throw new LuaError("attempt to compare or compute with a non-number value: " + value);
+	}
+
+	// ////////////// tokens ///////////////////////////
+
+	private void tokenize(String source) {
+		int i = 0;
+		while (i < source.length()) {
+			char c = source.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '-' && source.startsWith("--", i)) {
+				while (i < source.length() && source.charAt(i) != '\n') {
+					i++;
+				}
+			} else if (c == '\'' || c == '"') {
+				int end = source.indexOf(c, i + 1);
+				// the opening quote marks the token as a string
+				tokens.add(source.substring(i, end));
+				i = end + 1;
+			} else if (Character.isLetterOrDigit(c) || c == '_') {
+				int start = i;
+				while (i < source.length() && (Character.isLetterOrDigit(source.charAt(i)) || source.charAt(i) == '_')) {
+					i++;
+				}
+				tokens.add(source.substring(start, i));
+			} else if (i + 1 < source.length() && "==~=<=>=".contains(source.substring(i, i + 2))
+					&& source.charAt(i + 1) == '=') {
+				tokens.add(source.substring(i, i + 2));
+				i += 2;
+			} else {
+				tokens.add(String.valueOf(c));
+				i++;
+			}
+		}
+	}
+
+	private static boolean isName(String token) {
+		return Character.isLetter(token.charAt(0)) || token.charAt(0) == '_';
+	}
+
+	private boolean peek(String token) {
+		return position < tokens.size() && tokens.get(position).equals(token);
+	}
+
+	private boolean accept(String token) {
+		if (peek(token)) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String token) {
+		if (!accept(token)) {
+			throw new IllegalArgumentException("Expected " + token + " at token " + position);
+		}
+	}
+
+	private String next() {
+		if (position >= tokens.size()) {
+			throw new IllegalArgumentException("Unexpected end of script");
+		}
+		return tokens.get(position++);
+	}
+}
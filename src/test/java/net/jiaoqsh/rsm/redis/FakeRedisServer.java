@@ -0,0 +1,312 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import redis.clients.util.SafeEncoder;
+
+/**
+ * Minimal server speaking the Redis protocol on a local port, for tests.
+ * Every command is recorded and answered by a {@link Handler}. With
+ * {@link #enableScripting()}, EVAL, EVALSHA and SCRIPT LOAD run scripts
+ * through {@link FakeLua}; the commands they issue are recorded and answered
+ * by the handler too.
+ */
+public class FakeRedisServer {
+
+	/**
+	 * Answers one command with a raw reply, e.g. "+OK\r\n".
+	 */
+	public interface Handler {
+		String reply(List<String> command);
+	}
+
+	private final ServerSocket serverSocket;
+	private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<Socket>());
+	private final List<List<String>> commands = Collections.synchronizedList(new ArrayList<List<String>>());
+	private volatile Handler handler;
+	private volatile Map<String, String> scripts;
+
+	public FakeRedisServer(Handler handler) throws IOException {
+		this.handler = handler;
+		this.serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "fake-redis-" + getPort());
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * Run scripts instead of passing EVAL, EVALSHA and SCRIPT to the handler.
+	 */
+	public void enableScripting() {
+		scripts = new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Forget the cached scripts, like SCRIPT FLUSH or a restart.
+	 */
+	public void flushScripts() {
+		scripts.clear();
+	}
+
+	/**
+	 * Number of connections accepted so far.
+	 */
+	public int getConnections() {
+		return sockets.size();
+	}
+
+	/**
+	 * Commands received so far, upper-cased command name first.
+	 */
+	public List<List<String>> getCommands() {
+		synchronized (commands) {
+			return new ArrayList<List<String>>(commands);
+		}
+	}
+
+	/**
+	 * Number of commands received with the given name.
+	 */
+	public int count(String name) {
+		int count = 0;
+		for (List<String> command : getCommands()) {
+			if (command.get(0).equals(name)) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	public static String bulk(String value) {
+		return value == null ? "$-1\r\n" : "$" + SafeEncoder.encode(value).length + "\r\n" + value + "\r\n";
+	}
+
+	public static String error(String message) {
+		return "-" + message + "\r\n";
+	}
+
+	private void accept() {
+		while (!serverSocket.isClosed()) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				return;
+			}
+			sockets.add(socket);
+			Thread connection = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					serve(socket);
+				}
+			}, "fake-redis-connection-" + getPort());
+			connection.setDaemon(true);
+			connection.start();
+		}
+	}
+
+	private void serve(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			List<String> command;
+			while ((command = readCommand(in)) != null) {
+				out.write(SafeEncoder.encode(reply(command)));
+				out.flush();
+			}
+		} catch (IOException e) {
+			// connection closed
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	private String reply(List<String> command) {
+		command.set(0, command.get(0).toUpperCase());
+		commands.add(command);
+		Map<String, String> cache = scripts;
+		String name = command.get(0);
+		if (cache == null || !(name.equals("EVAL") || name.equals("EVALSHA") || name.equals("SCRIPT"))) {
+			return handler.reply(command);
+		}
+		if (name.equals("SCRIPT")) {
+			String sha = sha1(command.get(2));
+			cache.put(sha, command.get(2));
+			return bulk(sha);
+		}
+		String source = command.get(1);
+		if (name.equals("EVALSHA")) {
+			source = cache.get(command.get(1));
+			if (source == null) {
+				return error("NOSCRIPT No matching script. Please use EVAL.");
+			}
+		} else {
+			cache.put(sha1(source), source);
+		}
+		int keys = Integer.parseInt(command.get(2));
+		try {
+			return encode(FakeLua.run(source, command.subList(3, 3 + keys), command.subList(3 + keys, command.size()),
+					new FakeLua.Redis() {
+				@Override
+				public Object call(List<String> inner) {
+					return decode(reply(new ArrayList<String>(inner)), new int[1]);
+				}
+			}));
+		} catch (FakeLua.LuaError e) {
+			return error("ERR Error running script: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Converts a value returned by a script to a reply, as Redis does.
+	 */
+	private static String encode(Object value) {
+		if (value instanceof Long) {
+			return ":" + value + "\r\n";
+		}
+		if (value instanceof String) {
+			return bulk((String) value);
+		}
+		if (Boolean.TRUE.equals(value)) {
+			return ":1\r\n";
+		}
+		if (value instanceof Map) {
+			Map<?, ?> status = (Map<?, ?>) value;
+			return status.containsKey("err") ? error((String) status.get("err")) : "+" + status.get("ok") + "\r\n";
+		}
+		if (value instanceof List) {
+			StringBuilder sb = new StringBuilder();
+			int count = 0;
+			for (Object element : (List<?>) value) {
+				// an array ends at its first nil
+				if (element == null) {
+					break;
+				}
+				sb.append(encode(element));
+				count++;
+			}
+			return "*" + count + "\r\n" + sb;
+		}
+		return bulk(null);
+	}
+
+	/**
+	 * Converts a reply to the value redis.call() returns to a script.
+	 */
+	private static Object decode(String reply, int[] position) {
+		int end = reply.indexOf("\r\n", position[0]);
+		char type = reply.charAt(position[0]);
+		String line = reply.substring(position[0] + 1, end);
+		position[0] = end + 2;
+		if (type == ':') {
+			return Long.valueOf(line);
+		}
+		if (type == '+' || type == '-') {
+			return Collections.singletonMap(type == '+' ? "ok" : "err", line);
+		}
+		int length = Integer.parseInt(line);
+		if (length < 0) {
+			return Boolean.FALSE;
+		}
+		if (type == '$') {
+			String value = reply.substring(position[0], position[0] + length);
+			position[0] += length + 2;
+			return value;
+		}
+		List<Object> elements = new ArrayList<Object>(length);
+		for (int i = 0; i < length; i++) {
+			elements.add(decode(reply, position));
+		}
+		return elements;
+	}
+
+	private static String sha1(String source) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(SafeEncoder.encode(source));
+			return String.format("%040x", new BigInteger(1, digest));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static List<String> readCommand(InputStream in) throws IOException {
+		String line = readLine(in);
+		if (line == null) {
+			return null;
+		}
+		if (!line.startsWith("*")) {
+			return new ArrayList<String>(Arrays.asList(line.trim().split(" ")));
+		}
+		int count = Integer.parseInt(line.substring(1));
+		List<String> command = new ArrayList<String>(count);
+		for (int i = 0; i < count; i++) {
+			int length = Integer.parseInt(readLine(in).substring(1));
+			byte[] data = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = in.read(data, read, length - read);
+				if (n < 0) {
+					return null;
+				}
+				read += n;
+			}
+			in.read();
+			in.read();
+			command.add(SafeEncoder.encode(data));
+		}
+		return command;
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		int c;
+		while ((c = in.read()) >= 0) {
+			if (c == '\r') {
+				in.read();
+				return sb.toString();
+			}
+			sb.append((char) c);
+		}
+		return null;
+	}
+}
@@ -0,0 +1,65 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import junit.framework.TestCase;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Completion of the results of async commands.
+ */
+public class RedisFutureTest extends TestCase {
+
+	public void testCompleted() throws Exception {
+		RedisFuture<String> future = RedisFuture.completed("OK");
+		assertTrue(future.isDone());
+		assertEquals("OK", future.get());
+	}
+
+	public void testFailed() throws Exception {
+		JedisConnectionException cause = new JedisConnectionException("lost");
+		RedisFuture<String> future = RedisFuture.failed(cause);
+		assertTrue(future.isDone());
+		try {
+			future.get();
+			fail();
+		} catch (ExecutionException e) {
+			assertSame(cause, e.getCause());
+		}
+	}
+
+	public void testOnlyTheFirstCompletionCounts() throws Exception {
+		RedisFuture<String> future = new RedisFuture<String>();
+		future.complete("first");
+		future.complete("second");
+		future.fail(new IllegalStateException());
+		assertEquals("first", future.get());
+	}
+
+	public void testWaitsForCompletion() throws Exception {
+		final RedisFuture<Long> future = new RedisFuture<Long>();
+		try {
+			future.get(10, TimeUnit.MILLISECONDS);
+			fail();
+		} catch (TimeoutException expected) {
+		}
+		Thread completer = new Thread() {
+			@Override
+			public void run() {
+				future.complete(42L);
+			}
+		};
+		completer.start();
+		assertEquals(Long.valueOf(42), future.get(5, TimeUnit.SECONDS));
+	}
+
+	public void testCancel() {
+		RedisFuture<String> future = new RedisFuture<String>();
+		assertTrue(future.cancel(false));
+		assertTrue(future.isCancelled());
+		future.complete("late");
+		assertTrue(future.isCancelled());
+	}
+}
@@ -0,0 +1,101 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Reads spread over replicas, against fake Redis nodes.
+ */
+public class ReplicatedJedisTemplateTest extends TestCase {
+
+	private FakeRedisServer master;
+	private FakeRedisServer replica1;
+	private FakeRedisServer replica2;
+
+	@Override
+	protected void setUp() throws Exception {
+		master = new FakeRedisServer(reply("master"));
+		replica1 = new FakeRedisServer(reply("replica1"));
+		replica2 = new FakeRedisServer(reply("replica2"));
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		master.close();
+		replica1.close();
+		replica2.close();
+	}
+
+	private static FakeRedisServer.Handler reply(final String value) {
+		return new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				return FakeRedisServer.bulk(value);
+			}
+		};
+	}
+
+	private static JedisPool pool(int port) {
+		return new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", port, 2000);
+	}
+
+	private static final JedisTemplate.JedisAction<String> GET = new JedisTemplate.JedisAction<String>() {
+		@Override
+		public String action(Jedis jedis) {
+			return jedis.get("s1");
+		}
+	};
+
+	public void testReadsAlternateBetweenReplicas() {
+		ReplicatedJedisTemplate template = new ReplicatedJedisTemplate(pool(master.getPort()),
+				Arrays.asList(pool(replica1.getPort()), pool(replica2.getPort())));
+		try {
+			assertEquals("replica1", template.executeOnReplica(GET));
+			assertEquals("replica2", template.executeOnReplica(GET));
+			assertEquals("replica1", template.executeOnReplica(GET));
+			// other commands go to the master
+			assertEquals("master", template.execute(GET));
+			assertEquals(3, template.getReplicaReads());
+		} finally {
+			template.destroy();
+		}
+	}
+
+	public void testUnreachableReplicaFallsBackToMaster() throws Exception {
+		// never connects, whatever listens on the ports freed by other tests
+		JedisPool unreachable = new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", replica1.getPort(), 2000) {
+			@Override
+			public Jedis getResource() {
+				throw new JedisConnectionException("Could not get a resource from the pool");
+			}
+		};
+		ReplicatedJedisTemplate template = new ReplicatedJedisTemplate(pool(master.getPort()),
+				Collections.singletonList(unreachable));
+		try {
+			assertEquals("master", template.executeOnReplica(GET));
+			assertEquals(0, template.getReplicaReads());
+			assertEquals(1, template.getReplicaErrors());
+		} finally {
+			template.destroy();
+		}
+	}
+
+	public void testWithoutReplicasReadsGoToMaster() {
+		ReplicatedJedisTemplate template = new ReplicatedJedisTemplate(pool(master.getPort()),
+				Collections.<JedisPool>emptyList());
+		try {
+			assertEquals("master", template.executeOnReplica(GET));
+		} finally {
+			template.destroy();
+		}
+	}
+}
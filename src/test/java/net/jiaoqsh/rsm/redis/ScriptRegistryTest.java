@@ -0,0 +1,181 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * The session scripts run against a fake Redis that executes them, with the
+ * commands they issue answered by the test.
+ */
+public class ScriptRegistryTest extends TestCase {
+
+	private final Map<String, String> replies = new ConcurrentHashMap<String, String>();
+	private FakeRedisServer server;
+	private JedisTemplate template;
+	private ScriptRegistry registry;
+
+	@Override
+	protected void setUp() throws Exception {
+		server = new FakeRedisServer(new FakeRedisServer.Handler() {
+			@Override
+			public String reply(List<String> command) {
+				String reply = replies.get(command.get(0));
+				return reply != null ? reply : ":1\r\n";
+			}
+		});
+		server.enableScripting();
+		template = new JedisTemplate(new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", server.getPort(), 2000));
+		registry = new ScriptRegistry(template);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		template.destroy();
+		server.close();
+	}
+
+	private static List<byte[]> bytes(String... values) {
+		List<byte[]> bytes = new ArrayList<byte[]>(values.length);
+		for (String value : values) {
+			bytes.add(SafeEncoder.encode(value));
+		}
+		return bytes;
+	}
+
+	/**
+	 * Names of the commands received, in order.
+	 */
+	private List<String> names() {
+		List<String> names = new ArrayList<String>();
+		for (List<String> command : server.getCommands()) {
+			names.add(command.get(0));
+		}
+		return names;
+	}
+
+	private List<String> command(String name) {
+		for (List<String> command : server.getCommands()) {
+			if (command.get(0).equals(name)) {
+				return command;
+			}
+		}
+		return null;
+	}
+
+	public void testScriptMissingFromTheCacheIsEvaluated() {
+		Object reply = registry.eval(ScriptRegistry.CREATE_SESSION, bytes("s1"), bytes("id", "s1", "1800"));
+		assertEquals(Long.valueOf(1), reply);
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "HSETNX", "EXPIRE"), names());
+
+		// cached again by EVAL
+		registry.eval(ScriptRegistry.CREATE_SESSION, bytes("s2"), bytes("id", "s2", "1800"));
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "HSETNX", "EXPIRE", "EVALSHA", "HSETNX", "EXPIRE"), names());
+
+		server.flushScripts();
+		assertEquals(Long.valueOf(1), registry.eval(ScriptRegistry.CREATE_SESSION, bytes("s3"), bytes("id", "s3", "1800")));
+		assertEquals(2, server.count("EVAL"));
+	}
+
+	public void testLoadedScriptsAreNotSentAgain() {
+		registry.load();
+		assertEquals(7, server.count("SCRIPT"));
+		registry.eval(ScriptRegistry.CREATE_SESSION, bytes("s1"), bytes("id", "s1", "1800"));
+		assertEquals(0, server.count("EVAL"));
+		assertEquals(1, server.count("EVALSHA"));
+	}
+
+	public void testExistingSessionIsNotCreated() {
+		replies.put("HSETNX", ":0\r\n");
+		assertEquals(Long.valueOf(0), registry.eval(ScriptRegistry.CREATE_SESSION, bytes("s1"), bytes("id", "s1", "1800")));
+		assertEquals(0, server.count("EXPIRE"));
+	}
+
+	public void testOtherErrorsAreThrown() {
+		replies.put("HSETNX", FakeRedisServer.error("WRONGTYPE Operation against a key holding the wrong kind of value"));
+		try {
+			registry.eval(ScriptRegistry.CREATE_SESSION, bytes("s1"), bytes("id", "s1", "1800"));
+			fail();
+		} catch (JedisDataException expected) {
+			assertTrue(expected.getMessage().contains("WRONGTYPE"));
+		}
+	}
+
+	public void testInvalidateUnlinks() {
+		registry.eval(ScriptRegistry.INVALIDATE_SESSION, bytes("s1"), bytes("invalidations", "node\ns1"));
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "UNLINK", "PUBLISH"), names());
+		assertEquals(Arrays.asList("PUBLISH", "invalidations", "node\ns1"), command("PUBLISH"));
+	}
+
+	public void testInvalidateFallsBackToDelBeforeRedis4() {
+		replies.put("UNLINK", FakeRedisServer.error("ERR unknown command 'UNLINK'"));
+		Object reply = registry.eval(ScriptRegistry.INVALIDATE_SESSION, bytes("s1"), Collections.<byte[]>emptyList());
+		assertEquals(Long.valueOf(1), reply);
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "UNLINK", "DEL"), names());
+	}
+
+	public void testTouchLoadReadsTheFields() {
+		replies.put("TTL", ":1000\r\n");
+		replies.put("HMGET", "*2\r\n" + FakeRedisServer.bulk("alice") + FakeRedisServer.bulk(null));
+		List<?> values = (List<?>) registry.eval(ScriptRegistry.TOUCH_LOAD, bytes("s1"),
+				bytes("2100", "300", "user", "cart"));
+		assertEquals(2, values.size());
+		assertEquals("alice", SafeEncoder.encode((byte[]) values.get(0)));
+		assertNull(values.get(1));
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "TTL", "EXPIRE", "HMGET"), names());
+		assertEquals(Arrays.asList("HMGET", "s1", "user", "cart"), command("HMGET"));
+	}
+
+	public void testTouchLoadLeavesATimedOutSessionAlone() {
+		replies.put("TTL", ":300\r\n");
+		assertNull(registry.eval(ScriptRegistry.TOUCH_LOAD, bytes("s1"), bytes("2100", "300", "user")));
+		assertNull(registry.eval(ScriptRegistry.TOUCH_LOAD_ALL, bytes("s1"), bytes("2100", "300")));
+		assertEquals(0, server.count("EXPIRE"));
+		assertEquals(0, server.count("HMGET"));
+		assertEquals(0, server.count("HGETALL"));
+	}
+
+	public void testTouchLoadWithoutTimedOutCheck() {
+		replies.put("HGETALL", "*2\r\n" + FakeRedisServer.bulk("id") + FakeRedisServer.bulk("s1"));
+		assertEquals(2, ((List<?>) registry.eval(ScriptRegistry.TOUCH_LOAD_ALL, bytes("s1"), bytes("2100", "0"))).size());
+		assertEquals(0, server.count("TTL"));
+
+		// a session without a TTL has not timed out
+		replies.put("TTL", ":-1\r\n");
+		assertNotNull(registry.eval(ScriptRegistry.TOUCH_LOAD_ALL, bytes("s1"), bytes("2100", "300")));
+	}
+
+	public void testTouchLoadOfAMissingSession() {
+		replies.put("TTL", ":-2\r\n");
+		replies.put("EXPIRE", ":0\r\n");
+		assertNull(registry.eval(ScriptRegistry.TOUCH_LOAD_ALL, bytes("s1"), bytes("2100", "300")));
+		assertEquals(0, server.count("HGETALL"));
+	}
+
+	public void testUpdateWritesAnExistingSession() {
+		replies.put("HINCRBY", ":7\r\n");
+		Object reply = registry.eval(ScriptRegistry.UPDATE_SESSION, bytes("s1"),
+				bytes("2100", "__v", "invalidations", "node\ns1", "1", "user", "alice", "cart"));
+		assertEquals(Long.valueOf(7), reply);
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "EXISTS", "HMSET", "HDEL", "HINCRBY", "EXPIRE", "PUBLISH"), names());
+		assertEquals(Arrays.asList("HMSET", "s1", "user", "alice"), command("HMSET"));
+		assertEquals(Arrays.asList("HDEL", "s1", "cart"), command("HDEL"));
+	}
+
+	public void testUpdateDoesNotWriteAMissingSession() {
+		replies.put("EXISTS", ":0\r\n");
+		assertNull(registry.eval(ScriptRegistry.UPDATE_SESSION, bytes("s1"), bytes("0", "", "", "", "1", "user", "alice")));
+		assertEquals(Arrays.asList("EVALSHA", "EVAL", "EXISTS"), names());
+	}
+}
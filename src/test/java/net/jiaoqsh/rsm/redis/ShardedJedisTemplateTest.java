@@ -0,0 +1,53 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+/**
+ * Distribution of session ids over the consistent-hash ring.
+ */
+public class ShardedJedisTemplateTest extends TestCase {
+
+	private static final int KEYS = 20000;
+
+	private ShardedJedisTemplate template(int nodes) {
+		Map<String, JedisPool> shards = new LinkedHashMap<String, JedisPool>();
+		for (int i = 0; i < nodes; i++) {
+			shards.put("10.0.0." + i + ":6379", new JedisPool(new JedisPoolConfig(), "10.0.0." + i, 6379));
+		}
+		return new ShardedJedisTemplate(shards);
+	}
+
+	public void testKeysAreSpreadEvenly() {
+		ShardedJedisTemplate template = template(4);
+		Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+		for (int i = 0; i < KEYS; i++) {
+			String shard = template.getShardName("session-" + i);
+			Integer count = counts.get(shard);
+			counts.put(shard, count == null ? 1 : count + 1);
+		}
+		assertEquals(4, counts.size());
+		for (Integer count : counts.values()) {
+			assertTrue("unbalanced: " + counts, Math.abs(count - KEYS / 4) < KEYS / 4 * 0.2);
+		}
+	}
+
+	public void testAddingANodeMovesAboutOneNth() {
+		ShardedJedisTemplate before = template(4);
+		ShardedJedisTemplate after = template(5);
+		int moved = 0;
+		for (int i = 0; i < KEYS; i++) {
+			String key = "session-" + i;
+			String target = after.getShardName(key);
+			if (!before.getShardName(key).equals(target)) {
+				assertEquals("keys may only move to the new node", "10.0.0.4:6379", target);
+				moved++;
+			}
+		}
+		assertTrue("moved " + moved, Math.abs(moved - KEYS / 5) < KEYS / 5 * 0.25);
+	}
+}
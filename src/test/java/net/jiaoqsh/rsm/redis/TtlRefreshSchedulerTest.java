@@ -0,0 +1,154 @@
+package net.jiaoqsh.rsm.redis;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+/**
+ * Coalescing of TTL refreshes and their pipelined flush, against two fake
+ * Redis nodes.
+ */
+public class TtlRefreshSchedulerTest extends TestCase {
+
+	private final FakeRedisServer[] servers = new FakeRedisServer[2];
+	private ShardedJedisTemplate template;
+
+	@Override
+	protected void setUp() throws Exception {
+		Map<String, JedisPool> shards = new LinkedHashMap<String, JedisPool>();
+		for (int i = 0; i < servers.length; i++) {
+			servers[i] = new FakeRedisServer(new FakeRedisServer.Handler() {
+				@Override
+				public String reply(List<String> command) {
+					return ":1\r\n";
+				}
+			});
+			shards.put("127.0.0.1:" + servers[i].getPort(),
+					new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1", servers[i].getPort(), 2000));
+		}
+		template = new ShardedJedisTemplate(shards);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		template.destroy();
+		for (FakeRedisServer server : servers) {
+			server.close();
+		}
+	}
+
+	private List<List<String>> expires() {
+		List<List<String>> expires = new ArrayList<List<String>>();
+		for (FakeRedisServer server : servers) {
+			for (List<String> command : server.getCommands()) {
+				if (command.get(0).equals("EXPIRE")) {
+					expires.add(command);
+				}
+			}
+		}
+		return expires;
+	}
+
+	public void testRefreshesOfOneKeyAreCoalesced() {
+		TtlRefreshScheduler scheduler = new TtlRefreshScheduler(template, 0, 60000);
+		scheduler.touch("s1", 1800);
+		scheduler.touch("s1", 1800);
+		scheduler.touch("s1", 2100);
+		assertEquals(1, scheduler.getQueued());
+		assertTrue(expires().isEmpty());
+
+		scheduler.flush();
+		assertEquals(Arrays.asList(Arrays.asList("EXPIRE", "s1", "2100")), expires());
+		assertEquals(1, scheduler.getFlushed());
+		assertEquals(1, scheduler.getBatches());
+
+		// nothing left to send
+		scheduler.flush();
+		assertEquals(1, expires().size());
+	}
+
+	public void testRecentRefreshesAreSkipped() {
+		TtlRefreshScheduler scheduler = new TtlRefreshScheduler(template, 0.5, 60000);
+		scheduler.touch("s1", 1800);
+		scheduler.flush();
+		scheduler.touch("s1", 1800);
+		assertEquals(1, scheduler.getSkipped());
+
+		// refreshed by a load script: no need to send it again
+		scheduler.markTouched("s2", 1800);
+		scheduler.touch("s2", 1800);
+		assertEquals(2, scheduler.getSkipped());
+
+		scheduler.touch("s3", 1800);
+		scheduler.forget("s3");
+		scheduler.flush();
+		assertEquals(1, expires().size());
+	}
+
+	public void testFlushSendsOnePipelinePerNode() {
+		TtlRefreshScheduler scheduler = new TtlRefreshScheduler(template, 0, 60000);
+		Map<String, Set<String>> keysByShard = new LinkedHashMap<String, Set<String>>();
+		for (int i = 0; i < 50; i++) {
+			String key = "session-" + i;
+			scheduler.touch(key, 1800);
+			String shard = template.getShardName(key);
+			if (!keysByShard.containsKey(shard)) {
+				keysByShard.put(shard, new HashSet<String>());
+			}
+			keysByShard.get(shard).add(key);
+		}
+		assertEquals(2, keysByShard.size());
+
+		scheduler.flush();
+		assertEquals(50, scheduler.getFlushed());
+		assertEquals(1, scheduler.getBatches());
+		for (FakeRedisServer server : servers) {
+			Set<String> keys = new HashSet<String>();
+			for (List<String> command : server.getCommands()) {
+				assertEquals("EXPIRE", command.get(0));
+				keys.add(command.get(1));
+			}
+			assertEquals(keysByShard.get("127.0.0.1:" + server.getPort()), keys);
+			// sent over one connection
+			assertEquals(1, server.getConnections());
+		}
+	}
+
+	public void testFailedRefreshesAreQueuedAgain() throws Exception {
+		// the nodes are down; pools that never connect, whatever listens on freed ports
+		Map<String, JedisPool> shards = new LinkedHashMap<String, JedisPool>();
+		for (FakeRedisServer server : servers) {
+			shards.put("127.0.0.1:" + server.getPort(), new JedisPool(new GenericObjectPoolConfig(), "127.0.0.1",
+					server.getPort(), 2000) {
+				@Override
+				public Jedis getResource() {
+					throw new JedisConnectionException("Could not get a resource from the pool");
+				}
+			});
+		}
+		ShardedJedisTemplate down = new ShardedJedisTemplate(shards);
+		TtlRefreshScheduler scheduler = new TtlRefreshScheduler(down, 0.5, 60000);
+		scheduler.touch("s1", 1800);
+		scheduler.flush();
+		assertEquals(0, scheduler.getFlushed());
+		assertTrue(expires().isEmpty());
+
+		// not skipped as recently refreshed
+		scheduler.touch("s1", 1800);
+		assertEquals(0, scheduler.getSkipped());
+		assertEquals(2, scheduler.getQueued());
+		down.destroy();
+	}
+}
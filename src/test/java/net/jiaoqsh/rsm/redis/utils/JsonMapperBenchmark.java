@@ -0,0 +1,71 @@
+package net.jiaoqsh.rsm.redis.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonInclude.Include;
+
+/**
+ * Encode + decode of a 5 field map through a new mapper and String on every
+ * call, as before the shared mappers, and through the shared mapper and
+ * byte[]. Both use NON_EMPTY inclusion, like JsonSerializer.
+ * Not a unit test; run with
+ * <pre>
+ * java -cp target/test-classes:target/classes:... net.jiaoqsh.rsm.redis.utils.JsonMapperBenchmark [iterations]
+ * </pre>
+ * Bytes per operation are only reported on HotSpot.
+ */
+public class JsonMapperBenchmark {
+
+	public static void main(String[] args) {
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+
+		Map<String, Object> value = new LinkedHashMap<String, Object>();
+		value.put("id", 42);
+		value.put("name", "alice");
+		value.put("email", "alice@example.com");
+		value.put("admin", false);
+		value.put("visits", 1234567L);
+
+		// warm up both paths before measuring
+		run("previous path (new mapper per call, String)", value, iterations / 10, false, false);
+		run("shared mapper, byte[]", value, iterations, true, false);
+		run("previous path (new mapper per call, String)", value, iterations / 10, false, true);
+		run("shared mapper, byte[]", value, iterations, true, true);
+	}
+
+	private static void run(String name, Map<String, Object> value, int iterations, boolean shared, boolean report) {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		int sink = 0;
+		for (int i = 0; i < iterations; i++) {
+			if (shared) {
+				JsonMapper mapper = JsonMapper.nonEmptyMapper();
+				byte[] json = mapper.toJsonBytes(value);
+				sink += mapper.fromJson(json, Map.class).size();
+			} else {
+				String json = new JsonMapper(Include.NON_EMPTY).toJson(value);
+				sink += new JsonMapper(Include.NON_EMPTY).fromJson(json, Map.class).size();
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		long bytes = allocatedBytes() - allocated;
+		if (report && sink > 0) {
+			StringBuilder line = new StringBuilder(name).append(": ")
+					.append(iterations * 1000000000L / Math.max(nanos, 1)).append(" ops/s");
+			if (allocated >= 0) {
+				line.append(", ").append(bytes / iterations).append(" B/op");
+			}
+			System.out.println(line);
+		}
+	}
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,76 @@
+package net.jiaoqsh.rsm.serializer;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+/**
+ * Threshold compression of stored attribute values.
+ */
+public class AttributeCompressorTest extends TestCase {
+
+	private final AttributeCompressor compressor = new AttributeCompressor(64, Deflater.BEST_SPEED);
+
+	private static byte[] repetitive(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) ("{\"sku\":1,\"qty\":2}".charAt(i % 17));
+		}
+		return data;
+	}
+
+	public void testSmallValuesAreStoredAsTheyAre() throws Exception {
+		byte[] data = repetitive(63);
+		assertSame(data, compressor.compress(data));
+		assertSame(data, compressor.decompress(data));
+		assertEquals(0, compressor.getCompressed());
+	}
+
+	public void testLargeValuesRoundTrip() throws Exception {
+		byte[] data = repetitive(10000);
+		byte[] stored = compressor.compress(data);
+		assertEquals(AttributeCompressor.COMPRESSED, stored[0] & 0xFF);
+		assertTrue(stored.length < data.length / 10);
+		assertTrue(Arrays.equals(data, compressor.decompress(stored)));
+		assertEquals(1, compressor.getCompressed());
+		assertEquals(1, compressor.getDecompressed());
+		assertTrue(compressor.getRatio() < 0.1);
+		assertEquals(data.length - stored.length, compressor.getBytesSaved());
+	}
+
+	public void testIncompressibleValuesAreStoredAsTheyAre() throws Exception {
+		byte[] data = new byte[1000];
+		new Random(7).nextBytes(data);
+		data[0] = 0x7F;
+		assertSame(data, compressor.compress(data));
+		assertEquals(1, compressor.getIncompressible());
+		assertEquals(0, compressor.getCompressed());
+	}
+
+	public void testValuesStartingWithAMarkerAreEscaped() throws Exception {
+		byte[] data = new byte[] { (byte) AttributeCompressor.COMPRESSED, 1, 2 };
+		byte[] stored = compressor.compress(data);
+		assertEquals(AttributeCompressor.ESCAPED, stored[0] & 0xFF);
+		assertTrue(Arrays.equals(data, compressor.decompress(stored)));
+	}
+
+	public void testDisabled() throws Exception {
+		AttributeCompressor disabled = new AttributeCompressor(0, Deflater.BEST_SPEED);
+		byte[] data = repetitive(10000);
+		assertSame(data, disabled.compress(data));
+		// values compressed earlier are still read
+		assertTrue(Arrays.equals(data, disabled.decompress(compressor.compress(data))));
+	}
+
+	public void testCorruptValue() {
+		byte[] stored = compressor.compress(repetitive(10000));
+		try {
+			compressor.decompress(Arrays.copyOf(stored, stored.length / 2));
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+}
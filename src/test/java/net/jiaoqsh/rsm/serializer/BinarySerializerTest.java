@@ -0,0 +1,105 @@
+package net.jiaoqsh.rsm.serializer;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeSet;
+
+import junit.framework.TestCase;
+
+/**
+ * Round trips through the tagged binary attribute codec.
+ */
+public class BinarySerializerTest extends TestCase {
+
+	private final BinarySerializer serializer = new BinarySerializer();
+
+	private Object roundTrip(Object value) throws Exception {
+		return serializer.decode(serializer.encode(value));
+	}
+
+	public void testScalars() throws Exception {
+		assertNull(roundTrip(null));
+		assertEquals(Boolean.TRUE, roundTrip(Boolean.TRUE));
+		assertEquals(Integer.valueOf(-42), roundTrip(Integer.valueOf(-42)));
+		assertEquals(Long.valueOf(Long.MIN_VALUE), roundTrip(Long.valueOf(Long.MIN_VALUE)));
+		assertEquals(Short.valueOf((short) 7), roundTrip(Short.valueOf((short) 7)));
+		assertEquals(Double.valueOf(3.25), roundTrip(Double.valueOf(3.25)));
+		assertEquals(Character.valueOf('z'), roundTrip(Character.valueOf('z')));
+		assertEquals("héllo 世界", roundTrip("héllo 世界"));
+		assertEquals(new Date(1234567890L), roundTrip(new Date(1234567890L)));
+		assertEquals(new BigDecimal("-12.3400"), roundTrip(new BigDecimal("-12.3400")));
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, (byte[]) roundTrip(new byte[] { 1, 2, 3 })));
+	}
+
+	public void testCollectionsKeepTheirType() throws Exception {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		List<Object> list = new ArrayList<Object>();
+		list.add(Integer.valueOf(1));
+		list.add("two");
+		list.add(null);
+		map.put("list", list);
+		map.put("set", new TreeSet<String>(Arrays.asList("b", "a")));
+
+		Object decoded = roundTrip(map);
+		assertEquals(LinkedHashMap.class, decoded.getClass());
+		assertEquals(map, decoded);
+		assertEquals(TreeSet.class, ((Map<?, ?>) decoded).get("set").getClass());
+	}
+
+	public void testFallsBackToJavaSerialization() throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		list.add(Locale.CHINA);
+		list.add(Arrays.asList("fixed", "size"));
+
+		Object decoded = roundTrip(list);
+		assertEquals(list, decoded);
+		assertEquals(Locale.CHINA, ((List<?>) decoded).get(0));
+	}
+
+	public void testSmallerThanJavaSerialization() throws Exception {
+		Long value = Long.valueOf(12345L);
+		assertTrue(serializer.encode(value).length < new JavaSerializer().encode(value).length);
+	}
+
+	public void testSelfReferencingCollections() throws Exception {
+		List<Object> list = new ArrayList<Object>();
+		list.add("head");
+		list.add(list);
+		List<?> decodedList = (List<?>) roundTrip(list);
+		assertEquals("head", decodedList.get(0));
+		assertSame(decodedList, decodedList.get(1));
+
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("name", "alice");
+		map.put("self", map);
+		assertEquals(BinarySerializer.TAG_SERIALIZED, serializer.encode(map)[0]);
+		Map<?, ?> decodedMap = (Map<?, ?>) roundTrip(map);
+		assertSame(decodedMap, decodedMap.get("self"));
+	}
+
+	public void testSharedCollectionIsNotACycle() throws Exception {
+		List<String> shared = new ArrayList<String>(Arrays.asList("a", "b"));
+		List<Object> list = new ArrayList<Object>();
+		list.add(shared);
+		list.add(shared);
+		assertEquals(BinarySerializer.TAG_ARRAY_LIST, serializer.encode(list)[0]);
+		assertEquals(list, roundTrip(list));
+	}
+
+	public void testCorruptLengthIsRejected() throws Exception {
+		// a byte array claiming 1 GB, followed by 2 bytes
+		byte[] data = { BinarySerializer.TAG_BYTES, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x08, 1, 2 };
+		try {
+			serializer.decode(data);
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package net.jiaoqsh.rsm.serializer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import redis.clients.util.SafeEncoder;
+
+/**
+ * The record layout of session fields.
+ */
+public class FieldCodecTest extends TestCase {
+
+	public void testFieldsRoundTrip() {
+		Map<String, byte[]> fields = new LinkedHashMap<String, byte[]>();
+		fields.put("a", SafeEncoder.encode("1"));
+		fields.put("bb", new byte[0]);
+		byte[] data = FieldCodec.encode(fields);
+		Map<String, byte[]> decoded = FieldCodec.decode(data);
+		assertEquals(fields.keySet(), decoded.keySet());
+		assertEquals("1", SafeEncoder.encode(FieldCodec.field(data, "a")));
+		assertEquals(0, FieldCodec.field(data, "bb").length);
+		assertNull(FieldCodec.field(data, "b"));
+	}
+}